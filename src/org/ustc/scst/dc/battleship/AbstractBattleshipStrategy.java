@@ -0,0 +1,172 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.Random;
+
+/**
+ * The base class for strategies: ships are placed at random positions and
+ * some utility methods for inspecting the enemy field are provided.
+ */
+public abstract class AbstractBattleshipStrategy implements
+    IBattleshipStrategy {
+
+  /**
+   * the cell state bits describing a cell we have fired at and hit: a cell
+   * we have missed has only the first of them
+   */
+  static final int HIT_MASK = (BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN | BattleshipModel.CELL_STATE_ENEMY_SHIP);
+
+  /** Create the strategy */
+  protected AbstractBattleshipStrategy() {
+    super();
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Each ship is placed at a position drawn uniformly from all of its legal
+   * placements, which are enumerated by scanning the anchor bit sets of the
+   * model.
+   * </p>
+   */
+  @Override
+  public void placeShips(final BattleshipModel model, final Random random) {
+    final int width;
+    int length, hors, count, pick, cell;
+    boolean hor;
+
+    width = model.getFieldWidth();
+    synchronized (model) {
+      while ((length = model.getNextShipLengthToPlace()) > 0) {
+        hors = model.getLegalPlacementCount(length, true);
+        count = (hors + model.getLegalPlacementCount(length, false));
+        if (count <= 0) {
+          throw new IllegalStateException(//
+              "No ship of length " + length + //$NON-NLS-1$
+                  " fits on the field anymore."); //$NON-NLS-1$
+        }
+        pick = random.nextInt(count);
+        hor = (pick < hors);
+        if (!hor) {
+          pick -= hors;
+        }
+        cell = model.nextLegalPlacement(length, hor, 0);
+        for (; pick > 0; pick--) {
+          cell = model.nextLegalPlacement(length, hor, (cell + 1));
+        }
+        model.placeShip(length, (cell % width), (cell / width), hor);
+      }
+    }
+  }
+
+  /**
+   * Copy the states of all cells into an array, row by row
+   * 
+   * @param model
+   *          the model
+   * @return the cell states, indexed by {@code y*width + x}
+   */
+  static final int[] readCells(final BattleshipModel model) {
+    final int width, height;
+    final int[] cells;
+    int x, y, i;
+
+    width = model.getFieldWidth();
+    height = model.getFieldHeight();
+    cells = new int[width * height];
+
+    synchronized (model) {
+      i = cells.length;
+      for (y = height; (--y) >= 0;) {
+        for (x = width; (--x) >= 0;) {
+          cells[--i] = model.getCellState(x, y);
+        }
+      }
+    }
+    return cells;
+  }
+
+  /**
+   * Is the given cell unseen?
+   * 
+   * @param cell
+   *          the cell state
+   * @return true if we have not yet fired at the cell
+   */
+  static final boolean isUnseen(final int cell) {
+    return ((cell & BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN) == 0);
+  }
+
+  /**
+   * Is the given cell a hit?
+   * 
+   * @param cell
+   *          the cell state
+   * @return true if we have fired at the cell and found an enemy ship
+   */
+  static final boolean isHit(final int cell) {
+    return ((cell & HIT_MASK) == HIT_MASK);
+  }
+
+  /**
+   * Pick a random unseen cell, preferring cells whose coordinates add up to
+   * an even number if {@code parity} is set
+   * 
+   * @param cells
+   *          the cells
+   * @param width
+   *          the field width
+   * @param parity
+   *          should we prefer the even cells?
+   * @param random
+   *          the random number generator
+   * @return the index of the chosen cell, or -1 if all cells have been seen
+   */
+  static final int randomUnseen(final int[] cells, final int width,
+      final boolean parity, final Random random) {
+    int i, count, pick;
+
+    if (parity) {
+      count = 0;
+      for (i = cells.length; (--i) >= 0;) {
+        if (isUnseen(cells[i]) && ((((i % width) + (i / width)) & 1) == 0)) {
+          count++;
+        }
+      }
+      if (count > 0) {
+        pick = random.nextInt(count);
+        for (i = cells.length; (--i) >= 0;) {
+          if (isUnseen(cells[i]) && ((((i % width) + (i / width)) & 1) == 0)) {
+            if ((--count) == pick) {
+              return i;
+            }
+          }
+        }
+      }
+    }
+
+    count = 0;
+    for (i = cells.length; (--i) >= 0;) {
+      if (isUnseen(cells[i])) {
+        count++;
+      }
+    }
+    if (count <= 0) {
+      return (-1);
+    }
+    pick = random.nextInt(count);
+    for (i = cells.length; (--i) >= 0;) {
+      if (isUnseen(cells[i])) {
+        if ((--count) == pick) {
+          return i;
+        }
+      }
+    }
+    return (-1);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return this.getClass().getSimpleName();
+  }
+}
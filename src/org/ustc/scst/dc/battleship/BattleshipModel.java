@@ -1,5 +1,6 @@
 package org.ustc.scst.dc.battleship;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -11,13 +12,13 @@ import javax.swing.SwingUtilities;
 public final class BattleshipModel {
 
   /** the default field width */
-  private static final int DEFAULT_FIELD_WIDTH = 12;
+  static final int DEFAULT_FIELD_WIDTH = 12;
 
   /** the default field width */
-  private static final int DEFAULT_FIELD_HEIGHT = DEFAULT_FIELD_WIDTH;
+  static final int DEFAULT_FIELD_HEIGHT = DEFAULT_FIELD_WIDTH;
 
   /** the default number of ships to place */
-  private static final int[] DEFAULT_SHIPS_TO_PLACE = new int[] { 5, 3, 2,
+  static final int[] DEFAULT_SHIPS_TO_PLACE = new int[] { 5, 3, 2,
       1 };
 
   /** the game unintialized game state */
@@ -65,20 +66,126 @@ public final class BattleshipModel {
   /** nobody won */
   public static final int WINNER_NOBODY = 0;
 
-  /** the model listeners */
-  private final ArrayList<IBattleshipModelListener> m_listeners;
+  /** the move has been applied */
+  public static final int MOVE_OK = 0;
 
-  /** the state of the field */
+  /** the move was rejected: the x-coordinate is out of bounds */
+  public static final int MOVE_X_OUT_OF_BOUNDS = (MOVE_OK + 1);
+
+  /** the move was rejected: the y-coordinate is out of bounds */
+  public static final int MOVE_Y_OUT_OF_BOUNDS = (MOVE_X_OUT_OF_BOUNDS + 1);
+
+  /** the move was rejected: it would not change anything */
+  public static final int MOVE_EMPTY = (MOVE_Y_OUT_OF_BOUNDS + 1);
+
+  /** the move was rejected: the game is not being played */
+  public static final int MOVE_NOT_PLAYING = (MOVE_EMPTY + 1);
+
+  /** the move was rejected: it has already been applied to the cell */
+  public static final int MOVE_ALREADY_APPLIED = (MOVE_NOT_PLAYING + 1);
+
+  /** the move was rejected: the player must wait for the enemy */
+  public static final int MOVE_PLAYER_MUST_WAIT = (MOVE_ALREADY_APPLIED + 1);
+
+  /** the move was rejected: the enemy must wait for the player */
+  public static final int MOVE_ENEMY_MUST_WAIT = (MOVE_PLAYER_MUST_WAIT + 1);
+
+  /**
+   * the move was rejected: an enemy ship was revealed in a cell the player
+   * has not seen
+   */
+  public static final int MOVE_SHIP_NOT_SEEN = (MOVE_ENEMY_MUST_WAIT + 1);
+
+  /**
+   * the move was rejected: it would both reveal an enemy ship and hit a ship
+   * of the player
+   */
+  public static final int MOVE_BATCH = (MOVE_SHIP_NOT_SEEN + 1);
+
+  /** the messages of the exceptions thrown for rejected moves */
+  private static final String[] MOVE_MESSAGES = new String[] {//
+  null,//
+      "X coordinate out of bounds.", //$NON-NLS-1$
+      "Y coordinate out of bounds.", //$NON-NLS-1$
+      "Empty modification not allowed.", //$NON-NLS-1$
+      "Modifications are only possible during the game.", //$NON-NLS-1$
+      "The modification cannot be applied to this cell.", //$NON-NLS-1$
+      "You need to wait for the enemy before being allowed to view another field.", //$NON-NLS-1$
+      "The enemy needs to wait for you before being allowed to view another field.", //$NON-NLS-1$
+      "An enemy ship cannot become visible without being seen first.", //$NON-NLS-1$
+      "Disallowed batch operation." //$NON-NLS-1$
+  };
+
+  /** the number of bits of a cell reserved for the cell state flags */
+  private static final int EPOCH_SHIFT = 8;
+
+  /** the mask of the cell state flags in a cell */
+  private static final int CELL_STATE_MASK = ((1 << EPOCH_SHIFT) - 1);
+
+  /** the mask of the epoch */
+  private static final int EPOCH_MASK = (-1 >>> EPOCH_SHIFT);
+
+  /** the subscriptions of the model listeners */
+  private final ArrayList<Subscription> m_listeners;
+
+  /** the union of the change flags any listener is interested in */
+  private int m_interest;
+
+  /**
+   * the state of the field: each cell holds the epoch in which it was last
+   * written in its upper bits and its cell state flags in the lower
+   * {@link #EPOCH_SHIFT} bits; cells written in an older epoch are empty
+   */
   private final int[][] m_cellStates;
 
+  /** the current epoch of the cells */
+  private int m_epoch;
+
+  /**
+   * the Zobrist hash of the cell state flags: the XOR of the
+   * {@link Hashing#zobrist(int, int) keys} of all flags that are set
+   */
+  private long m_hash;
+
+  /**
+   * the Zobrist hash of the {@link #CELL_STATE_PLAYER_HAS_SEEN} and
+   * {@link #CELL_STATE_ENEMY_SHIP} flags only, i.e., of what the player
+   * knows about the enemy field
+   */
+  private long m_shotHash;
+
   /** the ships that can be placed */
   private final int[] m_allShipsToPlace;
 
-  /** the ships that can be placed */
-  private final ArrayList<ShipPlacement> m_shipsToPlace;
+  /**
+   * the ships that still need to be placed: index {@code i} holds the number
+   * of ships of length {@code i+1}
+   */
+  private final int[] m_shipsToPlace;
+
+  /** the total number of ships that still need to be placed */
+  private int m_shipsToPlaceCount;
+
+  /**
+   * the legal horizontal anchors: index {@code i} holds the bit set of the
+   * cells {@code y*width+x} at which the upper-left corner of a horizontal
+   * ship of length {@code i+1} could be placed without leaving the field or
+   * intersecting with a ship of the player, or {@code null} if no ship of
+   * that length is ever placed
+   */
+  private final long[][] m_horizontalAnchors;
+
+  /** the legal vertical anchors, like {@link #m_horizontalAnchors} */
+  private final long[][] m_verticalAnchors;
+
+  /** the horizontal anchors of an empty field */
+  private final long[][] m_emptyHorizontalAnchors;
+
+  /** the vertical anchors of an empty field */
+  private final long[][] m_emptyVerticalAnchors;
 
-  /** the game state */
-  private int m_gameState;
+  /** the game state, volatile so that illegal moves can be rejected early */
+  private volatile int m_gameState;
 
   /** the field width */
   private final int m_width;
@@ -101,19 +208,56 @@ public final class BattleshipModel {
   /** the enemy is ready */
   private boolean m_enemyReady;
 
-  /** the last player */
-  private int m_lastPlayer;
+  /** the last player, volatile so that illegal moves can be rejected early */
+  private volatile int m_lastPlayer;
+
+  /** should events be dispatched on the event dispatch thread? */
+  private final boolean m_dispatchOnEDT;
 
   /** Create the default game model */
   public BattleshipModel() {
+    this(DEFAULT_FIELD_WIDTH, DEFAULT_FIELD_HEIGHT, DEFAULT_SHIPS_TO_PLACE,
+        true);
+  }
+
+  /**
+   * Create a game model
+   * 
+   * @param width
+   *          the field width
+   * @param height
+   *          the field height
+   * @param shipsToPlace
+   *          the number of ships to place, where the element at index
+   *          {@code i} is the number of ships of length {@code i+1}
+   * @param dispatchOnEDT
+   *          {@code true} if events should be dispatched on the event
+   *          dispatch thread, {@code false} if they should be dispatched
+   *          synchronously by the thread causing them, which is what headless
+   *          games (simulations, servers) should use
+   */
+  public BattleshipModel(final int width, final int height,
+      final int[] shipsToPlace, final boolean dispatchOnEDT) {
     super();
 
-    int s, j;
+    final int words;
+    int s, j, x, y;
+    long[] hor, ver;
 
-    this.m_width = DEFAULT_FIELD_WIDTH;
-    this.m_height = DEFAULT_FIELD_HEIGHT;
+    if ((width <= 0) || (height <= 0)) {
+      throw new IllegalArgumentException(//
+          "The field dimensions must be positive."); //$NON-NLS-1$
+    }
+    if ((shipsToPlace == null) || (shipsToPlace.length <= 0)) {
+      throw new IllegalArgumentException(//
+          "At least one ship length must be given."); //$NON-NLS-1$
+    }
+
+    this.m_width = width;
+    this.m_height = height;
+    this.m_dispatchOnEDT = dispatchOnEDT;
 
-    this.m_allShipsToPlace = DEFAULT_SHIPS_TO_PLACE.clone();
+    this.m_allShipsToPlace = shipsToPlace.clone();
     s = 0;
     for (j = this.m_allShipsToPlace.length; (--j) >= 0;) {
       s += ((j + 1) * this.m_allShipsToPlace[j]);
@@ -121,9 +265,37 @@ public final class BattleshipModel {
     this.m_maxShipCells = s;
 
     this.m_cellStates = new int[this.m_height][this.m_width];
-    this.m_shipsToPlace = new ArrayList<>();
+    this.m_shipsToPlace = new int[this.m_allShipsToPlace.length];
     this.m_listeners = new ArrayList<>();
 
+    words = (((width * height) + 63) >>> 6);
+    this.m_horizontalAnchors = new long[this.m_allShipsToPlace.length][];
+    this.m_verticalAnchors = new long[this.m_allShipsToPlace.length][];
+    this.m_emptyHorizontalAnchors = new long[this.m_allShipsToPlace.length][];
+    this.m_emptyVerticalAnchors = new long[this.m_allShipsToPlace.length][];
+    for (j = this.m_allShipsToPlace.length; (--j) >= 0;) {
+      if (this.m_allShipsToPlace[j] <= 0) {
+        continue;
+      }
+      hor = new long[words];
+      ver = new long[words];
+      for (y = height; (--y) >= 0;) {
+        for (x = width; (--x) >= 0;) {
+          s = ((y * width) + x);
+          if ((x + j) < width) {
+            hor[s >>> 6] |= (1L << s);
+          }
+          if ((y + j) < height) {
+            ver[s >>> 6] |= (1L << s);
+          }
+        }
+      }
+      this.m_emptyHorizontalAnchors[j] = hor;
+      this.m_emptyVerticalAnchors[j] = ver;
+      this.m_horizontalAnchors[j] = hor.clone();
+      this.m_verticalAnchors[j] = ver.clone();
+    }
+
     this.m_gameState = GAME_STATE_UNINITIALIZED;
   }
 
@@ -163,18 +335,38 @@ public final class BattleshipModel {
    *         be placed
    */
   public final synchronized int getNextShipLengthToPlace() {
-    int s;
+    int i;
 
     if (this.m_gameState == GAME_STATE_INITIALIZED) {
-      s = this.m_shipsToPlace.size();
-      if (s > 0) {
-        return this.m_shipsToPlace.get(s - 1).m_length;
+      for (i = 0; i < this.m_shipsToPlace.length; i++) {
+        if (this.m_shipsToPlace[i] > 0) {
+          return (i + 1);
+        }
       }
     }
 
     return -1;
   }
 
+  /**
+   * Get the number of ships of each length that need to be placed, where the
+   * element at index {@code i} is the number of ships of length {@code i+1}
+   * 
+   * @return a copy of the ships to place
+   */
+  public final int[] getShipsToPlace() {
+    return this.m_allShipsToPlace.clone();
+  }
+
+  /**
+   * Has the enemy said that it is ready?
+   * 
+   * @return true if the enemy is ready
+   */
+  public synchronized final boolean isEnemyReady() {
+    return this.m_enemyReady;
+  }
+
   /**
    * Get the field width
    * 
@@ -194,16 +386,42 @@ public final class BattleshipModel {
   }
 
   /**
-   * Add a model listener
+   * Add a model listener which is informed about all events
    * 
    * @param l
    *          the model listener
    */
+  public final void addListener(final IBattleshipModelListener l) {
+    this.addListener(l, BattleshipModelFilter.ALL);
+  }
+
+  /**
+   * Add a model listener which is only informed about the events passing a
+   * filter. If the listener has already been added, its filter is replaced.
+   * 
+   * @param l
+   *          the model listener
+   * @param filter
+   *          the filter
+   */
   public synchronized final void addListener(
-      final IBattleshipModelListener l) {
-    if ((l != null) && (!(this.m_listeners.contains(l)))) {
-      this.m_listeners.add(l);
+      final IBattleshipModelListener l, final BattleshipModelFilter filter) {
+    final Subscription s;
+    int i;
+
+    if ((l == null) || (filter == null)) {
+      return;
     }
+    s = new Subscription(l, filter, this.m_width, this.m_height);
+    for (i = this.m_listeners.size(); (--i) >= 0;) {
+      if (this.m_listeners.get(i).m_listener == l) {
+        this.m_listeners.set(i, s);
+        this.updateInterest();
+        return;
+      }
+    }
+    this.m_listeners.add(s);
+    this.m_interest |= s.m_changes;
   }
 
   /**
@@ -214,7 +432,58 @@ public final class BattleshipModel {
    */
   public synchronized final void removeListener(
       final IBattleshipModelListener l) {
-    this.m_listeners.remove(l);
+    int i;
+
+    for (i = this.m_listeners.size(); (--i) >= 0;) {
+      if (this.m_listeners.get(i).m_listener == l) {
+        this.m_listeners.remove(i);
+        this.updateInterest();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Remove all listeners
+   */
+  synchronized final void removeAllListeners() {
+    this.m_listeners.clear();
+    this.m_interest = 0;
+  }
+
+  /** Recompute the union of the change flags of all listeners */
+  private final void updateInterest() {
+    int i, interest;
+
+    interest = 0;
+    for (i = this.m_listeners.size(); (--i) >= 0;) {
+      interest |= this.m_listeners.get(i).m_changes;
+    }
+    this.m_interest = interest;
+  }
+
+  /**
+   * Create and propagate an event, unless nobody is interested in it. Must
+   * be called while holding the lock of the model.
+   * 
+   * @param change
+   *          the change flags
+   * @param oldstate
+   *          the old state
+   * @param x
+   *          the x-coordinate of the changed cell
+   * @param y
+   *          the y-coordinate of the changed cell
+   */
+  private final void fire(final int change, final int oldstate, final int x,
+      final int y) {
+    if ((this.m_interest & change) != 0) {
+      this.dispatchEvent(new DispatchableBattleshipModelEvent(this, change,
+          oldstate, x, y,
+          (((change & BattleshipModelEvent.CHANGE_FLAG_CELL_STATE) != 0) ? //
+          (this.cell(x, y) ^ oldstate)
+              : 0)));
+    }
   }
 
   /**
@@ -224,18 +493,29 @@ public final class BattleshipModel {
    *          the event
    */
   final void dispatchEvent(final DispatchableBattleshipModelEvent event) {
+    final int change, cell;
 
     if (event.m_first) {
       event.m_first = false;
+      if (!(this.m_dispatchOnEDT)) {
+        this.dispatchEvent(event);
+        return;
+      }
       SwingUtilities.invokeLater(event);
       return;
     }
 
+    change = event.whatHasChanged();
+    cell = (((change & BattleshipModelEvent.CHANGE_FLAG_CELL_STATE) != 0) ? //
+    ((event.getY() * this.m_width) + event.getX())
+        : (-1));
     synchronized (this) {
-      for (IBattleshipModelListener m : this.m_listeners) {
-        try {
-          m.battleshipModelChanged(event);
-        } catch (Throwable t) {//
+      for (Subscription m : this.m_listeners) {
+        if (m.accepts(change, event.m_changed, cell)) {
+          try {
+            m.m_listener.battleshipModelChanged(event);
+          } catch (Throwable t) {//
+          }
         }
       }
     }
@@ -259,6 +539,17 @@ public final class BattleshipModel {
     return this.m_winner;
   }
 
+  /**
+   * Return who has made the last move: {@link #WINNER_PLAYER} if the player
+   * has fired last, {@link #WINNER_ENEMY} if the enemy has, or
+   * {@link #WINNER_NOBODY} if nobody has fired yet
+   * 
+   * @return the indicator for who has made the last move
+   */
+  public synchronized final int getLastPlayer() {
+    return this.m_lastPlayer;
+  }
+
   /**
    * Get the state of the cell at coordinates x and y
    * 
@@ -269,16 +560,474 @@ public final class BattleshipModel {
    * @return the state of that cell
    */
   public synchronized final int getCellState(final int x, final int y) {
-    return this.m_cellStates[y][x];
+    return this.cell(x, y);
+  }
+
+  /**
+   * Get the Zobrist hash of the cells. The hash only depends on which cell
+   * state flags are set, not on the order in which they have been set, so
+   * two boards with the same cells have the same hash, no matter how they
+   * have been built.
+   * 
+   * @return the hash
+   */
+  public synchronized final long getHash() {
+    return this.m_hash;
+  }
+
+  /**
+   * Get the Zobrist hash of the cells the player has fired at and of the
+   * enemy ships found there. This is all the player knows about the enemy
+   * field, so boards of different games in which the player has fired at the
+   * same cells with the same results have the same shot hash.
+   * 
+   * @return the hash
+   */
+  public synchronized final long getShotHash() {
+    return this.m_shotHash;
+  }
+
+  /**
+   * Take a snapshot of the board
+   * 
+   * @return the snapshot
+   */
+  public synchronized final BattleshipModelSnapshot snapshot() {
+    final int[] cells;
+    int x, y, i;
+
+    cells = new int[this.m_width * this.m_height];
+    i = cells.length;
+    for (y = this.m_height; (--y) >= 0;) {
+      for (x = this.m_width; (--x) >= 0;) {
+        cells[--i] = this.cell(x, y);
+      }
+    }
+    return new BattleshipModelSnapshot(this.m_width, this.m_height, cells,
+        this.m_gameState, this.m_lastPlayer, this.m_winner, this.m_hash);
+  }
+
+  /**
+   * Get the size of the compact form of this model
+   * 
+   * @return the number of bytes written by {@link #writeCompact(ByteBuffer)}
+   */
+  final int getCompactSize() {
+    return (16 + (4 * this.m_shipsToPlace.length) + //
+    (this.m_width * this.m_height));
+  }
+
+  /**
+   * Write the state of the game in a compact form: the game state, the last
+   * player, the winner and whether the enemy is ready take a byte each, the
+   * remaining ship cells of both sides an int each, followed by the number
+   * of ship lengths and an int for each ship length holding the number of
+   * ships still to place, and a byte holding the flags of each cell. The
+   * listeners are not written.
+   * 
+   * @param buf
+   *          the buffer to write to at its position, which is advanced by
+   *          {@link #getCompactSize()}
+   */
+  synchronized final void writeCompact(final ByteBuffer buf) {
+    int x, y, i;
+
+    buf.put((byte) (this.m_gameState));
+    buf.put((byte) (this.m_lastPlayer));
+    buf.put((byte) (this.m_winner));
+    buf.put((byte) (this.m_enemyReady ? 1 : 0));
+    buf.putInt(this.m_ownShipCells);
+    buf.putInt(this.m_enemyShipCells);
+    buf.putInt(this.m_shipsToPlace.length);
+    for (i = 0; i < this.m_shipsToPlace.length; i++) {
+      buf.putInt(this.m_shipsToPlace[i]);
+    }
+    for (y = 0; y < this.m_height; y++) {
+      for (x = 0; x < this.m_width; x++) {
+        buf.put((byte) (this.cell(x, y)));
+      }
+    }
+  }
+
+  /**
+   * Is a value one of the game states?
+   * 
+   * @param state
+   *          the value
+   * @return true if it is a game state
+   */
+  private static final boolean isGameState(final int state) {
+    return ((state == GAME_STATE_UNINITIALIZED)
+        || (state == GAME_STATE_INITIALIZED)
+        || (state == GAME_STATE_PLAYER_READY)
+        || (state == GAME_STATE_PLAYING) || (state == GAME_STATE_END));
+  }
+
+  /**
+   * Is a value one of the players or nobody?
+   * 
+   * @param player
+   *          the value
+   * @return true if it denotes a player or nobody
+   */
+  private static final boolean isPlayer(final int player) {
+    return ((player == WINNER_PLAYER) || (player == WINNER_ENEMY)
+        || (player == WINNER_NOBODY));
+  }
+
+  /**
+   * Restore the state of a game written by {@link #writeCompact(ByteBuffer)}
+   * of a model with the same configuration. The whole compact form is
+   * checked before anything is changed, so a damaged one leaves the model
+   * as it was. The game state change is propagated to the listeners, the
+   * cell changes are not.
+   * 
+   * @param buf
+   *          the buffer to read from at its position, which is advanced by
+   *          {@link #getCompactSize()}
+   * @throws IllegalStateException
+   *           if the game is running, the configuration differs, or the
+   *           compact form is damaged
+   */
+  synchronized final void readCompact(final ByteBuffer buf) {
+    final int oldState, start, state, lastPlayer, winner, ready, own, enemy;
+    int x, y, i, s;
+
+    oldState = this.m_gameState;
+    if ((oldState != GAME_STATE_UNINITIALIZED)
+        && (oldState != GAME_STATE_INITIALIZED)
+        && (oldState != GAME_STATE_END)) {
+      throw new IllegalStateException(//
+          "Only a game which is not running can be restored."); //$NON-NLS-1$
+    }
+    if (buf.remaining() < this.getCompactSize()) {
+      throw new IllegalStateException(//
+          "The compact form of the game is truncated."); //$NON-NLS-1$
+    }
+
+    start = buf.position();
+    state = buf.get(start);
+    lastPlayer = buf.get(start + 1);
+    winner = buf.get(start + 2);
+    ready = buf.get(start + 3);
+    own = buf.getInt(start + 4);
+    enemy = buf.getInt(start + 8);
+    if (buf.getInt(start + 12) != this.m_shipsToPlace.length) {
+      throw new IllegalStateException(//
+          "The game has been written by a model of another configuration."); //$NON-NLS-1$
+    }
+    if ((!(BattleshipModel.isGameState(state)))
+        || (!(BattleshipModel.isPlayer(lastPlayer)))
+        || (!(BattleshipModel.isPlayer(winner))) || ((ready & (~1)) != 0)
+        || (own < 0) || (own > this.m_maxShipCells) || (enemy < 0)
+        || (enemy > this.m_maxShipCells)) {
+      throw new IllegalStateException(//
+          "The compact form of the game is damaged."); //$NON-NLS-1$
+    }
+    for (i = this.m_shipsToPlace.length; (--i) >= 0;) {
+      s = buf.getInt(start + 16 + (i << 2));
+      if ((s < 0) || (s > Math.max(0, this.m_allShipsToPlace[i]))) {
+        throw new IllegalStateException(//
+            "The compact form of the game is damaged."); //$NON-NLS-1$
+      }
+    }
+    i = (start + 16 + (this.m_shipsToPlace.length << 2));
+    for (s = (this.m_width * this.m_height); (--s) >= 0;) {
+      if ((buf.get(i + s) & (~CELL_STATE_MASK)) != 0) {
+        throw new IllegalStateException(//
+            "The compact form of the game is damaged."); //$NON-NLS-1$
+      }
+    }
+
+    this.clearCells();
+    this.m_gameState = GAME_STATE_UNINITIALIZED;
+    buf.position(start + 16);
+    this.m_lastPlayer = lastPlayer;
+    this.m_winner = winner;
+    this.m_enemyReady = (ready != 0);
+    this.m_ownShipCells = own;
+    this.m_enemyShipCells = enemy;
+    s = 0;
+    for (x = 0; x < this.m_shipsToPlace.length; x++) {
+      s += (this.m_shipsToPlace[x] = buf.getInt());
+    }
+    this.m_shipsToPlaceCount = s;
+    this.resetAnchors();
+    for (y = 0; y < this.m_height; y++) {
+      for (x = 0; x < this.m_width; x++) {
+        s = buf.get();
+        this.setCell(x, y, s);
+        if ((s & CELL_STATE_PLAYER_SHIP) != 0) {
+          this.occupyAnchors(x, y);
+        }
+      }
+    }
+    this.m_gameState = state;
+
+    if (state != oldState) {
+      this.fire(BattleshipModelEvent.CHANGE_FLAG_GAME_STATE, oldState, -1, -1);
+    }
+  }
+
+  /**
+   * Get the state of a cell without locking
+   * 
+   * @param x
+   *          the x-coordinate of the cell
+   * @param y
+   *          the y-coordinate of the cell
+   * @return the state of that cell in the current epoch
+   */
+  private final int cell(final int x, final int y) {
+    final int raw;
+
+    raw = this.m_cellStates[y][x];
+    return (((raw >>> EPOCH_SHIFT) == this.m_epoch) ? (raw & CELL_STATE_MASK)
+        : CELL_STATE_EMPTY);
+  }
+
+  /**
+   * Set the state of a cell in the current epoch
+   * 
+   * @param x
+   *          the x-coordinate of the cell
+   * @param y
+   *          the y-coordinate of the cell
+   * @param state
+   *          the new state
+   */
+  private final void setCell(final int x, final int y, final int state) {
+    final int cell;
+    int changed, bit;
+    long key;
+
+    changed = (this.cell(x, y) ^ state);
+    cell = ((y * this.m_width) + x);
+    while (changed != 0) {
+      bit = Integer.numberOfTrailingZeros(changed);
+      key = Hashing.zobrist(cell, bit);
+      this.m_hash ^= key;
+      if (((1 << bit) & (CELL_STATE_PLAYER_HAS_SEEN | CELL_STATE_ENEMY_SHIP)) != 0) {
+        this.m_shotHash ^= key;
+      }
+      changed &= (changed - 1);
+    }
+    this.m_cellStates[y][x] = ((this.m_epoch << EPOCH_SHIFT) | state);
+  }
+
+  /**
+   * Clear all cells by starting a new epoch, which takes constant time.
+   * Only when the epoch counter wraps around, the cells are actually
+   * overwritten.
+   */
+  private final void clearCells() {
+    this.m_hash = 0L;
+    this.m_shotHash = 0L;
+    this.m_epoch = ((this.m_epoch + 1) & EPOCH_MASK);
+    if (this.m_epoch == 0) {
+      for (int[] row : this.m_cellStates) {
+        Arrays.fill(row, CELL_STATE_EMPTY);
+      }
+    }
+  }
+
+  /** Reset the legal anchors to those of an empty field */
+  private final void resetAnchors() {
+    int i;
+    long[] src;
+
+    for (i = this.m_horizontalAnchors.length; (--i) >= 0;) {
+      src = this.m_emptyHorizontalAnchors[i];
+      if (src != null) {
+        System.arraycopy(src, 0, this.m_horizontalAnchors[i], 0, src.length);
+        src = this.m_emptyVerticalAnchors[i];
+        System.arraycopy(src, 0, this.m_verticalAnchors[i], 0, src.length);
+      }
+    }
+  }
+
+  /**
+   * Remove all anchors of ships that would cover a cell which has become
+   * occupied by a ship of the player: for a ship of length {@code l}, these
+   * are the {@code l} cells ending in the occupied one in its row and in its
+   * column.
+   * 
+   * @param x
+   *          the x-coordinate of the occupied cell
+   * @param y
+   *          the y-coordinate of the occupied cell
+   */
+  private final void occupyAnchors(final int x, final int y) {
+    final int width, cell;
+    int i, from, to, c;
+    long[] bits;
+
+    width = this.m_width;
+    cell = ((y * width) + x);
+    for (i = this.m_horizontalAnchors.length; (--i) >= 0;) {
+      bits = this.m_horizontalAnchors[i];
+      if (bits == null) {
+        continue;
+      }
+      // the cells (max(0, x-i) .. x, y) are contiguous
+      from = (cell - Math.min(i, x));
+      to = (cell + 1);
+      while (from < to) {
+        c = Math.min(to, ((from | 63) + 1));
+        bits[from >>> 6] &= ~(((c - from) >= 64) ? (-1L)
+            : (((1L << (c - from)) - 1L) << from));
+        from = c;
+      }
+      bits = this.m_verticalAnchors[i];
+      for (c = cell, from = Math.min(i, y); from >= 0; from--, c -= width) {
+        bits[c >>> 6] &= ~(1L << c);
+      }
+    }
+  }
+
+  /**
+   * Get the anchors of the ships of a given length which can still be
+   * placed
+   * 
+   * @param length
+   *          the ship length
+   * @param hor
+   *          true for horizontal ships, false for vertical ones
+   * @return the bit set of the anchors, or {@code null} if no ship of that
+   *         length can be placed now
+   */
+  private final long[] anchors(final int length, final boolean hor) {
+    if ((this.m_gameState != GAME_STATE_INITIALIZED) || (length <= 0)
+        || (length > this.m_shipsToPlace.length)
+        || (this.m_shipsToPlace[length - 1] <= 0)) {
+      return null;
+    }
+    return (hor ? this.m_horizontalAnchors : this.m_verticalAnchors)[length - 1];
+  }
+
+  /**
+   * Check in constant time whether a ship could be placed at a given
+   * position, i.e., whether {@link #placeShip(int, int, int, boolean)}
+   * would succeed
+   * 
+   * @param length
+   *          the length of the ship
+   * @param x
+   *          the x-coordinate of the upper-left corner of the ship
+   * @param y
+   *          the y-coordinate of the upper-left corner of the ship
+   * @param hor
+   *          true if the ship is horizontal, false if it is vertical
+   * @return true if the ship can be placed there
+   */
+  public synchronized final boolean isLegalPlacement(final int length,
+      final int x, final int y, final boolean hor) {
+    final long[] bits;
+    final int cell;
+
+    if ((x < 0) || (x >= this.m_width) || (y < 0) || (y >= this.m_height)) {
+      return false;
+    }
+    bits = this.anchors(length, hor);
+    if (bits == null) {
+      return false;
+    }
+    cell = ((y * this.m_width) + x);
+    return ((bits[cell >>> 6] & (1L << cell)) != 0L);
+  }
+
+  /**
+   * Find the next legal placement of a ship by scanning the bit set of its
+   * anchors. All legal placements are enumerated by starting at {@code 0}
+   * and continuing after each returned cell, as long as no ship is placed
+   * in between.
+   * 
+   * @param length
+   *          the length of the ship
+   * @param hor
+   *          true if the ship is horizontal, false if it is vertical
+   * @param from
+   *          the index {@code y*width+x} of the first cell to check
+   * @return the index {@code y*width+x} of the first cell at or after
+   *         {@code from} at which the upper-left corner of the ship can be
+   *         placed, or {@code -1} if there is none
+   */
+  public synchronized final int nextLegalPlacement(final int length,
+      final boolean hor, final int from) {
+    final long[] bits;
+    int i;
+    long w;
+
+    bits = this.anchors(length, hor);
+    if ((bits == null) || (from >= (this.m_width * this.m_height))) {
+      return (-1);
+    }
+    i = Math.max(0, from);
+    w = (bits[i >>> 6] & ((-1L) << i));
+    i >>>= 6;
+    for (;;) {
+      if (w != 0L) {
+        return ((i << 6) + Long.numberOfTrailingZeros(w));
+      }
+      if ((++i) >= bits.length) {
+        return (-1);
+      }
+      w = bits[i];
+    }
+  }
+
+  /**
+   * Count the legal placements of a ship
+   * 
+   * @param length
+   *          the length of the ship
+   * @param hor
+   *          true if the ship is horizontal, false if it is vertical
+   * @return the number of cells at which the upper-left corner of the ship
+   *         can be placed
+   */
+  public synchronized final int getLegalPlacementCount(final int length,
+      final boolean hor) {
+    final long[] bits;
+    int i, count;
+
+    bits = this.anchors(length, hor);
+    if (bits == null) {
+      return 0;
+    }
+    count = 0;
+    for (i = bits.length; (--i) >= 0;) {
+      count += Long.bitCount(bits[i]);
+    }
+    return count;
+  }
+
+  /**
+   * Get a copy of the bit set of the legal placements of a ship, i.e., of
+   * the cells {@code y*width+x} at which its upper-left corner can be
+   * placed. The copy can be inspected without holding the lock of the
+   * model.
+   * 
+   * @param length
+   *          the length of the ship
+   * @param hor
+   *          true if the ship is horizontal, false if it is vertical
+   * @return the bit set, or {@code null} if no ship of that length can be
+   *         placed now
+   */
+  public synchronized final long[] getLegalPlacements(final int length,
+      final boolean hor) {
+    final long[] bits;
+
+    bits = this.anchors(length, hor);
+    return ((bits != null) ? bits.clone() : null);
   }
 
   /**
    * Initialized the field
    */
   public synchronized final void initialize() {
-    int y, x, i;
-    final int[][] cs;
-    int[] r;
+    int y, x, i, s;
     final int oldState;
 
     oldState = this.m_gameState;
@@ -287,37 +1036,61 @@ public final class BattleshipModel {
           "Only an uninitalized game can be initialized!"); //$NON-NLS-1$
     }
 
-    cs = this.m_cellStates;
-    for (int[] row : cs) {
-      Arrays.fill(row, CELL_STATE_EMPTY);
-    }
+    this.clearCells();
+    this.resetAnchors();
 
     this.m_enemyReady = false;
-    this.m_shipsToPlace.clear();
+    s = 0;
     for (i = this.m_allShipsToPlace.length; (--i) >= 0;) {
-      this.m_shipsToPlace.add(new ShipPlacement(i + 1,
-          this.m_allShipsToPlace[i]));
+      s += (this.m_shipsToPlace[i] = Math.max(0, this.m_allShipsToPlace[i]));
     }
-    this.m_gameState = GAME_STATE_INITIALIZED;
+    this.m_shipsToPlaceCount = s;
     this.m_winner = WINNER_NOBODY;
     this.m_lastPlayer = WINNER_NOBODY;
     this.m_ownShipCells = this.m_maxShipCells;
     this.m_enemyShipCells = this.m_maxShipCells;
+    this.m_gameState = GAME_STATE_INITIALIZED;
 
-    this.dispatchEvent(new DispatchableBattleshipModelEvent(this,//
-        BattleshipModelEvent.CHANGE_FLAG_GAME_STATE, oldState, -1, -1));
+    this.fire(BattleshipModelEvent.CHANGE_FLAG_GAME_STATE, oldState, -1, -1);
 
-    for (y = cs.length; (--y) >= 0;) {
-      r = cs[y];
-      for (x = r.length; (--x) >= 0;) {
-        this.dispatchEvent(new DispatchableBattleshipModelEvent(
-            this,//
-            BattleshipModelEvent.CHANGE_FLAG_CELL_STATE, CELL_STATE_EMPTY,
-            x, y));
+    if ((this.m_interest & BattleshipModelEvent.CHANGE_FLAG_CELL_STATE) != 0) {
+      for (y = this.m_height; (--y) >= 0;) {
+        for (x = this.m_width; (--x) >= 0;) {
+          this.fire(BattleshipModelEvent.CHANGE_FLAG_CELL_STATE,
+              CELL_STATE_EMPTY, x, y);
+        }
       }
     }
   }
 
+  /**
+   * Reset a finished game, so that the model can be initialized and used for
+   * another game. The field is cleared in constant time, regardless of its
+   * size. Resetting an uninitialized model does nothing.
+   * 
+   * @throws IllegalStateException
+   *           if the game has not ended
+   */
+  public synchronized final void reset() throws IllegalStateException {
+    final int oldState;
+
+    oldState = this.m_gameState;
+    if (oldState == GAME_STATE_UNINITIALIZED) {
+      return;
+    }
+    if (oldState != GAME_STATE_END) {
+      throw new IllegalStateException(//
+          "Only a finished game can be reset."); //$NON-NLS-1$
+    }
+
+    this.clearCells();
+    this.m_winner = WINNER_NOBODY;
+    this.m_lastPlayer = WINNER_NOBODY;
+    this.m_enemyReady = false;
+    this.m_gameState = GAME_STATE_UNINITIALIZED;
+    this.fire(BattleshipModelEvent.CHANGE_FLAG_GAME_STATE, oldState, -1, -1);
+  }
+
   // /**
   // * Force game initialization
   // */
@@ -354,9 +1127,9 @@ public final class BattleshipModel {
     if (state != GAME_STATE_END) {
       this.m_gameState = GAME_STATE_END;
       this.m_winner = winner;
-      this.m_shipsToPlace.clear();
-      this.dispatchEvent(new DispatchableBattleshipModelEvent(this,
-          BattleshipModelEvent.CHANGE_FLAG_GAME_STATE, state, -1, -1));
+      Arrays.fill(this.m_shipsToPlace, 0);
+      this.m_shipsToPlaceCount = 0;
+      this.fire(BattleshipModelEvent.CHANGE_FLAG_GAME_STATE, state, -1, -1);
     } else {
       if (this.m_winner != winner) {
         throw new IllegalStateException(//
@@ -381,9 +1154,7 @@ public final class BattleshipModel {
     this.m_enemyReady = true;
     if (this.m_gameState == GAME_STATE_PLAYER_READY) {
       this.m_gameState = GAME_STATE_PLAYING;
-      this.dispatchEvent(//
-      new DispatchableBattleshipModelEvent(this,//
-          BattleshipModelEvent.CHANGE_FLAG_GAME_STATE, oldState, -1, -1));
+      this.fire(BattleshipModelEvent.CHANGE_FLAG_GAME_STATE, oldState, -1, -1);
     }
   }
 
@@ -399,7 +1170,8 @@ public final class BattleshipModel {
    */
   public final void enemyHasSeen(final int x, final int y)
       throws IllegalStateException {
-    this.cellStateChange(x, y, CELL_STATE_ENEMY_HAS_SEEN);
+    BattleshipModel.checkMove(this.tryCellStateChange(x, y,
+        CELL_STATE_ENEMY_HAS_SEEN));
   }
 
   /**
@@ -414,7 +1186,8 @@ public final class BattleshipModel {
    */
   public final void playerHasSeen(final int x, final int y)
       throws IllegalStateException {
-    this.cellStateChange(x, y, CELL_STATE_PLAYER_HAS_SEEN);
+    BattleshipModel.checkMove(this.tryCellStateChange(x, y,
+        CELL_STATE_PLAYER_HAS_SEEN));
   }
 
   /**
@@ -429,11 +1202,125 @@ public final class BattleshipModel {
    */
   public final void enemyHasShip(final int x, final int y)
       throws IllegalStateException {
-    this.cellStateChange(x, y, CELL_STATE_ENEMY_SHIP);
+    BattleshipModel.checkMove(this.tryCellStateChange(x, y,
+        CELL_STATE_ENEMY_SHIP));
+  }
+
+  /**
+   * The enemy has seen a given cell. Unlike {@link #enemyHasSeen(int, int)},
+   * an illegal move does not cause an exception: a result code is returned
+   * instead, and most illegal moves are rejected without locking the model.
+   * 
+   * @param x
+   *          the x-coordinate of the cell
+   * @param y
+   *          the y-coordinate of the cell
+   * @return {@link #MOVE_OK} if the move was applied, one of the other
+   *         {@code MOVE_*} result codes otherwise
+   */
+  public final int tryEnemyHasSeen(final int x, final int y) {
+    return this.tryCellStateChange(x, y, CELL_STATE_ENEMY_HAS_SEEN);
+  }
+
+  /**
+   * The player has seen a given cell. Unlike
+   * {@link #playerHasSeen(int, int)}, an illegal move does not cause an
+   * exception: a result code is returned instead, and most illegal moves are
+   * rejected without locking the model.
+   * 
+   * @param x
+   *          the x-coordinate of the cell
+   * @param y
+   *          the y-coordinate of the cell
+   * @return {@link #MOVE_OK} if the move was applied, one of the other
+   *         {@code MOVE_*} result codes otherwise
+   */
+  public final int tryPlayerHasSeen(final int x, final int y) {
+    return this.tryCellStateChange(x, y, CELL_STATE_PLAYER_HAS_SEEN);
+  }
+
+  /**
+   * The enemy has revealed a ship that has been hit at the given position.
+   * Unlike {@link #enemyHasShip(int, int)}, an illegal move does not cause an
+   * exception: a result code is returned instead.
+   * 
+   * @param x
+   *          the x-coordinate of the cell
+   * @param y
+   *          the y-coordinate of the cell
+   * @return {@link #MOVE_OK} if the move was applied, one of the other
+   *         {@code MOVE_*} result codes otherwise
+   */
+  public final int tryEnemyHasShip(final int x, final int y) {
+    return this.tryCellStateChange(x, y, CELL_STATE_ENEMY_SHIP);
+  }
+
+  /**
+   * Apply the moves of the enemy which a resumed session has missed and
+   * which can no longer be replayed in their order. The moves are applied
+   * regardless of the turn order, and the turn is then set as the enemy
+   * reports it.
+   * 
+   * @param cells
+   *          the cells, each {@code (y << 32) | (x << 2) | bits}, where bit 0
+   *          tells that the enemy has seen the cell and bit 1 that the player
+   *          has discovered an enemy ship there
+   * @param enemyLast
+   *          has the enemy fired last?
+   * @return {@link #MOVE_OK} if all moves were applied or had already been
+   *         applied, the result code of the first rejected move otherwise
+   */
+  final synchronized int tryRepair(final long[] cells,
+      final boolean enemyLast) {
+    int i, x, y, bits, result;
+
+    for (i = 0; i < cells.length; i++) {
+      x = (((int) (cells[i])) >>> 2);
+      y = ((int) (cells[i] >>> 32));
+      bits = (((int) (cells[i])) & 3);
+      if ((bits & 1) != 0) {
+        result = this.tryCellStateChange(x, y, CELL_STATE_ENEMY_HAS_SEEN,
+            false);
+        if ((result != MOVE_OK) && (result != MOVE_ALREADY_APPLIED)) {
+          return result;
+        }
+      }
+      if ((bits & 2) != 0) {
+        result = this.tryCellStateChange(x, y, CELL_STATE_ENEMY_SHIP, false);
+        if ((result != MOVE_OK) && (result != MOVE_ALREADY_APPLIED)) {
+          return result;
+        }
+      }
+    }
+    if (enemyLast && (this.m_gameState == GAME_STATE_PLAYING)) {
+      this.m_lastPlayer = WINNER_ENEMY;
+    }
+    return MOVE_OK;
   }
 
   /**
-   * Modify the given cell's state
+   * Throw the exception belonging to the result code of a move
+   * 
+   * @param result
+   *          the result code
+   * @throws IllegalStateException
+   *           if the move was illegal
+   * @throws IllegalArgumentException
+   *           if the move would have been an inconsistent modification
+   */
+  static final void checkMove(final int result)
+      throws IllegalStateException, IllegalArgumentException {
+    if (result == MOVE_OK) {
+      return;
+    }
+    if ((result == MOVE_SHIP_NOT_SEEN) || (result == MOVE_BATCH)) {
+      throw new IllegalArgumentException(MOVE_MESSAGES[result]);
+    }
+    throw new IllegalStateException(MOVE_MESSAGES[result]);
+  }
+
+  /**
+   * Modify the given cell's state following the turn order
    * 
    * @param x
    *          the x-coordinate
@@ -441,113 +1328,145 @@ public final class BattleshipModel {
    *          the y-coordinate
    * @param modification
    *          the modification
-   * @throws IllegalStateException
-   *           the illegal state exception
+   * @return the result code
    */
-  private final void cellStateChange(final int x, final int y,
-      final int modification) throws IllegalStateException {
-    final int oldCellState, nu, oldState;
+  private final int tryCellStateChange(final int x, final int y,
+      final int modification) {
+    return this.tryCellStateChange(x, y, modification, true);
+  }
+
+  /**
+   * Modify the given cell's state. All checks that only need the game
+   * state, the turn order, and the cell's flags are done on volatile state
+   * before taking the lock, so that a flood of illegal moves neither
+   * contends for the lock nor allocates anything. The checks are repeated
+   * under the lock before the modification is applied.
+   * 
+   * @param x
+   *          the x-coordinate
+   * @param y
+   *          the y-coordinate
+   * @param modification
+   *          the modification
+   * @param inTurn
+   *          must the move follow the turn order? If not, it does not change
+   *          the turn either.
+   * @return the result code
+   */
+  private final int tryCellStateChange(final int x, final int y,
+      final int modification, final boolean inTurn) {
+    final int oldCellState, nu, oldState, lastPlayer;
     final boolean shipLost, shipWon, gameLost, gameWon;
 
     if ((y < 0) || (y >= this.m_height)) {
-      throw new IllegalStateException(//
-          "Y coordinate out of bounds."); //$NON-NLS-1$
+      return MOVE_Y_OUT_OF_BOUNDS;
     }
 
     if ((x < 0) || (x >= this.m_width)) {
-      throw new IllegalStateException(//
-          "X coordinate out of bounds."); //$NON-NLS-1$
+      return MOVE_X_OUT_OF_BOUNDS;
     }
 
     if (modification == 0) {
-      throw new IllegalStateException(//
-          "Empty modification not allowed."); //$NON-NLS-1$
+      return MOVE_EMPTY;
+    }
+
+    // reading the volatile game state first makes the cell flags written
+    // before the game has started visible
+    if (this.m_gameState != GAME_STATE_PLAYING) {
+      return MOVE_NOT_PLAYING;
+    }
+    if ((this.cell(x, y) & modification) != 0) {
+      return MOVE_ALREADY_APPLIED;
+    }
+    lastPlayer = (inTurn ? this.m_lastPlayer : WINNER_NOBODY);
+    if (((modification & CELL_STATE_PLAYER_HAS_SEEN) != 0)
+        && (lastPlayer == WINNER_PLAYER)) {
+      return MOVE_PLAYER_MUST_WAIT;
+    }
+    if (((modification & CELL_STATE_ENEMY_HAS_SEEN) != 0)
+        && (lastPlayer == WINNER_ENEMY)) {
+      return MOVE_ENEMY_MUST_WAIT;
     }
 
     synchronized (this) {
       oldState = this.m_gameState;
       if (oldState != GAME_STATE_PLAYING) {
-        throw new IllegalStateException(//
-            "Modifications are only possible during the game."); //$NON-NLS-1$        
+        return MOVE_NOT_PLAYING;
       }
 
-      oldCellState = this.m_cellStates[y][x];
+      oldCellState = this.cell(x, y);
       if ((oldCellState & modification) != 0) {
-        throw new IllegalStateException(//
-            "The modification cannot be applied to this cell."); //$NON-NLS-1$
+        return MOVE_ALREADY_APPLIED;
       }
 
-      if ((modification & CELL_STATE_PLAYER_HAS_SEEN) != 0) {
+      if (inTurn && ((modification & CELL_STATE_PLAYER_HAS_SEEN) != 0)) {
         if (this.m_lastPlayer == WINNER_PLAYER) {
-          throw new IllegalStateException(//
-              "You need to wait for the enemy before being allowed to view another field."); //$NON-NLS-1$
+          return MOVE_PLAYER_MUST_WAIT;
         }
       }
 
-      if ((modification & CELL_STATE_ENEMY_HAS_SEEN) != 0) {
+      if (inTurn && ((modification & CELL_STATE_ENEMY_HAS_SEEN) != 0)) {
         if (this.m_lastPlayer == WINNER_ENEMY) {
-          throw new IllegalStateException(//
-              "The enemy needs to wait for you before being allowed to view another field."); //$NON-NLS-1$
+          return MOVE_ENEMY_MUST_WAIT;
         }
       }
 
       nu = (oldCellState | modification);
 
+      if (((modification & CELL_STATE_ENEMY_SHIP) != 0) && //
+          (nu & CELL_STATE_PLAYER_HAS_SEEN) == 0) {
+        return MOVE_SHIP_NOT_SEEN;
+      }
+
       shipLost = (((modification & CELL_STATE_ENEMY_HAS_SEEN) != 0) && //
       ((nu & CELL_STATE_PLAYER_SHIP) != 0));
+
+      shipWon = ((((nu & CELL_STATE_PLAYER_HAS_SEEN) != 0) && //
+      ((modification & CELL_STATE_ENEMY_SHIP) != 0)));
+
+      if (shipLost && shipWon) {
+        return MOVE_BATCH;
+      }
+
       if (shipLost) {
         gameLost = ((--this.m_ownShipCells) <= 0);
       } else {
         gameLost = false;
       }
 
-      if (((modification & CELL_STATE_ENEMY_SHIP) != 0) && //
-          (nu & CELL_STATE_PLAYER_HAS_SEEN) == 0) {
-        throw new IllegalArgumentException(//
-            "An enemy ship cannot become visible without being seen first." //$NON-NLS-1$
-        );
-      }
-
-      shipWon = ((((nu & CELL_STATE_PLAYER_HAS_SEEN) != 0) && //
-      ((modification & CELL_STATE_ENEMY_SHIP) != 0)));
-
       if (shipWon) {
         gameWon = ((--this.m_enemyShipCells) <= 0);
       } else {
         gameWon = false;
       }
 
-      if (shipLost && shipWon) {
-        throw new IllegalArgumentException(//
-            "Disallowed batch operation." //$NON-NLS-1$
-        );
-      }
-
       if (gameWon || gameLost) {
-        this.m_gameState = GAME_STATE_END;
         if (gameWon) {
           this.m_winner = WINNER_PLAYER;
         } else {
           this.m_winner = WINNER_ENEMY;
         }
+        this.m_gameState = GAME_STATE_END;
       }
 
-      this.m_cellStates[y][x] = nu;
+      this.setCell(x, y, nu);
 
-      if ((modification & CELL_STATE_PLAYER_HAS_SEEN) != 0) {
+      if (inTurn && ((modification & CELL_STATE_PLAYER_HAS_SEEN) != 0)) {
         this.m_lastPlayer = WINNER_PLAYER;
       }
-      if ((modification & CELL_STATE_ENEMY_HAS_SEEN) != 0) {
+      if (inTurn && ((modification & CELL_STATE_ENEMY_HAS_SEEN) != 0)) {
         this.m_lastPlayer = WINNER_ENEMY;
       }
 
-      this.dispatchEvent(new DispatchableBattleshipModelEvent(this,
-          BattleshipModelEvent.CHANGE_FLAG_CELL_STATE, oldCellState, x, y));
+      this.fire(BattleshipModelEvent.CHANGE_FLAG_CELL_STATE, oldCellState, x,
+          y);
       if (this.m_gameState != oldState) {
-        this.dispatchEvent(new DispatchableBattleshipModelEvent(this,
-            BattleshipModelEvent.CHANGE_FLAG_GAME_STATE, oldState, -1, -1));
+        this.fire(BattleshipModelEvent.CHANGE_FLAG_GAME_STATE, oldState, -1,
+            -1);
       }
     }
+
+    return MOVE_OK;
   }
 
   /**
@@ -567,13 +1486,10 @@ public final class BattleshipModel {
    */
   public synchronized final void placeShip(final int length, final int x,
       final int y, final boolean hor) throws IllegalStateException {
-    final int width, height, shipWidth, shipHeight;
-    int placementIndex, i, j, k;
-    final int[][] state;
+    final int width, height, shipWidth, shipHeight, cell;
+    final long[] anchors;
+    int i, j;
     final int oldState;
-    ShipPlacement p;
-    DispatchableBattleshipModelEvent[] events;
-    DispatchableBattleshipModelEvent v;
 
     oldState = this.m_gameState;
     if (oldState != GAME_STATE_INITIALIZED) {
@@ -581,17 +1497,8 @@ public final class BattleshipModel {
           "Ships can only be placed during initialization."); //$NON-NLS-1$
     }
 
-    placementIndex = -1;
-    p = null;
-    test: {
-      for (i = this.m_shipsToPlace.size(); (--i) >= 0;) {
-        p = this.m_shipsToPlace.get(i);
-        if (p.m_length == length) {
-          placementIndex = i;
-          break test;
-        }
-      }
-
+    if ((length <= 0) || (length > this.m_shipsToPlace.length)
+        || (this.m_shipsToPlace[length - 1] <= 0)) {
       throw new IllegalStateException(//
           "No ship of length " + length + //$NON-NLS-1$ 
               " can be placed now."); //$NON-NLS-1$
@@ -600,7 +1507,6 @@ public final class BattleshipModel {
     shipWidth = (hor ? length : 1);
     shipHeight = (hor ? 1 : length);
 
-    state = this.m_cellStates;
     height = this.m_height;
     width = this.m_width;
 
@@ -614,57 +1520,42 @@ public final class BattleshipModel {
           "The ship exceeds the horizontal size of the field."); //$NON-NLS-1$
     }
 
-    for (i = (y + shipHeight); (--i) >= y;) {
-      if ((i < 0) || (i >= height)) {
-        throw new IllegalStateException(//
-            "One of the ships vertical coordinates is invalid."); //$NON-NLS-1$
-      }
-      for (j = (x + shipWidth); (--j) >= x;) {
-        if ((j < 0) || (j >= width)) {
-          throw new IllegalStateException(//
-              "One of the ships horizontal coordinates is invalid."); //$NON-NLS-1$
-        }
-        if ((state[i][j] & CELL_STATE_PLAYER_SHIP) != 0) {
-          throw new IllegalStateException(//
-              "The ship intersects with another ship of the player."); //$NON-NLS-1$
-        }
-      }
+    cell = ((y * width) + x);
+    anchors = (hor ? this.m_horizontalAnchors : this.m_verticalAnchors)[length - 1];
+    if ((anchors[cell >>> 6] & (1L << cell)) == 0L) {
+      throw new IllegalStateException(//
+          "The ship intersects with another ship of the player."); //$NON-NLS-1$
     }
 
-    if (p != null) {
-      if ((--p.m_count) <= 0) {
-        this.m_shipsToPlace.remove(placementIndex);
-      }
-    }
-    events = new DispatchableBattleshipModelEvent[length];
+    this.m_shipsToPlace[length - 1]--;
+    this.m_shipsToPlaceCount--;
 
-    k = length;
     for (i = (y + shipHeight); (--i) >= y;) {
       for (j = (x + shipWidth); (--j) >= x;) {
-        events[--k] = new DispatchableBattleshipModelEvent(this,
-            BattleshipModelEvent.CHANGE_FLAG_CELL_STATE, state[i][j], j, i);
-        state[i][j] |= CELL_STATE_PLAYER_SHIP;
+        this.setCell(j, i, (this.cell(j, i) | CELL_STATE_PLAYER_SHIP));
+        this.occupyAnchors(j, i);
       }
     }
 
-    v = null;
-    if (this.m_shipsToPlace.size() <= 0) {
-      if (this.m_gameState == GAME_STATE_INITIALIZED) {
-        if (this.m_enemyReady) {
-          this.m_gameState = GAME_STATE_PLAYING;
-        } else {
-          this.m_gameState = GAME_STATE_PLAYER_READY;
-        }
-        v = new DispatchableBattleshipModelEvent(this,
-            BattleshipModelEvent.CHANGE_FLAG_GAME_STATE, oldState, -1, -1);
+    if (this.m_shipsToPlaceCount <= 0) {
+      if (this.m_enemyReady) {
+        this.m_gameState = GAME_STATE_PLAYING;
+      } else {
+        this.m_gameState = GAME_STATE_PLAYER_READY;
       }
     }
 
-    for (DispatchableBattleshipModelEvent e : events) {
-      this.dispatchEvent(e);
-    }
-    if (v != null) {
-      this.dispatchEvent(v);
+    if (this.m_interest != 0) {
+      for (i = y; i < (y + shipHeight); i++) {
+        for (j = x; j < (x + shipWidth); j++) {
+          this.fire(BattleshipModelEvent.CHANGE_FLAG_CELL_STATE,
+              (this.cell(j, i) & (~CELL_STATE_PLAYER_SHIP)), j, i);
+        }
+      }
+      if (this.m_gameState != oldState) {
+        this.fire(BattleshipModelEvent.CHANGE_FLAG_GAME_STATE, oldState, -1,
+            -1);
+      }
     }
   }
 
@@ -672,6 +1563,9 @@ public final class BattleshipModel {
   private static final class DispatchableBattleshipModelEvent extends
       BattleshipModelEvent implements Runnable {
 
+    /** the cell state flags which have changed */
+    final int m_changed;
+
     /** first */
     boolean m_first;
 
@@ -688,10 +1582,14 @@ public final class BattleshipModel {
      *          the x-coordinate of the changed cell
      * @param y
      *          the y-coordinate of the changed cell
+     * @param changed
+     *          the cell state flags which have changed
      */
     public DispatchableBattleshipModelEvent(final BattleshipModel model,
-        final int change, final int oldstate, final int x, final int y) {
+        final int change, final int oldstate, final int x, final int y,
+        final int changed) {
       super(model, change, oldstate, x, y);
+      this.m_changed = changed;
       this.m_first = true;
     }
 
@@ -702,27 +1600,67 @@ public final class BattleshipModel {
     }
   }
 
-  /** the ship placement */
-  private static final class ShipPlacement {
-    /** the ship length */
-    final int m_length;
-    /** the ship count */
-    int m_count;
+  /** a listener together with its compiled filter */
+  private static final class Subscription {
+
+    /** the listener */
+    final IBattleshipModelListener m_listener;
+
+    /** the selected change flags */
+    final int m_changes;
+
+    /** the selected cell state flags */
+    final int m_flags;
+
+    /** the bit set of the selected cells, or null for all cells */
+    final long[] m_cells;
 
     /**
-     * Create a new ship placement
+     * Compile a filter
      * 
-     * @param length
-     *          the ship length
-     * @param count
-     *          the number of ships available
+     * @param listener
+     *          the listener
+     * @param filter
+     *          the filter
+     * @param width
+     *          the field width
+     * @param height
+     *          the field height
      */
-    ShipPlacement(final int length, final int count) {
+    Subscription(final IBattleshipModelListener listener,
+        final BattleshipModelFilter filter, final int width, final int height) {
       super();
-      this.m_length = length;
-      this.m_count = count;
+      this.m_listener = listener;
+      this.m_changes = filter.m_changes;
+      this.m_flags = filter.m_flags;
+      this.m_cells = (filter.coversField(width, height) ? null : filter
+          .compileRegion(width, height));
     }
-  }
 
-	
+    /**
+     * Does the listener want to receive an event?
+     * 
+     * @param change
+     *          the change flags of the event
+     * @param changed
+     *          the cell state flags which have changed
+     * @param cell
+     *          the index of the changed cell, or -1 if no cell has changed
+     * @return true if the listener should be called
+     */
+    final boolean accepts(final int change, final int changed, final int cell) {
+      if ((change & this.m_changes) == 0) {
+        return false;
+      }
+      if (cell < 0) {
+        return true;
+      }
+      if ((this.m_flags != BattleshipModelFilter.ANY_FLAG)
+          && ((this.m_flags & changed) == 0)) {
+        return false;
+      }
+      return ((this.m_cells == null) || //
+      ((this.m_cells[cell >>> 6] & (1L << cell)) != 0L));
+    }
+  }
 }
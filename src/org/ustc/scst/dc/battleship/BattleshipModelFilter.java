@@ -0,0 +1,171 @@
+package org.ustc.scst.dc.battleship;
+
+/**
+ * A filter selecting the events a model listener is interested in. A
+ * listener registered with a filter via
+ * {@link BattleshipModel#addListener(IBattleshipModelListener, BattleshipModelFilter)}
+ * is only called for the events passing the filter: the model compiles the
+ * filter into bit masks when the listener is added, so that it can skip
+ * uninterested listeners without calling them.
+ * <p>
+ * An event passes a filter if its change flags are selected and, for cell
+ * changes, if one of the selected cell state flags has changed and the cell
+ * lies in the selected region. Filters are immutable: the {@code with}
+ * methods return new filters.
+ * </p>
+ */
+public final class BattleshipModelFilter {
+
+  /** select all cell state flags */
+  public static final int ANY_FLAG = (-1);
+
+  /** the flags of the cells of the player's side of the board */
+  public static final int SIDE_PLAYER = (BattleshipModel.CELL_STATE_PLAYER_SHIP | BattleshipModel.CELL_STATE_ENEMY_HAS_SEEN);
+
+  /** the flags of the cells of the enemy's side of the board */
+  public static final int SIDE_ENEMY = (BattleshipModel.CELL_STATE_ENEMY_SHIP | BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN);
+
+  /** the filter passing all events */
+  public static final BattleshipModelFilter ALL = new BattleshipModelFilter(
+      (BattleshipModelEvent.CHANGE_FLAG_GAME_STATE | BattleshipModelEvent.CHANGE_FLAG_CELL_STATE),
+      ANY_FLAG, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+  /** the filter passing only changes of the game state */
+  public static final BattleshipModelFilter GAME_STATE = new BattleshipModelFilter(
+      BattleshipModelEvent.CHANGE_FLAG_GAME_STATE, ANY_FLAG, 0, 0,
+      Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+  /** the selected change flags */
+  final int m_changes;
+
+  /** the selected cell state flags */
+  final int m_flags;
+
+  /** the smallest x-coordinate of the region */
+  final int m_x;
+
+  /** the smallest y-coordinate of the region */
+  final int m_y;
+
+  /** the width of the region */
+  final int m_width;
+
+  /** the height of the region */
+  final int m_height;
+
+  /**
+   * Create a filter
+   *
+   * @param changes
+   *          the selected change flags
+   * @param flags
+   *          the selected cell state flags, or {@link #ANY_FLAG}
+   * @param x
+   *          the smallest x-coordinate of the region
+   * @param y
+   *          the smallest y-coordinate of the region
+   * @param width
+   *          the width of the region
+   * @param height
+   *          the height of the region
+   */
+  private BattleshipModelFilter(final int changes, final int flags,
+      final int x, final int y, final int width, final int height) {
+    super();
+    this.m_changes = changes;
+    this.m_flags = flags;
+    this.m_x = x;
+    this.m_y = y;
+    this.m_width = width;
+    this.m_height = height;
+  }
+
+  /**
+   * Create a filter passing the changes of the given cell state flags, and
+   * no changes of the game state
+   *
+   * @param flags
+   *          the cell state flags, e.g., {@link #SIDE_PLAYER}
+   * @return the filter
+   */
+  public static final BattleshipModelFilter cells(final int flags) {
+    return new BattleshipModelFilter(
+        BattleshipModelEvent.CHANGE_FLAG_CELL_STATE, flags, 0, 0,
+        Integer.MAX_VALUE, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Get a filter which also passes the changes of the game state
+   *
+   * @return the filter
+   */
+  public final BattleshipModelFilter withGameState() {
+    return new BattleshipModelFilter(
+        (this.m_changes | BattleshipModelEvent.CHANGE_FLAG_GAME_STATE),
+        this.m_flags, this.m_x, this.m_y, this.m_width, this.m_height);
+  }
+
+  /**
+   * Get a filter which only passes the changes of cells in a rectangular
+   * region
+   *
+   * @param x
+   *          the smallest x-coordinate of the region
+   * @param y
+   *          the smallest y-coordinate of the region
+   * @param width
+   *          the width of the region
+   * @param height
+   *          the height of the region
+   * @return the filter
+   */
+  public final BattleshipModelFilter withRegion(final int x, final int y,
+      final int width, final int height) {
+    if ((x < 0) || (y < 0) || (width <= 0) || (height <= 0)) {
+      throw new IllegalArgumentException("Illegal region!"); //$NON-NLS-1$
+    }
+    return new BattleshipModelFilter(this.m_changes, this.m_flags, x, y,
+        width, height);
+  }
+
+  /**
+   * Does this filter pass all cells of a field?
+   *
+   * @param fieldWidth
+   *          the width of the field
+   * @param fieldHeight
+   *          the height of the field
+   * @return true if the region covers the field
+   */
+  final boolean coversField(final int fieldWidth, final int fieldHeight) {
+    return ((this.m_x <= 0) && (this.m_y <= 0)
+        && ((this.m_width - fieldWidth) >= 0) && ((this.m_height - fieldHeight) >= 0));
+  }
+
+  /**
+   * Compile the region into a bit set of the cells of a field
+   *
+   * @param fieldWidth
+   *          the width of the field
+   * @param fieldHeight
+   *          the height of the field
+   * @return the bit set, where the bit {@code y*fieldWidth+x} is set if the
+   *         cell {@code (x,y)} lies in the region
+   */
+  final long[] compileRegion(final int fieldWidth, final int fieldHeight) {
+    final long[] cells;
+    final int ex, ey;
+    int x, y, i;
+
+    cells = new long[((fieldWidth * fieldHeight) + 63) >>> 6];
+    ex = (int) Math.min(fieldWidth, ((long) (this.m_x)) + this.m_width);
+    ey = (int) Math.min(fieldHeight, ((long) (this.m_y)) + this.m_height);
+    for (y = this.m_y; y < ey; y++) {
+      for (x = this.m_x; x < ex; x++) {
+        i = ((y * fieldWidth) + x);
+        cells[i >>> 6] |= (1L << i);
+      }
+    }
+    return cells;
+  }
+}
@@ -0,0 +1,121 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of headless models of the same configuration, for servers and
+ * simulators that play many games one after another. A released model is
+ * reset in constant time and handed out again by the next
+ * {@link #acquire()}, so that game churn does not allocate new models.
+ */
+public final class BattleshipModelPool {
+
+  /** the field width */
+  private final int m_width;
+
+  /** the field height */
+  private final int m_height;
+
+  /** the ships to place */
+  private final int[] m_ships;
+
+  /** the idle models */
+  private final ArrayBlockingQueue<BattleshipModel> m_idle;
+
+  /** the number of models created */
+  private final AtomicLong m_created;
+
+  /** the number of models reused */
+  private final AtomicLong m_reused;
+
+  /**
+   * Create the pool
+   * 
+   * @param width
+   *          the field width
+   * @param height
+   *          the field height
+   * @param ships
+   *          the ships to place
+   * @param capacity
+   *          the maximum number of idle models kept by the pool
+   */
+  public BattleshipModelPool(final int width, final int height,
+      final int[] ships, final int capacity) {
+    super();
+    this.m_width = width;
+    this.m_height = height;
+    this.m_ships = ships.clone();
+    this.m_idle = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    this.m_created = new AtomicLong();
+    this.m_reused = new AtomicLong();
+  }
+
+  /**
+   * Get an initialized model, either a recycled one or a new one
+   * 
+   * @return the model, in state
+   *         {@link BattleshipModel#GAME_STATE_INITIALIZED}
+   */
+  public final BattleshipModel acquire() {
+    BattleshipModel m;
+
+    m = this.m_idle.poll();
+    if (m == null) {
+      m = new BattleshipModel(this.m_width, this.m_height, this.m_ships,
+          false);
+      this.m_created.incrementAndGet();
+    } else {
+      this.m_reused.incrementAndGet();
+    }
+    m.initialize();
+    return m;
+  }
+
+  /**
+   * Return a model to the pool. All its listeners are removed, a game which
+   * is still running is ended without winner, and the model is reset. If the
+   * pool is full, the model is dropped.
+   * 
+   * @param m
+   *          the model, which must not be used by the caller afterwards
+   */
+  public final void release(final BattleshipModel m) {
+    final int state;
+
+    if ((m == null) || (m.getFieldWidth() != this.m_width)
+        || (m.getFieldHeight() != this.m_height)) {
+      return;
+    }
+
+    synchronized (m) {
+      m.removeAllListeners();
+      state = m.getGameState();
+      if ((state != BattleshipModel.GAME_STATE_UNINITIALIZED)
+          && (state != BattleshipModel.GAME_STATE_END)) {
+        m.endGame(BattleshipModel.WINNER_NOBODY);
+      }
+      m.reset();
+    }
+    this.m_idle.offer(m);
+  }
+
+  /**
+   * Get the number of models created by this pool
+   * 
+   * @return the number of created models
+   */
+  public final long getCreatedCount() {
+    return this.m_created.get();
+  }
+
+  /**
+   * Get the number of times a model has been reused
+   * 
+   * @return the number of reuses
+   */
+  public final long getReusedCount() {
+    return this.m_reused.get();
+  }
+}
@@ -0,0 +1,189 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of the board of a {@link BattleshipModel}. Snapshots
+ * carry the Zobrist hash of the board, so they can be compared and used as
+ * keys cheaply.
+ */
+public final class BattleshipModelSnapshot {
+
+  /** the field width */
+  private final int m_width;
+
+  /** the field height */
+  private final int m_height;
+
+  /** the cell states, indexed by {@code y*width+x} */
+  private final int[] m_cells;
+
+  /** the game state */
+  private final int m_gameState;
+
+  /** the last player */
+  private final int m_lastPlayer;
+
+  /** the winner */
+  private final int m_winner;
+
+  /** the Zobrist hash of the cells */
+  private final long m_hash;
+
+  /**
+   * Create the snapshot
+   * 
+   * @param width
+   *          the field width
+   * @param height
+   *          the field height
+   * @param cells
+   *          the cell states, indexed by {@code y*width+x}, which must not be
+   *          modified afterwards
+   * @param gameState
+   *          the game state
+   * @param lastPlayer
+   *          the last player
+   * @param winner
+   *          the winner
+   * @param hash
+   *          the Zobrist hash of the cells
+   */
+  BattleshipModelSnapshot(final int width, final int height,
+      final int[] cells, final int gameState, final int lastPlayer,
+      final int winner, final long hash) {
+    super();
+    this.m_width = width;
+    this.m_height = height;
+    this.m_cells = cells;
+    this.m_gameState = gameState;
+    this.m_lastPlayer = lastPlayer;
+    this.m_winner = winner;
+    this.m_hash = hash;
+  }
+
+  /**
+   * Compute the Zobrist hash of cell states from scratch
+   * 
+   * @param cells
+   *          the cell states, indexed by {@code y*width+x}
+   * @return the hash, which equals the one maintained incrementally by a
+   *         model with these cells
+   */
+  public static final long computeHash(final int[] cells) {
+    long hash;
+    int i, bits;
+
+    hash = 0L;
+    for (i = cells.length; (--i) >= 0;) {
+      for (bits = cells[i]; bits != 0; bits &= (bits - 1)) {
+        hash ^= Hashing.zobrist(i, Integer.numberOfTrailingZeros(bits));
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Get the field width
+   * 
+   * @return the field width
+   */
+  public final int getFieldWidth() {
+    return this.m_width;
+  }
+
+  /**
+   * Get the field height
+   * 
+   * @return the field height
+   */
+  public final int getFieldHeight() {
+    return this.m_height;
+  }
+
+  /**
+   * Get the state of the cell at coordinates x and y
+   * 
+   * @param x
+   *          the x-coordinate of the cell
+   * @param y
+   *          the y-coordinate of the cell
+   * @return the state of that cell
+   */
+  public final int getCellState(final int x, final int y) {
+    if ((x < 0) || (x >= this.m_width)) {
+      throw new IndexOutOfBoundsException("x=" + x); //$NON-NLS-1$
+    }
+    return this.m_cells[(y * this.m_width) + x];
+  }
+
+  /**
+   * Get a copy of the cell states
+   * 
+   * @return the cell states, indexed by {@code y*width+x}
+   */
+  public final int[] getCells() {
+    return this.m_cells.clone();
+  }
+
+  /**
+   * Get the game state
+   * 
+   * @return the game state
+   */
+  public final int getGameState() {
+    return this.m_gameState;
+  }
+
+  /**
+   * Get who has made the last move
+   * 
+   * @return the last player
+   */
+  public final int getLastPlayer() {
+    return this.m_lastPlayer;
+  }
+
+  /**
+   * Get who won the game
+   * 
+   * @return the winner
+   */
+  public final int whoWon() {
+    return this.m_winner;
+  }
+
+  /**
+   * Get the Zobrist hash of the cells
+   * 
+   * @return the hash
+   */
+  public final long getHash() {
+    return this.m_hash;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final int hashCode() {
+    return ((int) (this.m_hash ^ (this.m_hash >>> 32)));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final boolean equals(final Object o) {
+    final BattleshipModelSnapshot s;
+
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof BattleshipModelSnapshot)) {
+      return false;
+    }
+    s = ((BattleshipModelSnapshot) o);
+    return ((s.m_hash == this.m_hash) && (s.m_width == this.m_width)
+        && (s.m_gameState == this.m_gameState)
+        && (s.m_lastPlayer == this.m_lastPlayer)
+        && (s.m_winner == this.m_winner) && Arrays.equals(
+        s.m_cells, this.m_cells));
+  }
+}
@@ -3,12 +3,16 @@ package org.ustc.scst.dc.battleship;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Toolkit;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 
 import javax.swing.JComponent;
 import javax.swing.JOptionPane;
 import javax.swing.JSplitPane;
+import javax.swing.SwingUtilities;
 
 /** the ship view */
 public class BattleshipView extends JSplitPane implements
@@ -36,7 +40,7 @@ public class BattleshipView extends JSplitPane implements
     super();
 
     this.m_model = m;
-    m.addListener(this);
+    m.addListener(this, BattleshipModelFilter.GAME_STATE);
 
     this.m_player = new ShipPanel(m, true);
     this.m_enemy = new ShipPanel(m, false);
@@ -74,52 +78,64 @@ public class BattleshipView extends JSplitPane implements
       return;
     }
     if ((state & BattleshipModel.GAME_STATE_END) != 0) {
-      JOptionPane
-          .showMessageDialog(
-              this,
-              ((winner == BattleshipModel.WINNER_ENEMY) ? "You have lost the game." : //$NON-NLS-1$
-                  ((winner == BattleshipModel.WINNER_PLAYER) ? "You have won the game." : //$NON-NLS-1$
-                      "The game has ended with no winner.")));//$NON-NLS-1$
-      System.exit(0);
+      this.showLater(
+          ((winner == BattleshipModel.WINNER_ENEMY) ? "You have lost the game." : //$NON-NLS-1$
+              ((winner == BattleshipModel.WINNER_PLAYER) ? "You have won the game." : //$NON-NLS-1$
+                  "The game has ended with no winner.")), true);//$NON-NLS-1$
       return;
     }
 
     if ((state & BattleshipModel.GAME_STATE_INITIALIZED) != 0) {
       j = this.m_model.getNextShipLengthToPlace();
-      JOptionPane
-          .showMessageDialog(
-              this,
-              "Please now place your ships by selecting cells in the left window.\n" + //$NON-NLS-1$
-                  "The next ship to place has a length of " + j + ".");//$NON-NLS-1$//$NON-NLS-2$
+      this.showLater(
+          "Please now place your ships in the left window: move the mouse to\n" + //$NON-NLS-1$
+              "see where the next ship would go, press 'R' or the right mouse\n" + //$NON-NLS-1$
+              "button to rotate it, and click to place it.\n" + //$NON-NLS-1$
+              "The next ship to place has a length of " + j + ".", false);//$NON-NLS-1$//$NON-NLS-2$
       return;
     }
 
     if ((state & BattleshipModel.GAME_STATE_PLAYER_READY) != 0) {
-      JOptionPane
-          .showMessageDialog(
-              this,
-              "You have finished placing the ships. We now wait for the enemy to be ready.");//$NON-NLS-1$
+      this.showLater(
+          "You have finished placing the ships. We now wait for the enemy to be ready.", false);//$NON-NLS-1$
       return;
     }
 
     if ((state & BattleshipModel.GAME_STATE_PLAYING) != 0) {
-      JOptionPane
-          .showMessageDialog(
-              this,//
-              "You have placed your ships and the enemy is ready.\nNow play by firing at fields in the right window.");//$NON-NLS-1$
+      this.showLater(
+          "You have placed your ships and the enemy is ready.\nNow play by firing at fields in the right window.", false);//$NON-NLS-1$
       return;
     }
   }
 
-  /** the player's view schema */
-  static final Color[] SCHEME_A = new Color[] {//
-  new Color(0, 0, 190, 255),//
-      new Color(40, 40, 255, 255),//
-      Color.GREEN, Color.RED };
+  /**
+   * Show a message once the current event has been handled: the listeners
+   * are called while the lock of the model is held, so a modal dialog shown
+   * directly would block every thread that needs the model until it is
+   * closed
+   * 
+   * @param message
+   *          the message
+   * @param exit
+   *          should the program exit after the message has been shown?
+   */
+  private final void showLater(final String message, final boolean exit) {
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public final void run() {
+        JOptionPane.showMessageDialog(BattleshipView.this, message);
+        if (exit) {
+          System.exit(0);
+        }
+      }
+    });
+  }
 
-  /** the enemy view schema */
-  static final Color[] SCHEME_B = new Color[] { SCHEME_A[0], SCHEME_A[1],
-      Color.RED, Color.GREEN };
+  /** the color of the preview of a ship which can be placed */
+  static final Color PREVIEW_LEGAL = new Color(255, 255, 255, 140);
+
+  /** the color of the preview of a ship which cannot be placed */
+  static final Color PREVIEW_ILLEGAL = new Color(255, 0, 0, 160);
 
   /** A ship panel */
   class ShipPanel extends JComponent implements IBattleshipModelListener {
@@ -127,14 +143,8 @@ public class BattleshipView extends JSplitPane implements
     /** the serial version uid */
     private static final long serialVersionUID = 1L;
 
-    /** the color scheme */
-    private final Color[] m_scheme;
-
-    /** the ship flag */
-    private final int m_shipFlag;
-
-    /** the seen flag */
-    private final int m_seenFlag;
+    /** the states of the cells being painted */
+    private final int[] m_cells;
 
     /** the model */
     final BattleshipModel m_bsModel;
@@ -142,6 +152,22 @@ public class BattleshipView extends JSplitPane implements
     /** are we a player ? */
     private final boolean m_isPlayer;
 
+    /**
+     * the legal placements of the next ship to place, or {@code null} if
+     * there is none: refreshed by the model events, so that the preview can
+     * be drawn without locking the model
+     */
+    private transient volatile Placement m_placement;
+
+    /** the x-coordinate of the cell under the mouse, or -1 if none */
+    int m_hoverX;
+
+    /** the y-coordinate of the cell under the mouse */
+    int m_hoverY;
+
+    /** is the previewed ship horizontal? */
+    boolean m_horizontal;
+
     /**
      * Create a ship panel
      * 
@@ -153,105 +179,209 @@ public class BattleshipView extends JSplitPane implements
     public ShipPanel(final BattleshipModel model, final boolean isPlayer) {
       super();
       final int w, h;
+      final MouseAdapter mouse;
 
-      if (isPlayer) {
-        this.m_scheme = SCHEME_A;
-        this.m_shipFlag = BattleshipModel.CELL_STATE_PLAYER_SHIP;
-        this.m_seenFlag = BattleshipModel.CELL_STATE_ENEMY_HAS_SEEN;
-      } else {
-        this.m_scheme = SCHEME_B;
-        this.m_shipFlag = BattleshipModel.CELL_STATE_ENEMY_SHIP;
-        this.m_seenFlag = BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN;
-      }
-
+      this.m_cells = new int[model.getFieldWidth() * model.getFieldHeight()];
       this.m_bsModel = model;
       this.m_isPlayer = isPlayer;
+      this.m_hoverX = (-1);
+      this.m_horizontal = true;
 
-      this.addMouseListener(new MouseAdapter() {
+      mouse = new MouseAdapter() {
         @Override
         public void mouseClicked(final MouseEvent e) {
-          ShipPanel.this.onClick(
-          //
-              ((e.getX() * ShipPanel.this.m_bsModel.getFieldWidth()) / ShipPanel.this
-                  .getWidth()), ((e.getY() * ShipPanel.this.m_bsModel
-                  .getFieldHeight()) / ShipPanel.this.getHeight()));
+          if (ShipPanel.this.m_isPlayer && SwingUtilities.isRightMouseButton(e)) {
+            ShipPanel.this.rotate();
+            return;
+          }
+          ShipPanel.this.onClick(ShipPanel.this.cellX(e.getX()),
+              ShipPanel.this.cellY(e.getY()));
+        }
+
+        @Override
+        public void mouseEntered(final MouseEvent e) {
+          if (ShipPanel.this.m_isPlayer) {
+            ShipPanel.this.requestFocusInWindow();
+          }
+          this.mouseMoved(e);
         }
-      });
+
+        @Override
+        public void mouseMoved(final MouseEvent e) {
+          if (ShipPanel.this.m_isPlayer) {
+            ShipPanel.this.hover(ShipPanel.this.cellX(e.getX()),
+                ShipPanel.this.cellY(e.getY()));
+          }
+        }
+
+        @Override
+        public void mouseExited(final MouseEvent e) {
+          ShipPanel.this.hover(-1, -1);
+        }
+      };
+      this.addMouseListener(mouse);
+      this.addMouseMotionListener(mouse);
+
+      if (isPlayer) {
+        this.setFocusable(true);
+        this.addKeyListener(new KeyAdapter() {
+          @Override
+          public void keyPressed(final KeyEvent e) {
+            if ((e.getKeyCode() == KeyEvent.VK_R)
+                || (e.getKeyCode() == KeyEvent.VK_SPACE)) {
+              ShipPanel.this.rotate();
+            }
+          }
+        });
+      }
 
       h = model.getFieldHeight();
       w = model.getFieldWidth();
 
       this.setMinimumSize(new Dimension(8 * w, 8 * h));
       this.setPreferredSize(new Dimension(30 * w, 30 * h));
-      model.addListener(this);
+      model.addListener(this, BattleshipModelFilter.cells(
+          isPlayer ? BattleshipModelFilter.SIDE_PLAYER
+              : BattleshipModelFilter.SIDE_ENEMY).withGameState());
+      if (isPlayer) {
+        this.refreshPlacement();
+      }
+    }
+
+    /**
+     * Get the column of the cell at a horizontal pixel coordinate
+     * 
+     * @param px
+     *          the pixel coordinate
+     * @return the column
+     */
+    final int cellX(final int px) {
+      final int fieldWidth;
+
+      fieldWidth = this.m_bsModel.getFieldWidth();
+      return Math.max(0, Math.min((fieldWidth - 1),
+          ((px * fieldWidth) / Math.max(1, this.getWidth()))));
+    }
+
+    /**
+     * Get the row of the cell at a vertical pixel coordinate
+     * 
+     * @param py
+     *          the pixel coordinate
+     * @return the row
+     */
+    final int cellY(final int py) {
+      final int fieldHeight;
+
+      fieldHeight = this.m_bsModel.getFieldHeight();
+      return Math.max(0, Math.min((fieldHeight - 1),
+          ((py * fieldHeight) / Math.max(1, this.getHeight()))));
+    }
+
+    /**
+     * Copy the legal placements of the next ship to place from the model.
+     * This is done whenever our side of the field changes, while the lock
+     * of the model is held anyway.
+     */
+    private final void refreshPlacement() {
+      final BattleshipModel m;
+      final int length;
+
+      m = this.m_bsModel;
+      synchronized (m) {
+        length = m.getNextShipLengthToPlace();
+        this.m_placement = ((length > 0) ? new Placement(length,
+            m.getFieldWidth(), m.getLegalPlacements(length, true),
+            m.getLegalPlacements(length, false)) : null);
+      }
     }
 
     /**
-     * A click was detected (ok, i will do this in a bad style, i am tired)
+     * Repaint the area of some cells
      * 
      * @param x
-     *          the x-coordinate
+     *          the x-coordinate of the first cell
      * @param y
-     *          the y-coordinate
+     *          the y-coordinate of the first cell
+     * @param cols
+     *          the number of columns
+     * @param rows
+     *          the number of rows
      */
-    final void onClick(final int x, final int y) {
-      int i, length;
-      final BattleshipModel m;
-      Throwable q;
+    private final void repaintCells(final int x, final int y, final int cols,
+        final int rows) {
+      final int w, h, fieldWidth, fieldHeight, sx, sy;
 
-      if (this.m_isPlayer) {
+      w = this.getWidth();
+      h = this.getHeight();
+      fieldWidth = this.m_bsModel.getFieldWidth();
+      fieldHeight = this.m_bsModel.getFieldHeight();
+      sx = ((x * w) / fieldWidth);
+      sy = ((y * h) / fieldHeight);
+      this.repaint(sx, sy,
+          (((Math.min(fieldWidth, (x + cols)) * w) / fieldWidth) - sx),
+          (((Math.min(fieldHeight, (y + rows)) * h) / fieldHeight) - sy));
+    }
 
-        m = this.m_bsModel;
-        q = null;
-        synchronized (m) {
-          length = m.getNextShipLengthToPlace();
+    /** Repaint the area of the preview, if any */
+    final void repaintPreview() {
+      final Placement p;
 
-          if (length <= 0) {
-            JOptionPane.showMessageDialog(this, //
-                "Currently, there is no ship to place.");//$NON-NLS-1$
-            return;
-          }
+      p = this.m_placement;
+      if ((p != null) && (this.m_hoverX >= 0)) {
+        this.repaintCells(this.m_hoverX, this.m_hoverY,
+            (this.m_horizontal ? p.m_length : 1),
+            (this.m_horizontal ? 1 : p.m_length));
+      }
+    }
 
-          if (length > 1) {
-            i = JOptionPane
-                .showConfirmDialog(
-                    this,//
-                    "Select 'yes' ship with length " + length + //$NON-NLS-1$
-                        " horizontally at (" + x + //$NON-NLS-1$
-                        ", " + y + //$NON-NLS-1$
-                        "), 'no' to placed it vertically, 'Cancel' to cancel.",//$NON-NLS-1$
-                    "Place ship!", //$NON-NLS-1$
-                    JOptionPane.YES_NO_CANCEL_OPTION);
-          } else {
-            i = JOptionPane.showConfirmDialog(this,//
-                "Place ship with length 1 at (" + x + //$NON-NLS-1$
-                    ", " + y + //$NON-NLS-1$
-                    ")?",//$NON-NLS-1$
-                "Place ship!", //$NON-NLS-1$
-                JOptionPane.OK_CANCEL_OPTION);
-            if (i == JOptionPane.OK_OPTION) {
-              i = JOptionPane.YES_OPTION;
-            }
-          }
+    /**
+     * Move the preview to another cell
+     * 
+     * @param x
+     *          the x-coordinate of the cell, or -1 to hide the preview
+     * @param y
+     *          the y-coordinate of the cell
+     */
+    final void hover(final int x, final int y) {
+      if ((x != this.m_hoverX) || (y != this.m_hoverY)) {
+        this.repaintPreview();
+        this.m_hoverX = x;
+        this.m_hoverY = y;
+        this.repaintPreview();
+      }
+    }
 
-          if (i != JOptionPane.CANCEL_OPTION) {
-            try {
-              m.placeShip(length, x, y, (i == JOptionPane.YES_OPTION));
-            } catch (Throwable t) {
-              q = t;
-            }
-          }
+    /** Rotate the previewed ship */
+    final void rotate() {
+      this.repaintPreview();
+      this.m_horizontal = (!(this.m_horizontal));
+      this.repaintPreview();
+    }
 
-          i = this.m_bsModel.getNextShipLengthToPlace();
-          if (i > 0) {
-            JOptionPane.showMessageDialog(this,
-                "Now place a ship with length " + i + //$NON-NLS-1$
-                    ".");//$NON-NLS-1$
-          }
-        }
+    /**
+     * A click was detected: place the next ship at the previewed position
+     * if we are the player field, fire at the cell otherwise
+     * 
+     * @param x
+     *          the x-coordinate
+     * @param y
+     *          the y-coordinate
+     */
+    final void onClick(final int x, final int y) {
+      final Placement p;
 
-        if (q != null) {
-          JOptionPane.showMessageDialog(this, q.getMessage());
+      if (this.m_isPlayer) {
+        p = this.m_placement;
+        if ((p == null) || (!(p.isLegal(x, y, this.m_horizontal)))) {
+          Toolkit.getDefaultToolkit().beep();
+          return;
+        }
+        try {
+          this.m_bsModel.placeShip(p.m_length, x, y, this.m_horizontal);
+        } catch (IllegalStateException ise) {
+          // the model has changed since the preview was drawn
+          Toolkit.getDefaultToolkit().beep();
         }
         return;
       }
@@ -264,35 +394,32 @@ public class BattleshipView extends JSplitPane implements
       }
     }
 
-    /** {@inheritDoc} */
+    /**
+     * Repaint: the panel only listens to changes of the game state and of
+     * the cell state flags it draws, and only repaints the changed cell for
+     * the latter
+     */
     @Override
     public final void battleshipModelChanged(
         final BattleshipModelEvent event) {
-      final int i;
-
-      i = event.whatHasChanged();
-      if ((i & BattleshipModelEvent.CHANGE_FLAG_GAME_STATE) != 0) {
+      if (this.m_isPlayer) {
+        this.refreshPlacement();
+      }
+      if ((event.whatHasChanged() & BattleshipModelEvent.CHANGE_FLAG_GAME_STATE) != 0) {
         this.repaint();
         return;
       }
-
-      if ((i & BattleshipModelEvent.CHANGE_FLAG_CELL_STATE) != 0) {
-        if ((((this.m_bsModel.getCellState(event.getX(), event.getY())) & //
-        (~event.getOldState())) & (this.m_seenFlag | this.m_shipFlag)) != 0) {
-          this.repaint();
-          return;
-        }
-      }
+      this.repaintCells(event.getX(), event.getY(), 1, 1);
+      this.repaintPreview();
     }
 
     /** {@inheritDoc} */
     @Override
     public void paint(final Graphics g) {
-      int y, x, sx, sy, ex, ey, state;
-      final Color[] colors;
-      final int w, h, fieldWidth, fieldHeight, ship, seen;
+      int y, x, sx, sy, ex, ey, length;
+      final int w, h, fieldWidth, fieldHeight;
       final BattleshipModel model;
-      Color choose;
+      final Placement p;
 
       w = this.getWidth();
       h = this.getHeight();
@@ -300,36 +427,86 @@ public class BattleshipView extends JSplitPane implements
       model = this.m_bsModel;
       fieldWidth = model.getFieldWidth();
       fieldHeight = model.getFieldHeight();
-      ship = this.m_shipFlag;
-      seen = this.m_seenFlag;
-
-      colors = this.m_scheme;
-      g.setColor(colors[0]);
-      g.fillRect(0, 0, w, h);
 
-      synchronized (model) {
-        for (y = fieldHeight; (--y) >= 0;) {
-          ey = ((((y + 1) * h) / fieldHeight) - 2);
-          sy = (((y * h) / fieldHeight) + 2);
-
-          for (x = fieldWidth; (--x) >= 0;) {
-            ex = ((((x + 1) * w) / fieldWidth) - 2);
-            sx = (((x * w) / fieldWidth) + 2);
-
-            state = model.getCellState(x, y);
-            choose = (((state & ship) == 0) ? colors[1] : colors[2]);
-            g.setColor(choose);
-            g.fillRect(sx, sy, ex - sx, ey - sy);
-
-            if ((state & seen) != 0) {
-              g.setColor(colors[3]);
-              g.drawLine(sx, sy, ex, ey);
-              g.drawLine(ex, sy, sx, ey);
-            }
-          }
-        }
+      // the model is only locked while copying the cells within the clip
+      FieldPainter.copyCells(model, g, w, h, this.m_cells);
+      FieldPainter.paint(g, w, h, fieldWidth, fieldHeight, this.m_cells,
+          this.m_isPlayer);
+
+      p = this.m_placement;
+      x = this.m_hoverX;
+      y = this.m_hoverY;
+      if ((p != null) && (x >= 0)) {
+        length = p.m_length;
+        g.setColor(p.isLegal(x, y, this.m_horizontal) ? PREVIEW_LEGAL
+            : PREVIEW_ILLEGAL);
+        sx = (((x * w) / fieldWidth) + 2);
+        sy = (((y * h) / fieldHeight) + 2);
+        ex = ((((Math.min(fieldWidth, (x + (this.m_horizontal ? length : 1)))) * w) / fieldWidth) - 2);
+        ey = ((((Math.min(fieldHeight, (y + (this.m_horizontal ? 1 : length)))) * h) / fieldHeight) - 2);
+        g.fillRect(sx, sy, ex - sx, ey - sy);
       }
     }
   }
 
+  /** the legal placements of the next ship to place */
+  private static final class Placement {
+
+    /** the length of the ship */
+    final int m_length;
+
+    /** the field width */
+    private final int m_width;
+
+    /** the bit set of the legal horizontal anchors */
+    private final long[] m_horizontal;
+
+    /** the bit set of the legal vertical anchors */
+    private final long[] m_vertical;
+
+    /**
+     * Create the placements
+     * 
+     * @param length
+     *          the length of the ship
+     * @param width
+     *          the field width
+     * @param horizontal
+     *          the bit set of the legal horizontal anchors
+     * @param vertical
+     *          the bit set of the legal vertical anchors
+     */
+    Placement(final int length, final int width, final long[] horizontal,
+        final long[] vertical) {
+      super();
+      this.m_length = length;
+      this.m_width = width;
+      this.m_horizontal = horizontal;
+      this.m_vertical = vertical;
+    }
+
+    /**
+     * Can the ship be placed at a given cell?
+     * 
+     * @param x
+     *          the x-coordinate of the upper-left corner of the ship
+     * @param y
+     *          the y-coordinate of the upper-left corner of the ship
+     * @param hor
+     *          is the ship horizontal?
+     * @return true if the ship can be placed there
+     */
+    final boolean isLegal(final int x, final int y, final boolean hor) {
+      final long[] bits;
+      final int cell;
+
+      bits = (hor ? this.m_horizontal : this.m_vertical);
+      if ((bits == null) || (x < 0) || (y < 0) || (x >= this.m_width)) {
+        return false;
+      }
+      cell = ((y * this.m_width) + x);
+      return (((cell >>> 6) < bits.length) && //
+      ((bits[cell >>> 6] & (1L << cell)) != 0L));
+    }
+  }
 }
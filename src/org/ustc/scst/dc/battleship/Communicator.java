@@ -1,51 +1,187 @@
 package org.ustc.scst.dc.battleship;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JOptionPane;
 
 /**
  * The communicator. Here you can implement all the code necessary for
  * performing the communication between the players.
+ * <p>
+ * Outgoing messages are not written by the thread that produces them.
+ * Instead, they are put into a bounded queue which is drained by a single
+ * sender thread. This way, the model listener returns immediately, the
+ * order of the messages is preserved, and all messages that have piled up
+ * are written with a single flush. Since the turns alternate, the queue
+ * only fills up if the enemy has stopped reading: then the session fails
+ * instead of blocking the thread of the model listener.
+ * </p>
+ * <p>
+ * Besides the classic mode, where each side listens on its own port and
+ * connects to the port of the enemy, a communicator can also use a single
+ * {@link ICommunicatorTransport transport} for both directions. This is used
+ * by clients of a {@link SessionServer} and by the sessions hosted by it,
+ * which share a TCP connection, and by peers on the same host, which can
+ * exchange their messages through a {@link SharedMemoryTransport}.
+ * </p>
+ * <p>
+ * In the classic mode, a lost connection does not end the game. The game
+ * messages are numbered and the last {@link #REPLAY_CAPACITY} of them are
+ * kept, so the sender reconnects with an increasing back-off and asks the
+ * receiver which message it has received last. It then replays the missing
+ * messages. If they are no longer kept, the sender sends a digest of each
+ * row of what the receiver should know instead, and then only the cells of
+ * the rows the receiver reports as different, which the receiver applies
+ * regardless of the turn order. Either way, the cost of
+ * resuming depends on what has been missed and not on the size of the
+ * board. The receiver drops the messages it has already processed. While
+ * messages are not acknowledged, the idle sender repeats this every
+ * {@link #ACK_INTERVAL} milliseconds, so that a lost connection is also
+ * noticed when there is nothing to send.
+ * </p>
+ * <p>
+ * A stalled enemy, however, is only noticed if the game is watched by a
+ * {@link TurnClock}, see {@link #watch(TurnClock, long, long, TimeUnit)}.
+ * </p>
  */
 public class Communicator implements IBattleshipModelListener, Runnable {
 
+  /** the maximum number of outgoing messages waiting to be sent */
+  private static final int OUTBOUND_CAPACITY = 256;
+
+  /** the number of sent messages kept for replay, a power of two */
+  private static final int REPLAY_CAPACITY = 512;
+
+  /** the maximum number of cells in a repair message */
+  private static final int REPAIR_BATCH = 1024;
+
+  /** the first delay in milliseconds before reconnecting */
+  private static final long MIN_BACKOFF = 50L;
+
+  /** the maximum delay in milliseconds before reconnecting */
+  private static final long MAX_BACKOFF = 2000L;
+
+  /** the time in milliseconds after which we stop reconnecting */
+  private static final long RESUME_TIMEOUT = 30000L;
+
+  /**
+   * the time in milliseconds after which the sender asks the enemy to
+   * acknowledge the messages sent
+   */
+  private static final long ACK_INTERVAL = 1000L;
+
+  /** the time in milliseconds to wait for the answers when resuming */
+  private static final int HANDSHAKE_TIMEOUT = 10000;
+
+  /**
+   * the events the communicator forwards: changes of the game state and the
+   * shots of both sides
+   */
+  private static final BattleshipModelFilter FILTER = BattleshipModelFilter
+      .cells(
+          BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN
+              | BattleshipModel.CELL_STATE_ENEMY_HAS_SEEN).withGameState();
+
+  /** the marker telling the sender thread to stop after the last message */
+  private static final GameMessage STOP = new GameMessage(-1, -1, -1);
+
   /** the model */
   private final BattleshipModel m_model;
 
+  /** the outgoing messages */
+  private final ArrayBlockingQueue<GameMessage> m_outbound;
+
   /** are we running? */
-  private boolean m_running;
+  private volatile boolean m_running;
+
+  /** the server socket */
+  private ServerSocket m_server;
+
+  /** the connection we currently receive messages from */
+  private Socket m_inbound;
+
+  /** the transport used for both directions, or null in classic mode */
+  private ICommunicatorTransport m_connection;
+
+  /** the factory for the sender and receiver threads */
+  private ThreadFactory m_threads;
 
- 
-  // add your member variables here
-  private ServerSocket server ;
-  private Socket serverClient,client;
-  private int ownPort,enemyPort;
-  private String enemyHost;
-  private DataOutputStream dos;
-  private DataInputStream dis;
- // private InetAddress[] ia;
-  // end
+  /** should errors be reported to the user? */
+  private volatile boolean m_interactive;
+
+  /**
+   * the transport the sender writes to, which also carries the answers of
+   * the enemy when resuming, or null if not connected; only accessed by the
+   * sender thread
+   */
+  private ICommunicatorTransport m_client;
+
+  /** the sender thread */
+  private Thread m_sender;
+
+  /** the enemy port */
+  private int m_enemyPort;
+
+  /** the enemy host */
+  private String m_enemyHost;
+
+  /** the clock watching the game, or null */
+  private TurnClock.Watch m_watch;
+
+  /** the last messages sent, indexed by sequence number */
+  private final GameMessage[] m_replay;
+
+  /** the next sequence number, only accessed by the sender thread */
+  private int m_nextSeq;
+
+  /**
+   * the sequence number of the last message acknowledged by the enemy, only
+   * accessed by the sender thread
+   */
+  private int m_acked;
+
+  /** have we sent the ready message? only accessed by the sender thread */
+  private boolean m_readySent;
+
+  /**
+   * the sequence number of the last message received, written under the
+   * lock of this communicator
+   */
+  private volatile int m_received;
+
+  /** has the session failed because the outbound queue overflowed? */
+  private volatile boolean m_overflowed;
 
   /**
    * Create the communicator
-   * 
+   *
    * @param m
    *          the model
    */
   public Communicator(final BattleshipModel m) {
     super();
     this.m_model = m;
+    this.m_outbound = new ArrayBlockingQueue<>(OUTBOUND_CAPACITY);
+    this.m_replay = new GameMessage[REPLAY_CAPACITY];
+    this.m_threads = ThreadFactories.platform("Communicator"); //$NON-NLS-1$
+    this.m_interactive = true;
   }
 
   /**
    * Setup the communicator
-   * 
+   *
    * @param ownPort
    *          the own port
    * @param enemyHost
@@ -59,77 +195,810 @@ public class Communicator implements IBattleshipModelListener, Runnable {
       final String enemyHost, final int enemyPort) throws IOException {
 
     if (!(this.m_running)) {
-      //add
-      server = new ServerSocket(ownPort);
-      this.ownPort = ownPort;
-      this.enemyHost = enemyHost;
-      this.enemyPort = enemyPort;
-      System.out.println("Server run...");
-      //end
-      
-      this.m_model.addListener(this);
+      this.m_server = new ServerSocket(ownPort);
+      this.m_enemyHost = enemyHost;
+      this.m_enemyPort = enemyPort;
+      System.out.println("Server run..."); //$NON-NLS-1$
+
+      this.m_model.addListener(this, Communicator.FILTER);
       this.m_running = true;
 
-      new Thread(this).start();
+      this.resetSequence();
+      this.startSender();
+      this.m_threads.newThread(this).start();
+    }
+  }
+
+  /**
+   * Let a {@link LobbyServer} find an enemy and then connect to it as in
+   * {@link #start(int, String, int)}. This method blocks until an enemy has
+   * been found.
+   *
+   * @param lobbyHost
+   *          the host of the lobby
+   * @param lobbyPort
+   *          the port of the lobby
+   * @param ownPort
+   *          the own port
+   * @param skill
+   *          the skill of the player
+   * @param timeout
+   *          the maximum time in milliseconds to wait for an enemy, or 0 to
+   *          wait forever
+   * @return the id of the game
+   * @throws IOException
+   *           if something goes wrong or no enemy has been found in time
+   */
+  public final int startFromLobby(final String lobbyHost,
+      final int lobbyPort, final int ownPort, final int skill,
+      final long timeout) throws IOException {
+    final String enemyHost;
+    final int enemyPort, gameId;
+    final DataInputStream dis;
+    final DataOutputStream dos;
+
+    try (Socket s = new Socket(lobbyHost, lobbyPort)) {
+      s.setSoTimeout((int) (Math.min(Integer.MAX_VALUE, timeout)));
+      dos = new DataOutputStream(new BufferedOutputStream(
+          s.getOutputStream()));
+      dos.writeUTF(LobbyServer.OP_JOIN);
+      dos.writeInt(skill);
+      dos.writeInt(LobbyServer.boardConfig(this.m_model));
+      dos.writeInt(ownPort);
+      dos.flush();
+
+      dis = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      if (!(LobbyServer.OP_PAIRED.equals(dis.readUTF()))) {
+        throw new IOException("The lobby did not find an enemy."); //$NON-NLS-1$
+      }
+      enemyHost = dis.readUTF();
+      enemyPort = dis.readInt();
+      gameId = dis.readInt();
+    }
+
+    this.start(ownPort, enemyHost, enemyPort);
+    return gameId;
+  }
+
+  /**
+   * Open a session on a {@link SessionServer} or on {@link RelayNode relay
+   * nodes}, using one connection for both directions. If the game is owned
+   * by another relay node, the session is redirected there, and if the game
+   * moves later, the session follows it (see {@link SessionTransport}).
+   * 
+   * @param host
+   *          the host of the session server or of any relay node
+   * @param port
+   *          the port of the session server or relay node
+   * @param gameId
+   *          the id of the game to join
+   * @throws IOException
+   *           if something goes wrong
+   */
+  public synchronized final void startSession(final String host,
+      final int port, final int gameId) throws IOException {
+    final SessionTransport t;
+
+    if (!(this.m_running)) {
+      t = SessionTransport.open(host, port, gameId);
+      this.m_outbound.clear();
+      this.m_overflowed = false;
+      this.attach(t, this.m_threads);
+      this.m_threads.newThread(this).start();
     }
   }
 
+  /**
+   * Exchange the messages with the enemy over a transport used for both
+   * directions, e.g., a {@link SharedMemoryTransport} to an enemy on the
+   * same host. A session over such a transport cannot be resumed: if the
+   * transport breaks, the communicator stops.
+   * 
+   * @param transport
+   *          the transport
+   */
+  public synchronized final void start(final ICommunicatorTransport transport) {
+    if (!(this.m_running)) {
+      this.attach(transport, this.m_threads);
+      this.m_threads.newThread(this).start();
+    }
+  }
+
+  /**
+   * Use a transport for both directions. The caller is responsible for
+   * reading the incoming messages and passing them to
+   * {@link #receive(GameMessage)}.
+   * 
+   * @param transport
+   *          the transport
+   * @param threads
+   *          the factory for the sender thread
+   */
+  final void attach(final ICommunicatorTransport transport,
+      final ThreadFactory threads) {
+    this.attach(transport, threads, 0, 0);
+  }
+
+  /**
+   * Use a transport for both directions, continuing a session which has
+   * been moved from another communicator
+   * 
+   * @param transport
+   *          the transport
+   * @param threads
+   *          the factory for the sender thread
+   * @param received
+   *          the sequence number of the last message received
+   * @param sent
+   *          the sequence number of the last message sent
+   */
+  synchronized final void attach(final ICommunicatorTransport transport,
+      final ThreadFactory threads, final int received, final int sent) {
+    if (!(this.m_running)) {
+      this.m_connection = transport;
+      this.m_client = transport;
+      this.m_threads = threads;
+      this.m_model.addListener(this, Communicator.FILTER);
+      this.m_running = true;
+      this.resetSequence();
+      this.m_received = received;
+      this.m_nextSeq = (sent + 1);
+      this.m_acked = sent;
+      this.startSender();
+    }
+  }
+
+  /**
+   * Get the sequence number of the last message received
+   * 
+   * @return the sequence number
+   */
+  final int getReceived() {
+    return this.m_received;
+  }
+
+  /**
+   * Should errors be reported to the user via a dialog? Communicators
+   * running inside a server should not do that.
+   * 
+   * @param interactive
+   *          true if errors should be shown to the user
+   */
+  public final void setInteractive(final boolean interactive) {
+    this.m_interactive = interactive;
+  }
+
+  /**
+   * Watch the game with a clock: if a side does not fire within the turn
+   * time, or the ships are not placed within the idle time, the game ends
+   * and the communicator stops.
+   * 
+   * @param clock
+   *          the clock, e.g., {@link TurnClock#getShared()}
+   * @param turnTime
+   *          the time a side has for a shot
+   * @param idleTime
+   *          the time the game may go without any change before it is
+   *          being played
+   * @param unit
+   *          the unit of {@code turnTime} and {@code idleTime}
+   */
+  public synchronized final void watch(final TurnClock clock,
+      final long turnTime, final long idleTime, final TimeUnit unit) {
+    if (this.m_watch != null) {
+      this.m_watch.cancel();
+    }
+    this.m_watch = clock.watch(this.m_model, turnTime, idleTime, unit,
+        new Runnable() {
+          @Override
+          public final void run() {
+            Communicator.this.stop();
+          }
+        });
+  }
+
+  /** Start numbering the messages from the beginning */
+  private final void resetSequence() {
+    this.m_nextSeq = 1;
+    this.m_acked = 0;
+    this.m_readySent = false;
+    this.m_received = 0;
+  }
+
+  /** Start the sender thread */
+  private final void startSender() {
+    this.m_sender = this.m_threads.newThread(new Runnable() {
+      @Override
+      public final void run() {
+        Communicator.this.sendLoop();
+      }
+    });
+    this.m_sender.start();
+  }
+
   /**
    * Stop this thread
    */
   public synchronized final void stop() {
-    System.out.println("Communicator has been stopped."); //$NON-NLS-1$
+    if (this.m_interactive) {
+      System.out.println("Communicator has been stopped."); //$NON-NLS-1$
+    }
     if (this.m_running) {
       this.m_running = false;
 
-      // Add by QiQi
-     try{
-    	 server.close();
-    	 client.close();
-    	 dos.close();
-    	 dis.close();
-     }catch(IOException e){
-    	 e.printStackTrace();
-     }
-      // end
+      if (this.m_server != null) {
+        try {
+          this.m_server.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+      Communicator.closeQuietly(this.m_inbound);
+      if (this.m_connection != null) {
+        // the sender closes the connection after its last message
+        this.m_connection.shutdownInput();
+      }
+      if (this.m_sender != null) {
+        if (!(this.m_outbound.offer(STOP))) {
+          this.m_sender.interrupt();
+        }
+        this.m_sender = null;
+      }
+      this.m_model.removeListener(this);
+    }
+    if (this.m_watch != null) {
+      this.m_watch.cancel();
+      this.m_watch = null;
+    }
+    if (this.m_interactive) {
+      System.out.println("Server resources released."); //$NON-NLS-1$
+    }
+  }
 
+  /**
+   * Close a socket, ignoring errors
+   *
+   * @param s
+   *          the socket, or null
+   */
+  private static final void closeQuietly(final Socket s) {
+    if (s != null) {
+      try {
+        s.close();
+      } catch (IOException e) {//
+      }
     }
-    System.out.println("Server resources released."); //$NON-NLS-1$
   }
 
   /**
-   * The server loop
+   * The server loop: accept connections from the enemy and process all
+   * messages sent over the latest of them. If a single connection is used
+   * for both directions, only the messages of that connection are
+   * processed.
    */
   @Override
   public final void run() {
+    Socket s;
+
+    if (this.m_connection != null) {
+      this.receiveAll(this.m_connection);
+      this.stop();
+      return;
+    }
+
     while (this.m_running) {
-      // Add by QiQi
-    	try {
-			serverClient = server.accept();
-			dis = new DataInputStream(serverClient.getInputStream());
-			String s = dis.readUTF();
-			
-			if("The enemy has discovered one of our ships".equals(s)){
-				System.out.println("Running enemyShipDiscovered method...");
-				int x = dis.readInt();
-				int y = dis.readInt();
-				this.enemyShipDiscovered(x,y);
-			}else if("Player Has Seen".equals(s)){
-				System.out.println("Running enemyHasSeen method...");
-				int x = dis.readInt();
-				int y = dis.readInt();
-				this.enemyHasSeen(x, y);
-			}else if("We are ready!!!".equals(s)){
-				this.enemyIsReady();
-			}
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-     //End
+      try {
+        s = this.m_server.accept();
+        s.setTcpNoDelay(true);
+        synchronized (this) {
+          // a reconnecting enemy replaces a connection that may be dead
+          // without us having noticed
+          Communicator.closeQuietly(this.m_inbound);
+          this.m_inbound = s;
+        }
+        this.startReceiver(s);
+      } catch (IOException e) {
+        if (this.m_running) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Start a thread processing the messages sent over a connection
+   * 
+   * @param s
+   *          the connection
+   */
+  private final void startReceiver(final Socket s) {
+    this.m_threads.newThread(new Runnable() {
+      @Override
+      public final void run() {
+        final SocketTransport t;
+
+        t = new SocketTransport(s);
+        try {
+          Communicator.this.receiveAll(t);
+        } finally {
+          t.close();
+        }
+      }
+    }).start();
+  }
+
+  /**
+   * Process all messages sent over a transport until it is closed. The
+   * questions of a sender resuming the session are answered over the same
+   * transport.
+   * 
+   * @param t
+   *          the transport
+   */
+  private final void receiveAll(final ICommunicatorTransport t) {
+    GameMessage msg;
+
+    try {
+      for (;;) {
+        msg = t.read();
+        if ((msg.m_type == GameMessage.TYPE_RESUME)
+            || (msg.m_type == GameMessage.TYPE_DIGEST)) {
+          t.write(this.answer(msg));
+          t.flush();
+        } else {
+          this.receive(msg);
+        }
+      }
+    } catch (EOFException e) {
+      // the enemy has closed the connection
+    } catch (IOException e) {
+      // the connection is lost: the enemy will reconnect and resume
+    }
+  }
+
+  /**
+   * Answer the question of a sender resuming the session
+   * 
+   * @param msg
+   *          the question
+   * @return the answer
+   * @throws IOException
+   *           if the question cannot be answered
+   */
+  private final GameMessage answer(final GameMessage msg) throws IOException {
+    final long[] digest, rows;
+    int y;
+
+    if (msg.m_type == GameMessage.TYPE_RESUME) {
+      return new GameMessage(GameMessage.TYPE_ACK, this.m_received, 0);
+    }
+
+    digest = this.digest(false);
+    if (msg.m_data.length != digest.length) {
+      throw new IOException("The enemy board has " + msg.m_data.length //$NON-NLS-1$
+          + " rows, ours has " + digest.length); //$NON-NLS-1$
+    }
+    rows = new long[(digest.length + 63) >>> 6];
+    for (y = digest.length; (--y) >= 0;) {
+      if (digest[y] != msg.m_data[y]) {
+        rows[y >>> 6] |= (1L << y);
+      }
+    }
+    return new GameMessage(GameMessage.TYPE_ROWS,
+        (((msg.m_x != 0) && (!(this.m_model.isEnemyReady()))) ? 1 : 0), 0,
+        rows);
+  }
+
+  /**
+   * Compute a digest of each row of what the receiver knows about the
+   * sender's moves. For the sender, these are the cells it has seen and its
+   * ships the enemy has discovered, for the receiver, the cells the enemy has
+   * seen and the enemy ships it knows.
+   * 
+   * @param sender
+   *          compute the digest from the point of view of the sender?
+   * @return the digests of the rows
+   */
+  private final long[] digest(final boolean sender) {
+    final BattleshipModel model;
+    final long[] digest;
+    int x, y, state, bits;
+    long d;
+
+    model = this.m_model;
+    synchronized (model) {
+      digest = new long[model.getFieldHeight()];
+      for (y = digest.length; (--y) >= 0;) {
+        d = 0L;
+        for (x = model.getFieldWidth(); (--x) >= 0;) {
+          state = model.getCellState(x, y);
+          if (sender) {
+            bits = Communicator.knownBits(state);
+          } else {
+            bits = ((((state & BattleshipModel.CELL_STATE_ENEMY_HAS_SEEN) != 0) ? 1
+                : 0) | (((state & BattleshipModel.CELL_STATE_ENEMY_SHIP) != 0) ? 2
+                : 0));
+          }
+          if (bits != 0) {
+            d ^= Hashing.mix((((long) x) << 2) | bits);
+          }
+        }
+        digest[y] = d;
+      }
+    }
+    return digest;
+  }
+
+  /**
+   * Which of the sender's moves on a cell must the receiver know?
+   * 
+   * @param state
+   *          the state of the cell in the sender's model
+   * @return 1 if the sender has seen the cell, plus 2 if the receiver has
+   *         discovered a ship of the sender there
+   */
+  private static final int knownBits(final int state) {
+    return ((((state & BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN) != 0) ? 1
+        : 0) | ((((state & BattleshipModel.CELL_STATE_ENEMY_HAS_SEEN) != 0) && //
+    ((state & BattleshipModel.CELL_STATE_PLAYER_SHIP) != 0)) ? 2 : 0));
+  }
+
+  /**
+   * Process a message received from the enemy. Numbered messages that have
+   * already been processed are dropped. In the classic mode, the receiver
+   * of a connection the enemy has given up may still be running when the
+   * receiver of the new connection starts, so the messages are processed
+   * one at a time.
+   *
+   * @param msg
+   *          the message
+   */
+  synchronized final void receive(final GameMessage msg) {
+    if (msg.m_seq > 0) {
+      if (msg.m_seq <= this.m_received) {
+        return; // replayed after a reconnect
+      }
+      this.m_received = msg.m_seq;
+    }
+
+    switch (msg.m_type) {
+      case GameMessage.TYPE_PLAYER_SHIP_DISCOVERED: {
+        this.enemyShipDiscovered(msg.m_x, msg.m_y);
+        return;
+      }
+      case GameMessage.TYPE_PLAYER_HAS_SEEN: {
+        this.enemyHasSeen(msg.m_x, msg.m_y);
+        return;
+      }
+      case GameMessage.TYPE_PLAYER_IS_READY: {
+        this.enemyIsReady();
+        return;
+      }
+      case GameMessage.TYPE_REPAIR: {
+        this.applied(this.m_model.tryRepair(msg.m_data, (msg.m_x != 0)));
+        return;
+      }
+      case GameMessage.TYPE_SYNCED: {
+        if (msg.m_x > this.m_received) {
+          this.m_received = msg.m_x;
+        }
+        return;
+      }
+      default: {
+        return; // the hello is handled by the session server
+      }
+    }
+  }
+
+  /**
+   * Put a message into the outbound queue without blocking, as this is
+   * called by the model listener while holding the lock of the model. If
+   * the queue is full, the enemy has stopped reading and the session fails.
+   * This happens in a thread of its own, since {@link #onError(Throwable)}
+   * takes the lock of the communicator and may show a dialog.
+   *
+   * @param msg
+   *          the message
+   */
+  private final void enqueue(final GameMessage msg) {
+    if (this.m_outbound.offer(msg) || this.m_overflowed) {
+      return;
+    }
+    this.m_overflowed = true;
+    this.m_threads.newThread(new Runnable() {
+      @Override
+      public final void run() {
+        Communicator.this.onError(new IOException(//
+            "The enemy does not receive our messages anymore.")); //$NON-NLS-1$
+      }
+    }).start();
+  }
+
+  /**
+   * The sender loop: take all queued messages, number them, write them in
+   * order, and flush once per batch. In the classic mode, a lost connection
+   * is re-established and the session is resumed. When the communicator is
+   * stopped, the messages queued before are still sent.
+   */
+  final void sendLoop() {
+    final ArrayList<GameMessage> batch;
+    ICommunicatorTransport client;
+    GameMessage msg;
+    boolean done;
+    int i, n;
+
+    batch = new ArrayList<>(OUTBOUND_CAPACITY);
+    done = false;
+    try {
+      while (!done) {
+        msg = this.m_outbound.poll(ACK_INTERVAL, TimeUnit.MILLISECONDS);
+        if (msg == null) {
+          this.confirm();
+          continue;
+        }
+        batch.add(msg);
+        this.m_outbound.drainTo(batch);
+
+        n = batch.indexOf(STOP);
+        if (n >= 0) {
+          done = true;
+        } else {
+          n = batch.size();
+        }
+
+        if (n > 0) {
+          for (i = 0; i < n; i++) {
+            this.number(batch.get(i));
+          }
+
+          client = this.m_client;
+          if (client == null) {
+            if (this.m_connection != null) {
+              break; // the shared connection is gone
+            }
+            this.connect(); // sends the batch when resuming
+          } else {
+            try {
+              for (i = 0; i < n; i++) {
+                client.write(batch.get(i));
+              }
+              client.flush();
+            } catch (IOException e) {
+              if (this.m_connection != null) {
+                break; // the shared connection is gone
+              }
+              this.reconnect();
+            }
+          }
+        }
+        batch.clear();
+      }
+    } catch (InterruptedException ie) {
+      // we have been stopped without waiting for the queued messages
+    } catch (IOException e) {
+      // the enemy cannot be reached anymore
+      if (this.m_running) {
+        this.onError(e);
+      }
+    } finally {
+      this.disconnect();
+      if (this.m_connection != null) {
+        this.m_connection.close();
+        this.stop();
+      }
+    }
+  }
+
+  /**
+   * Give a message the next sequence number and keep it for replay
+   * 
+   * @param msg
+   *          the message
+   */
+  private final void number(final GameMessage msg) {
+    final int seq;
+
+    seq = (this.m_nextSeq++);
+    msg.m_seq = seq;
+    this.m_replay[seq & (REPLAY_CAPACITY - 1)] = msg;
+    if (msg.m_type == GameMessage.TYPE_PLAYER_IS_READY) {
+      this.m_readySent = true;
     }
   }
 
+  /**
+   * If the enemy has not acknowledged all messages, ask it again and resume
+   * the session if needed
+   * 
+   * @throws IOException
+   *           if the enemy cannot be reached anymore
+   * @throws InterruptedException
+   *           if we have been interrupted
+   */
+  private final void confirm() throws IOException, InterruptedException {
+    if ((this.m_client != null) && (this.m_connection == null)
+        && (this.m_acked < (this.m_nextSeq - 1))) {
+      try {
+        this.resume();
+      } catch (IOException e) {
+        this.reconnect();
+      }
+    }
+  }
+
+  /** Close the connection to the enemy */
+  private final void disconnect() {
+    if (this.m_client != null) {
+      this.m_client.close();
+      this.m_client = null;
+    }
+  }
+
+  /**
+   * Close the connection to the enemy, connect again, and resume the
+   * session
+   * 
+   * @throws IOException
+   *           if the enemy cannot be reached anymore
+   * @throws InterruptedException
+   *           if we have been interrupted
+   */
+  private final void reconnect() throws IOException, InterruptedException {
+    this.disconnect();
+    this.connect();
+  }
+
+  /**
+   * Connect to the enemy and resume the session, retrying with an
+   * increasing delay
+   * 
+   * @throws IOException
+   *           if the enemy cannot be reached within {@link #RESUME_TIMEOUT}
+   *           or we have been stopped meanwhile
+   * @throws InterruptedException
+   *           if we have been interrupted
+   */
+  private final void connect() throws IOException, InterruptedException {
+    final long end;
+    long delay;
+    Socket s;
+
+    end = (System.currentTimeMillis() + RESUME_TIMEOUT);
+    delay = MIN_BACKOFF;
+    for (;;) {
+      s = null;
+      try {
+        s = new Socket(this.m_enemyHost, this.m_enemyPort);
+        s.setTcpNoDelay(true);
+        s.setSoTimeout(HANDSHAKE_TIMEOUT);
+        this.m_client = new SocketTransport(s);
+        this.resume();
+        return;
+      } catch (IOException e) {
+        Communicator.closeQuietly(s);
+        this.disconnect();
+        if ((!(this.m_running))
+            || ((System.currentTimeMillis() + delay) > end)) {
+          throw e;
+        }
+      }
+      Thread.sleep(delay);
+      delay = Math.min(MAX_BACKOFF, (delay << 1));
+    }
+  }
+
+  /**
+   * Resume the session: ask the enemy which message it has received last,
+   * and replay the messages it has missed or, if they are no longer kept,
+   * repair the rows of the enemy board that differ
+   * 
+   * @throws IOException
+   *           if something goes wrong
+   */
+  private final void resume() throws IOException {
+    final ICommunicatorTransport t;
+    final GameMessage ack;
+    final int last;
+    int seq;
+
+    t = this.m_client;
+    t.write(new GameMessage(GameMessage.TYPE_RESUME, 0, 0));
+    t.flush();
+    ack = Communicator.expect(t, GameMessage.TYPE_ACK);
+    this.m_acked = ack.m_x;
+
+    last = (this.m_nextSeq - 1);
+    if (ack.m_x >= last) {
+      return;
+    }
+
+    if ((ack.m_x + 1) >= Math.max(1, (this.m_nextSeq - REPLAY_CAPACITY))) {
+      for (seq = (ack.m_x + 1); seq <= last; seq++) {
+        t.write(this.m_replay[seq & (REPLAY_CAPACITY - 1)]);
+      }
+    } else {
+      this.repair(t);
+      t.write(new GameMessage(GameMessage.TYPE_SYNCED, last, 0));
+    }
+    t.flush();
+  }
+
+  /**
+   * Send the digest of the enemy's knowledge and then the cells of all rows
+   * the enemy reports as different. The cells are sent in
+   * {@link GameMessage#TYPE_REPAIR repair} messages without sequence
+   * numbers, together with the turn: the enemy applies the moves regardless
+   * of the turn order and ignores those it already knows.
+   * 
+   * @param t
+   *          the transport to the enemy
+   * @throws IOException
+   *           if something goes wrong
+   */
+  private final void repair(final ICommunicatorTransport t)
+      throws IOException {
+    final BattleshipModel model;
+    final GameMessage rows;
+    final long[] cells;
+    final int width, height, last;
+    int x, y, bits, n, i;
+
+    t.write(new GameMessage(GameMessage.TYPE_DIGEST, (this.m_readySent ? 1
+        : 0), 0, this.digest(true)));
+    t.flush();
+    rows = Communicator.expect(t, GameMessage.TYPE_ROWS);
+
+    if (rows.m_x != 0) {
+      t.write(new GameMessage(GameMessage.TYPE_PLAYER_IS_READY, -1, -1));
+    }
+    model = this.m_model;
+    synchronized (model) {
+      width = model.getFieldWidth();
+      height = Math.min(model.getFieldHeight(), (rows.m_data.length << 6));
+      cells = new long[width * height];
+      n = 0;
+      for (y = 0; y < height; y++) {
+        if ((rows.m_data[y >>> 6] & (1L << y)) != 0L) {
+          for (x = 0; x < width; x++) {
+            bits = Communicator.knownBits(model.getCellState(x, y));
+            if (bits != 0) {
+              cells[n++] = ((((long) y) << 32) | (x << 2) | bits);
+            }
+          }
+        }
+      }
+      last = ((model.getLastPlayer() == BattleshipModel.WINNER_PLAYER) ? 1
+          : 0);
+    }
+    for (i = 0; i < n; i += REPAIR_BATCH) {
+      t.write(new GameMessage(GameMessage.TYPE_REPAIR, last, 0, Arrays
+          .copyOfRange(cells, i, Math.min(n, (i + REPAIR_BATCH)))));
+    }
+  }
+
+  /**
+   * Read the answer of the enemy
+   * 
+   * @param t
+   *          the transport carrying the answers
+   * @param type
+   *          the expected message type
+   * @return the answer
+   * @throws IOException
+   *           if something goes wrong or the answer is not of the expected
+   *           type
+   */
+  private static final GameMessage expect(final ICommunicatorTransport t,
+      final int type) throws IOException {
+    final GameMessage msg;
+
+    msg = t.read();
+    if (msg.m_type != type) {
+      throw new IOException("Unexpected answer of type " + msg.m_type); //$NON-NLS-1$
+    }
+    return msg;
+  }
+
   /** <p>
    * The player has clicked an enemy cell and wants to see whats
    * behind it. We need to tell "the other side", i.e., the enemy,
@@ -140,108 +1009,86 @@ public class Communicator implements IBattleshipModelListener, Runnable {
    * If we have revealed a ship, the enemy's game engine will invoke
    * the method "playerShipDiscovered" on his side, which will then
    * send a message back to us.</p>
-   * 
+   *
    * @param x
    *          the x-coordinate of the cell
    * @param y
    *          the y-coordinate of the cell
    */
-  public synchronized void playerHasSeen(final int x, final int y) {
-	  //Add by QiQi
-	  try{
-    	client = new Socket(enemyHost,enemyPort);
-		dos =  new DataOutputStream(client.getOutputStream());
-		dos.writeUTF("Player Has Seen");
-		dos.writeInt(x);
-		dos.writeInt(y);
-		dos.flush();
-    }catch (IOException e) {
-		e.printStackTrace();
-	}
-	  //End
+  public void playerHasSeen(final int x, final int y) {
+    this.enqueue(new GameMessage(GameMessage.TYPE_PLAYER_HAS_SEEN, x, y));
   }
 
   /**
    * The enemy has discovered one of our ships. We should tell him that. The
    * other side will then call the method {@link #enemyShipDiscovered(int, int)}
    * .
-   * 
+   *
    * @param x
    *          the x-coordinate of the cell
    * @param y
    *          the y-coordinate of the cell
    */
-//TODO
-  public synchronized void playerShipDiscovered(final int x, final int y) {
-	  //Add by QiQi
-	 try {
-		client = new Socket(enemyHost,enemyPort);
-		dos =  new DataOutputStream(client.getOutputStream());
-		dos.writeUTF("The enemy has discovered one of our ships");
-		dos.writeInt(x);
-		dos.writeInt(y);
-		dos.flush();
-	 } catch (IOException e) {
-		e.printStackTrace();
-	}
-	 //End
+  public void playerShipDiscovered(final int x, final int y) {
+    this.enqueue(new GameMessage(GameMessage.TYPE_PLAYER_SHIP_DISCOVERED, x,
+        y));
   }
 
   /**
    * The player is ready. We need to tell that to the other side. The other side
    * will then call the method {@link #enemyIsReady()}
    */
-  //TODO
-  public synchronized void playerIsReady() {
-	  //Add by QiQi
-	  try {
-		client = new Socket(enemyHost,enemyPort);
-		dos =  new DataOutputStream(client.getOutputStream());
-		dos.writeUTF("We are ready!!!");
-		dos.flush();
-	} catch (IOException e) {
-		e.printStackTrace();
-	}
-	  //End
+  public void playerIsReady() {
+    this.enqueue(new GameMessage(GameMessage.TYPE_PLAYER_IS_READY, -1, -1));
   }
 
   /**
    * The enemy has seen a cell. The other side must have told us that.
-   * 
+   *
    * @param x
    *          the x-coordinate of the cell
    * @param y
    *          the y-coordinate of the cell
    */
-  public synchronized final void enemyHasSeen(final int x, final int y) {
-    try {
-      this.m_model.enemyHasSeen(x, y);
-    } catch (Throwable t) {
-      this.onError(t);
-    }
+  public final void enemyHasSeen(final int x, final int y) {
+    this.applied(this.m_model.tryEnemyHasSeen(x, y));
   }
 
   /**
    * We have discovered an enemy ship. The other side must have told us that.
-   * 
+   *
    * @param x
    *          the x-coordinate of the cell
    * @param y
    *          the y-coordinate of the cell
    */
-  public synchronized final void enemyShipDiscovered(final int x,
-      final int y) {
-    try {
-      this.m_model.enemyHasShip(x, y);
-    } catch (Throwable t) {
-      this.onError(t);
+  public final void enemyShipDiscovered(final int x, final int y) {
+    this.applied(this.m_model.tryEnemyHasShip(x, y));
+  }
+
+  /**
+   * Check the result of a move of the enemy. Since a move may arrive twice
+   * after a session has been resumed, a move that has already been applied
+   * is no error.
+   * 
+   * @param result
+   *          the result code of the move
+   */
+  private final void applied(final int result) {
+    if ((result != BattleshipModel.MOVE_OK)
+        && (result != BattleshipModel.MOVE_ALREADY_APPLIED)) {
+      try {
+        BattleshipModel.checkMove(result);
+      } catch (Throwable t) {
+        this.onError(t);
+      }
     }
   }
 
   /**
    * The enemy is ready. The other side must have told us that
    */
-  public synchronized final void enemyIsReady() {
+  public final void enemyIsReady() {
     try {
       this.m_model.enemyIsReady();
     } catch (Throwable t) {
@@ -256,24 +1103,35 @@ public class Communicator implements IBattleshipModelListener, Runnable {
   /**
    * An error has been caused. Maybe the game state was inconsistent. We should
    * terminate the game and maybe send an error message to the other side.
-   * 
+   *
    * @param t
    *          the error
    */
   public synchronized final void onError(final Throwable t) {
     this.stop();
-    JOptionPane
-        .showMessageDialog(
-            null,
-            "An error has occured that lead to game termination. The error message is '" //$NON-NLS-1$
-                + t.getMessage() + "'.");//$NON-NLS-1$
+    if (this.m_interactive) {
+      JOptionPane
+          .showMessageDialog(
+              null,
+              "An error has occured that lead to game termination. The error message is '" //$NON-NLS-1$
+                  + t.getMessage() + "'.");//$NON-NLS-1$
+    }
     this.m_model.endGame(BattleshipModel.WINNER_NOBODY);
   }
 
-  /** {@inheritDoc} */
+  /**
+   * Forward the moves of the player to the enemy. The model calls its
+   * listeners while holding its lock, which already serializes the calls
+   * and keeps the messages in the order of the moves. This method is
+   * therefore not synchronized: taking the lock of the communicator under
+   * the lock of the model would deadlock with {@link #stop()}, which takes
+   * them in the opposite order.
+   *
+   * @param event
+   *          the event
+   */
   @Override
-  public synchronized final void battleshipModelChanged(
-      final BattleshipModelEvent event) {
+  public final void battleshipModelChanged(final BattleshipModelEvent event) {
     int whatHasChanged, oldState, change, state, /* winner, */x, y;
     final BattleshipModel model;
 
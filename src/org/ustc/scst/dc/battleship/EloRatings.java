@@ -0,0 +1,125 @@
+package org.ustc.scst.dc.battleship;
+
+/**
+ * Elo ratings computed from a table of game results. The ratings are the
+ * maximum-likelihood estimate of the Bradley-Terry model, scaled to the Elo
+ * scale and centered around {@link #MEAN_RATING}. The confidence intervals
+ * are derived from the Fisher information of that estimate.
+ */
+final class EloRatings {
+
+  /** the mean rating */
+  static final double MEAN_RATING = 1500d;
+
+  /** the weight of a single game in an incremental update */
+  static final double K_FACTOR = 32d;
+
+  /** the number of Elo points per natural-log unit of strength */
+  private static final double ELO_PER_NAT = (400d / Math.log(10d));
+
+  /** the z-value of a 95% confidence interval */
+  private static final double Z_95 = 1.959963984540054d;
+
+  /** the maximum number of iterations of the fitting procedure */
+  private static final int MAX_ITERATIONS = 10000;
+
+  /** the convergence threshold of the fitting procedure */
+  private static final double EPSILON = 1e-10d;
+
+  /** the ratings */
+  final double[] m_ratings;
+
+  /** the half-widths of the 95% confidence intervals of the ratings */
+  final double[] m_confidence;
+
+  /**
+   * Get the expected score of a player against another, as used by an
+   * incremental update: the new rating is the old one plus
+   * {@link #K_FACTOR} times the difference between the actual and the
+   * expected score.
+   * 
+   * @param rating
+   *          the rating of the player
+   * @param other
+   *          the rating of the other player
+   * @return the expected score, between 0 and 1
+   */
+  static final double expectedScore(final double rating, final double other) {
+    return (1d / (1d + Math.exp((other - rating) / ELO_PER_NAT)));
+  }
+
+  /**
+   * Fit the ratings. Each played pairing is given one virtual draw, so that
+   * players without any win or loss still get a finite rating.
+   * 
+   * @param score
+   *          {@code score[i][j]} is the number of points {@code i} has
+   *          scored against {@code j}: one per win, one half per draw
+   * @param games
+   *          {@code games[i][j]} is the number of games between {@code i}
+   *          and {@code j}
+   */
+  EloRatings(final double[][] score, final int[][] games) {
+    super();
+
+    final int n;
+    final double[] gamma, next, wins;
+    int i, j, iteration;
+    double s, d, change, logMean, p, info;
+
+    n = score.length;
+    gamma = new double[n];
+    next = new double[n];
+    wins = new double[n];
+
+    for (i = n; (--i) >= 0;) {
+      gamma[i] = 1d;
+      s = 0d;
+      for (j = n; (--j) >= 0;) {
+        if ((i != j) && (games[i][j] > 0)) {
+          s += (score[i][j] + 0.5d);
+        }
+      }
+      wins[i] = s;
+    }
+
+    for (iteration = MAX_ITERATIONS; (--iteration) >= 0;) {
+      change = 0d;
+      logMean = 0d;
+      for (i = n; (--i) >= 0;) {
+        d = 0d;
+        for (j = n; (--j) >= 0;) {
+          if ((i != j) && (games[i][j] > 0)) {
+            d += ((games[i][j] + 1d) / (gamma[i] + gamma[j]));
+          }
+        }
+        next[i] = ((d > 0d) ? (wins[i] / d) : gamma[i]);
+        logMean += Math.log(next[i]);
+      }
+      logMean = Math.exp(logMean / n);
+      for (i = n; (--i) >= 0;) {
+        s = (next[i] / logMean);
+        change = Math.max(change, Math.abs(s - gamma[i]));
+        gamma[i] = s;
+      }
+      if (change < EPSILON) {
+        break;
+      }
+    }
+
+    this.m_ratings = new double[n];
+    this.m_confidence = new double[n];
+    for (i = n; (--i) >= 0;) {
+      this.m_ratings[i] = (MEAN_RATING + (ELO_PER_NAT * Math.log(gamma[i])));
+      info = 0d;
+      for (j = n; (--j) >= 0;) {
+        if ((i != j) && (games[i][j] > 0)) {
+          p = (gamma[i] / (gamma[i] + gamma[j]));
+          info += ((games[i][j] + 1d) * p * (1d - p));
+        }
+      }
+      this.m_confidence[i] = ((info > 0d) ? ((Z_95 * ELO_PER_NAT) / Math
+          .sqrt(info)) : Double.POSITIVE_INFINITY);
+    }
+  }
+}
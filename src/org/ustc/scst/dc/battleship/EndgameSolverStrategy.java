@@ -0,0 +1,1002 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A strategy that plays the end of a game perfectly. All fleet layouts
+ * consistent with the cells fired at and their results are enumerated on
+ * bit boards. Layouts occupying the same cells cannot be told apart by
+ * firing, so they are merged into one <em>world</em> weighted by the number
+ * of its layouts. If there are at most {@link #getMaxWorlds()} worlds, the
+ * shot minimizing the expected number of shots until all ship cells have
+ * been hit is found by an exhaustive expectimax search: after each shot,
+ * the worlds split into those in which it hits and those in which it
+ * misses, and the worlds in which all ship cells have been hit end. Shots
+ * whose lower bound, the expected number of ship cells not yet hit, cannot
+ * beat the best shot found so far are skipped.
+ * <p>
+ * The expected number of shots and the best shot of each position are
+ * memoized in a {@link MoveEvaluationCache} keyed by the
+ * {@link BattleshipModel#getShotHash() shot hash} the model will have in
+ * that position, so positions are shared between the moves of a game and
+ * between games. If there are too many worlds, or the enumeration or the
+ * search exceeds the time budget of the move, the shot of the fallback
+ * strategy is used instead. The budget covers the whole move, so the
+ * solver stops early enough to leave the fallback strategy its average
+ * time. Since the results of finished sub-searches are kept, a search
+ * interrupted by the budget continues where it stopped at the next move.
+ * As the budget depends on the wall clock, the moves of this strategy are
+ * not reproducible from a seed.
+ * </p>
+ */
+public class EndgameSolverStrategy extends AbstractBattleshipStrategy {
+
+  /** the largest number of worlds that can be solved */
+  public static final int MAX_WORLDS = 64;
+
+  /** the default time budget of a move in nanoseconds */
+  private static final long DEFAULT_BUDGET = 20000000L;
+
+  /** the default capacity of the cache */
+  private static final int DEFAULT_CACHE_CAPACITY = (1 << 16);
+
+  /** the scale of the fixed-point expected number of shots in the cache */
+  private static final double SCALE = 65536d;
+
+  /**
+   * a constant distinguishing the keys of the solver from those of other
+   * strategies sharing the cache
+   */
+  private static final long SALT = 0x2545F4914F6CDD1DL;
+
+  /** the index of the bit of {@link BattleshipModel#CELL_STATE_PLAYER_HAS_SEEN} */
+  private static final int SEEN_BIT = Integer
+      .numberOfTrailingZeros(BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN);
+
+  /** the index of the bit of {@link BattleshipModel#CELL_STATE_ENEMY_SHIP} */
+  private static final int SHIP_BIT = Integer
+      .numberOfTrailingZeros(BattleshipModel.CELL_STATE_ENEMY_SHIP);
+
+  /** the strategy used if the position cannot be solved in time */
+  private final IBattleshipStrategy m_fallback;
+
+  /** the maximum number of worlds */
+  private final int m_maxWorlds;
+
+  /** the time budget of a move in nanoseconds */
+  private final long m_budget;
+
+  /** the cache of solved positions */
+  private final MoveEvaluationCache m_cache;
+
+  /** the number of moves chosen by the solver */
+  private final AtomicLong m_solved;
+
+  /** the number of moves chosen by the fallback strategy */
+  private final AtomicLong m_fallbacks;
+
+  /** the number of moves for which the time budget was exceeded */
+  private final AtomicLong m_timeouts;
+
+  /**
+   * a running average of the time the fallback strategy needs for a move
+   * in nanoseconds, which is reserved from the budget of the solver
+   */
+  private final AtomicLong m_fallbackTime;
+
+  /**
+   * Create the strategy with a {@link ProbabilityDensityStrategy} as
+   * fallback, {@link #MAX_WORLDS} worlds, and a budget of 20ms per move
+   */
+  public EndgameSolverStrategy() {
+    this(new ProbabilityDensityStrategy(), MAX_WORLDS, DEFAULT_BUDGET,
+        new MoveEvaluationCache(DEFAULT_CACHE_CAPACITY));
+  }
+
+  /**
+   * Create the strategy
+   *
+   * @param fallback
+   *          the strategy used if a position cannot be solved in time
+   * @param maxWorlds
+   *          the largest number of distinguishable layouts for which the
+   *          solver takes over, at most {@link #MAX_WORLDS}
+   * @param budget
+   *          the time budget of a move in nanoseconds, including the time
+   *          of the fallback strategy
+   * @param cache
+   *          the cache of solved positions
+   */
+  public EndgameSolverStrategy(final IBattleshipStrategy fallback,
+      final int maxWorlds, final long budget, final MoveEvaluationCache cache) {
+    super();
+    if ((maxWorlds <= 0) || (maxWorlds > MAX_WORLDS)) {
+      throw new IllegalArgumentException(//
+          "The number of worlds must be between 1 and " + MAX_WORLDS + '.'); //$NON-NLS-1$
+    }
+    if ((fallback == null) || (cache == null)) {
+      throw new IllegalArgumentException(//
+          "The fallback strategy and the cache must not be null."); //$NON-NLS-1$
+    }
+    this.m_fallback = fallback;
+    this.m_maxWorlds = maxWorlds;
+    this.m_budget = budget;
+    this.m_cache = cache;
+    this.m_solved = new AtomicLong();
+    this.m_fallbacks = new AtomicLong();
+    this.m_timeouts = new AtomicLong();
+    this.m_fallbackTime = new AtomicLong();
+  }
+
+  /**
+   * Get the largest number of distinguishable layouts for which the solver
+   * takes over
+   *
+   * @return the maximum number of worlds
+   */
+  public final int getMaxWorlds() {
+    return this.m_maxWorlds;
+  }
+
+  /**
+   * Get the cache of solved positions
+   *
+   * @return the cache
+   */
+  public final MoveEvaluationCache getCache() {
+    return this.m_cache;
+  }
+
+  /**
+   * Get the number of moves chosen by the solver
+   *
+   * @return the number of solved moves
+   */
+  public final long getSolvedMoves() {
+    return this.m_solved.get();
+  }
+
+  /**
+   * Get the number of moves chosen by the fallback strategy
+   *
+   * @return the number of fallback moves
+   */
+  public final long getFallbackMoves() {
+    return this.m_fallbacks.get();
+  }
+
+  /**
+   * Get the number of moves for which the time budget was exceeded, which
+   * are included in the {@link #getFallbackMoves() fallback moves}
+   *
+   * @return the number of timeouts
+   */
+  public final long getTimeouts() {
+    return this.m_timeouts.get();
+  }
+
+  /**
+   * Solve the position of a model
+   *
+   * @param model
+   *          the model
+   * @param deadline
+   *          the value of {@link System#nanoTime()} at which to give up
+   * @return the index {@code y*width+x} of the best cell to fire at, or -1
+   *         if the position could not be solved
+   */
+  final int solve(final BattleshipModel model, final long deadline) {
+    final int[] cells, ships;
+    final int width, height;
+    final long key;
+    final long entry;
+    final Search search;
+    int move;
+
+    width = model.getFieldWidth();
+    height = model.getFieldHeight();
+    ships = model.getShipsToPlace();
+    synchronized (model) {
+      cells = AbstractBattleshipStrategy.readCells(model);
+      key = (model.getShotHash() ^ SALT ^ ProbabilityDensityStrategy
+          .fleetKey(width, height, ships));
+    }
+
+    entry = this.m_cache.get(key);
+    if (entry != MoveEvaluationCache.MISS) {
+      move = MoveEvaluationCache.move(entry);
+      if ((move >= 0) && (move < cells.length)
+          && AbstractBattleshipStrategy.isUnseen(cells[move])) {
+        return move;
+      }
+    }
+
+    search = new Search(cells, width, ships, this.m_maxWorlds, deadline,
+        this.m_cache);
+    move = (search.enumerate() ? search.solve(key) : (-1));
+    if (search.m_timedOut) {
+      this.m_timeouts.incrementAndGet();
+    }
+    return move;
+  }
+
+  /**
+   * Choose a shot. The budget covers both the solver and the fallback
+   * strategy: the solver gets what is left after reserving the average
+   * time of the fallback strategy.
+   *
+   * @param model
+   *          the model
+   * @param random
+   *          the random number generator
+   * @return the index {@code y*width+x} of the cell to fire at
+   */
+  @Override
+  public int nextShot(final BattleshipModel model, final Random random) {
+    final long start, deadline, average;
+    long time;
+    int move;
+
+    start = System.nanoTime();
+    deadline = ((start + this.m_budget) - this.m_fallbackTime.get());
+    if (deadline > start) {
+      move = this.solve(model, deadline);
+      if (move >= 0) {
+        this.m_solved.incrementAndGet();
+        return move;
+      }
+    } else {
+      this.m_timeouts.incrementAndGet();
+    }
+
+    this.m_fallbacks.incrementAndGet();
+    time = System.nanoTime();
+    move = this.m_fallback.nextShot(model, random);
+    time = (System.nanoTime() - time);
+    // a lost update only delays the average a little
+    average = this.m_fallbackTime.get();
+    this.m_fallbackTime.set(average + ((time - average) >> 3));
+    return move;
+  }
+
+  /** the state of the solution of one position */
+  private static final class Search {
+
+    /** the number of nodes between two checks of the clock */
+    private static final int CLOCK_MASK = 255;
+
+    /** the number of longs of a bit board */
+    private final int m_words;
+
+    /** the cells hit so far */
+    private final long[] m_hits;
+
+    /** the cells missed so far */
+    private final long[] m_misses;
+
+    /** the number of ships of each length not placed yet */
+    private final int[] m_left;
+
+    /** the number of ship cells of the ships not placed yet */
+    private int m_leftCells;
+
+    /**
+     * the placements of each ship length avoiding the misses, as bit boards
+     * one after the other, indexed by the length
+     */
+    private final long[][] m_placements;
+
+    /** the occupied cells at each depth of the enumeration */
+    private final long[][] m_occupied;
+
+    /** the maximum number of worlds */
+    private final int m_maxWorlds;
+
+    /** the worlds found: their cells as bit boards one after the other */
+    private final long[] m_worldCells;
+
+    /** the number of layouts of each world */
+    private final long[] m_weights;
+
+    /** the hash table of the worlds, holding their indexes plus one */
+    private final int[] m_table;
+
+    /** the number of worlds */
+    private int m_worlds;
+
+    /** the time to give up */
+    private final long m_deadline;
+
+    /** the cache */
+    private final MoveEvaluationCache m_cache;
+
+    /** the number of visited nodes */
+    private int m_nodes;
+
+    /** has the search been aborted? */
+    private boolean m_aborted;
+
+    /** has the search been aborted because of the time budget? */
+    boolean m_timedOut;
+
+    /** the cells which some world has and which have not been hit */
+    private int[] m_cellOf;
+
+    /** the unhit cells of each world, as bits of {@link #m_cellOf} */
+    private long[] m_remaining;
+
+    /** the worlds having each cell of {@link #m_cellOf} */
+    private long[] m_worldsWith;
+
+    /** the keys of firing at each cell of {@link #m_cellOf} */
+    private long[] m_shotKeys;
+
+    /** the keys of finding a ship at each cell of {@link #m_cellOf} */
+    private long[] m_shipKeys;
+
+    /** the best move found at the root */
+    private int m_move;
+
+    /**
+     * Create the search
+     *
+     * @param cells
+     *          the cells
+     * @param width
+     *          the field width
+     * @param ships
+     *          the number of ships of each length
+     * @param maxWorlds
+     *          the maximum number of worlds
+     * @param deadline
+     *          the time to give up
+     * @param cache
+     *          the cache
+     */
+    Search(final int[] cells, final int width, final int[] ships,
+        final int maxWorlds, final long deadline,
+        final MoveEvaluationCache cache) {
+      super();
+      final int height;
+      long[] p;
+      int i, j, n, l, x, y, c, count;
+
+      height = (cells.length / width);
+      this.m_words = ((cells.length + 63) >>> 6);
+      this.m_hits = new long[this.m_words];
+      this.m_misses = new long[this.m_words];
+      for (i = cells.length; (--i) >= 0;) {
+        if (AbstractBattleshipStrategy.isHit(cells[i])) {
+          this.m_hits[i >>> 6] |= (1L << i);
+        } else if (!(AbstractBattleshipStrategy.isUnseen(cells[i]))) {
+          this.m_misses[i >>> 6] |= (1L << i);
+        }
+      }
+
+      n = 0;
+      this.m_left = new int[ships.length + 1];
+      for (i = ships.length; (--i) >= 0;) {
+        j = Math.max(0, ships[i]);
+        this.m_left[i + 1] = j;
+        this.m_leftCells += (j * (i + 1));
+        n += j;
+      }
+
+      this.m_placements = new long[ships.length + 1][];
+      for (l = ships.length; l > 0; l--) {
+        if (ships[l - 1] <= 0) {
+          continue;
+        }
+        p = new long[2 * cells.length * this.m_words];
+        count = 0;
+        for (y = height; (--y) >= 0;) {
+          for (x = width; (--x) >= 0;) {
+            if ((x + l) <= width) {
+              count = this.addPlacement(p, count, ((y * width) + x), 1, l);
+            }
+            if ((l > 1) && ((y + l) <= height)) {
+              count = this.addPlacement(p, count, ((y * width) + x), width,
+                  l);
+            }
+          }
+        }
+        this.m_placements[l] = Arrays.copyOf(p, (count * this.m_words));
+        // building the tables counts against the budget, too
+        if (System.nanoTime() > deadline) {
+          this.m_aborted = this.m_timedOut = true;
+          break;
+        }
+      }
+
+      this.m_occupied = new long[n + 1][this.m_words];
+      this.m_maxWorlds = maxWorlds;
+      this.m_worldCells = new long[maxWorlds * this.m_words];
+      this.m_weights = new long[maxWorlds];
+      c = 16;
+      while (c < (maxWorlds << 2)) {
+        c <<= 1;
+      }
+      this.m_table = new int[c];
+      this.m_deadline = deadline;
+      this.m_cache = cache;
+      this.m_move = (-1);
+    }
+
+    /**
+     * Add a placement unless it covers a miss
+     *
+     * @param p
+     *          the placements
+     * @param count
+     *          the number of placements
+     * @param cell
+     *          the first cell
+     * @param step
+     *          the distance between the cells
+     * @param length
+     *          the ship length
+     * @return the new number of placements
+     */
+    private final int addPlacement(final long[] p, final int count,
+        final int cell, final int step, final int length) {
+      final int base;
+      int i, c;
+
+      base = (count * this.m_words);
+      for (i = length, c = cell; (--i) >= 0; c += step) {
+        if ((this.m_misses[c >>> 6] & (1L << c)) != 0L) {
+          Arrays.fill(p, base, (base + this.m_words), 0L);
+          return count;
+        }
+        p[base + (c >>> 6)] |= (1L << c);
+      }
+      return (count + 1);
+    }
+
+    /**
+     * Check the clock every now and then
+     *
+     * @return true if the search must be aborted
+     */
+    private final boolean tick() {
+      if ((((++this.m_nodes) & CLOCK_MASK) == 0)
+          && (System.nanoTime() > this.m_deadline)) {
+        this.m_aborted = this.m_timedOut = true;
+      }
+      return this.m_aborted;
+    }
+
+    /**
+     * Enumerate the worlds and prepare the search
+     *
+     * @return true if there are at most the maximum number of worlds, at
+     *         most 64 cells not hit yet in any of them, and all has been done
+     *         within the time budget
+     */
+    final boolean enumerate() {
+      final long[] all;
+      final int words;
+      int w, i, k, c, n;
+      long bits;
+
+      this.cover(0);
+      if (this.m_aborted || (this.m_worlds <= 0)) {
+        return false;
+      }
+
+      // the cells not hit yet in any world
+      words = this.m_words;
+      all = new long[words];
+      for (w = this.m_worlds; (--w) >= 0;) {
+        for (i = words; (--i) >= 0;) {
+          all[i] |= (this.m_worldCells[(w * words) + i] & (~this.m_hits[i]));
+        }
+      }
+      n = 0;
+      for (i = words; (--i) >= 0;) {
+        n += Long.bitCount(all[i]);
+      }
+      if (n > 64) {
+        return false;
+      }
+      this.m_cellOf = new int[n];
+      this.m_worldsWith = new long[n];
+      this.m_shotKeys = new long[n];
+      this.m_shipKeys = new long[n];
+      this.m_remaining = new long[this.m_worlds];
+      k = 0;
+      for (i = 0; i < words; i++) {
+        for (bits = all[i]; bits != 0L; bits &= (bits - 1L)) {
+          c = ((i << 6) + Long.numberOfTrailingZeros(bits));
+          this.m_cellOf[k] = c;
+          this.m_shotKeys[k] = Hashing.zobrist(c, SEEN_BIT);
+          this.m_shipKeys[k] = Hashing.zobrist(c, SHIP_BIT);
+          for (w = this.m_worlds; (--w) >= 0;) {
+            if ((this.m_worldCells[(w * words) + i] & (1L << c)) != 0L) {
+              this.m_remaining[w] |= (1L << k);
+              this.m_worldsWith[k] |= (1L << w);
+            }
+          }
+          k++;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Place ships covering the hits: the lowest hit not covered yet is
+     * covered by each ship and placement in turn, so that each layout is
+     * reached in exactly one way. Once all hits are covered, the remaining
+     * ships are {@link #place(int, int, int) placed} on the unknown cells.
+     *
+     * @param depth
+     *          the number of ships placed
+     */
+    private final void cover(final int depth) {
+      final long[] occupied, next, hits;
+      final int words;
+      long[] placements;
+      int i, h, l, p, uncovered;
+      boolean free;
+
+      if (this.tick()) {
+        return;
+      }
+      occupied = this.m_occupied[depth];
+      hits = this.m_hits;
+      words = this.m_words;
+
+      h = (-1);
+      uncovered = 0;
+      for (i = words; (--i) >= 0;) {
+        uncovered += Long.bitCount(hits[i] & (~occupied[i]));
+        if ((hits[i] & (~occupied[i])) != 0L) {
+          h = ((i << 6) + Long.numberOfTrailingZeros(hits[i]
+              & (~occupied[i])));
+        }
+      }
+      if (h < 0) {
+        this.place(depth, (this.m_left.length - 1), 0);
+        return;
+      }
+      // the remaining ships must be able to cover the remaining hits
+      if (uncovered > this.m_leftCells) {
+        return;
+      }
+
+      next = this.m_occupied[depth + 1];
+      for (l = this.m_left.length; (--l) > 0;) {
+        if (this.m_left[l] <= 0) {
+          continue;
+        }
+        placements = this.m_placements[l];
+        for (p = 0; (p * words) < placements.length; p++) {
+          if ((placements[(p * words) + (h >>> 6)] & (1L << h)) == 0L) {
+            continue;
+          }
+          free = true;
+          for (i = words; (--i) >= 0;) {
+            if ((occupied[i] & placements[(p * words) + i]) != 0L) {
+              free = false;
+              break;
+            }
+            next[i] = (occupied[i] | placements[(p * words) + i]);
+          }
+          if (free) {
+            this.m_left[l]--;
+            this.m_leftCells -= l;
+            this.cover(depth + 1);
+            this.m_left[l]++;
+            this.m_leftCells += l;
+            if (this.m_aborted) {
+              return;
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Place the ships not covering any hit, those of each length in the
+     * order of their placements, so that each set of placements is
+     * enumerated once
+     *
+     * @param depth
+     *          the number of ships placed
+     * @param length
+     *          the length of the ship to place
+     * @param from
+     *          the first placement to try
+     */
+    private final void place(final int depth, final int length,
+        final int from) {
+      final long[] occupied, next, placements;
+      final int words;
+      int p, i;
+      boolean free;
+
+      if (this.tick()) {
+        return;
+      }
+      if (length <= 0) {
+        this.addWorld(this.m_occupied[depth]);
+        return;
+      }
+      if (this.m_left[length] <= 0) {
+        this.place(depth, (length - 1), 0);
+        return;
+      }
+
+      occupied = this.m_occupied[depth];
+      next = this.m_occupied[depth + 1];
+      placements = this.m_placements[length];
+      words = this.m_words;
+      for (p = from; (p * words) < placements.length; p++) {
+        free = true;
+        for (i = words; (--i) >= 0;) {
+          if ((occupied[i] & placements[(p * words) + i]) != 0L) {
+            free = false;
+            break;
+          }
+          next[i] = (occupied[i] | placements[(p * words) + i]);
+        }
+        if (free) {
+          this.m_left[length]--;
+          this.place((depth + 1), length, (p + 1));
+          this.m_left[length]++;
+          if (this.m_aborted) {
+            return;
+          }
+        }
+      }
+    }
+
+    /**
+     * Add a layout to its world
+     *
+     * @param cells
+     *          the occupied cells
+     */
+    private final void addWorld(final long[] cells) {
+      final int words, mask;
+      long h;
+      int i, slot, w;
+
+      words = this.m_words;
+      // a world whose cells have all been hit would have ended the game
+      h = 0L;
+      for (i = words; (--i) >= 0;) {
+        h |= (cells[i] & (~this.m_hits[i]));
+      }
+      if (h == 0L) {
+        return;
+      }
+
+      h = 0L;
+      for (i = words; (--i) >= 0;) {
+        h = Hashing.mix(h + cells[i]);
+      }
+      mask = (this.m_table.length - 1);
+      for (slot = (((int) h) & mask);; slot = ((slot + 1) & mask)) {
+        w = (this.m_table[slot] - 1);
+        if (w < 0) {
+          break;
+        }
+        if (this.sameWorld(w, cells)) {
+          this.m_weights[w]++;
+          return;
+        }
+      }
+
+      if (this.m_worlds >= this.m_maxWorlds) {
+        this.m_aborted = true;
+        return;
+      }
+      w = this.m_worlds++;
+      System.arraycopy(cells, 0, this.m_worldCells, (w * words), words);
+      this.m_weights[w] = 1L;
+      this.m_table[slot] = (w + 1);
+    }
+
+    /**
+     * Does a world have the given cells?
+     *
+     * @param w
+     *          the world
+     * @param cells
+     *          the cells
+     * @return true if the world has exactly these cells
+     */
+    private final boolean sameWorld(final int w, final long[] cells) {
+      int i;
+
+      for (i = this.m_words; (--i) >= 0;) {
+        if (this.m_worldCells[(w * this.m_words) + i] != cells[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Get the number of layouts of a set of worlds
+     *
+     * @param worlds
+     *          the worlds
+     * @return the total weight
+     */
+    private final double weight(final long worlds) {
+      long w, s;
+
+      s = 0L;
+      for (w = worlds; w != 0L; w &= (w - 1L)) {
+        s += this.m_weights[Long.numberOfTrailingZeros(w)];
+      }
+      return s;
+    }
+
+    /**
+     * Get the weighted number of cells not fired at yet of a set of
+     * worlds, a lower bound for the weighted number of shots they need
+     *
+     * @param worlds
+     *          the worlds
+     * @param shot
+     *          the cells fired at
+     * @return the bound times the total weight
+     */
+    private final double bound(final long worlds, final long shot) {
+      long w;
+      double s;
+      int i;
+
+      s = 0d;
+      for (w = worlds; w != 0L; w &= (w - 1L)) {
+        i = Long.numberOfTrailingZeros(w);
+        s += (this.m_weights[i] * Long.bitCount(this.m_remaining[i]
+            & (~shot)));
+      }
+      return s;
+    }
+
+    /**
+     * Remove the worlds whose cells have all been fired at
+     *
+     * @param worlds
+     *          the worlds
+     * @param shot
+     *          the cells fired at
+     * @return the worlds still running
+     */
+    private final long running(final long worlds, final long shot) {
+      long w, r;
+      int i;
+
+      r = worlds;
+      for (w = worlds; w != 0L; w &= (w - 1L)) {
+        i = Long.numberOfTrailingZeros(w);
+        if ((this.m_remaining[i] & (~shot)) == 0L) {
+          r &= (~(1L << i));
+        }
+      }
+      return r;
+    }
+
+    /**
+     * Do the worlds have no cell not fired at yet in common?
+     *
+     * @param worlds
+     *          the worlds
+     * @param shot
+     *          the cells fired at
+     * @return true if the cells of the worlds are disjoint
+     */
+    private final boolean isDisjoint(final long worlds, final long shot) {
+      long w, all, r;
+
+      all = 0L;
+      for (w = worlds; w != 0L; w &= (w - 1L)) {
+        r = (this.m_remaining[Long.numberOfTrailingZeros(w)] & (~shot));
+        if ((all & r) != 0L) {
+          return false;
+        }
+        all |= r;
+      }
+      return true;
+    }
+
+    /**
+     * Get the world with the most layouts
+     *
+     * @param worlds
+     *          the worlds
+     * @return the index of the heaviest world
+     */
+    private final int heaviest(final long worlds) {
+      long w;
+      int i, best;
+
+      best = Long.numberOfTrailingZeros(worlds);
+      for (w = worlds; w != 0L; w &= (w - 1L)) {
+        i = Long.numberOfTrailingZeros(w);
+        if (this.m_weights[i] > this.m_weights[best]) {
+          best = i;
+        }
+      }
+      return best;
+    }
+
+    /**
+     * Compute the expected number of shots for worlds without common
+     * cells: a shot tells apart only the world having its cell, so the
+     * best is to fire at one cell of each world, the most likely world
+     * first, until one is hit, and then at the rest of its cells
+     *
+     * @param worlds
+     *          the worlds
+     * @param shot
+     *          the cells fired at
+     * @return the expected number of shots
+     */
+    private final double probe(final long worlds, final long shot) {
+      final long[] weights;
+      long w, t;
+      double s;
+      int n, i, k;
+
+      weights = new long[Long.bitCount(worlds)];
+      s = 0d;
+      n = 0;
+      for (w = worlds; w != 0L; w &= (w - 1L)) {
+        i = Long.numberOfTrailingZeros(w);
+        t = this.m_weights[i];
+        s += (t * (Long.bitCount(this.m_remaining[i] & (~shot)) - 1));
+        for (k = n++; (k > 0) && (weights[k - 1] < t); k--) {
+          weights[k] = weights[k - 1];
+        }
+        weights[k] = t;
+      }
+      for (k = n; (--k) >= 0;) {
+        s += ((k + 1) * ((double) (weights[k])));
+      }
+      return (s / this.weight(worlds));
+    }
+
+    /**
+     * Solve the position
+     *
+     * @param key
+     *          the key of the position
+     * @return the cell to fire at, or -1 if the budget has been exceeded
+     */
+    final int solve(final long key) {
+      final long worlds;
+
+      worlds = ((this.m_worlds >= 64) ? (-1L)
+          : ((1L << this.m_worlds) - 1L));
+      if ((Long.bitCount(worlds) == 1) || this.isDisjoint(worlds, 0L)) {
+        return this.m_cellOf[Long.numberOfTrailingZeros(this.m_remaining[//
+            this.heaviest(worlds)])];
+      }
+      this.expect(worlds, 0L, key, true);
+      return (this.m_aborted ? (-1) : this.m_move);
+    }
+
+    /**
+     * Compute the expected number of shots until all ship cells have been
+     * hit
+     *
+     * @param worlds
+     *          the worlds still possible and running
+     * @param shot
+     *          the cells fired at since the root
+     * @param key
+     *          the key of the position
+     * @param root
+     *          is this the root?
+     * @return the expected number of shots, or {@link Double#NaN} if the
+     *         search has been aborted
+     */
+    private final double expect(final long worlds, final long shot,
+        final long key, final boolean root) {
+      final double total;
+      final int[] order;
+      final double[] bounds;
+      final long[] masks;
+      final long entry;
+      long cand, hit, miss;
+      double best, v, eh, em;
+      int n, i, j, k, bestCell;
+
+      if (worlds == 0L) {
+        return 0d;
+      }
+      if ((worlds & (worlds - 1L)) == 0L) {
+        return Long.bitCount(this.m_remaining[Long
+            .numberOfTrailingZeros(worlds)] & (~shot));
+      }
+      if (this.isDisjoint(worlds, shot)) {
+        return this.probe(worlds, shot);
+      }
+      if (!root) {
+        entry = this.m_cache.get(key);
+        if (entry != MoveEvaluationCache.MISS) {
+          return (MoveEvaluationCache.score(entry) / SCALE);
+        }
+      }
+      if (this.tick()) {
+        return Double.NaN;
+      }
+
+      // the candidate cells, ordered by their lower bounds
+      cand = 0L;
+      for (hit = worlds; hit != 0L; hit &= (hit - 1L)) {
+        cand |= this.m_remaining[Long.numberOfTrailingZeros(hit)];
+      }
+      cand &= (~shot);
+      total = this.weight(worlds);
+      n = Long.bitCount(cand);
+      order = new int[n];
+      bounds = new double[n];
+      masks = new long[n];
+      for (k = 0; cand != 0L; cand &= (cand - 1L)) {
+        j = Long.numberOfTrailingZeros(cand);
+        hit = (worlds & this.m_worldsWith[j]);
+        // cells in the same worlds are interchangeable
+        for (i = k; (--i) >= 0;) {
+          if (masks[i] == hit) {
+            break;
+          }
+        }
+        if (i >= 0) {
+          continue;
+        }
+        masks[k] = hit;
+        miss = (worlds & (~hit));
+        v = (1d + ((this.bound(hit, (shot | (1L << j))) + this.bound(miss,
+            shot)) / total));
+        for (i = k; (i > 0) && (bounds[i - 1] > v); i--) {
+          bounds[i] = bounds[i - 1];
+          order[i] = order[i - 1];
+        }
+        bounds[i] = v;
+        order[i] = j;
+        k++;
+      }
+
+      best = Double.POSITIVE_INFINITY;
+      bestCell = (-1);
+      n = k;
+      for (k = 0; k < n; k++) {
+        if (bounds[k] >= best) {
+          break;
+        }
+        j = order[k];
+        hit = this.running((worlds & this.m_worldsWith[j]),
+            (shot | (1L << j)));
+        miss = (worlds & (~(this.m_worldsWith[j])));
+        eh = this.expect(hit, (shot | (1L << j)),
+            (key ^ this.m_shotKeys[j] ^ this.m_shipKeys[j]), false);
+        em = this.expect(miss, (shot | (1L << j)),
+            (key ^ this.m_shotKeys[j]), false);
+        if (this.m_aborted) {
+          return Double.NaN;
+        }
+        v = (1d + (((this.weight(hit) * eh) + (this.weight(miss) * em)) / total));
+        if (v < best) {
+          best = v;
+          bestCell = j;
+        }
+      }
+
+      this.m_cache.put(key, MoveEvaluationCache.entry(
+          this.m_cellOf[bestCell], ((int) Math.round(best * SCALE))));
+      if (root) {
+        this.m_move = this.m_cellOf[bestCell];
+      }
+      return best;
+    }
+  }
+}
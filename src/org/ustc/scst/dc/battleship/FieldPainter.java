@@ -0,0 +1,166 @@
+package org.ustc.scst.dc.battleship;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+
+/**
+ * Draws one side of a battleship field from an array of cell states. The
+ * painter needs neither a component nor a display, so that the same
+ * drawing is used by the {@link BattleshipView} and for rendering replays
+ * into images. Only the cells within the clip of the graphics are drawn.
+ */
+final class FieldPainter {
+
+  /** the player's color scheme */
+  static final Color[] PLAYER_SCHEME = new Color[] {//
+  new Color(0, 0, 190, 255),//
+      new Color(40, 40, 255, 255),//
+      Color.GREEN, Color.RED };
+
+  /** the enemy's color scheme */
+  static final Color[] ENEMY_SCHEME = new Color[] { PLAYER_SCHEME[0],
+      PLAYER_SCHEME[1], Color.RED, Color.GREEN };
+
+  /** no instances */
+  private FieldPainter() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Compute the range of the cells within the clip of a graphics
+   *
+   * @param g
+   *          the graphics
+   * @param w
+   *          the width of the drawn area
+   * @param h
+   *          the height of the drawn area
+   * @param fieldWidth
+   *          the field width
+   * @param fieldHeight
+   *          the field height
+   * @param range
+   *          receives the first column, the first row, and the column and
+   *          row after the last ones
+   */
+  private static final void range(final Graphics g, final int w, final int h,
+      final int fieldWidth, final int fieldHeight, final int[] range) {
+    final Rectangle clip;
+
+    clip = g.getClipBounds();
+    if (clip == null) {
+      range[0] = range[1] = 0;
+      range[2] = fieldWidth;
+      range[3] = fieldHeight;
+      return;
+    }
+    range[0] = Math.max(0, ((clip.x * fieldWidth) / Math.max(1, w)));
+    range[1] = Math.max(0, ((clip.y * fieldHeight) / Math.max(1, h)));
+    range[2] = Math.min(fieldWidth,
+        ((((clip.x + clip.width) * fieldWidth) / Math.max(1, w)) + 1));
+    range[3] = Math.min(fieldHeight,
+        ((((clip.y + clip.height) * fieldHeight) / Math.max(1, h)) + 1));
+  }
+
+  /**
+   * Copy the states of the cells which
+   * {@link #paint(Graphics, int, int, int, int, int[], boolean)} would draw
+   * from a model, so that the lock of the model is only held while copying
+   * and not while drawing
+   *
+   * @param model
+   *          the model
+   * @param g
+   *          the graphics
+   * @param w
+   *          the width of the drawn area
+   * @param h
+   *          the height of the drawn area
+   * @param cells
+   *          the destination, indexed by {@code y*fieldWidth+x}
+   */
+  static final void copyCells(final BattleshipModel model, final Graphics g,
+      final int w, final int h, final int[] cells) {
+    final int fieldWidth;
+    final int[] range;
+    int x, y;
+
+    fieldWidth = model.getFieldWidth();
+    range = new int[4];
+    FieldPainter.range(g, w, h, fieldWidth, model.getFieldHeight(), range);
+    synchronized (model) {
+      for (y = range[3]; (--y) >= range[1];) {
+        for (x = range[2]; (--x) >= range[0];) {
+          cells[(y * fieldWidth) + x] = model.getCellState(x, y);
+        }
+      }
+    }
+  }
+
+  /**
+   * Draw one side of a field
+   *
+   * @param g
+   *          the graphics
+   * @param w
+   *          the width of the drawn area
+   * @param h
+   *          the height of the drawn area
+   * @param fieldWidth
+   *          the field width
+   * @param fieldHeight
+   *          the field height
+   * @param cells
+   *          the cell states, indexed by {@code y*fieldWidth+x}
+   * @param player
+   *          true to draw the player's side, false for the enemy's side
+   */
+  static final void paint(final Graphics g, final int w, final int h,
+      final int fieldWidth, final int fieldHeight, final int[] cells,
+      final boolean player) {
+    final Color[] colors;
+    final int ship, seen;
+    final int[] range;
+    int y, x, sx, sy, ex, ey, state;
+
+    if (player) {
+      colors = PLAYER_SCHEME;
+      ship = BattleshipModel.CELL_STATE_PLAYER_SHIP;
+      seen = BattleshipModel.CELL_STATE_ENEMY_HAS_SEEN;
+    } else {
+      colors = ENEMY_SCHEME;
+      ship = BattleshipModel.CELL_STATE_ENEMY_SHIP;
+      seen = BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN;
+    }
+
+    range = new int[4];
+    FieldPainter.range(g, w, h, fieldWidth, fieldHeight, range);
+
+    g.setColor(colors[0]);
+    sx = ((range[0] * w) / fieldWidth);
+    sy = ((range[1] * h) / fieldHeight);
+    g.fillRect(sx, sy, (((range[2] * w) / fieldWidth) - sx),
+        (((range[3] * h) / fieldHeight) - sy));
+
+    for (y = range[3]; (--y) >= range[1];) {
+      ey = ((((y + 1) * h) / fieldHeight) - 2);
+      sy = (((y * h) / fieldHeight) + 2);
+
+      for (x = range[2]; (--x) >= range[0];) {
+        ex = ((((x + 1) * w) / fieldWidth) - 2);
+        sx = (((x * w) / fieldWidth) + 2);
+
+        state = cells[(y * fieldWidth) + x];
+        g.setColor(((state & ship) == 0) ? colors[1] : colors[2]);
+        g.fillRect(sx, sy, ex - sx, ey - sy);
+
+        if ((state & seen) != 0) {
+          g.setColor(colors[3]);
+          g.drawLine(sx, sy, ex, ey);
+          g.drawLine(ex, sy, sx, ey);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,567 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.Random;
+
+/**
+ * The model of a free-for-all game of any number of players. Each player
+ * has a field of her own, on which she places her ships, and in each turn
+ * one player fires at a cell of the field of any other player still in the
+ * game. A player whose ships have all been hit is eliminated, and the last
+ * player left wins.
+ * <p>
+ * Each player's field is stored as two bitboards, one with the cells of
+ * her ships and one with the cells at which has been fired, packed into two
+ * arrays of {@code long}s for all players. The memory of the model thus
+ * grows linearly with the number of players, and a shot costs a constant
+ * number of bit operations plus, at worst, a walk along the turn order to
+ * skip eliminated players.
+ * </p>
+ * <p>
+ * The game states and move codes are those of the {@link BattleshipModel}.
+ * The model is not thread-safe on its own: callers share it by
+ * synchronizing on it, like the {@link SessionServer} does with its models.
+ * </p>
+ */
+public final class FreeForAllModel {
+
+  /** no player */
+  public static final int NOBODY = (-1);
+
+  /** the number of players */
+  private final int m_players;
+
+  /** the field width */
+  private final int m_width;
+
+  /** the field height */
+  private final int m_height;
+
+  /** the number of longs of a bitboard */
+  private final int m_words;
+
+  /** the ships of each player, {@link #m_words} longs per player */
+  private final long[] m_ships;
+
+  /** the cells fired at of each player, {@link #m_words} longs per player */
+  private final long[] m_seen;
+
+  /** the number of ship cells not yet hit of each player */
+  private final int[] m_shipCells;
+
+  /**
+   * the number of ships left to place of each player, where the element at
+   * index {@code p*lengths + l - 1} is the number of ships of length
+   * {@code l} of player {@code p}
+   */
+  private final int[] m_shipsToPlace;
+
+  /** the number of ships to place of each player */
+  private final int[] m_shipsToPlaceCount;
+
+  /** the number of ship lengths */
+  private final int m_lengths;
+
+  /** the turn order */
+  private final int[] m_order;
+
+  /** the index of the current player in the turn order */
+  private int m_turn;
+
+  /** the number of players still in the game */
+  private int m_alive;
+
+  /** the game state */
+  private int m_gameState;
+
+  /** the winner */
+  private int m_winner;
+
+  /**
+   * Create a free-for-all game. The turn order is the order of the player
+   * indices until it is changed via {@link #setTurnOrder(int[])}.
+   *
+   * @param players
+   *          the number of players
+   * @param width
+   *          the field width
+   * @param height
+   *          the field height
+   * @param shipsToPlace
+   *          the number of ships to place by each player, where the element
+   *          at index {@code i} is the number of ships of length {@code i+1}
+   */
+  public FreeForAllModel(final int players, final int width,
+      final int height, final int[] shipsToPlace) {
+    super();
+    int p, i, count, cells;
+
+    if (players < 2) {
+      throw new IllegalArgumentException(//
+          "At least two players are needed."); //$NON-NLS-1$
+    }
+    if ((width <= 0) || (height <= 0)) {
+      throw new IllegalArgumentException(//
+          "The field dimensions must be positive."); //$NON-NLS-1$
+    }
+    if ((shipsToPlace == null) || (shipsToPlace.length <= 0)) {
+      throw new IllegalArgumentException(//
+          "At least one ship length must be given."); //$NON-NLS-1$
+    }
+
+    this.m_players = players;
+    this.m_width = width;
+    this.m_height = height;
+    this.m_words = (((width * height) + 63) >>> 6);
+    this.m_ships = new long[players * this.m_words];
+    this.m_seen = new long[players * this.m_words];
+    this.m_shipCells = new int[players];
+    this.m_lengths = shipsToPlace.length;
+    this.m_shipsToPlace = new int[players * this.m_lengths];
+    this.m_shipsToPlaceCount = new int[players];
+    this.m_order = new int[players];
+
+    count = cells = 0;
+    for (i = this.m_lengths; (--i) >= 0;) {
+      count += Math.max(0, shipsToPlace[i]);
+      cells += ((i + 1) * Math.max(0, shipsToPlace[i]));
+    }
+    for (p = players; (--p) >= 0;) {
+      for (i = this.m_lengths; (--i) >= 0;) {
+        this.m_shipsToPlace[(p * this.m_lengths) + i] = Math.max(0,
+            shipsToPlace[i]);
+      }
+      this.m_shipsToPlaceCount[p] = count;
+      this.m_shipCells[p] = cells;
+      this.m_order[p] = p;
+    }
+
+    this.m_alive = players;
+    this.m_winner = NOBODY;
+    this.m_gameState = BattleshipModel.GAME_STATE_INITIALIZED;
+  }
+
+  /**
+   * Get the number of players
+   *
+   * @return the number of players
+   */
+  public final int getPlayers() {
+    return this.m_players;
+  }
+
+  /**
+   * @return the field width
+   */
+  public final int getFieldWidth() {
+    return this.m_width;
+  }
+
+  /**
+   * @return the field height
+   */
+  public final int getFieldHeight() {
+    return this.m_height;
+  }
+
+  /**
+   * Obtain the game state
+   *
+   * @return the game state
+   */
+  public final int getGameState() {
+    return this.m_gameState;
+  }
+
+  /**
+   * Get the winner
+   *
+   * @return the winner, or {@link #NOBODY} if the game has not ended
+   */
+  public final int whoWon() {
+    return this.m_winner;
+  }
+
+  /**
+   * Get the player whose turn it is
+   *
+   * @return the current player, or {@link #NOBODY} if the game is not being
+   *         played
+   */
+  public final int getCurrentPlayer() {
+    return ((this.m_gameState == BattleshipModel.GAME_STATE_PLAYING) ? this.m_order[this.m_turn]
+        : NOBODY);
+  }
+
+  /**
+   * Get the number of players still in the game
+   *
+   * @return the number of players still in the game
+   */
+  public final int getAlivePlayers() {
+    return this.m_alive;
+  }
+
+  /**
+   * Is a player still in the game?
+   *
+   * @param player
+   *          the player
+   * @return true if the player has ship cells left
+   */
+  public final boolean isAlive(final int player) {
+    return (this.m_shipCells[player] > 0);
+  }
+
+  /**
+   * Get the number of ship cells of a player not hit yet
+   *
+   * @param player
+   *          the player
+   * @return the number of ship cells left
+   */
+  public final int getShipCells(final int player) {
+    return this.m_shipCells[player];
+  }
+
+  /**
+   * Get the turn order
+   *
+   * @return a copy of the turn order
+   */
+  public final int[] getTurnOrder() {
+    return this.m_order.clone();
+  }
+
+  /**
+   * Set the turn order, which is only possible before the game is played
+   *
+   * @param order
+   *          a permutation of the player indices
+   * @throws IllegalStateException
+   *           if the game is already being played
+   */
+  public final void setTurnOrder(final int[] order)
+      throws IllegalStateException {
+    long[] used;
+    int i;
+
+    if (this.m_gameState != BattleshipModel.GAME_STATE_INITIALIZED) {
+      throw new IllegalStateException(//
+          "The turn order can only be set during initialization."); //$NON-NLS-1$
+    }
+    if ((order == null) || (order.length != this.m_players)) {
+      throw new IllegalArgumentException(//
+          "The turn order must contain each player once."); //$NON-NLS-1$
+    }
+    used = new long[(this.m_players + 63) >>> 6];
+    for (i = order.length; (--i) >= 0;) {
+      if ((order[i] < 0) || (order[i] >= this.m_players)
+          || ((used[order[i] >>> 6] & (1L << order[i])) != 0L)) {
+        throw new IllegalArgumentException(//
+            "The turn order must contain each player once."); //$NON-NLS-1$
+      }
+      used[order[i] >>> 6] |= (1L << order[i]);
+    }
+    System.arraycopy(order, 0, this.m_order, 0, order.length);
+  }
+
+  /**
+   * Get the index of a cell of a player in the bitboards
+   *
+   * @param player
+   *          the player
+   * @param x
+   *          the x-coordinate
+   * @param y
+   *          the y-coordinate
+   * @return the bit index
+   */
+  private final int bit(final int player, final int x, final int y) {
+    return ((player * this.m_words) << 6) + (y * this.m_width) + x;
+  }
+
+  /**
+   * Is there a ship of a player in a cell?
+   *
+   * @param player
+   *          the player
+   * @param x
+   *          the x-coordinate
+   * @param y
+   *          the y-coordinate
+   * @return true if there is a ship
+   */
+  public final boolean isShip(final int player, final int x, final int y) {
+    final int b;
+
+    b = this.bit(player, x, y);
+    return ((this.m_ships[b >>> 6] & (1L << b)) != 0L);
+  }
+
+  /**
+   * Has a cell of a player been fired at?
+   *
+   * @param player
+   *          the player
+   * @param x
+   *          the x-coordinate
+   * @param y
+   *          the y-coordinate
+   * @return true if the cell has been fired at
+   */
+  public final boolean isSeen(final int player, final int x, final int y) {
+    final int b;
+
+    b = this.bit(player, x, y);
+    return ((this.m_seen[b >>> 6] & (1L << b)) != 0L);
+  }
+
+  /**
+   * Get the length of the next ship a player has to place
+   *
+   * @param player
+   *          the player
+   * @return the length of the next ship to place, or -1 if all ships have
+   *         been placed
+   */
+  public final int getNextShipLengthToPlace(final int player) {
+    int i;
+
+    if (this.m_gameState == BattleshipModel.GAME_STATE_INITIALIZED) {
+      for (i = this.m_lengths; (--i) >= 0;) {
+        if (this.m_shipsToPlace[(player * this.m_lengths) + i] > 0) {
+          return (i + 1);
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Place a ship of a player. The game starts when the last ship of the last
+   * player has been placed.
+   *
+   * @param player
+   *          the player
+   * @param length
+   *          the length of the ship
+   * @param x
+   *          the x-coordinate of the upper left cell
+   * @param y
+   *          the y-coordinate of the upper left cell
+   * @param hor
+   *          true if the ship is horizontal
+   * @throws IllegalStateException
+   *           if the ship cannot be placed there
+   */
+  public final void placeShip(final int player, final int length,
+      final int x, final int y, final boolean hor)
+      throws IllegalStateException {
+    final int shipWidth, shipHeight, slot;
+    int i, j, b;
+
+    if (this.m_gameState != BattleshipModel.GAME_STATE_INITIALIZED) {
+      throw new IllegalStateException(//
+          "Ships can only be placed during initialization."); //$NON-NLS-1$
+    }
+    if ((player < 0) || (player >= this.m_players)) {
+      throw new IllegalStateException(//
+          "Player " + player + " does not exist."); //$NON-NLS-1$//$NON-NLS-2$
+    }
+    slot = ((player * this.m_lengths) + length - 1);
+    if ((length <= 0) || (length > this.m_lengths)
+        || (this.m_shipsToPlace[slot] <= 0)) {
+      throw new IllegalStateException(//
+          "No ship of length " + length + //$NON-NLS-1$
+              " can be placed now."); //$NON-NLS-1$
+    }
+
+    shipWidth = (hor ? length : 1);
+    shipHeight = (hor ? 1 : length);
+    if ((y < 0) || ((y + shipHeight) > this.m_height)) {
+      throw new IllegalStateException(//
+          "The ship exceeds the vertical size of the field."); //$NON-NLS-1$
+    }
+    if ((x < 0) || ((x + shipWidth) > this.m_width)) {
+      throw new IllegalStateException(//
+          "The ship exceeds the horizontal size of the field."); //$NON-NLS-1$
+    }
+
+    for (i = (y + shipHeight); (--i) >= y;) {
+      for (j = (x + shipWidth); (--j) >= x;) {
+        if (this.isShip(player, j, i)) {
+          throw new IllegalStateException(//
+              "The ship intersects with another ship of the player."); //$NON-NLS-1$
+        }
+      }
+    }
+
+    for (i = (y + shipHeight); (--i) >= y;) {
+      for (j = (x + shipWidth); (--j) >= x;) {
+        b = this.bit(player, j, i);
+        this.m_ships[b >>> 6] |= (1L << b);
+      }
+    }
+    this.m_shipsToPlace[slot]--;
+    if ((--this.m_shipsToPlaceCount[player]) <= 0) {
+      this.startIfReady();
+    }
+  }
+
+  /**
+   * Place the remaining ships of a player at random
+   *
+   * @param player
+   *          the player
+   * @param random
+   *          the random number generator
+   */
+  public final void placeShipsRandomly(final int player, final Random random) {
+    int length, x, y;
+    boolean hor;
+
+    while ((length = this.getNextShipLengthToPlace(player)) > 0) {
+      hor = random.nextBoolean();
+      x = random.nextInt(hor ? Math.max(1, (this.m_width - length + 1))
+          : this.m_width);
+      y = random.nextInt(hor ? this.m_height : Math.max(1,
+          (this.m_height - length + 1)));
+      try {
+        this.placeShip(player, length, x, y, hor);
+      } catch (IllegalStateException ise) {
+        // intersects with another ship, try again
+      }
+    }
+  }
+
+  /** Start the game if all players still in the game have placed their ships */
+  private final void startIfReady() {
+    int p;
+
+    for (p = this.m_players; (--p) >= 0;) {
+      if ((this.m_shipsToPlaceCount[p] > 0) && (this.m_shipCells[p] > 0)) {
+        return;
+      }
+    }
+    this.m_gameState = BattleshipModel.GAME_STATE_PLAYING;
+    this.m_turn = 0;
+    if (!(this.isAlive(this.m_order[0]))) {
+      this.nextTurn();
+    }
+    this.checkEnd();
+  }
+
+  /** Pass the turn to the next player still in the game */
+  private final void nextTurn() {
+    int t;
+
+    t = this.m_turn;
+    do {
+      t = ((t + 1) % this.m_players);
+    } while ((!(this.isAlive(this.m_order[t]))) && (t != this.m_turn));
+    this.m_turn = t;
+  }
+
+  /** End the game if at most one player is left */
+  private final void checkEnd() {
+    int p;
+
+    if (this.m_alive > 1) {
+      return;
+    }
+    this.m_gameState = BattleshipModel.GAME_STATE_END;
+    for (p = this.m_players; (--p) >= 0;) {
+      if (this.isAlive(p)) {
+        this.m_winner = p;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Let a player fire at a cell of another player. If the move is applied,
+   * the turn passes to the next player still in the game.
+   *
+   * @param shooter
+   *          the player firing
+   * @param target
+   *          the player fired at
+   * @param x
+   *          the x-coordinate of the cell
+   * @param y
+   *          the y-coordinate of the cell
+   * @return {@link BattleshipModel#MOVE_OK} if the shot has been applied,
+   *         {@link BattleshipModel#MOVE_NOT_PLAYING} if the game is not
+   *         being played, {@link BattleshipModel#MOVE_PLAYER_MUST_WAIT} if it
+   *         is not the shooter's turn, {@link BattleshipModel#MOVE_EMPTY} if
+   *         the target is the shooter or has been eliminated,
+   *         {@link BattleshipModel#MOVE_X_OUT_OF_BOUNDS} or
+   *         {@link BattleshipModel#MOVE_Y_OUT_OF_BOUNDS} if the cell does not
+   *         exist, and {@link BattleshipModel#MOVE_ALREADY_APPLIED} if the
+   *         cell has already been fired at
+   */
+  public final int tryFire(final int shooter, final int target,
+      final int x, final int y) {
+    final int b;
+    final long m;
+
+    if (this.m_gameState != BattleshipModel.GAME_STATE_PLAYING) {
+      return BattleshipModel.MOVE_NOT_PLAYING;
+    }
+    if (shooter != this.m_order[this.m_turn]) {
+      return BattleshipModel.MOVE_PLAYER_MUST_WAIT;
+    }
+    if ((target < 0) || (target >= this.m_players) || (target == shooter)
+        || (!(this.isAlive(target)))) {
+      return BattleshipModel.MOVE_EMPTY;
+    }
+    if ((x < 0) || (x >= this.m_width)) {
+      return BattleshipModel.MOVE_X_OUT_OF_BOUNDS;
+    }
+    if ((y < 0) || (y >= this.m_height)) {
+      return BattleshipModel.MOVE_Y_OUT_OF_BOUNDS;
+    }
+
+    b = this.bit(target, x, y);
+    m = (1L << b);
+    if ((this.m_seen[b >>> 6] & m) != 0L) {
+      return BattleshipModel.MOVE_ALREADY_APPLIED;
+    }
+    this.m_seen[b >>> 6] |= m;
+
+    if ((this.m_ships[b >>> 6] & m) != 0L) {
+      if ((--this.m_shipCells[target]) <= 0) {
+        this.m_alive--;
+        this.checkEnd();
+      }
+    }
+    if (this.m_gameState == BattleshipModel.GAME_STATE_PLAYING) {
+      this.nextTurn();
+    }
+    return BattleshipModel.MOVE_OK;
+  }
+
+  /**
+   * Remove a player from the game, e.g., because she has left
+   *
+   * @param player
+   *          the player
+   */
+  public final void resign(final int player) {
+    if ((this.m_gameState == BattleshipModel.GAME_STATE_END)
+        || (!(this.isAlive(player)))) {
+      return;
+    }
+    this.m_shipCells[player] = 0;
+    this.m_alive--;
+    if (this.m_gameState == BattleshipModel.GAME_STATE_INITIALIZED) {
+      this.startIfReady();
+      return;
+    }
+    this.checkEnd();
+    if ((this.m_gameState == BattleshipModel.GAME_STATE_PLAYING)
+        && (this.m_order[this.m_turn] == player)) {
+      this.nextTurn();
+    }
+  }
+}
@@ -0,0 +1,713 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A relay hosting free-for-all matches of any number of players. Each
+ * client connects, joins a match by its id with a
+ * {@link GameMessage#TYPE_FFA_JOIN join} message carrying the placements of
+ * its ships, and then fires at the other players with
+ * {@link GameMessage#TYPE_FFA_SHOT shot} messages. The relay checks each
+ * shot against the {@link FreeForAllModel} of the match and sends its result
+ * to all players of the match, so that the traffic per shot grows linearly
+ * with the number of players.
+ * <p>
+ * Connections are handled in the same blocking style as in the
+ * {@link SessionServer}, with one (possibly virtual) thread reading each
+ * connection. The matches live in a concurrent map and are locked
+ * independently, so that thousands of them can be played at once.
+ * </p>
+ * <p>
+ * The messages to a player are not written under the lock of the match.
+ * Instead, each player has a bounded queue drained by a writer thread of
+ * its own, as in the {@link Communicator}, so that a player who does not
+ * read cannot stall the others. A player who falls so far behind that the
+ * queue is full is disconnected.
+ * </p>
+ */
+public final class FreeForAllRelay implements Runnable {
+
+  /** the result of a shot: missed */
+  static final int RESULT_MISS = 0;
+
+  /** the result of a shot: a ship has been hit */
+  static final int RESULT_HIT = (RESULT_MISS + 1);
+
+  /** the result of a shot: the last ship cell of the target has been hit */
+  static final int RESULT_ELIMINATED = (RESULT_HIT + 1);
+
+  /** the largest number of players of a match */
+  static final int MAX_PLAYERS = 64;
+
+  /** the maximum number of messages waiting to be sent to a player */
+  private static final int OUTBOUND_CAPACITY = 1024;
+
+  /**
+   * the time in milliseconds to wait for the last messages to a player to
+   * be written when the connection ends
+   */
+  private static final long WRITE_TIMEOUT = 5000L;
+
+  /** the marker telling a writer thread to stop after the last message */
+  private static final GameMessage STOP = new GameMessage(-1, -1, -1);
+
+  /** the server socket */
+  private final ServerSocket m_server;
+
+  /** the factory for the connection threads */
+  private final ThreadFactory m_threads;
+
+  /** the matches by id */
+  private final ConcurrentHashMap<Long, Match> m_matches;
+
+  /** the number of accepted connections */
+  private final AtomicLong m_accepted;
+
+  /** the number of finished matches */
+  private final AtomicLong m_finished;
+
+  /** the number of relayed messages */
+  private final AtomicLong m_relayed;
+
+  /** the number of open connections */
+  private final AtomicInteger m_active;
+
+  /** are we running? */
+  private volatile boolean m_running;
+
+  /**
+   * Create the relay
+   *
+   * @param port
+   *          the port to listen on, or 0 for any free port
+   * @param virtualThreads
+   *          should each connection be served by a virtual thread, if they
+   *          are supported?
+   * @throws IOException
+   *           if the port cannot be opened
+   */
+  public FreeForAllRelay(final int port, final boolean virtualThreads)
+      throws IOException {
+    super();
+    this.m_server = new ServerSocket(port, 4096);
+    this.m_threads = ThreadFactories.session("FreeForAll", virtualThreads); //$NON-NLS-1$
+    this.m_matches = new ConcurrentHashMap<>();
+    this.m_accepted = new AtomicLong();
+    this.m_finished = new AtomicLong();
+    this.m_relayed = new AtomicLong();
+    this.m_active = new AtomicInteger();
+  }
+
+  /**
+   * Encode the placement of a ship for a join message
+   *
+   * @param length
+   *          the length of the ship
+   * @param x
+   *          the x-coordinate of the upper left cell
+   * @param y
+   *          the y-coordinate of the upper left cell
+   * @param hor
+   *          true if the ship is horizontal
+   * @return the encoded placement
+   */
+  static final long placement(final int length, final int x, final int y,
+      final boolean hor) {
+    return ((((long) length) << 33) | (hor ? (1L << 32) : 0L)
+        | ((y & 0xFFFFL) << 16) | (x & 0xFFFFL));
+  }
+
+  /**
+   * Apply encoded placements to a model
+   *
+   * @param model
+   *          the model
+   * @param player
+   *          the player whose ships are placed
+   * @param placements
+   *          the encoded placements
+   * @throws IllegalStateException
+   *           if a ship cannot be placed
+   */
+  static final void place(final FreeForAllModel model, final int player,
+      final long[] placements) throws IllegalStateException {
+    for (long p : placements) {
+      model.placeShip(player, (int) (p >>> 33), (int) (p & 0xFFFFL),
+          (int) ((p >>> 16) & 0xFFFFL), ((p & (1L << 32)) != 0L));
+    }
+  }
+
+  /**
+   * Get the port the relay listens on
+   *
+   * @return the port
+   */
+  public final int getPort() {
+    return this.m_server.getLocalPort();
+  }
+
+  /**
+   * Get the number of connections accepted so far
+   *
+   * @return the number of accepted connections
+   */
+  public final long getAcceptedConnections() {
+    return this.m_accepted.get();
+  }
+
+  /**
+   * Get the number of open connections
+   *
+   * @return the number of open connections
+   */
+  public final int getActiveConnections() {
+    return this.m_active.get();
+  }
+
+  /**
+   * Get the number of matches waiting for players or being played
+   *
+   * @return the number of open matches
+   */
+  public final int getOpenMatches() {
+    return this.m_matches.size();
+  }
+
+  /**
+   * Get the number of finished matches
+   *
+   * @return the number of finished matches
+   */
+  public final long getFinishedMatches() {
+    return this.m_finished.get();
+  }
+
+  /**
+   * Get the number of messages sent to the players
+   *
+   * @return the number of relayed messages
+   */
+  public final long getRelayedMessages() {
+    return this.m_relayed.get();
+  }
+
+  /** Start accepting connections in a new thread */
+  public synchronized final void start() {
+    final Thread t;
+
+    if (!(this.m_running)) {
+      this.m_running = true;
+      t = new Thread(this, "FreeForAllRelay-Acceptor"); //$NON-NLS-1$
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  /** Stop accepting connections */
+  public synchronized final void stop() {
+    this.m_running = false;
+    try {
+      this.m_server.close();
+    } catch (IOException e) {//
+    }
+  }
+
+  /** The accept loop */
+  @Override
+  public final void run() {
+    Socket s;
+
+    this.m_running = true;
+    while (this.m_running) {
+      try {
+        s = this.m_server.accept();
+        s.setTcpNoDelay(true);
+        this.m_accepted.incrementAndGet();
+        this.m_threads.newThread(new Connection(s)).start();
+      } catch (IOException e) {
+        if (this.m_running) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Run a relay
+   *
+   * @param args
+   *          the port and, optionally, {@code platform} to use platform
+   *          threads instead of virtual threads
+   * @throws IOException
+   *           if the relay cannot be started
+   */
+  public static final void main(final String[] args) throws IOException {
+    final FreeForAllRelay relay;
+
+    relay = new FreeForAllRelay(((args.length > 0) ? Integer
+        .parseInt(args[0]) : 45002), !((args.length > 1) && "platform" //$NON-NLS-1$
+        .equalsIgnoreCase(args[1])));
+    System.out.println("Free-for-all relay listening on port " //$NON-NLS-1$
+        + relay.getPort() + ", virtual threads: " //$NON-NLS-1$
+        + ThreadFactories.isVirtualSupported());
+    relay.run();
+  }
+
+  /** a player's connection */
+  private static final class Seat implements Runnable {
+
+    /** the connection */
+    final Socket m_socket;
+
+    /** the output stream, only accessed by the writer thread */
+    private final DataOutputStream m_dos;
+
+    /** the messages waiting to be sent */
+    private final ArrayBlockingQueue<GameMessage> m_outbound;
+
+    /** the writer thread */
+    private final Thread m_writer;
+
+    /** the index of the player */
+    int m_index;
+
+    /**
+     * Create the seat and start its writer thread
+     *
+     * @param socket
+     *          the connection
+     * @param threads
+     *          the factory for the writer thread
+     * @throws IOException
+     *           if the output stream cannot be opened
+     */
+    Seat(final Socket socket, final ThreadFactory threads) throws IOException {
+      super();
+      this.m_socket = socket;
+      this.m_dos = new DataOutputStream(new BufferedOutputStream(
+          socket.getOutputStream()));
+      this.m_outbound = new ArrayBlockingQueue<>(OUTBOUND_CAPACITY);
+      this.m_writer = threads.newThread(this);
+      this.m_writer.start();
+    }
+
+    /**
+     * Queue a message without blocking. If the player has fallen so far
+     * behind that the queue is full, or the connection is broken, the
+     * connection is closed, so that the thread reading it notices that the
+     * player has left.
+     *
+     * @param msg
+     *          the message
+     */
+    final void send(final GameMessage msg) {
+      if (!(this.m_outbound.offer(msg))) {
+        this.abort();
+      }
+    }
+
+    /** Close the connection at once */
+    private final void abort() {
+      try {
+        this.m_socket.close();
+      } catch (IOException e) {//
+      }
+    }
+
+    /**
+     * Write the queued messages and close the connection, waiting at most
+     * {@link FreeForAllRelay#WRITE_TIMEOUT} milliseconds for the player to
+     * take them
+     */
+    final void close() {
+      if (this.m_outbound.offer(STOP)) {
+        try {
+          this.m_writer.join(WRITE_TIMEOUT);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      this.abort();
+    }
+
+    /**
+     * The writer loop: take all queued messages, write them, and flush once
+     * per batch
+     */
+    @Override
+    public final void run() {
+      final ArrayList<GameMessage> batch;
+      GameMessage msg;
+      int i;
+
+      batch = new ArrayList<>();
+      try {
+        for (;;) {
+          batch.add(this.m_outbound.take());
+          this.m_outbound.drainTo(batch);
+          for (i = 0; i < batch.size(); i++) {
+            msg = batch.get(i);
+            if (msg == STOP) {
+              this.m_dos.flush();
+              return;
+            }
+            msg.write(this.m_dos);
+          }
+          this.m_dos.flush();
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        // the relay is going down
+      } catch (IOException e) {
+        // the connection is broken
+      } finally {
+        this.abort();
+      }
+    }
+  }
+
+  /** a match */
+  private final class Match {
+
+    /** the id */
+    final long m_id;
+
+    /** the model */
+    final FreeForAllModel m_model;
+
+    /** the seats, indexed by player */
+    private final Seat[] m_seats;
+
+    /** the number of players who have joined */
+    private int m_joined;
+
+    /**
+     * Create the match
+     *
+     * @param id
+     *          the id
+     * @param players
+     *          the number of players
+     */
+    Match(final long id, final int players) {
+      super();
+      this.m_id = id;
+      this.m_model = new FreeForAllModel(players,
+          BattleshipModel.DEFAULT_FIELD_WIDTH,
+          BattleshipModel.DEFAULT_FIELD_HEIGHT,
+          BattleshipModel.DEFAULT_SHIPS_TO_PLACE);
+      this.m_seats = new Seat[players];
+    }
+
+    /**
+     * Let a player join. When the last player has joined, the turn order is
+     * shuffled and the match starts.
+     *
+     * @param seat
+     *          the seat of the player
+     * @param placements
+     *          the placements of her ships, which must have been checked
+     * @return true if the player has joined, false if the match is full or
+     *         has been abandoned
+     */
+    final boolean join(final Seat seat, final long[] placements) {
+      final FreeForAllModel model;
+      final int[] order;
+      final Random random;
+      final long[] data;
+      int i, j, t;
+
+      model = this.m_model;
+      synchronized (model) {
+        if (this.m_joined >= this.m_seats.length) {
+          return false;
+        }
+        seat.m_index = this.m_joined++;
+        this.m_seats[seat.m_index] = seat;
+        if (this.m_joined < this.m_seats.length) {
+          FreeForAllRelay.place(model, seat.m_index, placements);
+          return true;
+        }
+
+        order = model.getTurnOrder();
+        random = new Random();
+        for (i = order.length; i > 1; i--) {
+          j = random.nextInt(i);
+          t = order[i - 1];
+          order[i - 1] = order[j];
+          order[j] = t;
+        }
+        model.setTurnOrder(order);
+        FreeForAllRelay.place(model, seat.m_index, placements);
+
+        data = new long[order.length];
+        for (i = order.length; (--i) >= 0;) {
+          data[i] = order[i];
+        }
+        for (i = this.m_seats.length; (--i) >= 0;) {
+          this.send(i, new GameMessage(GameMessage.TYPE_FFA_START, i,
+              order.length, data));
+        }
+        this.checkEnd();
+      }
+      return true;
+    }
+
+    /**
+     * Send a message to a player who has not left
+     *
+     * @param player
+     *          the player
+     * @param msg
+     *          the message
+     */
+    private final void send(final int player, final GameMessage msg) {
+      final Seat s;
+
+      s = this.m_seats[player];
+      if (s != null) {
+        s.send(msg);
+        FreeForAllRelay.this.m_relayed.incrementAndGet();
+      }
+    }
+
+    /**
+     * Send a message to all players who have not left
+     *
+     * @param msg
+     *          the message
+     */
+    private final void broadcast(final GameMessage msg) {
+      int i;
+
+      for (i = this.m_seats.length; (--i) >= 0;) {
+        this.send(i, msg);
+      }
+    }
+
+    /** Announce the winner and remove the match, if it has ended */
+    private final void checkEnd() {
+      if (this.m_model.getGameState() == BattleshipModel.GAME_STATE_END) {
+        this.broadcast(new GameMessage(GameMessage.TYPE_FFA_END,
+            this.m_model.whoWon(), -1));
+        if (FreeForAllRelay.this.m_matches.remove(Long.valueOf(this.m_id),
+            this)) {
+          FreeForAllRelay.this.m_finished.incrementAndGet();
+        }
+      }
+    }
+
+    /**
+     * A player fires
+     *
+     * @param seat
+     *          the seat of the player
+     * @param target
+     *          the target
+     * @param x
+     *          the x-coordinate of the cell
+     * @param y
+     *          the y-coordinate of the cell
+     */
+    final void shot(final Seat seat, final int target, final int x,
+        final int y) {
+      final FreeForAllModel model;
+      final int code, result;
+
+      model = this.m_model;
+      synchronized (model) {
+        code = model.tryFire(seat.m_index, target, x, y);
+        if (code != BattleshipModel.MOVE_OK) {
+          this.send(seat.m_index, new GameMessage(GameMessage.TYPE_FFA_SHOT,
+              x, y, new long[] { seat.m_index, target, -code,
+                  model.getCurrentPlayer() }));
+          return;
+        }
+
+        if (!(model.isShip(target, x, y))) {
+          result = RESULT_MISS;
+        } else {
+          result = (model.isAlive(target) ? RESULT_HIT : RESULT_ELIMINATED);
+        }
+        this.broadcast(new GameMessage(GameMessage.TYPE_FFA_SHOT, x, y,
+            new long[] { seat.m_index, target, result,
+                model.getCurrentPlayer() }));
+        this.checkEnd();
+      }
+    }
+
+    /**
+     * A player has left
+     *
+     * @param seat
+     *          the seat of the player
+     */
+    final void leave(final Seat seat) {
+      final FreeForAllModel model;
+
+      model = this.m_model;
+      synchronized (model) {
+        if (this.m_seats[seat.m_index] != seat) {
+          return;
+        }
+        this.m_seats[seat.m_index] = null;
+        if (model.getGameState() == BattleshipModel.GAME_STATE_END) {
+          return;
+        }
+        model.resign(seat.m_index);
+        if (this.m_joined < this.m_seats.length) {
+          if (model.getAlivePlayers() <= (this.m_seats.length - this.m_joined)) {
+            // everybody has left before the match started
+            this.m_joined = this.m_seats.length;
+            FreeForAllRelay.this.m_matches.remove(Long.valueOf(this.m_id),
+                this);
+          }
+        } else {
+          this.broadcast(new GameMessage(GameMessage.TYPE_FFA_LEFT,
+              seat.m_index, model.getCurrentPlayer()));
+          this.checkEnd();
+        }
+      }
+    }
+  }
+
+  /** a connection of a player */
+  private final class Connection implements Runnable {
+
+    /** the connection */
+    private final Socket m_socket;
+
+    /**
+     * Create the connection
+     *
+     * @param socket
+     *          the connection
+     */
+    Connection(final Socket socket) {
+      super();
+      this.m_socket = socket;
+    }
+
+    /**
+     * Find or create the match a player wants to join, and let her join
+     *
+     * @param seat
+     *          the seat of the player
+     * @param msg
+     *          the join message
+     * @return the match, or null if the player could not join
+     */
+    private final Match join(final Seat seat, final GameMessage msg) {
+      final FreeForAllRelay owner;
+      final FreeForAllModel check;
+      final Long id;
+      Match m, n;
+
+      owner = FreeForAllRelay.this;
+      if ((msg.m_y < 2) || (msg.m_y > MAX_PLAYERS)) {
+        return null;
+      }
+
+      // check the placements before taking a seat
+      check = new FreeForAllModel(2, BattleshipModel.DEFAULT_FIELD_WIDTH,
+          BattleshipModel.DEFAULT_FIELD_HEIGHT,
+          BattleshipModel.DEFAULT_SHIPS_TO_PLACE);
+      try {
+        FreeForAllRelay.place(check, 0, msg.m_data);
+      } catch (IllegalStateException ise) {
+        return null;
+      }
+      if (check.getNextShipLengthToPlace(0) > 0) {
+        return null;
+      }
+
+      id = Long.valueOf(msg.m_x);
+      for (;;) {
+        m = owner.m_matches.get(id);
+        if (m == null) {
+          n = new Match(msg.m_x, msg.m_y);
+          m = owner.m_matches.putIfAbsent(id, n);
+          if (m == null) {
+            m = n;
+          }
+        }
+        if (m.m_model.getPlayers() != msg.m_y) {
+          return null;
+        }
+        if (m.join(seat, msg.m_data)) {
+          return m;
+        }
+        if (owner.m_matches.get(id) == m) {
+          return null; // the match is full
+        }
+        // the match has been abandoned: try again
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void run() {
+      final FreeForAllRelay owner;
+      final DataInputStream dis;
+      Seat seat;
+      Match match;
+      GameMessage msg;
+
+      owner = FreeForAllRelay.this;
+      owner.m_active.incrementAndGet();
+      match = null;
+      seat = null;
+      try {
+        dis = new DataInputStream(new BufferedInputStream(
+            this.m_socket.getInputStream()));
+        seat = new Seat(this.m_socket, owner.m_threads);
+        msg = GameMessage.read(dis);
+        if (msg.m_type == GameMessage.TYPE_FFA_JOIN) {
+          match = this.join(seat, msg);
+        }
+        if (match == null) {
+          seat.send(new GameMessage(GameMessage.TYPE_FFA_END, -1, -1));
+          return;
+        }
+
+        for (;;) {
+          msg = GameMessage.read(dis);
+          if ((msg.m_type == GameMessage.TYPE_FFA_SHOT)
+              && (msg.m_data.length > 0)) {
+            match.shot(seat, (int) (msg.m_data[0]), msg.m_x, msg.m_y);
+          }
+        }
+      } catch (EOFException e) {
+        // the player has left
+      } catch (IOException e) {
+        // the connection is broken
+      } finally {
+        if (match != null) {
+          match.leave(seat);
+        }
+        if (seat != null) {
+          seat.close();
+        }
+        try {
+          this.m_socket.close();
+        } catch (IOException e) {//
+        }
+        owner.m_active.decrementAndGet();
+      }
+    }
+  }
+}
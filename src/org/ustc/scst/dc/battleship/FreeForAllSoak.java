@@ -0,0 +1,297 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A soak test for the {@link FreeForAllRelay}: play many free-for-all
+ * matches between random bots at once, and report the rate of the shots and
+ * of the relayed messages.
+ */
+public final class FreeForAllSoak {
+
+  /** no instances */
+  private FreeForAllSoak() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Place the ships of a bot at random
+   *
+   * @param random
+   *          the random number generator
+   * @return the encoded placements
+   */
+  static final long[] randomPlacements(final Random random) {
+    final FreeForAllModel scratch;
+    final ArrayList<Long> list;
+    final long[] placements;
+    final int width, height;
+    int length, x, y, i;
+    boolean hor;
+
+    width = BattleshipModel.DEFAULT_FIELD_WIDTH;
+    height = BattleshipModel.DEFAULT_FIELD_HEIGHT;
+    scratch = new FreeForAllModel(2, width, height,
+        BattleshipModel.DEFAULT_SHIPS_TO_PLACE);
+    list = new ArrayList<>();
+    while ((length = scratch.getNextShipLengthToPlace(0)) > 0) {
+      hor = random.nextBoolean();
+      x = random.nextInt(hor ? Math.max(1, (width - length + 1)) : width);
+      y = random.nextInt(hor ? height : Math.max(1, (height - length + 1)));
+      try {
+        scratch.placeShip(0, length, x, y, hor);
+        list.add(Long.valueOf(FreeForAllRelay.placement(length, x, y, hor)));
+      } catch (IllegalStateException ise) {
+        // intersects with another ship, try again
+      }
+    }
+    placements = new long[list.size()];
+    for (i = placements.length; (--i) >= 0;) {
+      placements[i] = list.get(i).longValue();
+    }
+    return placements;
+  }
+
+  /**
+   * Run the soak test
+   *
+   * @param args
+   *          the number of matches (default: 500), the number of players
+   *          per match (default: 8) and, optionally, {@code platform} to use
+   *          platform threads instead of virtual threads
+   * @throws Exception
+   *           if something goes wrong
+   */
+  public static final void main(final String[] args) throws Exception {
+    final int matches, players;
+    final boolean virtual;
+    final FreeForAllRelay relay;
+    final ThreadFactory threads;
+    final CountDownLatch done;
+    final AtomicLong shots, won;
+    final long start, time;
+    int m, p;
+
+    matches = ((args.length > 0) ? Integer.parseInt(args[0]) : 500);
+    players = ((args.length > 1) ? Integer.parseInt(args[1]) : 8);
+    virtual = !((args.length > 2) && "platform".equalsIgnoreCase(args[2])); //$NON-NLS-1$
+
+    relay = new FreeForAllRelay(0, virtual);
+    relay.start();
+    threads = ThreadFactories.session("Bot", virtual); //$NON-NLS-1$
+    done = new CountDownLatch(matches * players);
+    shots = new AtomicLong();
+    won = new AtomicLong();
+
+    start = System.nanoTime();
+    for (m = 0; m < matches; m++) {
+      for (p = 0; p < players; p++) {
+        threads.newThread(
+            new Bot(relay.getPort(), m, players, shots, won, done)).start();
+      }
+    }
+    done.await();
+    time = Math.max(1L, (System.nanoTime() - start));
+    relay.stop();
+
+    System.out.println("virtual threads:     " //$NON-NLS-1$
+        + (virtual && ThreadFactories.isVirtualSupported()));
+    System.out.println("matches:             " + matches + " x " //$NON-NLS-1$ //$NON-NLS-2$
+        + players + " players"); //$NON-NLS-1$
+    System.out.println("finished:            " //$NON-NLS-1$
+        + relay.getFinishedMatches() + ", winners seen by bots: " + won.get()); //$NON-NLS-1$
+    System.out.println("time:                " + (time / 1000000L) + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
+    System.out.println("shots:               " + shots.get() + " (" //$NON-NLS-1$ //$NON-NLS-2$
+        + ((long) ((shots.get() * 1e9d) / time)) + "/s)"); //$NON-NLS-1$
+    System.out.println("relayed messages:    " //$NON-NLS-1$
+        + relay.getRelayedMessages() + " (" //$NON-NLS-1$
+        + ((long) ((relay.getRelayedMessages() * 1e9d) / time)) + "/s)"); //$NON-NLS-1$
+  }
+
+  /** a bot firing at random cells of random players */
+  private static final class Bot implements Runnable {
+
+    /** the port of the relay */
+    private final int m_port;
+
+    /** the match id */
+    private final long m_match;
+
+    /** the number of players */
+    private final int m_players;
+
+    /** the counter of the shots */
+    private final AtomicLong m_shots;
+
+    /** the counter of the wins */
+    private final AtomicLong m_won;
+
+    /** the latch to count down when done */
+    private final CountDownLatch m_done;
+
+    /**
+     * Create the bot
+     *
+     * @param port
+     *          the port of the relay
+     * @param match
+     *          the match id
+     * @param players
+     *          the number of players
+     * @param shots
+     *          the counter of the shots
+     * @param won
+     *          the counter of the wins
+     * @param done
+     *          the latch to count down when done
+     */
+    Bot(final int port, final long match, final int players,
+        final AtomicLong shots, final AtomicLong won,
+        final CountDownLatch done) {
+      super();
+      this.m_port = port;
+      this.m_match = match;
+      this.m_players = players;
+      this.m_shots = shots;
+      this.m_won = won;
+      this.m_done = done;
+    }
+
+    /**
+     * Fire at a random cell not fired at before of a random player still in
+     * the game
+     *
+     * @param dos
+     *          the output stream
+     * @param me
+     *          the index of this bot
+     * @param seen
+     *          the cells fired at of each player
+     * @param alive
+     *          which players are still in the game
+     * @param random
+     *          the random number generator
+     * @throws IOException
+     *           if the shot cannot be sent
+     */
+    private final void fire(final DataOutputStream dos, final int me,
+        final boolean[][] seen, final boolean[] alive, final Random random)
+        throws IOException {
+      final int width;
+      int target, cell, i;
+
+      width = BattleshipModel.DEFAULT_FIELD_WIDTH;
+      target = random.nextInt(this.m_players);
+      for (i = this.m_players; (--i) >= 0;) {
+        if ((target != me) && alive[target]) {
+          break;
+        }
+        target = ((target + 1) % this.m_players);
+      }
+      cell = random.nextInt(seen[target].length);
+      for (i = seen[target].length; (--i) >= 0;) {
+        if (!(seen[target][cell])) {
+          break;
+        }
+        cell = ((cell + 1) % seen[target].length);
+      }
+      new GameMessage(GameMessage.TYPE_FFA_SHOT, (cell % width),
+          (cell / width), new long[] { target }).write(dos);
+      dos.flush();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void run() {
+      final Random random;
+      final boolean[][] seen;
+      final boolean[] alive;
+      final DataOutputStream dos;
+      final DataInputStream dis;
+      GameMessage msg;
+      int me, i;
+
+      random = new Random();
+      seen = new boolean[this.m_players][BattleshipModel.DEFAULT_FIELD_WIDTH
+          * BattleshipModel.DEFAULT_FIELD_HEIGHT];
+      alive = new boolean[this.m_players];
+      try (Socket s = new Socket(InetAddress.getLoopbackAddress(),
+          this.m_port)) {
+        s.setTcpNoDelay(true);
+        dos = new DataOutputStream(new BufferedOutputStream(
+            s.getOutputStream()));
+        dis = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        new GameMessage(GameMessage.TYPE_FFA_JOIN, (int) (this.m_match),
+            this.m_players, FreeForAllSoak.randomPlacements(random))
+            .write(dos);
+        dos.flush();
+
+        me = -1;
+        for (;;) {
+          msg = GameMessage.read(dis);
+          switch (msg.m_type) {
+            case GameMessage.TYPE_FFA_START: {
+              me = msg.m_x;
+              for (i = alive.length; (--i) >= 0;) {
+                alive[i] = true;
+              }
+              if (msg.m_data[0] == me) {
+                this.fire(dos, me, seen, alive, random);
+              }
+              break;
+            }
+            case GameMessage.TYPE_FFA_SHOT: {
+              if (msg.m_data[2] < 0L) {
+                throw new IllegalStateException("Shot rejected: " //$NON-NLS-1$
+                    + (-msg.m_data[2]));
+              }
+              seen[(int) (msg.m_data[1])][(msg.m_y * BattleshipModel.DEFAULT_FIELD_WIDTH)
+                  + msg.m_x] = true;
+              if (msg.m_data[2] == FreeForAllRelay.RESULT_ELIMINATED) {
+                alive[(int) (msg.m_data[1])] = false;
+              }
+              if (msg.m_data[0] == me) {
+                this.m_shots.incrementAndGet();
+              }
+              if (msg.m_data[3] == me) {
+                this.fire(dos, me, seen, alive, random);
+              }
+              break;
+            }
+            case GameMessage.TYPE_FFA_LEFT: {
+              alive[msg.m_x] = false;
+              if (msg.m_y == me) {
+                this.fire(dos, me, seen, alive, random);
+              }
+              break;
+            }
+            case GameMessage.TYPE_FFA_END: {
+              if ((msg.m_x == me) && (me >= 0)) {
+                this.m_won.incrementAndGet();
+              }
+              return;
+            }
+            default: {
+              break;
+            }
+          }
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        this.m_done.countDown();
+      }
+    }
+  }
+}
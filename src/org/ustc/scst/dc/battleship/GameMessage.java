@@ -0,0 +1,399 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A message exchanged between two communicators. Each message consists of
+ * an opcode string and a sequence number, followed by the coordinates of the
+ * cell it refers to (if any) and a block of data (if any).
+ * <p>
+ * Game messages are numbered by the sender starting at 1, so that the
+ * receiver can drop messages it has already processed when the sender
+ * replays them after a reconnect. Messages with sequence number 0 are not
+ * numbered: they control the resumption of a session or repair the state of
+ * the receiver and are always processed.
+ * </p>
+ * <p>
+ * Besides the stream format, messages have a fixed-layout binary format used
+ * by transports that exchange frames through memory: a header of
+ * {@link #FRAME_HEADER} bytes holding the frame length, the type, the
+ * sequence number, the coordinates and the length of the data, followed by
+ * the data.
+ * </p>
+ */
+final class GameMessage {
+
+  /** the player is ready */
+  static final int TYPE_PLAYER_IS_READY = 0;
+
+  /** the player has seen a cell */
+  static final int TYPE_PLAYER_HAS_SEEN = (TYPE_PLAYER_IS_READY + 1);
+
+  /** the enemy has discovered one of the player's ships */
+  static final int TYPE_PLAYER_SHIP_DISCOVERED = (TYPE_PLAYER_HAS_SEEN + 1);
+
+  /**
+   * a client opens or resumes a session on a session server or relay node:
+   * the x-coordinate holds the game id, the y-coordinate is 0 to open a
+   * session, else one more than the sequence number of the last message
+   * received from the server. The server accepts with a hello whose
+   * y-coordinate holds the sequence number of the last message of the client
+   * it has processed, or answers with a {@link #TYPE_REDIRECT redirect}.
+   */
+  static final int TYPE_HELLO = (TYPE_PLAYER_SHIP_DISCOVERED + 1);
+
+  /**
+   * the sender has (re-)connected and asks the receiver which messages it
+   * has received
+   */
+  static final int TYPE_RESUME = (TYPE_HELLO + 1);
+
+  /**
+   * the answer to {@link #TYPE_RESUME}: the x-coordinate holds the sequence
+   * number of the last message received
+   */
+  static final int TYPE_ACK = (TYPE_RESUME + 1);
+
+  /**
+   * the sender cannot replay the missing messages and sends a digest of
+   * each row of what the receiver should know instead: the x-coordinate is
+   * 1 if the sender is ready
+   */
+  static final int TYPE_DIGEST = (TYPE_ACK + 1);
+
+  /**
+   * the answer to {@link #TYPE_DIGEST}: the data holds a bit mask of the rows
+   * whose digests differ, the x-coordinate is 1 if the ready message is
+   * missing
+   */
+  static final int TYPE_ROWS = (TYPE_DIGEST + 1);
+
+  /**
+   * the receiver has been repaired: the x-coordinate holds the sequence
+   * number of the last message it now knows about
+   */
+  static final int TYPE_SYNCED = (TYPE_ROWS + 1);
+
+  /**
+   * a client joins a free-for-all match on a relay: the x-coordinate holds
+   * the match id, the y-coordinate the number of players, and the data the
+   * placements of the ships (see {@link FreeForAllRelay#placement})
+   */
+  static final int TYPE_FFA_JOIN = (TYPE_SYNCED + 1);
+
+  /**
+   * a free-for-all match starts: the x-coordinate holds the index of the
+   * receiving player, the y-coordinate the number of players, and the data
+   * the turn order
+   */
+  static final int TYPE_FFA_START = (TYPE_FFA_JOIN + 1);
+
+  /**
+   * a shot in a free-for-all match: sent by a client, the data holds the
+   * target; sent by the relay to all players, the data holds the shooter,
+   * the target, the result and the next player
+   */
+  static final int TYPE_FFA_SHOT = (TYPE_FFA_START + 1);
+
+  /**
+   * a player has left a free-for-all match: the x-coordinate holds the
+   * player, the y-coordinate the next player
+   */
+  static final int TYPE_FFA_LEFT = (TYPE_FFA_SHOT + 1);
+
+  /**
+   * a free-for-all match has ended: the x-coordinate holds the winner, or -1
+   * if the match could not be joined
+   */
+  static final int TYPE_FFA_END = (TYPE_FFA_LEFT + 1);
+
+  /**
+   * the game of a hello is owned by another relay node: the x-coordinate
+   * holds its port, the y-coordinate its IPv4 address
+   */
+  static final int TYPE_REDIRECT = (TYPE_FFA_END + 1);
+
+  /**
+   * a relay node joins: the x-coordinate holds its port, the y-coordinate
+   * its IPv4 address; the answer is a {@link #TYPE_NODE_MEMBERS}
+   */
+  static final int TYPE_NODE_JOIN = (TYPE_REDIRECT + 1);
+
+  /**
+   * the relay nodes known to the sender: the data holds the
+   * {@link ShardRing#node(java.net.InetAddress, int) nodes}
+   */
+  static final int TYPE_NODE_MEMBERS = (TYPE_NODE_JOIN + 1);
+
+  /**
+   * a relay node leaves: the x-coordinate holds its port, the y-coordinate
+   * its IPv4 address
+   */
+  static final int TYPE_NODE_LEAVE = (TYPE_NODE_MEMBERS + 1);
+
+  /**
+   * a game moves to another relay node: the x-coordinate holds the game id,
+   * the y-coordinate the sequence number of the last message of the client
+   * processed, and the data the length of the compact form of the model
+   * followed by the compact form; the answer is a {@link #TYPE_ACK} with the
+   * game id, or the connection is closed if the receiver still uses its own
+   * copy of the game
+   */
+  static final int TYPE_MIGRATE = (TYPE_NODE_LEAVE + 1);
+
+  /**
+   * the moves of the sender in the rows the receiver has reported as
+   * different, to be applied regardless of the turn order: the data holds
+   * the cells as for {@link BattleshipModel#tryRepair(long[], boolean)}, the
+   * x-coordinate is 1 if the sender has fired last
+   */
+  static final int TYPE_REPAIR = (TYPE_MIGRATE + 1);
+
+  /** the size of the header of a message in the binary format */
+  static final int FRAME_HEADER = 24;
+
+  /** the opcodes, indexed by message type */
+  private static final String[] OPCODES = new String[] {//
+  "We are ready!!!", //$NON-NLS-1$
+      "Player Has Seen", //$NON-NLS-1$
+      "The enemy has discovered one of our ships", //$NON-NLS-1$
+      "Hello", //$NON-NLS-1$
+      "Resume", //$NON-NLS-1$
+      "Acknowledged", //$NON-NLS-1$
+      "Digest", //$NON-NLS-1$
+      "Rows", //$NON-NLS-1$
+      "Synced", //$NON-NLS-1$
+      "FFA Join", //$NON-NLS-1$
+      "FFA Start", //$NON-NLS-1$
+      "FFA Shot", //$NON-NLS-1$
+      "FFA Left", //$NON-NLS-1$
+      "FFA End", //$NON-NLS-1$
+      "Redirect", //$NON-NLS-1$
+      "Node Join", //$NON-NLS-1$
+      "Node Members", //$NON-NLS-1$
+      "Node Leave", //$NON-NLS-1$
+      "Migrate", //$NON-NLS-1$
+      "Repair" //$NON-NLS-1$
+  };
+
+  /** the message type */
+  final int m_type;
+
+  /** the x-coordinate of the cell */
+  final int m_x;
+
+  /** the y-coordinate of the cell */
+  final int m_y;
+
+  /** the data, or null */
+  final long[] m_data;
+
+  /** the sequence number, or 0 if the message is not numbered */
+  int m_seq;
+
+  /**
+   * Create a new game message
+   *
+   * @param type
+   *          the message type
+   * @param x
+   *          the x-coordinate of the cell
+   * @param y
+   *          the y-coordinate of the cell
+   */
+  GameMessage(final int type, final int x, final int y) {
+    this(type, x, y, null);
+  }
+
+  /**
+   * Create a new game message
+   *
+   * @param type
+   *          the message type
+   * @param x
+   *          the x-coordinate of the cell
+   * @param y
+   *          the y-coordinate of the cell
+   * @param data
+   *          the data, or null
+   */
+  GameMessage(final int type, final int x, final int y, final long[] data) {
+    super();
+    this.m_type = type;
+    this.m_x = x;
+    this.m_y = y;
+    this.m_data = data;
+  }
+
+  /**
+   * Does this message carry cell coordinates?
+   *
+   * @param type
+   *          the message type
+   * @return true if messages of the given type carry coordinates
+   */
+  private static final boolean hasCoordinates(final int type) {
+    return (type != TYPE_PLAYER_IS_READY);
+  }
+
+  /**
+   * Does this message carry data?
+   *
+   * @param type
+   *          the message type
+   * @return true if messages of the given type carry data
+   */
+  private static final boolean hasData(final int type) {
+    return ((type == TYPE_DIGEST) || (type == TYPE_ROWS)
+        || (type == TYPE_FFA_JOIN) || (type == TYPE_FFA_START)
+        || (type == TYPE_FFA_SHOT) || (type == TYPE_NODE_MEMBERS)
+        || (type == TYPE_MIGRATE) || (type == TYPE_REPAIR));
+  }
+
+  /**
+   * Write this message to a stream. The stream is not flushed.
+   *
+   * @param dos
+   *          the output stream
+   * @throws IOException
+   *           if something goes wrong
+   */
+  final void write(final DataOutputStream dos) throws IOException {
+    int i;
+
+    dos.writeUTF(OPCODES[this.m_type]);
+    dos.writeInt(this.m_seq);
+    if (hasCoordinates(this.m_type)) {
+      dos.writeInt(this.m_x);
+      dos.writeInt(this.m_y);
+    }
+    if (hasData(this.m_type)) {
+      dos.writeInt(this.m_data.length);
+      for (i = 0; i < this.m_data.length; i++) {
+        dos.writeLong(this.m_data[i]);
+      }
+    }
+  }
+
+  /**
+   * Get the size of this message in the binary format
+   *
+   * @return the size in bytes, a multiple of 8
+   */
+  final int frameSize() {
+    return (FRAME_HEADER + ((this.m_data != null) ? (this.m_data.length << 3)
+        : 0));
+  }
+
+  /**
+   * Write this message in the binary format into a buffer
+   *
+   * @param buf
+   *          the buffer
+   * @param offset
+   *          the offset of the frame in the buffer
+   */
+  final void write(final ByteBuffer buf, final int offset) {
+    final int n;
+    int i;
+
+    n = ((this.m_data != null) ? this.m_data.length : 0);
+    buf.putInt(offset, this.frameSize());
+    buf.putInt((offset + 4), this.m_type);
+    buf.putInt((offset + 8), this.m_seq);
+    buf.putInt((offset + 12), this.m_x);
+    buf.putInt((offset + 16), this.m_y);
+    buf.putInt((offset + 20), n);
+    for (i = 0; i < n; i++) {
+      buf.putLong((offset + FRAME_HEADER + (i << 3)), this.m_data[i]);
+    }
+  }
+
+  /**
+   * Read a message in the binary format from a buffer
+   *
+   * @param buf
+   *          the buffer
+   * @param offset
+   *          the offset of the frame in the buffer
+   * @return the message
+   * @throws IOException
+   *           if the frame is invalid
+   */
+  static final GameMessage read(final ByteBuffer buf, final int offset)
+      throws IOException {
+    final GameMessage msg;
+    final int type, n;
+    final long[] data;
+    int i;
+
+    type = buf.getInt(offset + 4);
+    n = buf.getInt(offset + 20);
+    if ((type < 0) || (type >= OPCODES.length) || (n < 0) || (n > 0xFFFF)
+        || (buf.getInt(offset) != (FRAME_HEADER + (n << 3)))) {
+      throw new IOException("Invalid frame of type " + type); //$NON-NLS-1$
+    }
+    if (hasData(type)) {
+      data = new long[n];
+      for (i = 0; i < n; i++) {
+        data[i] = buf.getLong(offset + FRAME_HEADER + (i << 3));
+      }
+    } else {
+      data = null;
+    }
+    msg = new GameMessage(type, buf.getInt(offset + 12),
+        buf.getInt(offset + 16), data);
+    msg.m_seq = buf.getInt(offset + 8);
+    return msg;
+  }
+
+  /**
+   * Read a message from a stream
+   *
+   * @param dis
+   *          the input stream
+   * @return the message
+   * @throws IOException
+   *           if something goes wrong or the opcode is unknown
+   */
+  static final GameMessage read(final DataInputStream dis)
+      throws IOException {
+    final String s;
+    final GameMessage msg;
+    long[] data;
+    int type, seq, x, y, i;
+
+    s = dis.readUTF();
+    for (type = OPCODES.length; (--type) >= 0;) {
+      if (OPCODES[type].equals(s)) {
+        seq = dis.readInt();
+        if (hasCoordinates(type)) {
+          x = dis.readInt();
+          y = dis.readInt();
+        } else {
+          x = y = (-1);
+        }
+        if (hasData(type)) {
+          i = dis.readInt();
+          if ((i < 0) || (i > 0xFFFF)) {
+            throw new IOException("Invalid data length " + i); //$NON-NLS-1$
+          }
+          data = new long[i];
+          for (i = 0; i < data.length; i++) {
+            data[i] = dis.readLong();
+          }
+        } else {
+          data = null;
+        }
+        msg = new GameMessage(type, x, y, data);
+        msg.m_seq = seq;
+        return msg;
+      }
+    }
+
+    throw new IOException("Unknown opcode '" + s + "'."); //$NON-NLS-1$//$NON-NLS-2$
+  }
+}
@@ -0,0 +1,470 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A store of many games of the same configuration, for relay nodes where
+ * most games sit idle between turns. The games used recently are kept
+ * resident as {@link BattleshipModel models}, in least recently used order.
+ * When the estimated heap size of the resident games exceeds the budget,
+ * the least recently used games are evicted: their
+ * {@link BattleshipModel#writeCompact(java.nio.ByteBuffer) compact form} is
+ * written to a slot of a memory-mapped slab file and their model goes back
+ * to a {@link BattleshipModelPool pool}. The next {@link #acquire(long)}
+ * faults the game back in.
+ * <p>
+ * A game is pinned while it is being used, i.e., between
+ * {@link #acquire(long)} or {@link #create(long)} and
+ * {@link #release(long)}, and pinned games are never evicted. An evicted
+ * game loses its listeners, so a game whose listeners must survive has to
+ * stay pinned.
+ * </p>
+ * <p>
+ * The slab file consists of fixed-size slots, which are mapped in segments
+ * as the file grows. Freed slots are reused before the file grows.
+ * </p>
+ */
+public final class GameStore implements Closeable {
+
+  /**
+   * the estimated heap size of a model without its cells and ship arrays,
+   * including its entry in the store
+   */
+  private static final int MODEL_OVERHEAD = 320;
+
+  /** the target size of a mapped segment of the slab file */
+  private static final int SEGMENT_SIZE = (1 << 24);
+
+  /** the pool of the models */
+  private final BattleshipModelPool m_pool;
+
+  /** the resident games in least recently used order */
+  private final LinkedHashMap<Long, Resident> m_resident;
+
+  /** the evicted games: the slot of each game */
+  private final HashMap<Long, Integer> m_spilled;
+
+  /** the estimated heap size of a resident game */
+  private final long m_modelBytes;
+
+  /** the heap budget of the resident games in bytes */
+  private final long m_budget;
+
+  /** the slab file */
+  private final File m_file;
+
+  /** the channel of the slab file */
+  private final FileChannel m_channel;
+
+  /** the mapped segments of the slab file */
+  private final ArrayList<MappedByteBuffer> m_segments;
+
+  /** the size of a slot */
+  private final int m_slotSize;
+
+  /** the number of slots per segment */
+  private final int m_slotsPerSegment;
+
+  /** the free slots */
+  private int[] m_free;
+
+  /** the number of free slots */
+  private int m_freeCount;
+
+  /** the number of slots in the mapped segments */
+  private int m_slots;
+
+  /** the number of pinned resident games */
+  private int m_pinned;
+
+  /** the number of evictions */
+  private long m_evictions;
+
+  /** the number of games faulted in */
+  private long m_faults;
+
+  /** the latency of faulting a game in */
+  private final LatencyHistogram m_faultLatency;
+
+  /**
+   * Create a game store
+   *
+   * @param width
+   *          the field width
+   * @param height
+   *          the field height
+   * @param ships
+   *          the ships to place
+   * @param budget
+   *          the heap budget of the resident games in bytes
+   * @param file
+   *          the slab file, which is created or truncated and deleted on
+   *          {@link #close()}
+   * @throws IOException
+   *           if the slab file cannot be created
+   */
+  public GameStore(final int width, final int height, final int[] ships,
+      final long budget, final File file) throws IOException {
+    super();
+    final BattleshipModel probe;
+
+    probe = new BattleshipModel(width, height, ships, false);
+    this.m_pool = new BattleshipModelPool(width, height, ships, 1024);
+    this.m_resident = new LinkedHashMap<>(1024, 0.75f, true);
+    this.m_spilled = new HashMap<>();
+    this.m_modelBytes = GameStore.estimateSize(width, height, ships.length);
+    this.m_budget = budget;
+    this.m_slotSize = ((probe.getCompactSize() + 7) & (~7));
+    this.m_slotsPerSegment = Math.max(1, (SEGMENT_SIZE / this.m_slotSize));
+    this.m_segments = new ArrayList<>();
+    this.m_free = new int[1024];
+    this.m_faultLatency = new LatencyHistogram();
+
+    this.m_file = file;
+    this.m_channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Estimate the heap size of a resident game
+   *
+   * @param width
+   *          the field width
+   * @param height
+   *          the field height
+   * @param shipLengths
+   *          the number of ship lengths
+   * @return the estimated size in bytes
+   */
+  static final long estimateSize(final int width, final int height,
+      final int shipLengths) {
+    // the rows of the cells, the array of the rows, the two ship arrays
+    return (MODEL_OVERHEAD + (height * (16L + (4L * width)))
+        + (16L + (4L * height)) + (2L * (16L + (4L * shipLengths))));
+  }
+
+  /**
+   * Create a new game, which is pinned
+   *
+   * @param id
+   *          the id of the game
+   * @return the model, in state
+   *         {@link BattleshipModel#GAME_STATE_INITIALIZED}
+   * @throws IllegalStateException
+   *           if a game with this id exists
+   * @throws IOException
+   *           if games cannot be evicted
+   */
+  public synchronized final BattleshipModel create(final long id)
+      throws IOException {
+    final Long key;
+    final Resident r;
+
+    key = Long.valueOf(id);
+    if (this.m_resident.containsKey(key) || this.m_spilled.containsKey(key)) {
+      throw new IllegalStateException("Game " + id + " exists."); //$NON-NLS-1$//$NON-NLS-2$
+    }
+    r = new Resident(this.m_pool.acquire());
+    r.m_pins = 1;
+    this.m_pinned++;
+    this.m_resident.put(key, r);
+    this.evict();
+    return r.m_model;
+  }
+
+  /**
+   * Get a game and pin it, faulting it in if it has been evicted
+   *
+   * @param id
+   *          the id of the game
+   * @return the model, or null if there is no such game
+   * @throws IOException
+   *           if the game cannot be faulted in or games cannot be evicted
+   */
+  public synchronized final BattleshipModel acquire(final long id)
+      throws IOException {
+    final Long key;
+    final Integer slot;
+    final long start;
+    Resident r;
+
+    key = Long.valueOf(id);
+    r = this.m_resident.get(key);
+    if (r == null) {
+      slot = this.m_spilled.get(key);
+      if (slot == null) {
+        return null;
+      }
+      start = System.nanoTime();
+      r = new Resident(this.m_pool.acquire());
+      try {
+        r.m_model.readCompact(this.slot(slot.intValue()));
+      } catch (RuntimeException e) {
+        // the game stays on disk and the model goes back to the pool
+        this.m_pool.release(r.m_model);
+        throw new IOException("Game " + id + " cannot be restored.", e); //$NON-NLS-1$//$NON-NLS-2$
+      }
+      this.m_spilled.remove(key);
+      this.freeSlot(slot.intValue());
+      this.m_resident.put(key, r);
+      this.m_faults++;
+      this.m_faultLatency.record(System.nanoTime() - start);
+    }
+    if ((r.m_pins++) <= 0) {
+      this.m_pinned++;
+    }
+    this.evict();
+    return r.m_model;
+  }
+
+  /**
+   * Unpin a game, so that it may be evicted
+   *
+   * @param id
+   *          the id of the game
+   * @throws IOException
+   *           if games cannot be evicted
+   */
+  public synchronized final void release(final long id) throws IOException {
+    final Resident r;
+
+    r = this.m_resident.get(Long.valueOf(id));
+    if ((r != null) && (r.m_pins > 0)) {
+      if ((--r.m_pins) <= 0) {
+        this.m_pinned--;
+      }
+      this.evict();
+    }
+  }
+
+  /**
+   * Remove a game, whether pinned or not
+   *
+   * @param id
+   *          the id of the game
+   * @return true if the game existed
+   */
+  public synchronized final boolean remove(final long id) {
+    final Long key;
+    final Resident r;
+    final Integer slot;
+
+    key = Long.valueOf(id);
+    r = this.m_resident.remove(key);
+    if (r != null) {
+      if (r.m_pins > 0) {
+        this.m_pinned--;
+      }
+      this.m_pool.release(r.m_model);
+      return true;
+    }
+    slot = this.m_spilled.remove(key);
+    if (slot != null) {
+      this.freeSlot(slot.intValue());
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Evict the least recently used unpinned games while the resident games
+   * exceed the budget. Must be called while holding the lock.
+   *
+   * @throws IOException
+   *           if the slab file cannot grow
+   */
+  private final void evict() throws IOException {
+    final Iterator<Map.Entry<Long, Resident>> it;
+    Map.Entry<Long, Resident> e;
+    Resident r;
+    int slot;
+
+    if ((this.m_resident.size() * this.m_modelBytes) <= this.m_budget) {
+      return;
+    }
+    it = this.m_resident.entrySet().iterator();
+    while (((this.m_resident.size() * this.m_modelBytes) > this.m_budget)
+        && (this.m_resident.size() > this.m_pinned) && it.hasNext()) {
+      e = it.next();
+      r = e.getValue();
+      if (r.m_pins > 0) {
+        continue;
+      }
+      slot = this.allocateSlot();
+      r.m_model.writeCompact(this.slot(slot));
+      it.remove();
+      this.m_spilled.put(e.getKey(), Integer.valueOf(slot));
+      this.m_pool.release(r.m_model);
+      this.m_evictions++;
+    }
+  }
+
+  /**
+   * Get a view of a slot
+   *
+   * @param slot
+   *          the slot
+   * @return the buffer, positioned at the start of the slot
+   */
+  private final ByteBuffer slot(final int slot) {
+    final ByteBuffer buf;
+
+    buf = this.m_segments.get(slot / this.m_slotsPerSegment).duplicate();
+    buf.position((slot % this.m_slotsPerSegment) * this.m_slotSize);
+    return buf;
+  }
+
+  /**
+   * Allocate a slot, growing the slab file if no slot is free
+   *
+   * @return the slot
+   * @throws IOException
+   *           if the slab file cannot grow
+   */
+  private final int allocateSlot() throws IOException {
+    final long bytes;
+    int i;
+
+    if (this.m_freeCount <= 0) {
+      bytes = (((long) (this.m_slotsPerSegment)) * this.m_slotSize);
+      this.m_segments.add(this.m_channel.map(FileChannel.MapMode.READ_WRITE,
+          (this.m_segments.size() * bytes), bytes));
+      for (i = this.m_slotsPerSegment; (--i) >= 0;) {
+        this.freeSlot(this.m_slots + i);
+      }
+      this.m_slots += this.m_slotsPerSegment;
+    }
+    return this.m_free[--this.m_freeCount];
+  }
+
+  /**
+   * Free a slot
+   *
+   * @param slot
+   *          the slot
+   */
+  private final void freeSlot(final int slot) {
+    int[] free;
+
+    free = this.m_free;
+    if (this.m_freeCount >= free.length) {
+      this.m_free = free = Arrays.copyOf(free, (free.length << 1));
+    }
+    free[this.m_freeCount++] = slot;
+  }
+
+  /**
+   * Get the number of resident games
+   *
+   * @return the number of resident games
+   */
+  public synchronized final int getResidentGames() {
+    return this.m_resident.size();
+  }
+
+  /**
+   * Get the estimated heap size of the resident games
+   *
+   * @return the estimated size in bytes
+   */
+  public synchronized final long getResidentBytes() {
+    return (this.m_resident.size() * this.m_modelBytes);
+  }
+
+  /**
+   * Get the number of evicted games
+   *
+   * @return the number of games on disk
+   */
+  public synchronized final int getSpilledGames() {
+    return this.m_spilled.size();
+  }
+
+  /**
+   * Get the size of the mapped part of the slab file
+   *
+   * @return the size in bytes
+   */
+  public synchronized final long getSlabBytes() {
+    return (((long) (this.m_slots)) * this.m_slotSize);
+  }
+
+  /**
+   * Get the number of evictions
+   *
+   * @return the number of evictions
+   */
+  public synchronized final long getEvictions() {
+    return this.m_evictions;
+  }
+
+  /**
+   * Get the number of games faulted in
+   *
+   * @return the number of faults
+   */
+  public synchronized final long getFaults() {
+    return this.m_faults;
+  }
+
+  /**
+   * Get a percentile of the latency of faulting a game in
+   *
+   * @param percentile
+   *          the percentile, between 0 and 100
+   * @return the latency in nanoseconds
+   */
+  public synchronized final long getFaultLatency(final double percentile) {
+    return this.m_faultLatency.getPercentile(percentile);
+  }
+
+  /** Drop all games and delete the slab file */
+  @Override
+  public synchronized final void close() {
+    this.m_resident.clear();
+    this.m_spilled.clear();
+    this.m_segments.clear();
+    this.m_pinned = 0;
+    this.m_freeCount = 0;
+    this.m_slots = 0;
+    try {
+      this.m_channel.close();
+    } catch (IOException e) {//
+    }
+    this.m_file.delete();
+  }
+
+  /** a resident game */
+  private static final class Resident {
+
+    /** the model */
+    final BattleshipModel m_model;
+
+    /** the number of pins */
+    int m_pins;
+
+    /**
+     * Create the resident game
+     *
+     * @param model
+     *          the model
+     */
+    Resident(final BattleshipModel model) {
+      super();
+      this.m_model = model;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Play moves in many games kept in a {@link GameStore} with a heap budget
+ * far below their total size. Most moves go to a small set of hot games,
+ * the others to random games, which have to be faulted in. The hash of each
+ * game is checked after each fault, so that a game which does not survive
+ * the round trip through the slab file is noticed.
+ */
+public final class GameStoreBenchmark {
+
+  /** no instances */
+  private GameStoreBenchmark() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Make a move in a game: place the ships, fire or replace a finished game
+   *
+   * @param store
+   *          the store
+   * @param id
+   *          the id of the game
+   * @param model
+   *          the model of the game
+   * @param strategy
+   *          the strategy placing the ships
+   * @param random
+   *          the random number generator
+   * @return the model now stored under the id
+   * @throws Exception
+   *           if something goes wrong
+   */
+  private static final BattleshipModel move(final GameStore store,
+      final long id, final BattleshipModel model,
+      final IBattleshipStrategy strategy, final Random random)
+      throws Exception {
+    final int w, cell;
+    final BattleshipModel m;
+
+    w = model.getFieldWidth();
+    cell = random.nextInt(w * model.getFieldHeight());
+    synchronized (model) {
+      switch (model.getGameState()) {
+        case BattleshipModel.GAME_STATE_INITIALIZED: {
+          strategy.placeShips(model, random);
+          model.enemyIsReady();
+          return model;
+        }
+        case BattleshipModel.GAME_STATE_PLAYING: {
+          if (model.getLastPlayer() == BattleshipModel.WINNER_PLAYER) {
+            model.tryEnemyHasSeen((cell % w), (cell / w));
+          } else {
+            model.tryPlayerHasSeen((cell % w), (cell / w));
+          }
+          return model;
+        }
+        default: {
+          break;
+        }
+      }
+    }
+    store.remove(id);
+    m = store.create(id);
+    return m;
+  }
+
+  /**
+   * Run the benchmark
+   *
+   * @param args
+   *          the number of games (default: 200000), the heap budget in
+   *          megabytes (default: 16) and the number of moves (default:
+   *          2000000)
+   * @throws Exception
+   *           if something goes wrong
+   */
+  public static final void main(final String[] args) throws Exception {
+    final int games, moves, hot;
+    final long budget, start, time;
+    final File file;
+    final Random random;
+    final IBattleshipStrategy strategy;
+    final long[] hashes;
+    BattleshipModel m;
+    long faults, mismatches;
+    int i, id;
+
+    games = ((args.length > 0) ? Integer.parseInt(args[0]) : 200000);
+    budget = (((args.length > 1) ? Long.parseLong(args[1]) : 16L) << 20);
+    moves = ((args.length > 2) ? Integer.parseInt(args[2]) : 2000000);
+    hot = Math.max(1, (games / 100));
+    random = new Random(1L);
+    strategy = new RandomStrategy();
+    hashes = new long[games];
+    file = File.createTempFile("battleship-games", ".slab"); //$NON-NLS-1$//$NON-NLS-2$
+
+    try (GameStore store = new GameStore(BattleshipModel.DEFAULT_FIELD_WIDTH,
+        BattleshipModel.DEFAULT_FIELD_HEIGHT,
+        BattleshipModel.DEFAULT_SHIPS_TO_PLACE, budget, file)) {
+      for (id = 0; id < games; id++) {
+        m = store.create(id);
+        hashes[id] = m.getHash();
+        store.release(id);
+      }
+
+      mismatches = 0L;
+      start = System.nanoTime();
+      for (i = moves; (--i) >= 0;) {
+        // nine of ten moves go to the hot games
+        id = ((random.nextInt(10) != 0) ? random.nextInt(hot) : random
+            .nextInt(games));
+        faults = store.getFaults();
+        m = store.acquire(id);
+        if ((store.getFaults() != faults) && (m.getHash() != hashes[id])) {
+          mismatches++;
+        }
+        m = GameStoreBenchmark.move(store, id, m, strategy, random);
+        hashes[id] = m.getHash();
+        store.release(id);
+      }
+      time = Math.max(1L, (System.nanoTime() - start));
+
+      System.out.println("games:          " + games + ", resident: " //$NON-NLS-1$//$NON-NLS-2$
+          + store.getResidentGames() + " (" //$NON-NLS-1$
+          + (store.getResidentBytes() >>> 10) + "KiB of " //$NON-NLS-1$
+          + (budget >>> 10) + "KiB), spilled: " //$NON-NLS-1$
+          + store.getSpilledGames() + " (slab " //$NON-NLS-1$
+          + (store.getSlabBytes() >>> 10) + "KiB)"); //$NON-NLS-1$
+      System.out.println("moves:          " + moves + " (" //$NON-NLS-1$//$NON-NLS-2$
+          + ((long) ((moves * 1e9d) / time)) + "/s)"); //$NON-NLS-1$
+      System.out.println("evictions:      " + store.getEvictions() //$NON-NLS-1$
+          + ", faults: " + store.getFaults()); //$NON-NLS-1$
+      System.out.println("fault latency:  p50 " //$NON-NLS-1$
+          + store.getFaultLatency(50d) + "ns, p99 " //$NON-NLS-1$
+          + store.getFaultLatency(99d) + "ns"); //$NON-NLS-1$
+      System.out.println("hash mismatches: " + mismatches); //$NON-NLS-1$
+    }
+  }
+}
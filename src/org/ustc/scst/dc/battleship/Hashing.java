@@ -0,0 +1,45 @@
+package org.ustc.scst.dc.battleship;
+
+/**
+ * Hash functions shared by the models, the strategies and the
+ * communicators.
+ */
+final class Hashing {
+
+  /** the golden ratio as 64-bit fraction */
+  static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+  /** no instances */
+  private Hashing() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Scramble the bits of a seed
+   * 
+   * @param z
+   *          the seed
+   * @return the scrambled seed
+   */
+  static final long mix(final long z) {
+    long v;
+    v = ((z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L);
+    v = ((v ^ (v >>> 27)) * 0x94D049BB133111EBL);
+    return (v ^ (v >>> 31));
+  }
+
+  /**
+   * Get the Zobrist key of a cell state flag. Instead of a table of random
+   * numbers, the keys are computed by scrambling the cell index and the flag,
+   * so that boards of any size share the same keys.
+   * 
+   * @param cell
+   *          the index {@code y*width+x} of the cell
+   * @param bit
+   *          the index of the flag bit
+   * @return the key
+   */
+  static final long zobrist(final int cell, final int bit) {
+    return Hashing.mix((((((long) cell) << 2) | bit) + 1L) * GOLDEN);
+  }
+}
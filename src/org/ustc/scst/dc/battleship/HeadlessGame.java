@@ -0,0 +1,164 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.Random;
+
+/**
+ * A game between two strategies, played on a pair of headless models
+ * without any communicator: each shot is applied to the shooter's model and
+ * to the target's model directly. The models are reset and reused for every
+ * game played by the same instance.
+ */
+final class HeadlessGame {
+
+  /** the field width */
+  private final int m_width;
+
+  /** the field height */
+  private final int m_height;
+
+  /** the model of the first strategy */
+  private final BattleshipModel m_a;
+
+  /** the model of the second strategy */
+  private final BattleshipModel m_b;
+
+  /** the number of shots fired by the first strategy in the last game */
+  int m_shotsA;
+
+  /** the number of shots fired by the second strategy in the last game */
+  int m_shotsB;
+
+  /**
+   * Create a headless game
+   * 
+   * @param width
+   *          the field width
+   * @param height
+   *          the field height
+   * @param ships
+   *          the ships to place
+   */
+  HeadlessGame(final int width, final int height, final int[] ships) {
+    super();
+    this.m_width = width;
+    this.m_height = height;
+    this.m_a = new BattleshipModel(width, height, ships, false);
+    this.m_b = new BattleshipModel(width, height, ships, false);
+  }
+
+  /**
+   * Get the model of the first strategy, which is reused for every game
+   * 
+   * @return the model
+   */
+  final BattleshipModel getFirstModel() {
+    return this.m_a;
+  }
+
+  /**
+   * Play a game. A strategy which chooses an illegal shot loses the game.
+   * 
+   * @param a
+   *          the first strategy
+   * @param b
+   *          the second strategy
+   * @param random
+   *          the random number generator, which also decides who begins
+   * @return {@link BattleshipModel#WINNER_PLAYER} if {@code a} has won,
+   *         {@link BattleshipModel#WINNER_ENEMY} if {@code b} has won, or
+   *         {@link BattleshipModel#WINNER_NOBODY} if the game has not ended
+   *         within the maximum number of turns
+   */
+  final int play(final IBattleshipStrategy a, final IBattleshipStrategy b,
+      final Random random) {
+    final BattleshipModel ma, mb;
+    boolean turnA;
+    int turns;
+
+    ma = this.m_a;
+    mb = this.m_b;
+    HeadlessGame.recycle(ma);
+    HeadlessGame.recycle(mb);
+    ma.initialize();
+    mb.initialize();
+    a.placeShips(ma, random);
+    b.placeShips(mb, random);
+    ma.enemyIsReady();
+    mb.enemyIsReady();
+
+    this.m_shotsA = this.m_shotsB = 0;
+    turnA = random.nextBoolean();
+    for (turns = (2 * this.m_width * this.m_height); (--turns) >= 0;) {
+      if (turnA) {
+        this.m_shotsA++;
+        if (!(this.shoot(a, ma, mb, random))) {
+          return BattleshipModel.WINNER_ENEMY;
+        }
+      } else {
+        this.m_shotsB++;
+        if (!(this.shoot(b, mb, ma, random))) {
+          return BattleshipModel.WINNER_PLAYER;
+        }
+      }
+
+      if (ma.getGameState() == BattleshipModel.GAME_STATE_END) {
+        return ma.whoWon();
+      }
+      turnA = (!turnA);
+    }
+
+    return BattleshipModel.WINNER_NOBODY;
+  }
+
+  /**
+   * Bring a model back into the uninitialized state
+   * 
+   * @param m
+   *          the model
+   */
+  private static final void recycle(final BattleshipModel m) {
+    final int state;
+
+    state = m.getGameState();
+    if ((state != BattleshipModel.GAME_STATE_UNINITIALIZED)
+        && (state != BattleshipModel.GAME_STATE_END)) {
+      m.endGame(BattleshipModel.WINNER_NOBODY);
+    }
+    m.reset();
+  }
+
+  /**
+   * Let a strategy fire one shot
+   * 
+   * @param s
+   *          the strategy
+   * @param shooter
+   *          the shooter's model
+   * @param target
+   *          the target's model
+   * @param random
+   *          the random number generator
+   * @return {@code true} if the shot was legal, {@code false} otherwise
+   */
+  private final boolean shoot(final IBattleshipStrategy s,
+      final BattleshipModel shooter, final BattleshipModel target,
+      final Random random) {
+    final int cell, x, y;
+
+    cell = s.nextShot(shooter, random);
+    if ((cell < 0) || (cell >= (this.m_width * this.m_height))) {
+      return false;
+    }
+    x = (cell % this.m_width);
+    y = (cell / this.m_width);
+
+    if ((shooter.tryPlayerHasSeen(x, y) != BattleshipModel.MOVE_OK)
+        || (target.tryEnemyHasSeen(x, y) != BattleshipModel.MOVE_OK)) {
+      return false;
+    }
+    if ((target.getCellState(x, y) & BattleshipModel.CELL_STATE_PLAYER_SHIP) != 0) {
+      return (shooter.tryEnemyHasShip(x, y) == BattleshipModel.MOVE_OK);
+    }
+    return true;
+  }
+}
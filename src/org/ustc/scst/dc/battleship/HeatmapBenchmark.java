@@ -0,0 +1,124 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compare the fast {@link HeatmapKernel heatmap kernel} with the reference
+ * kernel on random boards of several sizes, checking that both give the
+ * same results.
+ */
+public final class HeatmapBenchmark {
+
+  /** the fleet used on the boards */
+  private static final int[] SHIPS = new int[] { 5, 3, 2, 1, 1 };
+
+  /** no instances */
+  private HeatmapBenchmark() {
+    super();
+  }
+
+  /**
+   * Create a random board on which about a third of the cells have been
+   * fired at
+   * 
+   * @param size
+   *          the width and height
+   * @param random
+   *          the random number generator
+   * @return the cells
+   */
+  private static final int[] board(final int size, final Random random) {
+    final int[] cells;
+    int i;
+
+    cells = new int[size * size];
+    for (i = cells.length; (--i) >= 0;) {
+      if (random.nextInt(3) == 0) {
+        cells[i] = ((random.nextInt(4) == 0) ? AbstractBattleshipStrategy.HIT_MASK
+            : BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN);
+      }
+    }
+    return cells;
+  }
+
+  /**
+   * Measure one kernel
+   * 
+   * @param fast
+   *          measure the fast kernel?
+   * @param cells
+   *          the board
+   * @param size
+   *          the width and height
+   * @param density
+   *          the heatmap
+   * @param runs
+   *          the number of runs
+   * @return the time per run in nanoseconds
+   */
+  private static final long measure(final boolean fast, final int[] cells,
+      final int size, final long[] density, final int runs) {
+    final long start;
+    int i;
+
+    start = System.nanoTime();
+    for (i = runs; (--i) >= 0;) {
+      if (fast) {
+        HeatmapKernel.compute(cells, size, size, SHIPS, density);
+      } else {
+        HeatmapKernel.computeReference(cells, size, size, SHIPS, density);
+      }
+    }
+    return ((System.nanoTime() - start) / runs);
+  }
+
+  /**
+   * Run the benchmark
+   * 
+   * @param args
+   *          the board sizes, by default 12, 128, and 1024
+   */
+  public static final void main(final String[] args) {
+    final int[] sizes;
+    final Random random;
+    int[] cells;
+    long[] fast, reference;
+    int i, size, runs;
+    long fastTime, referenceTime;
+
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (i = 0; i < args.length; i++) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    } else {
+      sizes = new int[] { 12, 128, 1024 };
+    }
+
+    random = new Random(1L);
+    for (i = 0; i < sizes.length; i++) {
+      size = sizes[i];
+      cells = HeatmapBenchmark.board(size, random);
+      fast = new long[cells.length];
+      reference = new long[cells.length];
+      runs = Math.max(3, (20000000 / cells.length));
+
+      // warm up and check
+      HeatmapBenchmark.measure(true, cells, size, fast, runs);
+      HeatmapBenchmark.measure(false, cells, size, reference, runs);
+      if (!(Arrays.equals(fast, reference))) {
+        throw new IllegalStateException("Kernels differ on board size " //$NON-NLS-1$
+            + size);
+      }
+
+      fastTime = HeatmapBenchmark.measure(true, cells, size, fast, runs);
+      referenceTime = HeatmapBenchmark.measure(false, cells, size,
+          reference, runs);
+      System.out.println(size + "x" + size + //$NON-NLS-1$
+          ": reference " + referenceTime + "ns, fast " + fastTime + //$NON-NLS-1$ //$NON-NLS-2$
+          "ns, speedup " + //$NON-NLS-1$
+          (Math.round((10d * referenceTime) / fastTime) / 10d) + "x, identical"); //$NON-NLS-1$
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.Arrays;
+
+/**
+ * Kernels computing the probability density heatmap: for each cell, the
+ * number of possible ship placements covering it, where each ship length is
+ * weighted by the number of ships of that length. A placement is possible if
+ * it lies completely on the field and does not cover a cell we have fired at
+ * without hitting a ship.
+ * <p>
+ * The {@link #computeReference(int[], int, int, int[], long[]) reference
+ * kernel} tries every placement, which costs time proportional to the
+ * number of cells times the sum of the ship lengths. The
+ * {@link #compute(int[], int, int, int[], long[]) fast kernel} uses that a
+ * ship of length {@code L} in a free run of length {@code R} covers the cell
+ * at offset {@code p} in exactly {@code min(p+1, R-p, L, R-L+1)} ways. It
+ * first counts, for each cell, the free cells before and after it in its
+ * row and its column, which takes a few sequential sweeps over the board,
+ * and then evaluates this formula for all ship lengths in a tight,
+ * branch-free loop. Both kernels give identical results.
+ * </p>
+ */
+final class HeatmapKernel {
+
+  /** no instances */
+  private HeatmapKernel() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Can a ship be placed on a cell?
+   * 
+   * @param cell
+   *          the cell state
+   * @return false if we have fired at the cell and missed
+   */
+  private static final boolean isFree(final int cell) {
+    return ((cell & AbstractBattleshipStrategy.HIT_MASK) != //
+    BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN);
+  }
+
+  /**
+   * Compute the heatmap from the lengths of the free runs through each cell
+   * 
+   * @param cells
+   *          the cell states, indexed by {@code y*width + x}
+   * @param width
+   *          the field width
+   * @param height
+   *          the field height
+   * @param ships
+   *          the number of ships of each length, where index {@code i}
+   *          holds the number of ships of length {@code i+1}
+   * @param density
+   *          the destination array, indexed like {@code cells}; will be
+   *          overwritten
+   */
+  static final void compute(final int[] cells, final int width,
+      final int height, final int[] ships, final long[] density) {
+    final int[] before, after;
+    final int n;
+    int x, y, i, row, run;
+
+    n = (width * height);
+    before = new int[n];
+    after = new int[n];
+    Arrays.fill(density, 0, n, 0L);
+
+    // horizontal runs
+    for (y = 0; y < height; y++) {
+      row = (y * width);
+      run = 0;
+      for (x = 0; x < width; x++) {
+        run = (HeatmapKernel.isFree(cells[row + x]) ? (run + 1) : 0);
+        before[row + x] = run;
+      }
+      run = 0;
+      for (x = width; (--x) >= 0;) {
+        run = (HeatmapKernel.isFree(cells[row + x]) ? (run + 1) : 0);
+        after[row + x] = run;
+      }
+    }
+    HeatmapKernel.accumulate(before, after, n, ships, 1, density);
+
+    // vertical runs: single placements have been counted already
+    for (i = 0; i < n; i++) {
+      if (HeatmapKernel.isFree(cells[i])) {
+        before[i] = ((i >= width) ? (before[i - width] + 1) : 1);
+      } else {
+        before[i] = 0;
+      }
+    }
+    for (i = n; (--i) >= 0;) {
+      if (HeatmapKernel.isFree(cells[i])) {
+        after[i] = (((i + width) < n) ? (after[i + width] + 1) : 1);
+      } else {
+        after[i] = 0;
+      }
+    }
+    HeatmapKernel.accumulate(before, after, n, ships, 2, density);
+  }
+
+  /**
+   * Add the placements of each ship length to the heatmap
+   * 
+   * @param before
+   *          the number of free cells up to and including each cell in the
+   *          direction of the runs
+   * @param after
+   *          the number of free cells from each cell on in the direction of
+   *          the runs
+   * @param n
+   *          the number of cells
+   * @param ships
+   *          the number of ships of each length
+   * @param minLength
+   *          the shortest ship length to count
+   * @param density
+   *          the heatmap
+   */
+  private static final void accumulate(final int[] before,
+      final int[] after, final int n, final int[] ships,
+      final int minLength, final long[] density) {
+    final int[] lengths, counts;
+    int length, k, i, a, b, j;
+    long sum;
+
+    k = 0;
+    for (length = minLength; length <= ships.length; length++) {
+      if (ships[length - 1] > 0) {
+        k++;
+      }
+    }
+    lengths = new int[k];
+    counts = new int[k];
+    k = 0;
+    for (length = minLength; length <= ships.length; length++) {
+      if (ships[length - 1] > 0) {
+        lengths[k] = length;
+        counts[k++] = ships[length - 1];
+      }
+    }
+
+    for (i = 0; i < n; i++) {
+      a = before[i];
+      b = after[i];
+      sum = 0L;
+      for (j = k; (--j) >= 0;) {
+        length = lengths[j];
+        sum += (((long) counts[j]) * Math.max(0, Math.min(Math.min(a, b),
+            Math.min(length, ((a + b) - length)))));
+      }
+      density[i] += sum;
+    }
+  }
+
+  /**
+   * Compute the heatmap by trying every placement
+   * 
+   * @param cells
+   *          the cell states, indexed by {@code y*width + x}
+   * @param width
+   *          the field width
+   * @param height
+   *          the field height
+   * @param ships
+   *          the number of ships of each length, where index {@code i}
+   *          holds the number of ships of length {@code i+1}
+   * @param density
+   *          the destination array, indexed like {@code cells}; will be
+   *          overwritten
+   */
+  static final void computeReference(final int[] cells, final int width,
+      final int height, final int[] ships, final long[] density) {
+    int length, count, x, y, k, row;
+    boolean free;
+
+    Arrays.fill(density, 0, (width * height), 0L);
+
+    for (length = ships.length; length > 0; length--) {
+      count = ships[length - 1];
+      if (count <= 0) {
+        continue;
+      }
+
+      for (y = 0; y < height; y++) {
+        row = (y * width);
+        for (x = 0; x <= (width - length); x++) {
+          free = true;
+          for (k = length; (--k) >= 0;) {
+            if (!(HeatmapKernel.isFree(cells[row + x + k]))) {
+              free = false;
+              break;
+            }
+          }
+          if (free) {
+            for (k = length; (--k) >= 0;) {
+              density[row + x + k] += count;
+            }
+          }
+        }
+      }
+
+      if (length <= 1) {
+        continue; // vertical and horizontal placements are the same
+      }
+      for (x = 0; x < width; x++) {
+        for (y = 0; y <= (height - length); y++) {
+          free = true;
+          for (k = length; (--k) >= 0;) {
+            if (!(HeatmapKernel.isFree(cells[((y + k) * width) + x]))) {
+              free = false;
+              break;
+            }
+          }
+          if (free) {
+            for (k = length; (--k) >= 0;) {
+              density[((y + k) * width) + x] += count;
+            }
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.Random;
+
+/**
+ * A strategy that hunts on a checkerboard pattern until it finds a ship and
+ * then targets the unseen neighbors of all hits.
+ */
+public class HuntTargetStrategy extends AbstractBattleshipStrategy {
+
+  /** Create the strategy */
+  public HuntTargetStrategy() {
+    super();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int nextShot(final BattleshipModel model, final Random random) {
+    final int[] cells;
+    final int width, height;
+    int i, x, y, count, pick;
+
+    cells = AbstractBattleshipStrategy.readCells(model);
+    width = model.getFieldWidth();
+    height = model.getFieldHeight();
+
+    count = 0;
+    for (i = cells.length; (--i) >= 0;) {
+      if (HuntTargetStrategy.isTarget(cells, i, width, height)) {
+        count++;
+      }
+    }
+
+    if (count > 0) {
+      pick = random.nextInt(count);
+      for (i = cells.length; (--i) >= 0;) {
+        if (HuntTargetStrategy.isTarget(cells, i, width, height)) {
+          if ((--count) == pick) {
+            return i;
+          }
+        }
+      }
+    }
+
+    i = AbstractBattleshipStrategy.randomUnseen(cells, width, true, random);
+    if (i < 0) {
+      x = random.nextInt(width);
+      y = random.nextInt(height);
+      i = ((y * width) + x);
+    }
+    return i;
+  }
+
+  /**
+   * Is the given cell an unseen neighbor of a hit?
+   * 
+   * @param cells
+   *          the cells
+   * @param i
+   *          the cell index
+   * @param width
+   *          the field width
+   * @param height
+   *          the field height
+   * @return true if the cell should be targeted
+   */
+  private static final boolean isTarget(final int[] cells, final int i,
+      final int width, final int height) {
+    final int x, y;
+
+    if (!(AbstractBattleshipStrategy.isUnseen(cells[i]))) {
+      return false;
+    }
+    x = (i % width);
+    y = (i / width);
+    return (((x > 0) && AbstractBattleshipStrategy.isHit(cells[i - 1])) || //
+        ((x < (width - 1)) && AbstractBattleshipStrategy.isHit(cells[i + 1])) || //
+        ((y > 0) && AbstractBattleshipStrategy.isHit(cells[i - width])) || //
+    ((y < (height - 1)) && AbstractBattleshipStrategy
+        .isHit(cells[i + width])));
+  }
+}
@@ -0,0 +1,35 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.Random;
+
+/**
+ * A strategy for playing battleship without human interaction. Strategies
+ * are shared between games that run in parallel, so they must not keep any
+ * per-game state: everything they need is in the model they are given.
+ */
+public interface IBattleshipStrategy {
+
+  /**
+   * Place all ships on an initialized model
+   * 
+   * @param model
+   *          the model, in state
+   *          {@link BattleshipModel#GAME_STATE_INITIALIZED}
+   * @param random
+   *          the random number generator of the game
+   */
+  public abstract void placeShips(final BattleshipModel model,
+      final Random random);
+
+  /**
+   * Choose the next enemy cell to fire at
+   * 
+   * @param model
+   *          the model, in state {@link BattleshipModel#GAME_STATE_PLAYING}
+   * @param random
+   *          the random number generator of the game
+   * @return the index {@code y*width + x} of the cell to fire at
+   */
+  public abstract int nextShot(final BattleshipModel model,
+      final Random random);
+}
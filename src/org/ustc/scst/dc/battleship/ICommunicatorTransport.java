@@ -0,0 +1,51 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A transport carrying the messages of a {@link Communicator} in both
+ * directions. One thread writes and flushes messages while another thread
+ * reads them, so the two directions must be independent.
+ */
+public interface ICommunicatorTransport extends Closeable {
+
+  /**
+   * Write a message. It may be buffered until {@link #flush()} is called.
+   * 
+   * @param msg
+   *          the message
+   * @throws IOException
+   *           if the transport is broken
+   */
+  public abstract void write(final GameMessage msg) throws IOException;
+
+  /**
+   * Make all written messages available to the other side
+   * 
+   * @throws IOException
+   *           if the transport is broken
+   */
+  public abstract void flush() throws IOException;
+
+  /**
+   * Read the next message, blocking until one is available
+   * 
+   * @return the message
+   * @throws java.io.EOFException
+   *           if the other side has closed the transport
+   * @throws IOException
+   *           if the transport is broken
+   */
+  public abstract GameMessage read() throws IOException;
+
+  /**
+   * Stop reading: a thread blocked in {@link #read()} fails, while messages
+   * can still be written
+   */
+  public abstract void shutdownInput();
+
+  /** Close the transport in both directions, ignoring errors */
+  @Override
+  public abstract void close();
+}
@@ -0,0 +1,138 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent histogram of latencies with logarithmic buckets: values
+ * below 64 are counted exactly, larger values in buckets whose width is
+ * 1/32 of their lower bound, so each percentile is accurate to about 3%.
+ * Recording a value takes a few bit operations and one atomic increment.
+ */
+final class LatencyHistogram {
+
+  /** the number of bits of the sub-buckets */
+  private static final int SUB_BITS = 5;
+
+  /** the number of sub-buckets per power of two */
+  private static final int SUB = (1 << SUB_BITS);
+
+  /** the number of buckets */
+  private static final int BUCKETS = ((64 - SUB_BITS) * SUB) + (2 * SUB);
+
+  /** the counts */
+  private final AtomicLongArray m_counts;
+
+  /** the number of values */
+  private final AtomicLong m_total;
+
+  /** the largest value */
+  private final AtomicLong m_max;
+
+  /** Create the histogram */
+  LatencyHistogram() {
+    super();
+    this.m_counts = new AtomicLongArray(BUCKETS);
+    this.m_total = new AtomicLong();
+    this.m_max = new AtomicLong();
+  }
+
+  /**
+   * Get the bucket of a value
+   * 
+   * @param value
+   *          the non-negative value
+   * @return the bucket
+   */
+  private static final int bucket(final long value) {
+    final int shift;
+
+    if (value < (2 * SUB)) {
+      return ((int) value);
+    }
+    shift = ((63 - Long.numberOfLeadingZeros(value)) - SUB_BITS);
+    return ((SUB * shift) + ((int) (value >>> shift)));
+  }
+
+  /**
+   * Get the largest value counted in a bucket
+   * 
+   * @param bucket
+   *          the bucket
+   * @return the largest value
+   */
+  private static final long highest(final int bucket) {
+    final int shift;
+
+    if (bucket < (2 * SUB)) {
+      return bucket;
+    }
+    shift = ((bucket / SUB) - 1);
+    return ((((long) (bucket - (SUB * shift))) + 1L) << shift) - 1L;
+  }
+
+  /**
+   * Record a value
+   * 
+   * @param value
+   *          the value, negative values are counted as 0
+   */
+  final void record(final long value) {
+    final long v;
+    long max;
+
+    v = Math.max(0L, value);
+    this.m_counts.incrementAndGet(LatencyHistogram.bucket(v));
+    this.m_total.incrementAndGet();
+    max = this.m_max.get();
+    while ((v > max) && (!(this.m_max.compareAndSet(max, v)))) {
+      max = this.m_max.get();
+    }
+  }
+
+  /**
+   * Get the number of recorded values
+   * 
+   * @return the number of values
+   */
+  final long getCount() {
+    return this.m_total.get();
+  }
+
+  /**
+   * Get the largest recorded value
+   * 
+   * @return the largest value
+   */
+  final long getMax() {
+    return this.m_max.get();
+  }
+
+  /**
+   * Get a percentile
+   * 
+   * @param percentile
+   *          the percentile, e.g., 99.9
+   * @return the smallest bucket bound below which at least the given
+   *         percentage of the values lies, or 0 if there are no values
+   */
+  final long getPercentile(final double percentile) {
+    final long total, rank;
+    long seen;
+    int i;
+
+    total = this.m_total.get();
+    if (total <= 0L) {
+      return 0L;
+    }
+    rank = Math.max(1L, (long) Math.ceil((percentile / 100d) * total));
+    seen = 0L;
+    for (i = 0; i < BUCKETS; i++) {
+      seen += this.m_counts.get(i);
+      if (seen >= rank) {
+        return Math.min(LatencyHistogram.highest(i), this.m_max.get());
+      }
+    }
+    return this.m_max.get();
+  }
+}
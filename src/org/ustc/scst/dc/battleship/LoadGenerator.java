@@ -0,0 +1,320 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load generator for the communicator endpoints of a
+ * {@link SessionServer}. It simulates a number of clients, each of which
+ * opens a session, says that it is ready, and then fires a sequence of shots
+ * at the strategy hosted by the server, measuring the time until the
+ * strategy fires back.
+ * <p>
+ * The load is generated open-loop: the clients start at a constant rate,
+ * and each shot has an intended send time on a fixed schedule. Since a
+ * client may only fire after the server has answered its previous shot, a
+ * slow answer delays the next shot; its latency is nevertheless measured
+ * from its intended send time, so that a stalled server shows up in the
+ * percentiles instead of silently lowering the load (coordinated omission).
+ * </p>
+ */
+public final class LoadGenerator {
+
+  /** the time in milliseconds after which an answer counts as lost */
+  private static final int ANSWER_TIMEOUT = 10000;
+
+  /** the host */
+  private final String m_host;
+
+  /** the port */
+  private final int m_port;
+
+  /** the number of clients */
+  private final int m_clients;
+
+  /** the number of clients started per second */
+  private final double m_rate;
+
+  /** the number of shots per client */
+  private final int m_shots;
+
+  /** the intended time between two shots of a client in nanoseconds */
+  private final long m_interval;
+
+  /** the latencies in microseconds */
+  private final LatencyHistogram m_latencies;
+
+  /** the number of sessions that ended with an error */
+  private final AtomicLong m_errors;
+
+  /** the number of sessions that completed all shots */
+  private final AtomicLong m_completed;
+
+  /**
+   * Create the load generator
+   * 
+   * @param host
+   *          the host of the session server
+   * @param port
+   *          the port of the session server
+   * @param clients
+   *          the number of clients
+   * @param rate
+   *          the number of clients started per second
+   * @param shots
+   *          the number of shots per client
+   * @param interval
+   *          the intended time between two shots of a client in milliseconds
+   */
+  public LoadGenerator(final String host, final int port, final int clients,
+      final double rate, final int shots, final long interval) {
+    super();
+    this.m_host = host;
+    this.m_port = port;
+    this.m_clients = clients;
+    this.m_rate = rate;
+    this.m_shots = shots;
+    this.m_interval = TimeUnit.MILLISECONDS.toNanos(interval);
+    this.m_latencies = new LatencyHistogram();
+    this.m_errors = new AtomicLong();
+    this.m_completed = new AtomicLong();
+  }
+
+  /**
+   * Wait until a point in time
+   * 
+   * @param time
+   *          the time, as given by {@link System#nanoTime()}
+   * @throws InterruptedException
+   *           if we are interrupted
+   */
+  private static final void sleepUntil(final long time)
+      throws InterruptedException {
+    long left;
+
+    while ((left = (time - System.nanoTime())) > 0L) {
+      TimeUnit.NANOSECONDS.sleep(left);
+    }
+  }
+
+  /**
+   * Run all clients and wait until they have finished
+   * 
+   * @throws InterruptedException
+   *           if we are interrupted
+   */
+  public final void run() throws InterruptedException {
+    final ThreadFactory threads;
+    final CountDownLatch done;
+    final long start;
+    int i;
+
+    threads = ThreadFactories.session("LoadClient", true); //$NON-NLS-1$
+    done = new CountDownLatch(this.m_clients);
+    start = (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10L));
+    for (i = 0; i < this.m_clients; i++) {
+      threads.newThread(
+          new Client(i, (start + ((long) ((i * 1e9d) / this.m_rate))), done))
+          .start();
+    }
+    done.await();
+  }
+
+  /**
+   * Play one session
+   * 
+   * @param id
+   *          the id of the client
+   * @param startTime
+   *          the intended start time
+   * @throws IOException
+   *           if something goes wrong
+   * @throws InterruptedException
+   *           if we are interrupted
+   */
+  final void play(final int id, final long startTime) throws IOException,
+      InterruptedException {
+    final DataOutputStream dos;
+    final DataInputStream dis;
+    final int width;
+    GameMessage msg;
+    long intended;
+    int shot, seq;
+
+    LoadGenerator.sleepUntil(startTime);
+    width = BattleshipModel.DEFAULT_FIELD_WIDTH;
+    try (Socket s = new Socket(this.m_host, this.m_port)) {
+      s.setTcpNoDelay(true);
+      s.setSoTimeout(ANSWER_TIMEOUT);
+      dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+      dis = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+
+      seq = 0;
+      LoadGenerator.send(dos, new GameMessage(GameMessage.TYPE_HELLO, id, 0),
+          ++seq);
+      LoadGenerator.send(dos, new GameMessage(
+          GameMessage.TYPE_PLAYER_IS_READY, -1, -1), ++seq);
+      dos.flush();
+
+      for (shot = 0; shot < this.m_shots; shot++) {
+        intended = (startTime + (shot * this.m_interval));
+        LoadGenerator.sleepUntil(intended);
+        LoadGenerator.send(dos, new GameMessage(
+            GameMessage.TYPE_PLAYER_HAS_SEEN, (shot % width), (shot / width)),
+            ++seq);
+        dos.flush();
+
+        // the server reports hits and then fires back
+        do {
+          msg = GameMessage.read(dis);
+        } while (msg.m_type != GameMessage.TYPE_PLAYER_HAS_SEEN);
+        this.m_latencies.record((System.nanoTime() - intended) / 1000L);
+      }
+    }
+  }
+
+  /**
+   * Write a numbered message
+   * 
+   * @param dos
+   *          the stream
+   * @param msg
+   *          the message
+   * @param seq
+   *          the sequence number
+   * @throws IOException
+   *           if something goes wrong
+   */
+  private static final void send(final DataOutputStream dos,
+      final GameMessage msg, final int seq) throws IOException {
+    msg.m_seq = seq;
+    msg.write(dos);
+  }
+
+  /**
+   * Print the results
+   * 
+   * @param elapsed
+   *          the time the run has taken in nanoseconds
+   */
+  public final void report(final long elapsed) {
+    final LatencyHistogram h;
+
+    h = this.m_latencies;
+    System.out.println("clients:     " + this.m_clients //$NON-NLS-1$
+        + " at " + this.m_rate + "/s"); //$NON-NLS-1$//$NON-NLS-2$
+    System.out.println("completed:   " + this.m_completed.get()); //$NON-NLS-1$
+    System.out.println("errors:      " + this.m_errors.get()); //$NON-NLS-1$
+    System.out.println("shots:       " + h.getCount() //$NON-NLS-1$
+        + " (" + ((long) ((h.getCount() * 1e9d) / Math.max(1L, elapsed))) //$NON-NLS-1$
+        + "/s)"); //$NON-NLS-1$
+    System.out.println("latency p50:  " + h.getPercentile(50d) + "us"); //$NON-NLS-1$//$NON-NLS-2$
+    System.out.println("latency p99:  " + h.getPercentile(99d) + "us"); //$NON-NLS-1$//$NON-NLS-2$
+    System.out.println("latency p999: " + h.getPercentile(99.9d) + "us"); //$NON-NLS-1$//$NON-NLS-2$
+    System.out.println("latency max:  " + h.getMax() + "us"); //$NON-NLS-1$//$NON-NLS-2$
+  }
+
+  /**
+   * Run the load generator
+   * 
+   * @param args
+   *          the number of clients (default: 1000), the number of clients
+   *          started per second (default: 500), the number of shots per
+   *          client (default: 20, less than the ship cells of the default
+   *          fleet, so that no game ends early), the intended time between
+   *          two shots in milliseconds (default: 10), and host and port of
+   *          a session server; without host and port, a session server is
+   *          started in this process
+   * @throws Exception
+   *           if something goes wrong
+   */
+  public static final void main(final String[] args) throws Exception {
+    final int clients, shots;
+    final double rate;
+    final long interval, start;
+    final SessionServer server;
+    final LoadGenerator gen;
+
+    clients = ((args.length > 0) ? Integer.parseInt(args[0]) : 1000);
+    rate = ((args.length > 1) ? Double.parseDouble(args[1]) : 500d);
+    shots = ((args.length > 2) ? Integer.parseInt(args[2]) : 20);
+    interval = ((args.length > 3) ? Long.parseLong(args[3]) : 10L);
+
+    if (args.length > 5) {
+      server = null;
+      gen = new LoadGenerator(args[4], Integer.parseInt(args[5]), clients,
+          rate, shots, interval);
+    } else {
+      server = new SessionServer(0, true, new ProbabilityDensityStrategy());
+      server.start();
+      gen = new LoadGenerator("localhost", server.getPort(), clients, rate, //$NON-NLS-1$
+          shots, interval);
+    }
+
+    start = System.nanoTime();
+    try {
+      gen.run();
+    } finally {
+      if (server != null) {
+        server.stop();
+      }
+    }
+    gen.report(System.nanoTime() - start);
+  }
+
+  /** a simulated client */
+  private final class Client implements Runnable {
+
+    /** the id */
+    private final int m_id;
+
+    /** the intended start time */
+    private final long m_start;
+
+    /** the latch to count down when done */
+    private final CountDownLatch m_done;
+
+    /**
+     * Create the client
+     * 
+     * @param id
+     *          the id
+     * @param start
+     *          the intended start time
+     * @param done
+     *          the latch to count down when done
+     */
+    Client(final int id, final long start, final CountDownLatch done) {
+      super();
+      this.m_id = id;
+      this.m_start = start;
+      this.m_done = done;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void run() {
+      final LoadGenerator owner;
+
+      owner = LoadGenerator.this;
+      try {
+        owner.play(this.m_id, this.m_start);
+        owner.m_completed.incrementAndGet();
+      } catch (IOException e) {
+        owner.m_errors.incrementAndGet();
+      } catch (InterruptedException e) {
+        owner.m_errors.incrementAndGet();
+      } finally {
+        this.m_done.countDown();
+      }
+    }
+  }
+}
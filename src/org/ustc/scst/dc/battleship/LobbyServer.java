@@ -0,0 +1,252 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lobby in which players register and are paired automatically, so that
+ * they do not need to know each other's address in advance. A client
+ * connects to the lobby, sends a {@link #OP_JOIN join} request with its
+ * skill, its board configuration and the port its communicator listens on,
+ * and then waits. Once the {@link MatchmakingQueue} has found a partner, the
+ * lobby sends a {@link #OP_PAIRED paired} answer with the address and port
+ * of the partner and the game id, and closes the connection. Both players
+ * then connect their communicators to each other, see
+ * {@link Communicator#startFromLobby(String, int, int, int, long)}. A client
+ * that closes the connection before it has been paired leaves the queue.
+ */
+public final class LobbyServer implements Runnable {
+
+  /** the default port of the lobby */
+  public static final int DEFAULT_PORT = 45999;
+
+  /** a client wants to join the queue */
+  static final String OP_JOIN = "Join"; //$NON-NLS-1$
+
+  /** the lobby has found a partner */
+  static final String OP_PAIRED = "Paired"; //$NON-NLS-1$
+
+  /**
+   * the interval in milliseconds in which a waiting client is checked for
+   * a partner
+   */
+  private static final int POLL_INTERVAL = 50;
+
+  /** the server socket */
+  private final ServerSocket m_server;
+
+  /** the factory for the client threads */
+  private final ThreadFactory m_threads;
+
+  /** the queue */
+  private final MatchmakingQueue m_queue;
+
+  /** the number of paired players */
+  private final AtomicLong m_paired;
+
+  /** are we running? */
+  private volatile boolean m_running;
+
+  /**
+   * Create the lobby
+   * 
+   * @param port
+   *          the port to listen on, or 0 for any free port
+   * @param skillBucketWidth
+   *          the range of skill values that are considered equal
+   * @throws IOException
+   *           if the port cannot be opened
+   */
+  public LobbyServer(final int port, final int skillBucketWidth)
+      throws IOException {
+    super();
+    this.m_server = new ServerSocket(port, 4096);
+    this.m_threads = ThreadFactories.session("Lobby", true); //$NON-NLS-1$
+    this.m_queue = new MatchmakingQueue(skillBucketWidth);
+    this.m_paired = new AtomicLong();
+  }
+
+  /**
+   * Compute the board configuration of a model: only players with the same
+   * configuration can play against each other
+   * 
+   * @param model
+   *          the model
+   * @return the board configuration
+   */
+  static final int boardConfig(final BattleshipModel model) {
+    final int[] ships;
+    int i, h;
+
+    h = ((model.getFieldWidth() * 31) + model.getFieldHeight());
+    ships = model.getShipsToPlace();
+    for (i = 0; i < ships.length; i++) {
+      h = ((h * 31) + ships[i]);
+    }
+    return h;
+  }
+
+  /**
+   * Get the port the lobby listens on
+   * 
+   * @return the port
+   */
+  public final int getPort() {
+    return this.m_server.getLocalPort();
+  }
+
+  /**
+   * Get the number of players paired so far
+   * 
+   * @return the number of paired players
+   */
+  public final long getPairedPlayers() {
+    return this.m_paired.get();
+  }
+
+  /** Start accepting connections in a new thread */
+  public synchronized final void start() {
+    final Thread t;
+
+    if (!(this.m_running)) {
+      this.m_running = true;
+      t = new Thread(this, "LobbyServer-Acceptor"); //$NON-NLS-1$
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  /** Stop accepting connections */
+  public synchronized final void stop() {
+    this.m_running = false;
+    try {
+      this.m_server.close();
+    } catch (IOException e) {//
+    }
+  }
+
+  /** The accept loop */
+  @Override
+  public final void run() {
+    Socket s;
+
+    this.m_running = true;
+    while (this.m_running) {
+      try {
+        s = this.m_server.accept();
+        s.setTcpNoDelay(true);
+        this.m_threads.newThread(new Client(s)).start();
+      } catch (IOException e) {
+        if (this.m_running) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Run a lobby
+   * 
+   * @param args
+   *          the port and, optionally, the width of the skill buckets
+   * @throws IOException
+   *           if the lobby cannot be started
+   */
+  public static final void main(final String[] args) throws IOException {
+    final LobbyServer lobby;
+
+    lobby = new LobbyServer(((args.length > 0) ? Integer.parseInt(args[0])
+        : DEFAULT_PORT), ((args.length > 1) ? Integer.parseInt(args[1])
+        : 100));
+    System.out.println("Lobby listening on port " + lobby.getPort()); //$NON-NLS-1$
+    lobby.run();
+  }
+
+  /** a client waiting in the lobby */
+  private final class Client implements Runnable {
+
+    /** the connection */
+    private final Socket m_socket;
+
+    /**
+     * Create the client
+     * 
+     * @param socket
+     *          the connection
+     */
+    Client(final Socket socket) {
+      super();
+      this.m_socket = socket;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void run() {
+      final LobbyServer owner;
+      final DataInputStream dis;
+      final DataOutputStream dos;
+      final InetSocketAddress peer;
+      final int skill, boardConfig, port;
+      MatchmakingQueue.Ticket ticket, partner;
+
+      owner = LobbyServer.this;
+      ticket = null;
+      try {
+        dis = new DataInputStream(new BufferedInputStream(
+            this.m_socket.getInputStream()));
+        if (!(OP_JOIN.equals(dis.readUTF()))) {
+          return;
+        }
+        skill = dis.readInt();
+        boardConfig = dis.readInt();
+        port = dis.readInt();
+
+        ticket = owner.m_queue.join(skill, boardConfig,
+            new InetSocketAddress(this.m_socket.getInetAddress(), port));
+
+        // wait for a partner: any data or the end of the stream sent by the
+        // client meanwhile means that it leaves the queue
+        this.m_socket.setSoTimeout(POLL_INTERVAL);
+        while ((partner = ticket.getPartner()) == null) {
+          try {
+            dis.read();
+          } catch (SocketTimeoutException e) {
+            continue;
+          }
+          if (owner.m_queue.leave(ticket)) {
+            return;
+          }
+        }
+
+        owner.m_paired.incrementAndGet();
+        peer = ((InetSocketAddress) (partner.getPlayer()));
+        dos = new DataOutputStream(new BufferedOutputStream(
+            this.m_socket.getOutputStream()));
+        dos.writeUTF(OP_PAIRED);
+        dos.writeUTF(peer.getAddress().getHostAddress());
+        dos.writeInt(peer.getPort());
+        dos.writeInt(ticket.getGameId());
+        dos.flush();
+      } catch (IOException e) {
+        // the client has left
+        if (ticket != null) {
+          owner.m_queue.leave(ticket);
+        }
+      } finally {
+        try {
+          this.m_socket.close();
+        } catch (IOException e) {//
+        }
+      }
+    }
+  }
+}
@@ -18,6 +18,7 @@ import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 
 /** the main window */
 public class Main extends JFrame {
@@ -34,6 +35,9 @@ public class Main extends JFrame {
   /** the other address */
   private JTextField m_otherAddress;
 
+  /** the address of the lobby */
+  private JTextField m_lobby;
+
   /** the model */
   private final BattleshipModel m_model;
 
@@ -186,6 +190,47 @@ public class Main extends JFrame {
     p.add(v);
     layout.addLayoutComponent(v, gc);
 
+    y++;
+    x = 0;
+    gc = new GridBagConstraints(
+        //
+        x, y, 1, 1, 0d, 0d, GridBagConstraints.EAST,
+        GridBagConstraints.NONE, ins, 1, 1);
+    c = new JLabel("Lobby:"); //$NON-NLS-1$
+    p.add(c);
+    layout.addLayoutComponent(c, gc);
+
+    x++;
+    gc = new GridBagConstraints(
+        //
+        x, y, 1, 1, 1d, 0d, GridBagConstraints.WEST,
+        GridBagConstraints.HORIZONTAL, ins, 1, 1);
+    if (this.m_lobby == null) {
+      this.m_lobby = new JTextField("localhost:" //$NON-NLS-1$
+          + LobbyServer.DEFAULT_PORT);
+    }
+    p.add(this.m_lobby);
+    layout.addLayoutComponent(this.m_lobby, gc);
+
+    y++;
+    x = 0;
+    gc = new GridBagConstraints(
+        //
+        x, y, 2, 1, 1d, 0d, GridBagConstraints.CENTER,
+        GridBagConstraints.HORIZONTAL, ins, 1, 1);
+
+    v = new JButton("Find enemy in lobby!"); //$NON-NLS-1$
+    v.addActionListener(new ActionListener() {
+      @Override
+      public final void actionPerformed(ActionEvent e) {
+        ((JButton) (e.getSource())).setEnabled(false);
+        Main.this.connectViaLobby();
+      }
+    });
+
+    p.add(v);
+    layout.addLayoutComponent(v, gc);
+
     this.setContentPane(p);
     this.pack();
 
@@ -211,6 +256,64 @@ public class Main extends JFrame {
     this.makeGamePane();
   }
 
+  /**
+   * Let the lobby find an enemy. Since this may take a while, the lobby is
+   * contacted in a separate thread.
+   */
+  final void connectViaLobby() {
+    final String lobby;
+    final int ownPort, colon;
+
+    try {
+      ownPort = Integer.parseInt(this.m_ownPort.getText());
+      lobby = this.m_lobby.getText().trim();
+      colon = lobby.lastIndexOf(':');
+      if (colon < 0) {
+        throw new IllegalArgumentException(
+            "The lobby must be given as host:port."); //$NON-NLS-1$
+      }
+    } catch (Throwable t) {
+      JOptionPane.showMessageDialog(this, t.getMessage());
+      this.makeConnectionPane(null, null, null);
+      return;
+    }
+
+    new Thread(new Runnable() {
+      @Override
+      public final void run() {
+        try {
+          Main.this.m_com.startFromLobby(lobby.substring(0, colon),
+              Integer.parseInt(lobby.substring(colon + 1)), ownPort, 1500,
+              0L);
+        } catch (Throwable t) {
+          Main.this.lobbyFinished(t);
+          return;
+        }
+        Main.this.lobbyFinished(null);
+      }
+    }, "Lobby").start(); //$NON-NLS-1$
+  }
+
+  /**
+   * The lobby has found an enemy or failed
+   * 
+   * @param error
+   *          the error, or null if an enemy has been found
+   */
+  final void lobbyFinished(final Throwable error) {
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public final void run() {
+        if (error != null) {
+          JOptionPane.showMessageDialog(Main.this, error.getMessage());
+          Main.this.makeConnectionPane(null, null, null);
+        } else {
+          Main.this.makeGamePane();
+        }
+      }
+    });
+  }
+
   /**
    * The game pane
    */
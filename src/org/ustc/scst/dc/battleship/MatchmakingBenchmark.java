@@ -0,0 +1,81 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measure the throughput of the {@link MatchmakingQueue}: several threads
+ * join the queue with random skills and leave it again if they have not
+ * been paired immediately.
+ */
+public final class MatchmakingBenchmark {
+
+  /** no instances */
+  private MatchmakingBenchmark() {
+    super();
+  }
+
+  /**
+   * Run the benchmark
+   * 
+   * @param args
+   *          the number of threads, the duration in seconds, and the number
+   *          of skill buckets
+   * @throws InterruptedException
+   *           if the benchmark is interrupted
+   */
+  public static final void main(final String[] args)
+      throws InterruptedException {
+    final int threads, seconds, buckets;
+    final MatchmakingQueue queue;
+    final AtomicLong ops, pairs;
+    final CountDownLatch done;
+    final long end;
+    int i;
+
+    threads = ((args.length > 0) ? Integer.parseInt(args[0]) : Runtime
+        .getRuntime().availableProcessors());
+    seconds = ((args.length > 1) ? Integer.parseInt(args[1]) : 5);
+    buckets = ((args.length > 2) ? Integer.parseInt(args[2]) : 64);
+
+    queue = new MatchmakingQueue(100);
+    ops = new AtomicLong();
+    pairs = new AtomicLong();
+    done = new CountDownLatch(threads);
+    end = (System.nanoTime() + (seconds * 1000000000L));
+
+    for (i = threads; (--i) >= 0;) {
+      final long seed = i;
+      new Thread(new Runnable() {
+        @Override
+        public final void run() {
+          final Random random;
+          MatchmakingQueue.Ticket t;
+          long n, p;
+
+          random = new Random(seed);
+          n = p = 0L;
+          while (System.nanoTime() < end) {
+            t = queue.join((random.nextInt(buckets) * 100), 0, this);
+            n++;
+            if (t.getPartner() != null) {
+              p++;
+            } else if (queue.leave(t)) {
+              n++;
+            }
+          }
+          ops.addAndGet(n);
+          pairs.addAndGet(p);
+          done.countDown();
+        }
+      }).start();
+    }
+
+    done.await();
+    System.out.println(threads + " threads, " + buckets //$NON-NLS-1$
+        + " buckets: " + (ops.get() / seconds) //$NON-NLS-1$
+        + " join/leave operations/s, " + (pairs.get() / seconds) //$NON-NLS-1$
+        + " pairings/s"); //$NON-NLS-1$
+  }
+}
@@ -0,0 +1,215 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free matchmaking queue. Players are grouped into buckets by their
+ * board configuration and skill; two players are only paired if they fall
+ * into the same bucket. Since a player joining a bucket in which somebody
+ * waits is paired immediately, each bucket holds at most one waiting ticket,
+ * which is kept in an atomic reference: joining and leaving are a few
+ * compare-and-set operations.
+ */
+public final class MatchmakingQueue {
+
+  /** the ticket is waiting for a partner */
+  static final int TICKET_WAITING = 0;
+
+  /** the ticket has been paired */
+  static final int TICKET_MATCHED = (TICKET_WAITING + 1);
+
+  /** the ticket has been withdrawn */
+  static final int TICKET_CANCELLED = (TICKET_MATCHED + 1);
+
+  /** the width of a skill bucket */
+  private final int m_skillBucketWidth;
+
+  /** the buckets */
+  private final ConcurrentHashMap<Long, AtomicReference<Ticket>> m_buckets;
+
+  /** the next game id */
+  private final AtomicInteger m_nextGameId;
+
+  /**
+   * Create the matchmaking queue
+   * 
+   * @param skillBucketWidth
+   *          the range of skill values that are considered equal
+   */
+  public MatchmakingQueue(final int skillBucketWidth) {
+    super();
+    this.m_skillBucketWidth = Math.max(1, skillBucketWidth);
+    this.m_buckets = new ConcurrentHashMap<>();
+    this.m_nextGameId = new AtomicInteger();
+  }
+
+  /**
+   * Get the bucket of a player
+   * 
+   * @param skill
+   *          the skill of the player
+   * @param boardConfig
+   *          the board configuration the player wants to play on
+   * @return the bucket
+   */
+  private final AtomicReference<Ticket> bucket(final int skill,
+      final int boardConfig) {
+    final Long key;
+    int s;
+    AtomicReference<Ticket> b, o;
+
+    s = (skill / this.m_skillBucketWidth);
+    if ((skill < 0) && ((s * this.m_skillBucketWidth) != skill)) {
+      s--;
+    }
+    key = Long.valueOf((((long) boardConfig) << 32) | (s & 0xFFFFFFFFL));
+    b = this.m_buckets.get(key);
+    if (b == null) {
+      b = new AtomicReference<>();
+      o = this.m_buckets.putIfAbsent(key, b);
+      if (o != null) {
+        b = o;
+      }
+    }
+    return b;
+  }
+
+  /**
+   * Join the queue. If somebody in the same bucket is waiting, both are
+   * paired immediately; otherwise the returned ticket waits for a partner.
+   * 
+   * @param skill
+   *          the skill of the player
+   * @param boardConfig
+   *          the board configuration the player wants to play on
+   * @param player
+   *          an arbitrary object describing the player
+   * @return the ticket
+   */
+  public final Ticket join(final int skill, final int boardConfig,
+      final Object player) {
+    final AtomicReference<Ticket> bucket;
+    final Ticket me;
+    Ticket w;
+
+    bucket = this.bucket(skill, boardConfig);
+    me = new Ticket(bucket, player);
+    for (;;) {
+      w = bucket.get();
+      if (w == null) {
+        if (bucket.compareAndSet(null, me)) {
+          return me;
+        }
+        continue;
+      }
+
+      if (bucket.compareAndSet(w, null)
+          && w.m_state.compareAndSet(TICKET_WAITING, TICKET_MATCHED)) {
+        me.m_state.set(TICKET_MATCHED);
+        Ticket.pair(w, me, this.m_nextGameId.incrementAndGet());
+        return me;
+      }
+    }
+  }
+
+  /**
+   * Leave the queue
+   * 
+   * @param ticket
+   *          the ticket
+   * @return {@code true} if the ticket has been withdrawn, {@code false} if
+   *         it has already been paired
+   */
+  public final boolean leave(final Ticket ticket) {
+    if (ticket.m_state.compareAndSet(TICKET_WAITING, TICKET_CANCELLED)) {
+      ticket.m_bucket.compareAndSet(ticket, null);
+      return true;
+    }
+    return (ticket.m_state.get() == TICKET_CANCELLED);
+  }
+
+  /** a ticket of a player in the queue */
+  public static final class Ticket {
+
+    /** the bucket */
+    final AtomicReference<Ticket> m_bucket;
+
+    /** the player */
+    private final Object m_player;
+
+    /** the state */
+    final AtomicInteger m_state;
+
+    /** the partner, once paired */
+    private Ticket m_partner;
+
+    /** the game id, once paired */
+    private int m_gameId;
+
+    /**
+     * Create the ticket
+     * 
+     * @param bucket
+     *          the bucket
+     * @param player
+     *          the player
+     */
+    Ticket(final AtomicReference<Ticket> bucket, final Object player) {
+      super();
+      this.m_bucket = bucket;
+      this.m_player = player;
+      this.m_state = new AtomicInteger(TICKET_WAITING);
+    }
+
+    /**
+     * Pair two tickets
+     * 
+     * @param waiting
+     *          the ticket that has been waiting
+     * @param joining
+     *          the ticket that has just joined
+     * @param gameId
+     *          the game id
+     */
+    static final void pair(final Ticket waiting, final Ticket joining,
+        final int gameId) {
+      synchronized (joining) {
+        joining.m_partner = waiting;
+        joining.m_gameId = gameId;
+      }
+      synchronized (waiting) {
+        waiting.m_partner = joining;
+        waiting.m_gameId = gameId;
+      }
+    }
+
+    /**
+     * Get the player
+     * 
+     * @return the player
+     */
+    public final Object getPlayer() {
+      return this.m_player;
+    }
+
+    /**
+     * Get the partner
+     * 
+     * @return the partner, or null if the ticket has not been paired yet
+     */
+    public synchronized final Ticket getPartner() {
+      return this.m_partner;
+    }
+
+    /**
+     * Get the id of the game, once paired
+     * 
+     * @return the game id
+     */
+    public synchronized final int getGameId() {
+      return this.m_gameId;
+    }
+  }
+}
@@ -0,0 +1,356 @@
+package org.ustc.scst.dc.battleship;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A decoded block of a {@link MoveStore}: the moves of some complete games,
+ * one column each for the game id, the move index, the coordinates and the
+ * result flags. The game id column is given as runs, one per game. A block
+ * is reused for the next block of a scan, so its contents must not be kept.
+ * <p>
+ * The encoded form of a block, in little-endian byte order, is a header
+ * with the number of rows, the number of runs, the bit widths of the move,
+ * x, y, and flag columns and the length of the run column, followed by the
+ * run column as pairs of variable-length numbers (the zig-zag encoded
+ * difference of the game id to that of the previous run, and the run
+ * length), padded to eight bytes, and the other columns bit-packed into
+ * longs, each holding {@code 64/width} values. The move column holds the
+ * zig-zag encoded difference of each move index to the previous one plus
+ * one, which is zero and thus takes no bits at all for games recorded
+ * move by move.
+ * </p>
+ */
+public final class MoveBlock {
+
+  /** the size of the header of an encoded block */
+  static final int HEADER = 16;
+
+  /** the number of rows */
+  int m_rows;
+
+  /** the number of runs */
+  int m_runs;
+
+  /** the game ids of the runs */
+  long[] m_runGame;
+
+  /** the first row of each run, followed by the number of rows */
+  int[] m_runStart;
+
+  /** the move indexes */
+  int[] m_move;
+
+  /** the x-coordinates */
+  int[] m_x;
+
+  /** the y-coordinates */
+  int[] m_y;
+
+  /** the flags */
+  int[] m_flags;
+
+  /** Create an empty block */
+  MoveBlock() {
+    super();
+    this.m_runGame = new long[16];
+    this.m_runStart = new int[17];
+    this.m_move = new int[0];
+    this.m_x = this.m_move;
+    this.m_y = this.m_move;
+    this.m_flags = this.m_move;
+  }
+
+  /**
+   * Get the number of rows, i.e., moves
+   *
+   * @return the number of rows
+   */
+  public final int getRows() {
+    return this.m_rows;
+  }
+
+  /**
+   * Get the number of runs, i.e., games
+   *
+   * @return the number of runs
+   */
+  public final int getRuns() {
+    return this.m_runs;
+  }
+
+  /**
+   * Get the game id of a run
+   *
+   * @param run
+   *          the run
+   * @return the game id
+   */
+  public final long getRunGame(final int run) {
+    return this.m_runGame[run];
+  }
+
+  /**
+   * Get the first row of a run
+   *
+   * @param run
+   *          the run, or {@link #getRuns()} for the end of the last run
+   * @return the first row
+   */
+  public final int getRunStart(final int run) {
+    return this.m_runStart[run];
+  }
+
+  /**
+   * Get the move index of a row
+   *
+   * @param row
+   *          the row
+   * @return the index of the move within its game
+   */
+  public final int getMove(final int row) {
+    return this.m_move[row];
+  }
+
+  /**
+   * Get the x-coordinate of a row
+   *
+   * @param row
+   *          the row
+   * @return the x-coordinate of the cell fired at
+   */
+  public final int getX(final int row) {
+    return this.m_x[row];
+  }
+
+  /**
+   * Get the y-coordinate of a row
+   *
+   * @param row
+   *          the row
+   * @return the y-coordinate of the cell fired at
+   */
+  public final int getY(final int row) {
+    return this.m_y[row];
+  }
+
+  /**
+   * Get the flags of a row
+   *
+   * @param row
+   *          the row
+   * @return the flags, a combination of {@link MoveStore#FLAG_ENEMY} and
+   *         {@link MoveStore#FLAG_HIT}
+   */
+  public final int getFlags(final int row) {
+    return this.m_flags[row];
+  }
+
+  /**
+   * Get the number of bits needed for a value
+   *
+   * @param max
+   *          the largest value, not negative
+   * @return the number of bits, a divisor of 64 so that no value straddles
+   *         two longs
+   */
+  static final int width(final int max) {
+    final int bits;
+
+    bits = (32 - Integer.numberOfLeadingZeros(max));
+    if (bits <= 4) {
+      return ((bits <= 2) ? bits : 4);
+    }
+    return ((bits <= 8) ? 8 : ((bits <= 16) ? 16 : 32));
+  }
+
+  /**
+   * Get the number of longs of a bit-packed column
+   *
+   * @param rows
+   *          the number of rows
+   * @param width
+   *          the bit width
+   * @return the number of longs
+   */
+  static final int words(final int rows, final int width) {
+    final int per;
+
+    if (width <= 0) {
+      return 0;
+    }
+    per = (64 / width);
+    return ((rows + per - 1) / per);
+  }
+
+  /**
+   * Bit-pack a column
+   *
+   * @param buf
+   *          the destination, in little-endian byte order
+   * @param values
+   *          the values
+   * @param rows
+   *          the number of values
+   * @param width
+   *          the bit width
+   */
+  static final void pack(final ByteBuffer buf, final int[] values,
+      final int rows, final int width) {
+    final int per;
+    long w;
+    int i, k, shift;
+
+    if (width <= 0) {
+      return;
+    }
+    per = (64 / width);
+    for (i = 0; i < rows; i += per) {
+      w = 0L;
+      shift = 0;
+      for (k = i; (k < rows) && (k < (i + per)); k++) {
+        w |= ((values[k] & 0xffffffffL) << shift);
+        shift += width;
+      }
+      buf.putLong(w);
+    }
+  }
+
+  /**
+   * Unpack a bit-packed column
+   *
+   * @param buf
+   *          the source, in little-endian byte order
+   * @param pos
+   *          the position of the column
+   * @param rows
+   *          the number of values
+   * @param width
+   *          the bit width
+   * @param values
+   *          the destination
+   * @return the position after the column
+   */
+  private static final int unpack(final ByteBuffer buf, final int pos,
+      final int rows, final int width, final int[] values) {
+    final int per, full;
+    final long mask;
+    long w;
+    int i, k, p;
+
+    if (width <= 0) {
+      for (i = rows; (--i) >= 0;) {
+        values[i] = 0;
+      }
+      return pos;
+    }
+    per = (64 / width);
+    mask = ((width >= 64) ? (-1L) : ((1L << width) - 1L));
+    full = (rows - (rows % per));
+    p = pos;
+    // the full longs, in a loop the compiler can unroll
+    for (i = 0; i < full; p += 8) {
+      w = buf.getLong(p);
+      for (k = per; (--k) >= 0;) {
+        values[i++] = ((int) (w & mask));
+        w >>>= width;
+      }
+    }
+    if (i < rows) {
+      w = buf.getLong(p);
+      p += 8;
+      for (; i < rows; i++) {
+        values[i] = ((int) (w & mask));
+        w >>>= width;
+      }
+    }
+    return p;
+  }
+
+  /**
+   * Make sure the columns can hold a number of rows and runs
+   *
+   * @param rows
+   *          the number of rows
+   * @param runs
+   *          the number of runs
+   */
+  private final void ensure(final int rows, final int runs) {
+    if (this.m_move.length < rows) {
+      this.m_move = new int[rows];
+      this.m_x = new int[rows];
+      this.m_y = new int[rows];
+      this.m_flags = new int[rows];
+    }
+    if (this.m_runGame.length < runs) {
+      this.m_runGame = new long[runs];
+      this.m_runStart = new int[runs + 1];
+    }
+  }
+
+  /**
+   * Decode a block
+   *
+   * @param buf
+   *          the source, in little-endian byte order
+   * @param pos
+   *          the position of the block
+   */
+  final void decode(final ByteBuffer buf, final int pos) {
+    final int rows, runs, wMove, wX, wY, wFlags, runBytes;
+    final int[] move, start;
+    long game, v;
+    int p, i, r, b, shift, run, end, expected;
+
+    rows = buf.getInt(pos);
+    runs = buf.getInt(pos + 4);
+    wMove = buf.get(pos + 8);
+    wX = buf.get(pos + 9);
+    wY = buf.get(pos + 10);
+    wFlags = buf.get(pos + 11);
+    runBytes = buf.getInt(pos + 12);
+    this.ensure(rows, runs);
+    this.m_rows = rows;
+    this.m_runs = runs;
+
+    p = (pos + HEADER);
+    game = 0L;
+    start = this.m_runStart;
+    start[0] = 0;
+    for (r = 0; r < runs; r++) {
+      for (i = 0; i < 2; i++) {
+        v = 0L;
+        for (shift = 0;; shift += 7) {
+          b = buf.get(p++);
+          v |= ((b & 0x7fL) << shift);
+          if (b >= 0) {
+            break;
+          }
+        }
+        if (i == 0) {
+          game += ((v >>> 1) ^ (-(v & 1L)));
+          this.m_runGame[r] = game;
+        } else {
+          start[r + 1] = (start[r] + ((int) v));
+        }
+      }
+    }
+
+    p = MoveBlock.unpack(buf, (pos + HEADER + runBytes), rows, wMove,
+        this.m_move);
+    p = MoveBlock.unpack(buf, p, rows, wX, this.m_x);
+    p = MoveBlock.unpack(buf, p, rows, wY, this.m_y);
+    MoveBlock.unpack(buf, p, rows, wFlags, this.m_flags);
+
+    move = this.m_move;
+    for (run = 0; run < runs; run++) {
+      expected = 0;
+      end = start[run + 1];
+      for (i = start[run]; i < end; i++) {
+        b = move[i];
+        expected += ((b >>> 1) ^ (-(b & 1)));
+        move[i] = expected;
+        expected++;
+      }
+    }
+  }
+}
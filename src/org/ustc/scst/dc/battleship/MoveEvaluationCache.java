@@ -0,0 +1,316 @@
+package org.ustc.scst.dc.battleship;
+
+/**
+ * A concurrent, size-bounded cache mapping position keys to the best move
+ * found for the position and its score. The cache is set-associative: each
+ * key belongs to a set of {@link #WAYS} slots, which is searched linearly.
+ * If the set is full, a slot is evicted with the CLOCK algorithm: the clock
+ * hand of the set skips and clears slots that have been used since it last
+ * passed them, and evicts the first slot that has not. Keys and entries are
+ * kept in {@code long[]} arrays, so nothing is boxed, and the sets are
+ * guarded by a fixed number of striped locks.
+ */
+public final class MoveEvaluationCache {
+
+  /** the result of a lookup that has not found the key */
+  public static final long MISS = (-1L);
+
+  /** the number of slots per set */
+  static final int WAYS = 8;
+
+  /** the number of locks */
+  private static final int STRIPES = 64;
+
+  /** the distance between the counters of two stripes */
+  private static final int PAD = 8;
+
+  /** the index of the hit counter of a stripe */
+  private static final int HITS = 0;
+
+  /** the index of the miss counter of a stripe */
+  private static final int MISSES = (HITS + 1);
+
+  /** the index of the eviction counter of a stripe */
+  private static final int EVICTIONS = (MISSES + 1);
+
+  /** the index of the entry counter of a stripe */
+  private static final int ENTRIES = (EVICTIONS + 1);
+
+  /** the keys, 0 marks an empty slot */
+  private final long[] m_keys;
+
+  /** the entries */
+  private final long[] m_entries;
+
+  /** the slots used since the clock hand last passed them */
+  private final boolean[] m_referenced;
+
+  /** the clock hand of each set */
+  private final byte[] m_hands;
+
+  /** the locks */
+  private final Object[] m_locks;
+
+  /** the counters of each stripe */
+  private final long[] m_counters;
+
+  /** the mask for computing a set from a key */
+  private final int m_setMask;
+
+  /**
+   * Create the cache
+   * 
+   * @param capacity
+   *          the maximum number of entries, rounded up to a power of two of
+   *          at least {@link #WAYS} * 64
+   */
+  public MoveEvaluationCache(final int capacity) {
+    super();
+    int sets, i;
+
+    sets = 64;
+    while ((sets < (1 << 26)) && ((sets * WAYS) < capacity)) {
+      sets <<= 1;
+    }
+    this.m_setMask = (sets - 1);
+    this.m_keys = new long[sets * WAYS];
+    this.m_entries = new long[sets * WAYS];
+    this.m_referenced = new boolean[sets * WAYS];
+    this.m_hands = new byte[sets];
+    this.m_locks = new Object[STRIPES];
+    for (i = STRIPES; (--i) >= 0;) {
+      this.m_locks[i] = new Object();
+    }
+    this.m_counters = new long[STRIPES * PAD];
+  }
+
+  /**
+   * Pack a move and its score into an entry
+   * 
+   * @param move
+   *          the move, a non-negative cell index
+   * @param score
+   *          the score
+   * @return the entry
+   */
+  public static final long entry(final int move, final int score) {
+    return ((((long) score) << 32) | (move & 0xFFFFFFFFL));
+  }
+
+  /**
+   * Get the move of an entry
+   * 
+   * @param entry
+   *          the entry
+   * @return the move
+   */
+  public static final int move(final long entry) {
+    return ((int) entry);
+  }
+
+  /**
+   * Get the score of an entry
+   * 
+   * @param entry
+   *          the entry
+   * @return the score
+   */
+  public static final int score(final long entry) {
+    return ((int) (entry >> 32));
+  }
+
+  /**
+   * Make sure a key is not 0, which marks empty slots
+   * 
+   * @param key
+   *          the key
+   * @return the key to store
+   */
+  private static final long nonZero(final long key) {
+    return ((key != 0L) ? key : Hashing.GOLDEN);
+  }
+
+  /**
+   * Look up the entry of a key
+   * 
+   * @param key
+   *          the key
+   * @return the entry, or {@link #MISS} if the key is not in the cache
+   */
+  public final long get(final long key) {
+    final long k;
+    final int set, stripe, base;
+    int i;
+
+    k = MoveEvaluationCache.nonZero(key);
+    set = (((int) (k ^ (k >>> 32))) & this.m_setMask);
+    stripe = (set & (STRIPES - 1));
+    base = (set * WAYS);
+    synchronized (this.m_locks[stripe]) {
+      for (i = base + WAYS; (--i) >= base;) {
+        if (this.m_keys[i] == k) {
+          this.m_referenced[i] = true;
+          this.m_counters[(stripe * PAD) + HITS]++;
+          return this.m_entries[i];
+        }
+      }
+      this.m_counters[(stripe * PAD) + MISSES]++;
+    }
+    return MISS;
+  }
+
+  /**
+   * Store the entry of a key, evicting another entry if needed
+   * 
+   * @param key
+   *          the key
+   * @param entry
+   *          the entry, see {@link #entry(int, int)}
+   */
+  public final void put(final long key, final long entry) {
+    final long k;
+    final int set, stripe, base;
+    int i, hand, empty;
+
+    k = MoveEvaluationCache.nonZero(key);
+    set = (((int) (k ^ (k >>> 32))) & this.m_setMask);
+    stripe = (set & (STRIPES - 1));
+    base = (set * WAYS);
+    synchronized (this.m_locks[stripe]) {
+      empty = (-1);
+      for (i = base + WAYS; (--i) >= base;) {
+        if (this.m_keys[i] == k) {
+          this.m_entries[i] = entry;
+          this.m_referenced[i] = true;
+          return;
+        }
+        if (this.m_keys[i] == 0L) {
+          empty = i;
+        }
+      }
+
+      if (empty >= 0) {
+        this.m_keys[empty] = k;
+        this.m_entries[empty] = entry;
+        this.m_referenced[empty] = true;
+        this.m_counters[(stripe * PAD) + ENTRIES]++;
+        return;
+      }
+
+      hand = this.m_hands[set];
+      while (this.m_referenced[base + hand]) {
+        this.m_referenced[base + hand] = false;
+        hand = ((hand + 1) & (WAYS - 1));
+      }
+      i = (base + hand);
+      this.m_keys[i] = k;
+      this.m_entries[i] = entry;
+      this.m_hands[set] = (byte) ((hand + 1) & (WAYS - 1));
+      this.m_counters[(stripe * PAD) + EVICTIONS]++;
+    }
+  }
+
+  /**
+   * Sum up a counter over all stripes
+   * 
+   * @param counter
+   *          the counter index
+   * @return the sum
+   */
+  private final long sum(final int counter) {
+    long s;
+    int i;
+
+    s = 0L;
+    for (i = STRIPES; (--i) >= 0;) {
+      synchronized (this.m_locks[i]) {
+        s += this.m_counters[(i * PAD) + counter];
+      }
+    }
+    return s;
+  }
+
+  /**
+   * Get the number of lookups that have found their key
+   * 
+   * @return the number of hits
+   */
+  public final long getHits() {
+    return this.sum(HITS);
+  }
+
+  /**
+   * Get the number of lookups that have not found their key
+   * 
+   * @return the number of misses
+   */
+  public final long getMisses() {
+    return this.sum(MISSES);
+  }
+
+  /**
+   * Get the fraction of lookups that have found their key
+   * 
+   * @return the hit rate, or 0 if there have been no lookups
+   */
+  public final double getHitRate() {
+    final long hits, lookups;
+
+    hits = this.getHits();
+    lookups = (hits + this.getMisses());
+    return ((lookups > 0L) ? (hits / ((double) lookups)) : 0d);
+  }
+
+  /**
+   * Get the number of entries evicted to make room for others
+   * 
+   * @return the number of evictions
+   */
+  public final long getEvictions() {
+    return this.sum(EVICTIONS);
+  }
+
+  /**
+   * Get the number of entries in the cache
+   * 
+   * @return the number of entries
+   */
+  public final int size() {
+    return ((int) (this.sum(ENTRIES)));
+  }
+
+  /**
+   * Get the maximum number of entries
+   * 
+   * @return the capacity
+   */
+  public final int getCapacity() {
+    return this.m_keys.length;
+  }
+
+  /**
+   * Get the number of bytes occupied by the arrays of the cache
+   * 
+   * @return the memory used by the cache
+   */
+  public final long getMemoryBytes() {
+    return ((this.m_keys.length * 17L) + this.m_hands.length + //
+    (this.m_counters.length * 8L));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    final long hits, misses;
+
+    hits = this.getHits();
+    misses = this.getMisses();
+    return ("hits: " + hits + //$NON-NLS-1$
+        ", misses: " + misses + //$NON-NLS-1$
+        ", hit rate: " + //$NON-NLS-1$
+        ((hits + misses) > 0L ? ((100L * hits) / (hits + misses)) : 0L) + "%" + //$NON-NLS-1$
+        ", evictions: " + this.getEvictions() + //$NON-NLS-1$
+        ", entries: " + this.size() + '/' + this.getCapacity() + //$NON-NLS-1$
+        ", memory: " + (this.getMemoryBytes() >>> 10) + "KB"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+}
@@ -0,0 +1,212 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the moves of games into a {@link MoveStore}. The shots of both
+ * sides are collected from the cell state changes of the model of a game
+ * and appended to the store when the game ends, as a whole, so that the
+ * moves of a game are stored together even if many games are recorded at
+ * once. Whether a shot has hit a ship is taken from the final state of the
+ * model, since a hit of the player only becomes known when the enemy
+ * reports it.
+ */
+public final class MoveRecorder {
+
+  /** the writer */
+  private final MoveStore.Writer m_writer;
+
+  /** the number of recorded games */
+  private final AtomicLong m_games;
+
+  /** the number of recorded moves */
+  private final AtomicLong m_moves;
+
+  /**
+   * Create the recorder
+   *
+   * @param writer
+   *          the writer of the store
+   */
+  public MoveRecorder(final MoveStore.Writer writer) {
+    super();
+    this.m_writer = writer;
+    this.m_games = new AtomicLong();
+    this.m_moves = new AtomicLong();
+  }
+
+  /**
+   * Record the moves of a game from now on until it ends
+   *
+   * @param model
+   *          the model of the game
+   * @param game
+   *          the game id
+   * @return the listener added to the model, which may be removed after
+   *         the game has ended
+   */
+  public final IBattleshipModelListener watch(final BattleshipModel model,
+      final long game) {
+    final Recording r;
+
+    r = new Recording(this, model, game);
+    model.addListener(r, BattleshipModelFilter.cells(
+        BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN
+            | BattleshipModel.CELL_STATE_ENEMY_HAS_SEEN).withGameState());
+    return r;
+  }
+
+  /**
+   * Get the number of recorded games
+   *
+   * @return the number of recorded games
+   */
+  public final long getRecordedGames() {
+    return this.m_games.get();
+  }
+
+  /**
+   * Get the number of recorded moves
+   *
+   * @return the number of recorded moves
+   */
+  public final long getRecordedMoves() {
+    return this.m_moves.get();
+  }
+
+  /** the recording of a game */
+  private static final class Recording implements IBattleshipModelListener {
+
+    /** the recorder */
+    private final MoveRecorder m_recorder;
+
+    /** the model */
+    private final BattleshipModel m_model;
+
+    /** the game id */
+    private final long m_game;
+
+    /**
+     * the moves, each the cell index times two plus one if the enemy has
+     * fired
+     */
+    private int[] m_moves;
+
+    /** the number of moves */
+    private int m_count;
+
+    /** has the game been recorded? */
+    private boolean m_done;
+
+    /**
+     * Create the recording
+     *
+     * @param recorder
+     *          the recorder
+     * @param model
+     *          the model
+     * @param game
+     *          the game id
+     */
+    Recording(final MoveRecorder recorder, final BattleshipModel model,
+        final long game) {
+      super();
+      this.m_recorder = recorder;
+      this.m_model = model;
+      this.m_game = game;
+      this.m_moves = new int[64];
+    }
+
+    /**
+     * Add a move
+     *
+     * @param cell
+     *          the cell index
+     * @param flags
+     *          the flags
+     */
+    private final void add(final int cell, final int flags) {
+      if (this.m_count >= this.m_moves.length) {
+        this.m_moves = Arrays.copyOf(this.m_moves, (this.m_count << 1));
+      }
+      this.m_moves[this.m_count++] = ((cell << 1) | flags);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void battleshipModelChanged(final BattleshipModelEvent event) {
+      final BattleshipModel model;
+      final int w, added;
+
+      model = this.m_model;
+      synchronized (model) {
+        if (this.m_done) {
+          return;
+        }
+        w = model.getFieldWidth();
+        if ((event.whatHasChanged() & BattleshipModelEvent.CHANGE_FLAG_CELL_STATE) != 0) {
+          added = (model.getCellState(event.getX(), event.getY()) & (~event
+              .getOldState()));
+          if ((added & BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN) != 0) {
+            this.add(((event.getY() * w) + event.getX()), 0);
+          }
+          if ((added & BattleshipModel.CELL_STATE_ENEMY_HAS_SEEN) != 0) {
+            this.add(((event.getY() * w) + event.getX()), MoveStore.FLAG_ENEMY);
+          }
+        }
+        if (model.getGameState() == BattleshipModel.GAME_STATE_END) {
+          this.m_done = true;
+          this.write(model, w);
+        }
+      }
+    }
+
+    /**
+     * Append the moves to the store. Must be called while holding the lock
+     * of the model.
+     *
+     * @param model
+     *          the model in its final state
+     * @param w
+     *          the field width
+     */
+    private final void write(final BattleshipModel model, final int w) {
+      final int n;
+      final int[] x, y, flags;
+      int i, m, cell, state;
+
+      n = this.m_count;
+      if (n <= 0) {
+        return;
+      }
+      x = new int[n];
+      y = new int[n];
+      flags = new int[n];
+      for (i = n; (--i) >= 0;) {
+        m = this.m_moves[i];
+        cell = (m >>> 1);
+        x[i] = (cell % w);
+        y[i] = (cell / w);
+        state = model.getCellState(x[i], y[i]);
+        flags[i] = (m & MoveStore.FLAG_ENEMY);
+        if ((state & (((m & MoveStore.FLAG_ENEMY) != 0) ? //
+        BattleshipModel.CELL_STATE_PLAYER_SHIP
+            : BattleshipModel.CELL_STATE_ENEMY_SHIP)) != 0) {
+          flags[i] |= MoveStore.FLAG_HIT;
+        }
+      }
+      this.m_moves = null;
+
+      try {
+        this.m_recorder.m_writer.append(this.m_game, x, y, flags, n);
+      } catch (IOException e) {
+        e.printStackTrace();
+        return;
+      }
+      this.m_recorder.m_games.incrementAndGet();
+      this.m_recorder.m_moves.addAndGet(n);
+    }
+  }
+}
@@ -0,0 +1,986 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A columnar file of recorded moves, written by a {@link Writer} (e.g., fed
+ * by a {@link MoveRecorder}) and scanned in parallel by
+ * {@link Aggregation aggregations}. The moves of each game are stored
+ * together, and the games are grouped into compressed {@link MoveBlock
+ * blocks} of about {@link #BLOCK_ROWS} moves each.
+ * <p>
+ * The file starts with a header holding a magic number and the field size,
+ * followed by the blocks, an index with the offset, length, number of rows
+ * and number of games of each block, and a footer with the position of the
+ * index. A scan maps the file into memory in segments of whole blocks and
+ * lets a fork-join pool decode and aggregate ranges of blocks, merging the
+ * partial results of the ranges.
+ * </p>
+ */
+public final class MoveStore implements Closeable {
+
+  /** the flag of a move made by the enemy, not by the player */
+  public static final int FLAG_ENEMY = 1;
+
+  /** the flag of a move which has hit a ship */
+  public static final int FLAG_HIT = 2;
+
+  /** the number of rows after which a block is finished */
+  public static final int BLOCK_ROWS = 65536;
+
+  /** the magic number of a file */
+  private static final long MAGIC = 0x42534d4f56455331L;
+
+  /** the size of the header */
+  private static final int HEADER = 16;
+
+  /** the size of an index entry */
+  private static final int INDEX_ENTRY = 24;
+
+  /** the size of the footer */
+  private static final int FOOTER = 16;
+
+  /** the maximum size of a mapped segment */
+  private static final long SEGMENT = (1L << 30);
+
+  /** the channel */
+  private final FileChannel m_channel;
+
+  /** the field width */
+  private final int m_width;
+
+  /** the field height */
+  private final int m_height;
+
+  /** the offsets of the blocks */
+  private final long[] m_offsets;
+
+  /** the number of rows of each block */
+  private final int[] m_rows;
+
+  /** the number of games of each block */
+  private final int[] m_games;
+
+  /** the mapped segments, in little-endian byte order */
+  private final ByteBuffer[] m_segments;
+
+  /** the offset of each segment */
+  private final long[] m_segmentStart;
+
+  /** the segment of each block */
+  private final int[] m_blockSegment;
+
+  /**
+   * Open a file
+   *
+   * @param channel
+   *          the channel
+   * @throws IOException
+   *           if the file cannot be read or is not a move store
+   */
+  private MoveStore(final FileChannel channel) throws IOException {
+    super();
+    final ByteBuffer b;
+    final long size, index;
+    final int blocks;
+    final int[] bytes;
+    final ArrayList<ByteBuffer> segments;
+    final ArrayList<Long> starts;
+    MappedByteBuffer m;
+    long segStart, end;
+    int i, j;
+
+    this.m_channel = channel;
+    size = channel.size();
+    b = ByteBuffer.allocate(Math.max(HEADER, FOOTER)).order(
+        ByteOrder.LITTLE_ENDIAN);
+    MoveStore.readFully(channel, b, 0L, HEADER);
+    if ((size < (HEADER + FOOTER)) || (b.getLong(0) != MAGIC)) {
+      throw new IOException("Not a move store."); //$NON-NLS-1$
+    }
+    this.m_width = b.getInt(8);
+    this.m_height = b.getInt(12);
+    MoveStore.readFully(channel, b, (size - FOOTER), FOOTER);
+    if (b.getLong(8) != MAGIC) {
+      throw new IOException("The move store has not been closed."); //$NON-NLS-1$
+    }
+    index = b.getLong(0);
+    blocks = ((int) ((size - FOOTER - index) / INDEX_ENTRY));
+
+    this.m_offsets = new long[blocks];
+    this.m_rows = new int[blocks];
+    this.m_games = new int[blocks];
+    this.m_blockSegment = new int[blocks];
+    bytes = new int[blocks];
+    if (blocks > 0) {
+      m = channel.map(FileChannel.MapMode.READ_ONLY, index,
+          (blocks * ((long) INDEX_ENTRY)));
+      m.order(ByteOrder.LITTLE_ENDIAN);
+      for (i = 0; i < blocks; i++) {
+        this.m_offsets[i] = m.getLong();
+        bytes[i] = m.getInt();
+        this.m_rows[i] = m.getInt();
+        this.m_games[i] = m.getInt();
+        m.getInt();
+      }
+    }
+
+    // map whole blocks in segments of at most SEGMENT bytes
+    segments = new ArrayList<>();
+    starts = new ArrayList<>();
+    for (i = 0; i < blocks; i = j) {
+      segStart = this.m_offsets[i];
+      end = (segStart + bytes[i]);
+      for (j = (i + 1); (j < blocks)
+          && (((this.m_offsets[j] + bytes[j]) - segStart) <= SEGMENT); j++) {
+        end = (this.m_offsets[j] + bytes[j]);
+      }
+      m = channel.map(FileChannel.MapMode.READ_ONLY, segStart,
+          (end - segStart));
+      m.order(ByteOrder.LITTLE_ENDIAN);
+      Arrays.fill(this.m_blockSegment, i, j, segments.size());
+      segments.add(m);
+      starts.add(Long.valueOf(segStart));
+    }
+    this.m_segments = segments.toArray(new ByteBuffer[segments.size()]);
+    this.m_segmentStart = new long[starts.size()];
+    for (i = this.m_segmentStart.length; (--i) >= 0;) {
+      this.m_segmentStart[i] = starts.get(i).longValue();
+    }
+  }
+
+  /**
+   * Open a move store for scanning
+   *
+   * @param file
+   *          the file written by a {@link Writer}
+   * @return the move store
+   * @throws IOException
+   *           if the file cannot be read or is not a move store
+   */
+  public static final MoveStore open(final File file) throws IOException {
+    final FileChannel c;
+
+    c = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      return new MoveStore(c);
+    } catch (IOException e) {
+      c.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Read a number of bytes from a position
+   *
+   * @param channel
+   *          the channel
+   * @param b
+   *          the destination
+   * @param pos
+   *          the position
+   * @param length
+   *          the number of bytes
+   * @throws IOException
+   *           if the bytes cannot be read
+   */
+  private static final void readFully(final FileChannel channel,
+      final ByteBuffer b, final long pos, final int length) throws IOException {
+    int n;
+
+    b.clear();
+    b.limit(length);
+    while (b.hasRemaining()) {
+      n = channel.read(b, (pos + b.position()));
+      if (n < 0) {
+        throw new IOException("Unexpected end of the move store."); //$NON-NLS-1$
+      }
+    }
+  }
+
+  /**
+   * Get the field width
+   *
+   * @return the field width
+   */
+  public final int getWidth() {
+    return this.m_width;
+  }
+
+  /**
+   * Get the field height
+   *
+   * @return the field height
+   */
+  public final int getHeight() {
+    return this.m_height;
+  }
+
+  /**
+   * Get the number of blocks
+   *
+   * @return the number of blocks
+   */
+  public final int getBlocks() {
+    return this.m_offsets.length;
+  }
+
+  /**
+   * Get the number of moves
+   *
+   * @return the number of moves
+   */
+  public final long getMoves() {
+    long s;
+    int i;
+
+    s = 0L;
+    for (i = this.m_rows.length; (--i) >= 0;) {
+      s += this.m_rows[i];
+    }
+    return s;
+  }
+
+  /**
+   * Get the number of games
+   *
+   * @return the number of games
+   */
+  public final long getGames() {
+    long s;
+    int i;
+
+    s = 0L;
+    for (i = this.m_games.length; (--i) >= 0;) {
+      s += this.m_games[i];
+    }
+    return s;
+  }
+
+  /**
+   * Decode a block
+   *
+   * @param i
+   *          the index of the block
+   * @param buf
+   *          the duplicate of the segment of the block, used by the calling
+   *          thread only
+   * @param block
+   *          the destination
+   */
+  final void decode(final int i, final ByteBuffer buf, final MoveBlock block) {
+    block.decode(buf,
+        ((int) (this.m_offsets[i] - this.m_segmentStart[this.m_blockSegment[i]])));
+  }
+
+  /**
+   * Scan all moves
+   *
+   * @param pool
+   *          the pool to scan the blocks with
+   * @param aggregation
+   *          an empty aggregation, which receives all moves
+   * @return {@code aggregation}
+   * @param <A>
+   *          the type of the aggregation
+   */
+  public final <A extends Aggregation> A scan(final ForkJoinPool pool,
+      final A aggregation) {
+    final int grain;
+
+    if (this.m_offsets.length > 0) {
+      // a few ranges per worker, so that the workers can balance the load
+      grain = Math.max(1,
+          (this.m_offsets.length / (8 * pool.getParallelism())));
+      pool.invoke(new ScanTask(this, aggregation, 0, this.m_offsets.length,
+          grain));
+    }
+    return aggregation;
+  }
+
+  /**
+   * Count the moves with given flags per cell
+   *
+   * @param pool
+   *          the pool to scan the blocks with
+   * @param mask
+   *          the flags to check
+   * @param flags
+   *          the values the checked flags must have, e.g.,
+   *          {@link #FLAG_HIT} with the mask
+   *          {@code FLAG_ENEMY|FLAG_HIT} for the hits of the player
+   * @return the heatmap, indexed by {@code y*width + x}
+   */
+  public final long[] heatmap(final ForkJoinPool pool, final int mask,
+      final int flags) {
+    return this.scan(pool,
+        new CountHeatmap((this.m_width * this.m_height), this.m_width, mask,
+            flags)).m_counts;
+  }
+
+  /**
+   * Count, per cell, how often the first hit of a side in a game has been
+   * made there
+   *
+   * @param pool
+   *          the pool to scan the blocks with
+   * @param side
+   *          the side, 0 for the player or {@link #FLAG_ENEMY}
+   * @return the heatmap, indexed by {@code y*width + x}
+   */
+  public final long[] firstHitHeatmap(final ForkJoinPool pool,
+      final int side) {
+    return this.scan(pool,
+        new FirstHitHeatmap((this.m_width * this.m_height), this.m_width,
+            side)).m_counts;
+  }
+
+  /**
+   * Get the histogram of the number of shots a side has needed for a
+   * number of hits, e.g., for all ship cells, i.e., for winning
+   *
+   * @param pool
+   *          the pool to scan the blocks with
+   * @param side
+   *          the side, 0 for the player or {@link #FLAG_ENEMY}
+   * @param hits
+   *          the number of hits
+   * @return the histogram: the element at index i is the number of games
+   *         in which the side has needed i shots; games in which the side
+   *         has not made that many hits are not counted
+   */
+  public final long[] shotsUntilHits(final ForkJoinPool pool,
+      final int side, final int hits) {
+    return this.scan(pool,
+        new ShotsUntilHits((this.m_width * this.m_height), side, hits)).m_counts;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void close() throws IOException {
+    this.m_channel.close();
+  }
+
+  /**
+   * An aggregation of moves. A scan forks an aggregation for each range of
+   * blocks it processes in parallel and joins the partial results.
+   */
+  public static abstract class Aggregation {
+
+    /** Create the aggregation */
+    protected Aggregation() {
+      super();
+    }
+
+    /**
+     * Create a new, empty aggregation of the same kind
+     *
+     * @return the new aggregation
+     */
+    protected abstract Aggregation fork();
+
+    /**
+     * Add the moves of a block
+     *
+     * @param block
+     *          the block, which must not be kept
+     */
+    protected abstract void add(MoveBlock block);
+
+    /**
+     * Add the result of a forked aggregation
+     *
+     * @param other
+     *          the aggregation returned by {@link #fork()}
+     */
+    protected abstract void join(Aggregation other);
+  }
+
+  /** an aggregation into an array of counts */
+  private static abstract class Counts extends Aggregation {
+
+    /** the counts */
+    long[] m_counts;
+
+    /**
+     * Create the aggregation
+     *
+     * @param size
+     *          the initial number of counts
+     */
+    Counts(final int size) {
+      super();
+      this.m_counts = new long[size];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final void join(final Aggregation other) {
+      final long[] o;
+      int i;
+
+      o = ((Counts) other).m_counts;
+      if (o.length > this.m_counts.length) {
+        this.m_counts = Arrays.copyOf(this.m_counts, o.length);
+      }
+      for (i = o.length; (--i) >= 0;) {
+        this.m_counts[i] += o[i];
+      }
+    }
+  }
+
+  /** the counts of the moves with given flags per cell */
+  private static final class CountHeatmap extends Counts {
+
+    /** the field width */
+    private final int m_width;
+
+    /** the flags to check */
+    private final int m_mask;
+
+    /** the values of the checked flags */
+    private final int m_flags;
+
+    /**
+     * Create the aggregation
+     *
+     * @param size
+     *          the number of cells
+     * @param width
+     *          the field width
+     * @param mask
+     *          the flags to check
+     * @param flags
+     *          the values of the checked flags
+     */
+    CountHeatmap(final int size, final int width, final int mask,
+        final int flags) {
+      super(size);
+      this.m_width = width;
+      this.m_mask = mask;
+      this.m_flags = flags;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final Aggregation fork() {
+      return new CountHeatmap(this.m_counts.length, this.m_width,
+          this.m_mask, this.m_flags);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final void add(final MoveBlock block) {
+      final int[] x, y, f;
+      final long[] counts;
+      final int w, mask, flags;
+      int i;
+
+      x = block.m_x;
+      y = block.m_y;
+      f = block.m_flags;
+      counts = this.m_counts;
+      w = this.m_width;
+      mask = this.m_mask;
+      flags = this.m_flags;
+      for (i = block.m_rows; (--i) >= 0;) {
+        if ((f[i] & mask) == flags) {
+          counts[(y[i] * w) + x[i]]++;
+        }
+      }
+    }
+  }
+
+  /** the counts of the first hits of a side per cell */
+  private static final class FirstHitHeatmap extends Counts {
+
+    /** the field width */
+    private final int m_width;
+
+    /** the side */
+    private final int m_side;
+
+    /**
+     * Create the aggregation
+     *
+     * @param size
+     *          the number of cells
+     * @param width
+     *          the field width
+     * @param side
+     *          the side
+     */
+    FirstHitHeatmap(final int size, final int width, final int side) {
+      super(size);
+      this.m_width = width;
+      this.m_side = side;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final Aggregation fork() {
+      return new FirstHitHeatmap(this.m_counts.length, this.m_width,
+          this.m_side);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final void add(final MoveBlock block) {
+      final int[] f, start;
+      final int hit;
+      int run, i, end;
+
+      f = block.m_flags;
+      start = block.m_runStart;
+      hit = (this.m_side | FLAG_HIT);
+      for (run = block.m_runs; (--run) >= 0;) {
+        end = start[run + 1];
+        for (i = start[run]; i < end; i++) {
+          if ((f[i] & (FLAG_ENEMY | FLAG_HIT)) == hit) {
+            this.m_counts[(block.m_y[i] * this.m_width) + block.m_x[i]]++;
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /** the histogram of the shots a side has needed for a number of hits */
+  private static final class ShotsUntilHits extends Counts {
+
+    /** the side */
+    private final int m_side;
+
+    /** the number of hits */
+    private final int m_hits;
+
+    /**
+     * Create the aggregation
+     *
+     * @param size
+     *          the initial size of the histogram
+     * @param side
+     *          the side
+     * @param hits
+     *          the number of hits
+     */
+    ShotsUntilHits(final int size, final int side, final int hits) {
+      super(size + 1);
+      this.m_side = side;
+      this.m_hits = hits;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final Aggregation fork() {
+      return new ShotsUntilHits((this.m_counts.length - 1), this.m_side,
+          this.m_hits);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final void add(final MoveBlock block) {
+      final int[] f, start;
+      int run, i, end, shots, hits;
+
+      f = block.m_flags;
+      start = block.m_runStart;
+      for (run = block.m_runs; (--run) >= 0;) {
+        end = start[run + 1];
+        shots = 0;
+        hits = 0;
+        for (i = start[run]; (i < end) && (hits < this.m_hits); i++) {
+          if ((f[i] & FLAG_ENEMY) == this.m_side) {
+            shots++;
+            hits += ((f[i] & FLAG_HIT) >>> 1);
+          }
+        }
+        if (hits >= this.m_hits) {
+          if (shots >= this.m_counts.length) {
+            this.m_counts = Arrays.copyOf(this.m_counts, (shots + 1));
+          }
+          this.m_counts[shots]++;
+        }
+      }
+    }
+  }
+
+  /** the task scanning a range of blocks */
+  private static final class ScanTask extends RecursiveAction {
+
+    /** the serial version uid */
+    private static final long serialVersionUID = 1L;
+
+    /** the store */
+    private final transient MoveStore m_store;
+
+    /** the aggregation */
+    private final transient Aggregation m_aggregation;
+
+    /** the first block */
+    private final int m_from;
+
+    /** the end of the blocks */
+    private final int m_to;
+
+    /** the number of blocks scanned without splitting */
+    private final int m_grain;
+
+    /**
+     * Create the task
+     *
+     * @param store
+     *          the store
+     * @param aggregation
+     *          the aggregation
+     * @param from
+     *          the first block
+     * @param to
+     *          the end of the blocks
+     * @param grain
+     *          the number of blocks scanned without splitting
+     */
+    ScanTask(final MoveStore store, final Aggregation aggregation,
+        final int from, final int to, final int grain) {
+      super();
+      this.m_store = store;
+      this.m_aggregation = aggregation;
+      this.m_from = from;
+      this.m_to = to;
+      this.m_grain = grain;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final void compute() {
+      final MoveStore store;
+      final MoveBlock block;
+      final int mid;
+      final ScanTask right;
+      ByteBuffer buf;
+      int i, segment;
+
+      store = this.m_store;
+      if ((this.m_to - this.m_from) > this.m_grain) {
+        mid = ((this.m_from + this.m_to) >>> 1);
+        right = new ScanTask(store, this.m_aggregation.fork(), mid,
+            this.m_to, this.m_grain);
+        RecursiveAction.invokeAll(new ScanTask(store, this.m_aggregation,
+            this.m_from, mid, this.m_grain), right);
+        this.m_aggregation.join(right.m_aggregation);
+        return;
+      }
+
+      block = new MoveBlock();
+      buf = null;
+      segment = -1;
+      for (i = this.m_from; i < this.m_to; i++) {
+        if (store.m_blockSegment[i] != segment) {
+          segment = store.m_blockSegment[i];
+          buf = store.m_segments[segment].duplicate().order(
+              ByteOrder.LITTLE_ENDIAN);
+        }
+        store.decode(i, buf, block);
+        this.m_aggregation.add(block);
+      }
+    }
+  }
+
+  /**
+   * The writer of a move store. Games are appended as a whole, so that the
+   * moves of each game are stored together.
+   */
+  public static final class Writer implements Closeable {
+
+    /** the channel */
+    private final FileChannel m_channel;
+
+    /** the offsets of the blocks */
+    private final ArrayList<long[]> m_index;
+
+    /** the game ids of the runs of the current block */
+    private long[] m_runGame;
+
+    /** the lengths of the runs of the current block */
+    private int[] m_runLength;
+
+    /** the move indexes of the current block */
+    private int[] m_move;
+
+    /** the x-coordinates of the current block */
+    private int[] m_x;
+
+    /** the y-coordinates of the current block */
+    private int[] m_y;
+
+    /** the flags of the current block */
+    private int[] m_flags;
+
+    /** the number of runs of the current block */
+    private int m_runs;
+
+    /** the number of rows of the current block */
+    private int m_rows;
+
+    /** the position of the next block */
+    private long m_position;
+
+    /** the buffer for encoding a block */
+    private ByteBuffer m_buffer;
+
+    /**
+     * Create a move store, replacing an existing file
+     *
+     * @param file
+     *          the file
+     * @param width
+     *          the field width
+     * @param height
+     *          the field height
+     * @throws IOException
+     *           if the file cannot be written
+     */
+    public Writer(final File file, final int width, final int height)
+        throws IOException {
+      super();
+      final ByteBuffer b;
+
+      this.m_channel = FileChannel.open(file.toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+      this.m_index = new ArrayList<>();
+      this.m_runGame = new long[1024];
+      this.m_runLength = new int[1024];
+      this.m_move = new int[BLOCK_ROWS + 1024];
+      this.m_x = new int[this.m_move.length];
+      this.m_y = new int[this.m_move.length];
+      this.m_flags = new int[this.m_move.length];
+      this.m_buffer = ByteBuffer.allocate(1 << 20).order(
+          ByteOrder.LITTLE_ENDIAN);
+
+      b = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      b.putLong(MAGIC).putInt(width).putInt(height).flip();
+      this.write(b);
+    }
+
+    /**
+     * Write a buffer at the current position
+     *
+     * @param b
+     *          the buffer, flipped
+     * @throws IOException
+     *           if the buffer cannot be written
+     */
+    private final void write(final ByteBuffer b) throws IOException {
+      while (b.hasRemaining()) {
+        this.m_position += this.m_channel.write(b, this.m_position);
+      }
+    }
+
+    /**
+     * Append the moves of a game
+     *
+     * @param game
+     *          the game id
+     * @param x
+     *          the x-coordinates of the moves
+     * @param y
+     *          the y-coordinates of the moves
+     * @param flags
+     *          the flags of the moves, combinations of {@link #FLAG_ENEMY}
+     *          and {@link #FLAG_HIT}
+     * @param count
+     *          the number of moves
+     * @throws IOException
+     *           if a block cannot be written
+     */
+    public synchronized final void append(final long game, final int[] x,
+        final int[] y, final int[] flags, final int count) throws IOException {
+      final int r;
+      int i;
+
+      if (count <= 0) {
+        return;
+      }
+      r = this.m_rows;
+      if ((r + count) > this.m_move.length) {
+        i = Math.max((r + count), (this.m_move.length << 1));
+        this.m_move = Arrays.copyOf(this.m_move, i);
+        this.m_x = Arrays.copyOf(this.m_x, i);
+        this.m_y = Arrays.copyOf(this.m_y, i);
+        this.m_flags = Arrays.copyOf(this.m_flags, i);
+      }
+      if (this.m_runs >= this.m_runGame.length) {
+        this.m_runGame = Arrays.copyOf(this.m_runGame, (this.m_runs << 1));
+        this.m_runLength = Arrays.copyOf(this.m_runLength, (this.m_runs << 1));
+      }
+      for (i = count; (--i) >= 0;) {
+        this.m_move[r + i] = i;
+      }
+      System.arraycopy(x, 0, this.m_x, r, count);
+      System.arraycopy(y, 0, this.m_y, r, count);
+      System.arraycopy(flags, 0, this.m_flags, r, count);
+      this.m_runGame[this.m_runs] = game;
+      this.m_runLength[this.m_runs++] = count;
+      this.m_rows = (r + count);
+
+      if (this.m_rows >= BLOCK_ROWS) {
+        this.flushBlock();
+      }
+    }
+
+    /**
+     * Write a variable-length number to the buffer
+     *
+     * @param value
+     *          the number, not negative
+     */
+    private final void putVarLong(final long value) {
+      long v;
+
+      v = value;
+      while ((v & (~0x7fL)) != 0L) {
+        this.m_buffer.put((byte) ((v & 0x7fL) | 0x80L));
+        v >>>= 7;
+      }
+      this.m_buffer.put((byte) v);
+    }
+
+    /**
+     * Get the largest value of a column
+     *
+     * @param values
+     *          the column
+     * @param rows
+     *          the number of rows
+     * @return the largest value
+     */
+    private static final int max(final int[] values, final int rows) {
+      int i, m;
+
+      m = 0;
+      for (i = rows; (--i) >= 0;) {
+        m |= values[i];
+      }
+      return m;
+    }
+
+    /**
+     * Encode and write the current block
+     *
+     * @throws IOException
+     *           if the block cannot be written
+     */
+    private final void flushBlock() throws IOException {
+      final int rows, wMove, wX, wY, wFlags, runBytes, size;
+      final int[] move;
+      final long offset;
+      ByteBuffer b;
+      long prev, d;
+      int i, r, j, expected, m;
+
+      rows = this.m_rows;
+      if (rows <= 0) {
+        return;
+      }
+
+      // the move indexes relative to their predecessors, zig-zag encoded
+      move = this.m_move;
+      j = 0;
+      m = 0;
+      for (r = 0; r < this.m_runs; r++) {
+        expected = 0;
+        for (i = this.m_runLength[r]; (--i) >= 0; j++) {
+          d = (move[j] - expected);
+          expected = (move[j] + 1);
+          move[j] = ((int) ((d << 1) ^ (d >> 63)));
+          m |= move[j];
+        }
+      }
+      wMove = MoveBlock.width(m);
+      wX = MoveBlock.width(Writer.max(this.m_x, rows));
+      wY = MoveBlock.width(Writer.max(this.m_y, rows));
+      wFlags = MoveBlock.width(Writer.max(this.m_flags, rows));
+
+      size = (MoveBlock.HEADER + (this.m_runs * 20) + 8 + (8 * (MoveBlock
+          .words(rows, wMove)
+          + MoveBlock.words(rows, wX)
+          + MoveBlock.words(rows, wY) + MoveBlock.words(rows, wFlags))));
+      if (size > this.m_buffer.capacity()) {
+        this.m_buffer = ByteBuffer.allocate(size).order(
+            ByteOrder.LITTLE_ENDIAN);
+      }
+      b = this.m_buffer;
+      b.clear();
+      b.position(MoveBlock.HEADER);
+      prev = 0L;
+      for (r = 0; r < this.m_runs; r++) {
+        d = (this.m_runGame[r] - prev);
+        prev = this.m_runGame[r];
+        this.putVarLong((d << 1) ^ (d >> 63));
+        this.putVarLong(this.m_runLength[r]);
+      }
+      while ((b.position() & 7) != 0) {
+        b.put((byte) 0);
+      }
+      runBytes = (b.position() - MoveBlock.HEADER);
+      MoveBlock.pack(b, move, rows, wMove);
+      MoveBlock.pack(b, this.m_x, rows, wX);
+      MoveBlock.pack(b, this.m_y, rows, wY);
+      MoveBlock.pack(b, this.m_flags, rows, wFlags);
+      b.putInt(0, rows).putInt(4, this.m_runs).put(8, (byte) wMove)
+          .put(9, (byte) wX).put(10, (byte) wY).put(11, (byte) wFlags)
+          .putInt(12, runBytes);
+      b.flip();
+
+      offset = this.m_position;
+      this.m_index.add(new long[] { offset, b.remaining(), rows, this.m_runs });
+      this.write(b);
+      this.m_rows = 0;
+      this.m_runs = 0;
+    }
+
+    /**
+     * Write the last block and the index and close the file
+     *
+     * @throws IOException
+     *           if the file cannot be written
+     */
+    @Override
+    public synchronized final void close() throws IOException {
+      final ByteBuffer b;
+      final long index;
+
+      if (!(this.m_channel.isOpen())) {
+        return;
+      }
+      try {
+        this.flushBlock();
+        index = this.m_position;
+        b = ByteBuffer.allocate((this.m_index.size() * INDEX_ENTRY) + FOOTER)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        for (long[] e : this.m_index) {
+          b.putLong(e[0]).putInt((int) e[1]).putInt((int) e[2])
+              .putInt((int) e[3]).putInt(0);
+        }
+        b.putLong(index).putLong(MAGIC);
+        b.flip();
+        this.write(b);
+        this.m_channel.force(false);
+      } finally {
+        this.m_channel.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,272 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Record games between strategies with a {@link MoveRecorder}, check that
+ * the recorded hits match those of the models, then blow the recorded games
+ * up to a large {@link MoveStore} by replaying them under the symmetries of
+ * the square field and measure the scan rate of some queries.
+ */
+public final class MoveStoreBenchmark {
+
+  /**
+   * the size of a move in an uncompressed row format: a long game id and
+   * ints for the move index, the coordinates and the flags
+   */
+  private static final int ROW_BYTES = 24;
+
+  /** no instances */
+  private MoveStoreBenchmark() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Apply a symmetry of the square field to a coordinate pair
+   *
+   * @param s
+   *          the symmetry, 0 to 7
+   * @param x
+   *          the x-coordinate
+   * @param y
+   *          the y-coordinate
+   * @param n
+   *          the field size
+   * @return the transformed x-coordinate in the lower half, the y-coordinate
+   *         in the upper half
+   */
+  private static final int transform(final int s, final int x, final int y,
+      final int n) {
+    int a, b, t;
+
+    a = (((s & 1) != 0) ? ((n - 1) - x) : x);
+    b = (((s & 2) != 0) ? ((n - 1) - y) : y);
+    if ((s & 4) != 0) {
+      t = a;
+      a = b;
+      b = t;
+    }
+    return ((b << 16) | a);
+  }
+
+  /**
+   * Run the benchmark
+   *
+   * @param args
+   *          the number of recorded games (default: 10000) and the number
+   *          of moves of the large store in millions (default: 100)
+   * @throws Exception
+   *           if something goes wrong
+   */
+  public static final void main(final String[] args) throws Exception {
+    final int games, n;
+    final long moves;
+    final File small, large;
+    final ForkJoinPool pool;
+    final HeadlessGame game;
+    final IBattleshipStrategy a, b;
+    final Random random;
+    final Collect collected;
+    final BattleshipModel m;
+    MoveRecorder recorder;
+    IBattleshipModelListener l;
+    long playerHits, enemyHits, written, start, time, sum, best;
+    long[] map;
+    int i, j, k, s, t, g;
+    int[] x, y, f;
+
+    games = ((args.length > 0) ? Integer.parseInt(args[0]) : 10000);
+    moves = (((args.length > 1) ? Long.parseLong(args[1]) : 100L) * 1000000L);
+    n = BattleshipModel.DEFAULT_FIELD_WIDTH;
+    pool = new ForkJoinPool();
+    random = new Random(1L);
+    a = new HuntTargetStrategy();
+    b = new ProbabilityDensityStrategy();
+    game = new HeadlessGame(n, n, BattleshipModel.DEFAULT_SHIPS_TO_PLACE);
+    m = game.getFirstModel();
+    small = File.createTempFile("battleship-moves", ".small"); //$NON-NLS-1$//$NON-NLS-2$
+    large = File.createTempFile("battleship-moves", ".large"); //$NON-NLS-1$//$NON-NLS-2$
+
+    try {
+      // record real games and count the hits on the models
+      playerHits = enemyHits = 0L;
+      try (MoveStore.Writer w = new MoveStore.Writer(small, n, n)) {
+        recorder = new MoveRecorder(w);
+        for (g = 0; g < games; g++) {
+          l = recorder.watch(m, g);
+          game.play(a, b, random);
+          m.removeListener(l);
+          for (j = n; (--j) >= 0;) {
+            for (i = n; (--i) >= 0;) {
+              k = m.getCellState(i, j);
+              if ((k & BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN) != 0) {
+                playerHits += ((k & BattleshipModel.CELL_STATE_ENEMY_SHIP) != 0) ? 1
+                    : 0;
+              }
+              if ((k & BattleshipModel.CELL_STATE_ENEMY_HAS_SEEN) != 0) {
+                enemyHits += ((k & BattleshipModel.CELL_STATE_PLAYER_SHIP) != 0) ? 1
+                    : 0;
+              }
+            }
+          }
+        }
+      }
+
+      try (MoveStore store = MoveStore.open(small)) {
+        System.out.println("recorded:       " + store.getGames() //$NON-NLS-1$
+            + " games, " + store.getMoves() + " moves, " //$NON-NLS-1$//$NON-NLS-2$
+            + small.length() + " bytes (" //$NON-NLS-1$
+            + (((small.length() * 8d) / Math.max(1L, store.getMoves())))
+            + " bits/move)"); //$NON-NLS-1$
+        System.out.println("hits:           player " //$NON-NLS-1$
+            + MoveStoreBenchmark.sum(store.heatmap(pool,
+                (MoveStore.FLAG_ENEMY | MoveStore.FLAG_HIT),
+                MoveStore.FLAG_HIT)) + " (model " + playerHits //$NON-NLS-1$
+            + "), enemy " //$NON-NLS-1$
+            + MoveStoreBenchmark.sum(store.heatmap(pool,
+                (MoveStore.FLAG_ENEMY | MoveStore.FLAG_HIT),
+                (MoveStore.FLAG_ENEMY | MoveStore.FLAG_HIT))) + " (model " //$NON-NLS-1$
+            + enemyHits + ')');
+        collected = store.scan(pool, new Collect());
+      }
+
+      // replay the recorded games under the symmetries of the field
+      written = 0L;
+      try (MoveStore.Writer w = new MoveStore.Writer(large, n, n)) {
+        x = new int[n * n * 2];
+        y = new int[x.length];
+        for (g = 0; written < moves; g++) {
+          f = collected.m_flags.get(g % collected.m_flags.size());
+          s = ((g / collected.m_flags.size()) & 7);
+          for (i = f.length; (--i) >= 0;) {
+            t = collected.m_cells.get(g % collected.m_flags.size())[i];
+            t = MoveStoreBenchmark.transform(s, (t % n), (t / n), n);
+            x[i] = (t & 0xffff);
+            y[i] = (t >>> 16);
+          }
+          w.append(g, x, y, f, f.length);
+          written += f.length;
+        }
+      }
+
+      try (MoveStore store = MoveStore.open(large)) {
+        System.out.println("large store:    " + store.getGames() //$NON-NLS-1$
+            + " games, " + store.getMoves() + " moves, " //$NON-NLS-1$//$NON-NLS-2$
+            + (large.length() >>> 20) + " MiB, " //$NON-NLS-1$
+            + store.getBlocks() + " blocks"); //$NON-NLS-1$
+
+        for (k = 0; k < 3; k++) {
+          best = Long.MAX_VALUE;
+          map = null;
+          for (i = 0; i < 3; i++) {
+            start = System.nanoTime();
+            switch (k) {
+              case 0: {
+                map = store.heatmap(pool, MoveStore.FLAG_ENEMY, 0);
+                break;
+              }
+              case 1: {
+                map = store.firstHitHeatmap(pool, 0);
+                break;
+              }
+              default: {
+                map = store.shotsUntilHits(pool, 0, m.getMaxShipCells());
+                break;
+              }
+            }
+            best = Math.min(best, (System.nanoTime() - start));
+          }
+          time = Math.max(1L, best);
+          sum = MoveStoreBenchmark.sum(map);
+          System.out.println(((k == 0) ? "shot heatmap:   " //$NON-NLS-1$
+              : ((k == 1) ? "first hits:     " //$NON-NLS-1$
+                  : "shots to hits:  ")) //$NON-NLS-1$
+              + (time / 1000000L) + "ms, " //$NON-NLS-1$
+              + ((long) ((store.getMoves() * 1e9d) / time)) + " moves/s, " //$NON-NLS-1$
+              + String.format("%.2f", //$NON-NLS-1$
+                  Double.valueOf((large.length() * 1d) / time))
+              + " GB/s compressed, " //$NON-NLS-1$
+              + String.format("%.2f", //$NON-NLS-1$
+                  Double.valueOf((store.getMoves() * ((double) ROW_BYTES))
+                      / time)) + " GB/s as rows (total " + sum + ')'); //$NON-NLS-1$
+        }
+      }
+    } finally {
+      small.delete();
+      large.delete();
+    }
+  }
+
+  /**
+   * Sum up an array
+   *
+   * @param a
+   *          the array
+   * @return the sum
+   */
+  private static final long sum(final long[] a) {
+    long s;
+    int i;
+
+    s = 0L;
+    for (i = a.length; (--i) >= 0;) {
+      s += a[i];
+    }
+    return s;
+  }
+
+  /** an aggregation collecting the games */
+  private static final class Collect extends MoveStore.Aggregation {
+
+    /** the cells of the moves of the games */
+    final ArrayList<int[]> m_cells;
+
+    /** the flags of the moves of the games */
+    final ArrayList<int[]> m_flags;
+
+    /** Create the aggregation */
+    Collect() {
+      super();
+      this.m_cells = new ArrayList<>();
+      this.m_flags = new ArrayList<>();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final MoveStore.Aggregation fork() {
+      return new Collect();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final void add(final MoveBlock block) {
+      final int w;
+      int run, i, from, to;
+      int[] c, f;
+
+      w = BattleshipModel.DEFAULT_FIELD_WIDTH;
+      for (run = 0; run < block.getRuns(); run++) {
+        from = block.getRunStart(run);
+        to = block.getRunStart(run + 1);
+        c = new int[to - from];
+        f = new int[to - from];
+        for (i = from; i < to; i++) {
+          c[i - from] = ((block.getY(i) * w) + block.getX(i));
+          f[i - from] = block.getFlags(i);
+        }
+        this.m_cells.add(c);
+        this.m_flags.add(f);
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final void join(final MoveStore.Aggregation other) {
+      this.m_cells.addAll(((Collect) other).m_cells);
+      this.m_flags.addAll(((Collect) other).m_flags);
+    }
+  }
+}
@@ -0,0 +1,870 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A proxy emulating a wide area network between two communicators. It
+ * forwards TCP connections and UDP datagrams arriving at its port to a
+ * target and back, delaying each chunk of data by a configurable latency
+ * plus a random jitter, limiting the bandwidth of each direction of each
+ * flow, and dropping and reordering packets.
+ * <p>
+ * All flows are served by a single thread with a selector. Delayed data is
+ * put on a {@link TimingWheel}, so thousands of flows with many packets in
+ * flight cost only constant time per packet.
+ * </p>
+ * <p>
+ * Since TCP is a reliable byte stream, a lost TCP packet is not dropped but
+ * delivered after a retransmission timeout, and TCP data is never
+ * reordered: a late chunk holds back the ones behind it, just as on a real
+ * connection. UDP datagrams are really dropped, and reordered datagrams are
+ * held back so that later ones overtake them.
+ * </p>
+ */
+public final class NetworkEmulatorProxy implements Runnable {
+
+  /** the size of the chunks read from TCP connections */
+  private static final int CHUNK = 16384;
+
+  /** the number of bytes in flight per direction before reading pauses */
+  private static final long MAX_IN_FLIGHT = (1L << 20);
+
+  /** the minimum retransmission timeout of a lost TCP packet */
+  private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(200L);
+
+  /** the time after which an idle UDP flow is closed */
+  private static final long UDP_IDLE = TimeUnit.SECONDS.toNanos(60L);
+
+  /** the target */
+  private final InetSocketAddress m_target;
+
+  /** the latency in nanoseconds */
+  private final long m_latency;
+
+  /** the maximum jitter in nanoseconds */
+  private final long m_jitter;
+
+  /** the bandwidth in bytes per second, or 0 for unlimited */
+  private final long m_bandwidth;
+
+  /** the probability that a packet is lost */
+  private final double m_loss;
+
+  /** the probability that a datagram is reordered */
+  private final double m_reorder;
+
+  /** the selector */
+  private final Selector m_selector;
+
+  /** the TCP server channel, or null */
+  private final ServerSocketChannel m_tcp;
+
+  /** the UDP channel receiving from the clients, or null */
+  private final DatagramChannel m_udp;
+
+  /** the wheel of the delayed data */
+  private final TimingWheel m_wheel;
+
+  /** the random number generator */
+  private final Random m_random;
+
+  /** the UDP flows by client address */
+  private final HashMap<SocketAddress, UdpFlow> m_udpFlows;
+
+  /** the number of open flows */
+  private final AtomicLong m_flows;
+
+  /** the number of forwarded packets */
+  private final AtomicLong m_forwarded;
+
+  /** the number of dropped packets */
+  private final AtomicLong m_dropped;
+
+  /** are we running? */
+  private volatile boolean m_running;
+
+  /**
+   * Create the proxy
+   *
+   * @param port
+   *          the port to listen on, or 0 for any free port
+   * @param targetHost
+   *          the host to forward to
+   * @param targetPort
+   *          the port to forward to
+   * @param latency
+   *          the one-way latency in milliseconds
+   * @param jitter
+   *          the maximum additional random delay in milliseconds
+   * @param bandwidth
+   *          the bandwidth of each direction of each flow in bytes per
+   *          second, or 0 for unlimited
+   * @param loss
+   *          the probability that a packet is lost
+   * @param reorder
+   *          the probability that a datagram is reordered
+   * @param tcp
+   *          should TCP connections be forwarded?
+   * @param udp
+   *          should UDP datagrams be forwarded?
+   * @throws IOException
+   *           if the port cannot be opened
+   */
+  public NetworkEmulatorProxy(final int port, final String targetHost,
+      final int targetPort, final long latency, final long jitter,
+      final long bandwidth, final double loss, final double reorder,
+      final boolean tcp, final boolean udp) throws IOException {
+    super();
+    int p;
+
+    this.m_target = new InetSocketAddress(targetHost, targetPort);
+    this.m_latency = TimeUnit.MILLISECONDS.toNanos(latency);
+    this.m_jitter = TimeUnit.MILLISECONDS.toNanos(jitter);
+    this.m_bandwidth = bandwidth;
+    this.m_loss = loss;
+    this.m_reorder = reorder;
+    this.m_selector = Selector.open();
+    this.m_wheel = new TimingWheel(1L, TimeUnit.MILLISECONDS, 1024);
+    this.m_random = new Random();
+    this.m_udpFlows = new HashMap<>();
+    this.m_flows = new AtomicLong();
+    this.m_forwarded = new AtomicLong();
+    this.m_dropped = new AtomicLong();
+
+    p = port;
+    if (tcp) {
+      this.m_tcp = ServerSocketChannel.open();
+      this.m_tcp.socket().bind(new InetSocketAddress(p), 4096);
+      this.m_tcp.configureBlocking(false);
+      this.m_tcp.register(this.m_selector, SelectionKey.OP_ACCEPT);
+      p = this.m_tcp.socket().getLocalPort();
+    } else {
+      this.m_tcp = null;
+    }
+    if (udp) {
+      this.m_udp = DatagramChannel.open();
+      this.m_udp.socket().bind(new InetSocketAddress(p));
+      this.m_udp.configureBlocking(false);
+      this.m_udp.register(this.m_selector, SelectionKey.OP_READ);
+    } else {
+      this.m_udp = null;
+    }
+  }
+
+  /**
+   * Get the port the proxy listens on
+   *
+   * @return the port
+   */
+  public final int getPort() {
+    return ((this.m_tcp != null) ? this.m_tcp.socket().getLocalPort()
+        : this.m_udp.socket().getLocalPort());
+  }
+
+  /**
+   * Get the number of open flows
+   *
+   * @return the number of open flows
+   */
+  public final long getFlows() {
+    return this.m_flows.get();
+  }
+
+  /**
+   * Get the number of forwarded packets
+   *
+   * @return the number of forwarded packets
+   */
+  public final long getForwardedPackets() {
+    return this.m_forwarded.get();
+  }
+
+  /**
+   * Get the number of dropped datagrams
+   *
+   * @return the number of dropped datagrams
+   */
+  public final long getDroppedPackets() {
+    return this.m_dropped.get();
+  }
+
+  /** Start the proxy in a new thread */
+  public synchronized final void start() {
+    final Thread t;
+
+    if (!(this.m_running)) {
+      this.m_running = true;
+      t = new Thread(this, "NetworkEmulatorProxy"); //$NON-NLS-1$
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  /** Stop the proxy */
+  public final void stop() {
+    this.m_running = false;
+    this.m_selector.wakeup();
+  }
+
+  /** The selector loop */
+  @Override
+  public final void run() {
+    Iterator<SelectionKey> keys;
+    SelectionKey key;
+    long wait;
+
+    this.m_running = true;
+    try {
+      while (this.m_running) {
+        wait = TimeUnit.NANOSECONDS.toMillis(this.m_wheel
+            .nanosUntilNextTick(System.nanoTime()));
+        this.m_selector.select(Math.max(1L, wait));
+
+        keys = this.m_selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          key = keys.next();
+          keys.remove();
+          this.handle(key);
+        }
+        this.m_wheel.advance(System.nanoTime());
+      }
+    } catch (IOException e) {
+      if (this.m_running) {
+        e.printStackTrace();
+      }
+    } finally {
+      for (SelectionKey k : this.m_selector.keys()) {
+        NetworkEmulatorProxy.closeQuietly(k);
+      }
+      try {
+        this.m_selector.close();
+      } catch (IOException e) {//
+      }
+    }
+  }
+
+  /**
+   * Close the channel of a key, ignoring errors
+   *
+   * @param key
+   *          the key, or null
+   */
+  static final void closeQuietly(final SelectionKey key) {
+    if (key != null) {
+      key.cancel();
+      try {
+        key.channel().close();
+      } catch (IOException e) {//
+      }
+    }
+  }
+
+  /**
+   * Turn an interest operation of a key on or off
+   *
+   * @param key
+   *          the key
+   * @param op
+   *          the operation
+   * @param on
+   *          true to turn it on, false to turn it off
+   */
+  static final void interest(final SelectionKey key, final int op,
+      final boolean on) {
+    if (key.isValid()) {
+      key.interestOps(on ? (key.interestOps() | op)
+          : (key.interestOps() & (~op)));
+    }
+  }
+
+  /**
+   * Handle a selected key
+   *
+   * @param key
+   *          the key
+   * @throws IOException
+   *           if the proxy itself fails
+   */
+  private final void handle(final SelectionKey key) throws IOException {
+    final Object a;
+
+    if (!(key.isValid())) {
+      return;
+    }
+    a = key.attachment();
+    if (key.channel() == this.m_tcp) {
+      this.accept();
+    } else if (key.channel() == this.m_udp) {
+      this.receiveFromClient();
+    } else if (a instanceof UdpFlow) {
+      ((UdpFlow) a).receiveFromTarget();
+    } else {
+      ((Endpoint) a).handle(key);
+    }
+  }
+
+  /**
+   * Compute the time until a packet arrives at the other side
+   *
+   * @param d
+   *          the direction the packet travels in
+   * @param size
+   *          the size of the packet
+   * @param ordered
+   *          must the packet arrive after all packets sent before?
+   * @return the delay in nanoseconds
+   */
+  final long delay(final Direction d, final int size, final boolean ordered) {
+    final long now;
+    long sent, arrives;
+
+    now = System.nanoTime();
+    sent = now;
+    if (this.m_bandwidth > 0L) {
+      // the link is busy until the packets sent before have left
+      sent = (Math.max(now, d.m_linkFree) + ((size * 1000000000L) / this.m_bandwidth));
+      d.m_linkFree = sent;
+    }
+    arrives = (sent + this.m_latency);
+    if (this.m_jitter > 0L) {
+      arrives += (long) (this.m_random.nextDouble() * this.m_jitter);
+    }
+    if (ordered) {
+      if (this.m_random.nextDouble() < this.m_loss) {
+        // a lost TCP packet is retransmitted after a timeout
+        arrives += Math.max(MIN_RTO, (2L * (this.m_latency + this.m_jitter)));
+      }
+      arrives = Math.max(arrives, d.m_lastArrival);
+      d.m_lastArrival = arrives;
+    }
+    return (arrives - now);
+  }
+
+  /**
+   * Accept a TCP connection and connect to the target
+   *
+   * @throws IOException
+   *           if the server channel fails
+   */
+  private final void accept() throws IOException {
+    final SocketChannel client;
+    SocketChannel server;
+
+    client = this.m_tcp.accept();
+    if (client == null) {
+      return;
+    }
+    server = null;
+    try {
+      client.configureBlocking(false);
+      client.socket().setTcpNoDelay(true);
+      server = SocketChannel.open();
+      server.configureBlocking(false);
+      server.socket().setTcpNoDelay(true);
+      server.connect(this.m_target);
+      new TcpFlow(client, server);
+      this.m_flows.incrementAndGet();
+    } catch (IOException e) {
+      client.close();
+      if (server != null) {
+        server.close();
+      }
+    }
+  }
+
+  /**
+   * Receive a datagram from a client and forward it to the target
+   *
+   * @throws IOException
+   *           if the UDP channel fails
+   */
+  private final void receiveFromClient() throws IOException {
+    final ByteBuffer buf;
+    final SocketAddress from;
+    UdpFlow flow;
+
+    buf = ByteBuffer.allocate(65536);
+    from = this.m_udp.receive(buf);
+    if (from == null) {
+      return;
+    }
+    buf.flip();
+
+    flow = this.m_udpFlows.get(from);
+    if (flow == null) {
+      try {
+        flow = new UdpFlow(from);
+      } catch (IOException e) {
+        this.m_dropped.incrementAndGet();
+        return;
+      }
+      this.m_udpFlows.put(from, flow);
+      this.m_flows.incrementAndGet();
+    }
+    flow.m_lastActive = System.nanoTime();
+    this.forward(flow, flow.m_up, NetworkEmulatorProxy.copy(buf), true);
+  }
+
+  /**
+   * Copy the remaining bytes of a buffer into a buffer of exactly that size
+   *
+   * @param buf
+   *          the buffer
+   * @return the copy
+   */
+  private static final ByteBuffer copy(final ByteBuffer buf) {
+    final ByteBuffer c;
+
+    c = ByteBuffer.allocate(buf.remaining());
+    c.put(buf);
+    c.flip();
+    return c;
+  }
+
+  /**
+   * Forward a datagram after its delay, unless it is lost
+   *
+   * @param flow
+   *          the flow
+   * @param d
+   *          the direction
+   * @param buf
+   *          the datagram
+   * @param up
+   *          is the datagram sent from the client to the target?
+   */
+  private final void forward(final UdpFlow flow, final Direction d,
+      final ByteBuffer buf, final boolean up) {
+    long delay;
+
+    if (this.m_random.nextDouble() < this.m_loss) {
+      this.m_dropped.incrementAndGet();
+      return;
+    }
+    delay = this.delay(d, buf.remaining(), false);
+    if (this.m_random.nextDouble() < this.m_reorder) {
+      // hold the datagram back so that the next ones overtake it
+      delay += (this.m_latency + this.m_jitter + TimeUnit.MILLISECONDS
+          .toNanos(1L));
+    }
+    this.m_wheel.schedule(new Runnable() {
+      @Override
+      public final void run() {
+        flow.send(buf, up);
+      }
+    }, delay, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Run the proxy
+   *
+   * @param args
+   *          the port to listen on, the target host, the target port, the
+   *          latency and the jitter in milliseconds, the bandwidth in
+   *          kilobytes per second (0 for unlimited), the loss and the
+   *          reordering probability, and {@code tcp}, {@code udp}, or
+   *          {@code both} (default)
+   * @throws IOException
+   *           if the proxy cannot be started
+   */
+  public static final void main(final String[] args) throws IOException {
+    final NetworkEmulatorProxy proxy;
+    final String protocol;
+
+    if (args.length < 3) {
+      System.out.println("Arguments: port targetHost targetPort " //$NON-NLS-1$
+          + "[latencyMs jitterMs bandwidthKBps loss reorder tcp|udp|both]"); //$NON-NLS-1$
+      return;
+    }
+    protocol = ((args.length > 8) ? args[8] : "both"); //$NON-NLS-1$
+    proxy = new NetworkEmulatorProxy(Integer.parseInt(args[0]), args[1],
+        Integer.parseInt(args[2]), ((args.length > 3) ? Long
+            .parseLong(args[3]) : 50L), ((args.length > 4) ? Long
+            .parseLong(args[4]) : 10L), ((args.length > 5) ? (Long
+            .parseLong(args[5]) * 1024L) : 0L),
+        ((args.length > 6) ? Double.parseDouble(args[6]) : 0d),
+        ((args.length > 7) ? Double.parseDouble(args[7]) : 0d),
+        !("udp".equalsIgnoreCase(protocol)), //$NON-NLS-1$
+        !("tcp".equalsIgnoreCase(protocol))); //$NON-NLS-1$
+    System.out.println("Emulating the network to " + args[1] + ':' //$NON-NLS-1$
+        + args[2] + " on port " + proxy.getPort()); //$NON-NLS-1$
+    proxy.run();
+  }
+
+  /** one direction of a flow */
+  static class Direction {
+
+    /** the time when the link is free again */
+    long m_linkFree;
+
+    /** the arrival time of the last ordered packet */
+    long m_lastArrival;
+
+    /** Create the direction */
+    Direction() {
+      super();
+    }
+  }
+
+  /** one direction of a TCP flow */
+  final class Pipe extends Direction {
+
+    /** the data that has arrived and waits to be written */
+    final ArrayDeque<ByteBuffer> m_out;
+
+    /** the number of bytes read but not yet written */
+    long m_inFlight;
+
+    /** has the end of the stream arrived? */
+    boolean m_eof;
+
+    /** has the output been shut down? */
+    boolean m_closed;
+
+    /** the endpoint reading */
+    Endpoint m_source;
+
+    /** the endpoint writing */
+    Endpoint m_sink;
+
+    /** Create the pipe */
+    Pipe() {
+      super();
+      this.m_out = new ArrayDeque<>();
+    }
+
+    /**
+     * Data has been read: deliver it after its delay
+     *
+     * @param buf
+     *          the data, or null for the end of the stream
+     */
+    final void read(final ByteBuffer buf) {
+      final NetworkEmulatorProxy owner;
+      final int size;
+
+      owner = NetworkEmulatorProxy.this;
+      size = ((buf != null) ? buf.remaining() : 0);
+      this.m_inFlight += size;
+      if (this.m_inFlight > MAX_IN_FLIGHT) {
+        NetworkEmulatorProxy.interest(this.m_source.m_key,
+            SelectionKey.OP_READ, false);
+      }
+      owner.m_wheel.schedule(new Runnable() {
+        @Override
+        public final void run() {
+          Pipe.this.arrived(buf);
+        }
+      }, owner.delay(this, size, true), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Data has arrived at the other side
+     *
+     * @param buf
+     *          the data, or null for the end of the stream
+     */
+    final void arrived(final ByteBuffer buf) {
+      if (buf != null) {
+        this.m_out.add(buf);
+        NetworkEmulatorProxy.this.m_forwarded.incrementAndGet();
+      } else {
+        this.m_eof = true;
+      }
+      this.m_sink.write();
+    }
+  }
+
+  /** one side of a TCP flow */
+  final class Endpoint {
+
+    /** the flow */
+    final TcpFlow m_flow;
+
+    /** the channel */
+    final SocketChannel m_channel;
+
+    /** the pipe fed by this endpoint */
+    final Pipe m_in;
+
+    /** the pipe drained by this endpoint */
+    final Pipe m_out;
+
+    /** the key */
+    SelectionKey m_key;
+
+    /**
+     * Create the endpoint
+     *
+     * @param flow
+     *          the flow
+     * @param channel
+     *          the channel
+     * @param in
+     *          the pipe fed by this endpoint
+     * @param out
+     *          the pipe drained by this endpoint
+     */
+    Endpoint(final TcpFlow flow, final SocketChannel channel, final Pipe in,
+        final Pipe out) {
+      super();
+      this.m_flow = flow;
+      this.m_channel = channel;
+      this.m_in = in;
+      this.m_out = out;
+      in.m_source = this;
+      out.m_sink = this;
+    }
+
+    /**
+     * Handle the selected operations
+     *
+     * @param key
+     *          the key
+     */
+    final void handle(final SelectionKey key) {
+      final ByteBuffer buf;
+      final int n;
+
+      try {
+        if (key.isConnectable()) {
+          this.m_channel.finishConnect();
+          key.interestOps(SelectionKey.OP_READ);
+          this.write();
+          return;
+        }
+        if (key.isReadable()) {
+          buf = ByteBuffer.allocate(CHUNK);
+          n = this.m_channel.read(buf);
+          if (n < 0) {
+            NetworkEmulatorProxy.interest(key, SelectionKey.OP_READ, false);
+            this.m_in.read(null);
+          } else if (n > 0) {
+            buf.flip();
+            this.m_in.read(buf);
+          }
+        }
+        if (key.isValid() && key.isWritable()) {
+          this.write();
+        }
+      } catch (IOException e) {
+        this.m_flow.close();
+      }
+    }
+
+    /** Write the data that has arrived, as far as possible */
+    final void write() {
+      final Pipe p;
+      ByteBuffer buf;
+      int n;
+
+      p = this.m_out;
+      if (!(this.m_key.isValid()) || (!(this.m_channel.isConnected()))) {
+        return;
+      }
+      try {
+        while ((buf = p.m_out.peek()) != null) {
+          n = this.m_channel.write(buf);
+          p.m_inFlight -= n;
+          if (buf.hasRemaining()) {
+            break;
+          }
+          p.m_out.poll();
+        }
+        NetworkEmulatorProxy.interest(this.m_key, SelectionKey.OP_WRITE,
+            !(p.m_out.isEmpty()));
+        if (p.m_out.isEmpty() && p.m_eof && (!(p.m_closed))) {
+          p.m_closed = true;
+          this.m_channel.shutdownOutput();
+          if (this.m_in.m_closed) {
+            this.m_flow.close();
+            return;
+          }
+        }
+        if ((p.m_inFlight <= (MAX_IN_FLIGHT >>> 1)) && (!(p.m_eof))) {
+          NetworkEmulatorProxy.interest(p.m_source.m_key,
+              SelectionKey.OP_READ, true);
+        }
+      } catch (IOException e) {
+        this.m_flow.close();
+      }
+    }
+  }
+
+  /** a TCP connection through the proxy */
+  final class TcpFlow {
+
+    /** the side of the client */
+    private final Endpoint m_client;
+
+    /** the side of the target */
+    private final Endpoint m_server;
+
+    /** has the flow been closed? */
+    private boolean m_closed;
+
+    /**
+     * Create the flow
+     *
+     * @param client
+     *          the channel to the client
+     * @param server
+     *          the channel to the target, which is still connecting
+     * @throws IOException
+     *           if the channels cannot be registered
+     */
+    TcpFlow(final SocketChannel client, final SocketChannel server)
+        throws IOException {
+      super();
+      final Pipe up, down;
+      final Selector selector;
+
+      up = new Pipe();
+      down = new Pipe();
+      this.m_client = new Endpoint(this, client, up, down);
+      this.m_server = new Endpoint(this, server, down, up);
+      selector = NetworkEmulatorProxy.this.m_selector;
+      this.m_client.m_key = client.register(selector, SelectionKey.OP_READ,
+          this.m_client);
+      this.m_server.m_key = server.register(selector,
+          SelectionKey.OP_CONNECT, this.m_server);
+    }
+
+    /** Close the flow */
+    final void close() {
+      if (!(this.m_closed)) {
+        this.m_closed = true;
+        NetworkEmulatorProxy.closeQuietly(this.m_client.m_key);
+        NetworkEmulatorProxy.closeQuietly(this.m_server.m_key);
+        NetworkEmulatorProxy.this.m_flows.decrementAndGet();
+      }
+    }
+  }
+
+  /** the datagrams of one client address */
+  final class UdpFlow implements Runnable {
+
+    /** the client address */
+    private final SocketAddress m_client;
+
+    /** the channel to the target */
+    private final DatagramChannel m_channel;
+
+    /** the key of the channel */
+    private final SelectionKey m_key;
+
+    /** the direction from the client to the target */
+    final Direction m_up;
+
+    /** the direction from the target to the client */
+    final Direction m_down;
+
+    /** the time of the last datagram from the client */
+    long m_lastActive;
+
+    /**
+     * Create the flow
+     *
+     * @param client
+     *          the client address
+     * @throws IOException
+     *           if the channel to the target cannot be opened
+     */
+    UdpFlow(final SocketAddress client) throws IOException {
+      super();
+      final NetworkEmulatorProxy owner;
+
+      owner = NetworkEmulatorProxy.this;
+      this.m_client = client;
+      this.m_up = new Direction();
+      this.m_down = new Direction();
+      this.m_channel = DatagramChannel.open();
+      try {
+        this.m_channel.configureBlocking(false);
+        this.m_channel.connect(owner.m_target);
+        this.m_key = this.m_channel.register(owner.m_selector,
+            SelectionKey.OP_READ, this);
+      } catch (IOException e) {
+        this.m_channel.close();
+        throw e;
+      }
+      owner.m_wheel.schedule(this, UDP_IDLE, TimeUnit.NANOSECONDS);
+    }
+
+    /** Receive a datagram from the target and forward it to the client */
+    final void receiveFromTarget() {
+      final ByteBuffer buf;
+
+      buf = ByteBuffer.allocate(65536);
+      try {
+        if (this.m_channel.read(buf) <= 0) {
+          return;
+        }
+      } catch (IOException e) {
+        return; // e.g., the target port is not open (yet)
+      }
+      buf.flip();
+      NetworkEmulatorProxy.this.forward(this, this.m_down,
+          NetworkEmulatorProxy.copy(buf), false);
+    }
+
+    /**
+     * Send a datagram that has arrived
+     *
+     * @param buf
+     *          the datagram
+     * @param up
+     *          is it sent from the client to the target?
+     */
+    final void send(final ByteBuffer buf, final boolean up) {
+      final NetworkEmulatorProxy owner;
+      final int n;
+
+      owner = NetworkEmulatorProxy.this;
+      try {
+        if (up) {
+          n = this.m_channel.write(buf);
+        } else {
+          n = owner.m_udp.send(buf, this.m_client);
+        }
+        if (n > 0) {
+          owner.m_forwarded.incrementAndGet();
+          return;
+        }
+      } catch (IOException e) {//
+      }
+      owner.m_dropped.incrementAndGet();
+    }
+
+    /** Close the flow if it has been idle for too long */
+    @Override
+    public final void run() {
+      final NetworkEmulatorProxy owner;
+      final long idle;
+
+      owner = NetworkEmulatorProxy.this;
+      idle = (System.nanoTime() - this.m_lastActive);
+      if (idle < UDP_IDLE) {
+        owner.m_wheel.schedule(this, (UDP_IDLE - idle), TimeUnit.NANOSECONDS);
+        return;
+      }
+      NetworkEmulatorProxy.closeQuietly(this.m_key);
+      owner.m_udpFlows.remove(this.m_client);
+      owner.m_flows.decrementAndGet();
+    }
+  }
+}
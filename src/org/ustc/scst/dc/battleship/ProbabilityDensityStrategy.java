@@ -0,0 +1,149 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.Random;
+
+/**
+ * A strategy that fires at the unseen cell covered by the largest number of
+ * ship placements which are still possible. If ships have been hit, the
+ * unseen neighbors of these hits are preferred. The choice is deterministic:
+ * ties are broken in favor of the cell with the lowest index.
+ * <p>
+ * Since the choice only depends on the cells fired at, their results, the
+ * field size and the fleet, it is remembered in a
+ * {@link MoveEvaluationCache} keyed by the
+ * {@link BattleshipModel#getShotHash() shot hash} of the model, so that
+ * positions occurring in many games are only evaluated once.
+ * </p>
+ */
+public class ProbabilityDensityStrategy extends AbstractBattleshipStrategy {
+
+  /** the default capacity of the cache */
+  private static final int DEFAULT_CACHE_CAPACITY = (1 << 16);
+
+  /** the cache, or null */
+  private final MoveEvaluationCache m_cache;
+
+  /** Create the strategy */
+  public ProbabilityDensityStrategy() {
+    this(new MoveEvaluationCache(DEFAULT_CACHE_CAPACITY));
+  }
+
+  /**
+   * Create the strategy
+   * 
+   * @param cache
+   *          the cache of evaluated positions, or null to evaluate each
+   *          position from scratch
+   */
+  public ProbabilityDensityStrategy(final MoveEvaluationCache cache) {
+    super();
+    this.m_cache = cache;
+  }
+
+  /**
+   * Get the cache of evaluated positions
+   * 
+   * @return the cache, or null
+   */
+  public final MoveEvaluationCache getCache() {
+    return this.m_cache;
+  }
+
+  /**
+   * Compute the part of the cache key that identifies the field size and the
+   * fleet
+   * 
+   * @param width
+   *          the field width
+   * @param height
+   *          the field height
+   * @param ships
+   *          the number of ships of each length
+   * @return the key
+   */
+  static final long fleetKey(final int width, final int height,
+      final int[] ships) {
+    long h;
+    int i;
+
+    h = Hashing.mix((((long) width) << 32) | height);
+    for (i = 0; i < ships.length; i++) {
+      h = Hashing.mix(h + ((ships[i] + 1L) * Hashing.GOLDEN));
+    }
+    return h;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int nextShot(final BattleshipModel model, final Random random) {
+    final int[] cells, ships;
+    final long[] density;
+    final int width, height;
+    final long key;
+    long entry;
+    int i, x, y, best, bestTarget;
+    long bestValue, bestTargetValue, v;
+    boolean target;
+
+    width = model.getFieldWidth();
+    height = model.getFieldHeight();
+    ships = model.getShipsToPlace();
+    synchronized (model) {
+      cells = AbstractBattleshipStrategy.readCells(model);
+      key = (model.getShotHash() ^ ProbabilityDensityStrategy.fleetKey(width,
+          height, ships));
+    }
+
+    if (this.m_cache != null) {
+      entry = this.m_cache.get(key);
+      if (entry != MoveEvaluationCache.MISS) {
+        i = MoveEvaluationCache.move(entry);
+        if ((i >= 0) && (i < cells.length)
+            && AbstractBattleshipStrategy.isUnseen(cells[i])) {
+          return i;
+        }
+      }
+    }
+
+    density = new long[cells.length];
+    HeatmapKernel.compute(cells, width, height, ships, density);
+
+    best = bestTarget = (-1);
+    bestValue = bestTargetValue = (-1L);
+    for (i = 0; i < cells.length; i++) {
+      if (!(AbstractBattleshipStrategy.isUnseen(cells[i]))) {
+        continue;
+      }
+      v = density[i];
+      if (v > bestValue) {
+        bestValue = v;
+        best = i;
+      }
+
+      x = (i % width);
+      y = (i / width);
+      target = (((x > 0) && AbstractBattleshipStrategy.isHit(cells[i - 1])) || //
+          ((x < (width - 1)) && AbstractBattleshipStrategy.isHit(cells[i + 1])) || //
+          ((y > 0) && AbstractBattleshipStrategy.isHit(cells[i - width])) || //
+      ((y < (height - 1)) && AbstractBattleshipStrategy
+          .isHit(cells[i + width])));
+      if (target && (v > bestTargetValue)) {
+        bestTargetValue = v;
+        bestTarget = i;
+      }
+    }
+
+    if (bestTarget >= 0) {
+      best = bestTarget;
+      bestValue = bestTargetValue;
+    }
+    if (best < 0) {
+      return random.nextInt(cells.length);
+    }
+    if (this.m_cache != null) {
+      this.m_cache.put(key, MoveEvaluationCache.entry(best,
+          ((int) (Math.min(Integer.MAX_VALUE, bestValue)))));
+    }
+    return best;
+  }
+}
@@ -0,0 +1,20 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.Random;
+
+/** A strategy firing at random unseen cells */
+public class RandomStrategy extends AbstractBattleshipStrategy {
+
+  /** Create the strategy */
+  public RandomStrategy() {
+    super();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int nextShot(final BattleshipModel model, final Random random) {
+    return AbstractBattleshipStrategy.randomUnseen(
+        AbstractBattleshipStrategy.readCells(model), model.getFieldWidth(),
+        false, random);
+  }
+}
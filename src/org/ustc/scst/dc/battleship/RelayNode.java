@@ -0,0 +1,1059 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A node of a cluster of relay processes sharing the game sessions. Each
+ * game is owned by one node, determined by the {@link ShardRing} of all
+ * nodes. A client may send its {@link GameMessage#TYPE_HELLO hello} to any
+ * node; a node which does not own the game answers with a
+ * {@link GameMessage#TYPE_REDIRECT redirect} to the owner, which is
+ * followed by the {@link SessionTransport} of
+ * {@link Communicator#startSession(String, int, int)}. As in the
+ * {@link SessionServer}, the client plays against a strategy hosted by the
+ * node.
+ * <p>
+ * A node joining the cluster announces itself to a seed node, learns all
+ * members and announces itself to them. A node leaving the cluster tells
+ * all members. Whenever the ring changes, each node hands the games it no
+ * longer owns over to their new owners: the compact form of the model
+ * (see {@link GameStore}) and the sequence number of the last message of
+ * the client are sent in a {@link GameMessage#TYPE_MIGRATE migrate}
+ * message. A game with an open session is handed over at the next message
+ * boundary, after all messages to the client have been sent; the client
+ * then loses the connection and resumes the session at the new owner.
+ * </p>
+ * <p>
+ * The games of clients which have disconnected are kept in a
+ * {@link GameStore}, so that the client may resume them later.
+ * </p>
+ */
+public final class RelayNode implements Runnable {
+
+  /** the default heap budget of the games in bytes */
+  private static final long DEFAULT_BUDGET = (64L << 20);
+
+  /** the time in milliseconds to wait for another node */
+  private static final int PEER_TIMEOUT = 5000;
+
+  /**
+   * the time in milliseconds after a change of the ring during which a
+   * resumed game may still be on its way from another node
+   */
+  private static final long MIGRATION_WINDOW = 10000L;
+
+  /** the time in milliseconds to wait for a game on its way */
+  private static final long MIGRATION_WAIT = 2000L;
+
+  /** the time in milliseconds a session waits for a message at once */
+  private static final int POLL = 100;
+
+  /** the node, i.e., our address and port */
+  private final long m_self;
+
+  /** the server socket */
+  private final ServerSocket m_server;
+
+  /** the factory for the session threads */
+  private final ThreadFactory m_threads;
+
+  /** the strategy playing against the clients */
+  private final IBattleshipStrategy m_bot;
+
+  /** the games */
+  private final GameStore m_store;
+
+  /** the games owned by this node, by id */
+  private final ConcurrentHashMap<Long, Game> m_games;
+
+  /** the lock serializing the hand-overs of idle games */
+  private final Object m_rebalance;
+
+  /** the number of redirected hellos */
+  private final AtomicLong m_redirected;
+
+  /** the number of games received from other nodes */
+  private final AtomicLong m_migratedIn;
+
+  /** the number of games handed over to other nodes */
+  private final AtomicLong m_migratedOut;
+
+  /** the ring */
+  private volatile ShardRing m_ring;
+
+  /** the time of the last change of the ring in milliseconds */
+  private volatile long m_ringChanged;
+
+  /** are we running? */
+  private volatile boolean m_running;
+
+  /**
+   * Create the relay node
+   *
+   * @param address
+   *          the IPv4 address under which the other nodes and the clients
+   *          reach this node
+   * @param port
+   *          the port to listen on, or 0 for any free port
+   * @param virtualThreads
+   *          should each session run on virtual threads, if they are
+   *          supported?
+   * @param bot
+   *          the strategy playing against the clients
+   * @throws IOException
+   *           if the port or the slab file cannot be opened
+   */
+  public RelayNode(final InetAddress address, final int port,
+      final boolean virtualThreads, final IBattleshipStrategy bot)
+      throws IOException {
+    super();
+    final File file;
+
+    this.m_server = new ServerSocket(port, 4096);
+    this.m_self = ShardRing.node(address, this.m_server.getLocalPort());
+    this.m_threads = ThreadFactories.session("Relay", virtualThreads); //$NON-NLS-1$
+    this.m_bot = bot;
+    file = File.createTempFile("battleship-relay", ".slab"); //$NON-NLS-1$//$NON-NLS-2$
+    file.deleteOnExit();
+    this.m_store = new GameStore(BattleshipModel.DEFAULT_FIELD_WIDTH,
+        BattleshipModel.DEFAULT_FIELD_HEIGHT,
+        BattleshipModel.DEFAULT_SHIPS_TO_PLACE, DEFAULT_BUDGET, file);
+    this.m_games = new ConcurrentHashMap<>();
+    this.m_rebalance = new Object();
+    this.m_redirected = new AtomicLong();
+    this.m_migratedIn = new AtomicLong();
+    this.m_migratedOut = new AtomicLong();
+    this.m_ring = new ShardRing(this.m_self);
+  }
+
+  /**
+   * Get the port the node listens on
+   *
+   * @return the port
+   */
+  public final int getPort() {
+    return this.m_server.getLocalPort();
+  }
+
+  /**
+   * Get the node, i.e., our address and port
+   *
+   * @return the node
+   */
+  public final long getNode() {
+    return this.m_self;
+  }
+
+  /**
+   * Get the ring as known to this node
+   *
+   * @return the ring
+   */
+  public final ShardRing getRing() {
+    return this.m_ring;
+  }
+
+  /**
+   * Get the number of games owned by this node
+   *
+   * @return the number of games
+   */
+  public final int getGames() {
+    return this.m_games.size();
+  }
+
+  /**
+   * Get the number of hellos redirected to other nodes
+   *
+   * @return the number of redirects
+   */
+  public final long getRedirected() {
+    return this.m_redirected.get();
+  }
+
+  /**
+   * Get the number of games received from other nodes
+   *
+   * @return the number of games
+   */
+  public final long getMigratedIn() {
+    return this.m_migratedIn.get();
+  }
+
+  /**
+   * Get the number of games handed over to other nodes
+   *
+   * @return the number of games
+   */
+  public final long getMigratedOut() {
+    return this.m_migratedOut.get();
+  }
+
+  /** Start accepting connections in a new daemon thread */
+  public final void start() {
+    this.start(true);
+  }
+
+  /**
+   * Start accepting connections in a new thread
+   *
+   * @param daemon
+   *          should the thread be a daemon thread?
+   */
+  private synchronized final void start(final boolean daemon) {
+    final Thread t;
+
+    if (!(this.m_running)) {
+      this.m_running = true;
+      t = new Thread(this, "RelayNode-Acceptor"); //$NON-NLS-1$
+      t.setDaemon(daemon);
+      t.start();
+    }
+  }
+
+  /**
+   * Join a cluster: announce this node to the seeds and to all members they
+   * know of. The members then hand the games we own over to us.
+   *
+   * @param seeds
+   *          the addresses of some members of the cluster
+   * @throws IOException
+   *           if no seed can be reached
+   */
+  public final void join(final InetSocketAddress... seeds) throws IOException {
+    final ArrayList<InetSocketAddress> pending;
+    final ArrayList<Long> contacted;
+    GameMessage reply;
+    IOException error;
+    InetSocketAddress a;
+    int i;
+    boolean joined;
+
+    pending = new ArrayList<>();
+    contacted = new ArrayList<>();
+    for (InetSocketAddress s : seeds) {
+      pending.add(s);
+    }
+    joined = false;
+    error = null;
+
+    while (!(pending.isEmpty())) {
+      a = pending.remove(pending.size() - 1);
+      try {
+        reply = this.exchange(a, new GameMessage(GameMessage.TYPE_NODE_JOIN,
+            ShardRing.port(this.m_self), ShardRing.ipv4(this.m_self)));
+      } catch (IOException e) {
+        error = e;
+        continue;
+      }
+      if ((reply.m_type != GameMessage.TYPE_NODE_MEMBERS)
+          || (reply.m_data == null)) {
+        continue;
+      }
+      joined = true;
+      contacted.add(Long.valueOf(ShardRing.node(a.getAddress(), a.getPort())));
+      for (i = reply.m_data.length; (--i) >= 0;) {
+        if ((reply.m_data[i] != this.m_self)
+            && (!(contacted.contains(Long.valueOf(reply.m_data[i]))))
+            && (!(this.m_ring.contains(reply.m_data[i])))) {
+          pending.add(new InetSocketAddress(ShardRing
+              .address(reply.m_data[i]), ShardRing.port(reply.m_data[i])));
+        }
+        this.changeRing(reply.m_data[i], true);
+      }
+    }
+
+    if (!joined) {
+      throw ((error != null) ? error : new IOException(
+          "No seed has answered.")); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Leave the cluster: tell all members, hand all games over and stop
+   */
+  public final void leave() {
+    final long[] nodes;
+    final long end;
+    int i;
+
+    synchronized (this) {
+      nodes = this.m_ring.getNodes();
+      this.m_ring = this.m_ring.without(this.m_self);
+      this.m_ringChanged = System.currentTimeMillis();
+    }
+    for (i = nodes.length; (--i) >= 0;) {
+      if (nodes[i] != this.m_self) {
+        try {
+          this.exchange(new InetSocketAddress(ShardRing.address(nodes[i]),
+              ShardRing.port(nodes[i])), new GameMessage(
+              GameMessage.TYPE_NODE_LEAVE, ShardRing.port(this.m_self),
+              ShardRing.ipv4(this.m_self)));
+        } catch (IOException e) {
+          // the node is gone as well
+        }
+      }
+    }
+
+    if (this.m_ring.size() > 0) {
+      this.rebalance();
+      // the open sessions hand their games over at their next message
+      end = (System.currentTimeMillis() + PEER_TIMEOUT);
+      while ((!(this.m_games.isEmpty()))
+          && (System.currentTimeMillis() < end)) {
+        try {
+          Thread.sleep(10L);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    this.stop();
+  }
+
+  /** Stop accepting connections and drop all games */
+  public synchronized final void stop() {
+    this.m_running = false;
+    try {
+      this.m_server.close();
+    } catch (IOException e) {//
+    }
+    this.m_store.close();
+  }
+
+  /**
+   * Add a node to the ring or remove it
+   *
+   * @param node
+   *          the node
+   * @param add
+   *          add the node? else remove it
+   * @return true if the ring has changed
+   */
+  private synchronized final boolean changeRing(final long node,
+      final boolean add) {
+    final ShardRing r;
+
+    r = (add ? this.m_ring.with(node) : this.m_ring.without(node));
+    if (r == this.m_ring) {
+      return false;
+    }
+    this.m_ring = r;
+    this.m_ringChanged = System.currentTimeMillis();
+    return true;
+  }
+
+  /**
+   * Send a message to another node and wait for the answer
+   *
+   * @param address
+   *          the address of the node
+   * @param msg
+   *          the message
+   * @return the answer
+   * @throws IOException
+   *           if the node cannot be reached or does not answer
+   */
+  private final GameMessage exchange(final InetSocketAddress address,
+      final GameMessage msg) throws IOException {
+    final Socket s;
+    final SocketTransport t;
+
+    s = new Socket();
+    t = new SocketTransport(s);
+    try {
+      s.connect(address, PEER_TIMEOUT);
+      s.setTcpNoDelay(true);
+      s.setSoTimeout(PEER_TIMEOUT);
+      t.write(msg);
+      t.flush();
+      return t.read();
+    } finally {
+      t.close();
+    }
+  }
+
+  /**
+   * Hand a game over to its new owner
+   *
+   * @param id
+   *          the game id
+   * @param model
+   *          the model of the game
+   * @param received
+   *          the sequence number of the last message of the client processed
+   * @param owner
+   *          the new owner
+   * @return true if the new owner has the game, false otherwise
+   */
+  private final boolean migrate(final long id, final BattleshipModel model,
+      final int received, final long owner) {
+    final ByteBuffer buf;
+    final long[] data;
+    final int size;
+    final GameMessage reply;
+
+    size = model.getCompactSize();
+    buf = ByteBuffer.allocate((size + 7) & (~7));
+    model.writeCompact(buf);
+    buf.clear();
+    data = new long[1 + (buf.capacity() >>> 3)];
+    data[0] = size;
+    buf.asLongBuffer().get(data, 1, (data.length - 1));
+
+    try {
+      reply = this.exchange(new InetSocketAddress(ShardRing.address(owner),
+          ShardRing.port(owner)), new GameMessage(GameMessage.TYPE_MIGRATE,
+          ((int) id), received, data));
+    } catch (IOException e) {
+      return false;
+    }
+    if ((reply.m_type != GameMessage.TYPE_ACK) || (reply.m_x != ((int) id))) {
+      return false;
+    }
+    this.m_migratedOut.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Hand all games this node no longer owns over to their owners: idle
+   * games directly, games with an open session by telling the session
+   */
+  private final void rebalance() {
+    synchronized (this.m_rebalance) {
+      for (Game g : this.m_games.values()) {
+        this.rebalance(g);
+      }
+    }
+  }
+
+  /**
+   * Hand a game over to its owner, if this node no longer owns it. Must be
+   * called while holding the rebalance lock.
+   *
+   * @param g
+   *          the game
+   */
+  private final void rebalance(final Game g) {
+    final long owner;
+    BattleshipModel model;
+    boolean ok;
+
+    owner = this.m_ring.owner(g.m_id);
+    if ((owner == this.m_self) || (owner == 0L)) {
+      return;
+    }
+    synchronized (g) {
+      if (g.m_session != null) {
+        g.m_session.m_handOver = true;
+        return;
+      }
+      if (g.m_moving) {
+        return;
+      }
+      g.m_moving = true;
+    }
+
+    ok = false;
+    try {
+      model = this.m_store.acquire(g.m_id);
+      if (model != null) {
+        ok = this.migrate(g.m_id, model, g.m_received, owner);
+        if (ok) {
+          this.m_games.remove(Long.valueOf(g.m_id), g);
+          this.m_store.remove(g.m_id);
+        } else {
+          this.m_store.release(g.m_id);
+        }
+      }
+    } catch (IOException e) {
+      // the game stays here
+    }
+    if (!ok) {
+      synchronized (g) {
+        g.m_moving = false;
+      }
+    }
+  }
+
+  /** Hand the games over in a new thread */
+  private final void rebalanceLater() {
+    final Thread t;
+
+    t = new Thread(new Runnable() {
+      @Override
+      public final void run() {
+        RelayNode.this.rebalance();
+      }
+    }, "RelayNode-Rebalance"); //$NON-NLS-1$
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Store a game handed over by another node. The game is refused while
+   * this node still uses its own copy of it, i.e., while a session is open
+   * on it or it is being handed over itself: the model of that copy is
+   * pinned, and the copy in use is the more recent one.
+   *
+   * @param msg
+   *          the migrate message
+   * @return true if the game has been stored, false if it has been refused
+   * @throws IOException
+   *           if the game cannot be stored
+   */
+  private final boolean accept(final GameMessage msg) throws IOException {
+    final Long key;
+    final Game g;
+    final ByteBuffer buf;
+    final BattleshipModel model;
+    final Game old;
+    int i;
+
+    key = Long.valueOf(msg.m_x);
+    buf = ByteBuffer.allocate((msg.m_data.length - 1) << 3);
+    for (i = 1; i < msg.m_data.length; i++) {
+      buf.putLong(msg.m_data[i]);
+    }
+    buf.clear();
+    buf.limit((int) (msg.m_data[0]));
+
+    g = new Game(msg.m_x);
+    g.m_received = msg.m_y;
+    synchronized (this) {
+      old = this.m_games.get(key);
+      if (old != null) {
+        synchronized (old) {
+          if ((old.m_session != null) || old.m_moving) {
+            return false;
+          }
+          // keeps a rebalance holding the old game off the new one
+          old.m_moving = true;
+          this.m_games.remove(key);
+        }
+      }
+      this.m_store.remove(msg.m_x);
+      model = this.m_store.create(msg.m_x);
+      try {
+        model.readCompact(buf);
+      } catch (RuntimeException e) {
+        this.m_store.remove(msg.m_x);
+        throw e;
+      }
+      this.m_store.release(msg.m_x);
+      this.m_games.put(key, g);
+    }
+    this.m_migratedIn.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Find the game of a resumed session, waiting a little for it if it may
+   * still be on its way from another node
+   *
+   * @param id
+   *          the game id
+   * @return the game, or null if there is no such game
+   */
+  private final Game await(final long id) {
+    final Long key;
+    final long end;
+    Game g;
+
+    key = Long.valueOf(id);
+    g = this.m_games.get(key);
+    if ((g != null)
+        || ((System.currentTimeMillis() - this.m_ringChanged) > MIGRATION_WINDOW)) {
+      return g;
+    }
+    end = (System.currentTimeMillis() + MIGRATION_WAIT);
+    while (((g = this.m_games.get(key)) == null)
+        && (System.currentTimeMillis() < end)) {
+      try {
+        Thread.sleep(10L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    return g;
+  }
+
+  /** The accept loop */
+  @Override
+  public final void run() {
+    Socket s;
+
+    while (this.m_running) {
+      try {
+        s = this.m_server.accept();
+        s.setTcpNoDelay(true);
+        this.m_threads.newThread(new Connection(s)).start();
+      } catch (IOException e) {
+        if (this.m_running) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Parse an address given as {@code host:port}
+   *
+   * @param s
+   *          the address
+   * @return the address
+   */
+  private static final InetSocketAddress parse(final String s) {
+    final int i;
+
+    i = s.lastIndexOf(':');
+    return new InetSocketAddress(s.substring(0, i), Integer.parseInt(s
+        .substring(i + 1)));
+  }
+
+  /**
+   * Run a relay node hosting games against the probability density
+   * strategy. The node leaves the cluster when the process is terminated.
+   *
+   * @param args
+   *          the address of the node as {@code host:port}, followed by the
+   *          addresses of seed nodes, if the node joins a cluster
+   * @throws IOException
+   *           if the node cannot be started
+   */
+  public static final void main(final String[] args) throws IOException {
+    final InetSocketAddress self;
+    final InetSocketAddress[] seeds;
+    final RelayNode node;
+    int i;
+
+    self = RelayNode.parse((args.length > 0) ? args[0] : "127.0.0.1:46000"); //$NON-NLS-1$
+    node = new RelayNode(self.getAddress(), self.getPort(), true,
+        new ProbabilityDensityStrategy());
+    // the acceptor keeps the process alive until it is terminated
+    node.start(false);
+    if (args.length > 1) {
+      seeds = new InetSocketAddress[args.length - 1];
+      for (i = seeds.length; (--i) >= 0;) {
+        seeds[i] = RelayNode.parse(args[i + 1]);
+      }
+      node.join(seeds);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public final void run() {
+        node.leave();
+      }
+    }));
+    System.out.println("Relay node " + ShardRing.toString(node.getNode()) //$NON-NLS-1$
+        + " listening, ring " + node.getRing()); //$NON-NLS-1$
+  }
+
+  /** a game owned by this node */
+  private static final class Game {
+
+    /** the game id */
+    final long m_id;
+
+    /**
+     * the sequence number of the last message of the client processed while
+     * no session is open, guarded by this
+     */
+    int m_received;
+
+    /** the open session, or null, guarded by this */
+    Session m_session;
+
+    /** is the game being handed over? guarded by this */
+    boolean m_moving;
+
+    /**
+     * Create the game
+     *
+     * @param id
+     *          the game id
+     */
+    Game(final long id) {
+      super();
+      this.m_id = id;
+    }
+  }
+
+  /** the open session of a game */
+  private static final class Session {
+
+    /** should the game be handed over at the next message boundary? */
+    volatile boolean m_handOver;
+
+    /** Create the session */
+    Session() {
+      super();
+    }
+  }
+
+  /** a connection from a client or from another node */
+  private final class Connection implements Runnable {
+
+    /** the connection */
+    private final Socket m_socket;
+
+    /**
+     * Create the connection
+     *
+     * @param socket
+     *          the connection
+     */
+    Connection(final Socket socket) {
+      super();
+      this.m_socket = socket;
+    }
+
+    /**
+     * Wait for the next message, checking regularly whether the game should
+     * be handed over
+     *
+     * @param in
+     *          the buffered input of the connection
+     * @param session
+     *          the session
+     * @return true if a message has arrived, false if the game should be
+     *         handed over
+     * @throws IOException
+     *           if the connection is closed or broken
+     */
+    private final boolean awaitMessage(final BufferedInputStream in,
+        final Session session) throws IOException {
+      for (;;) {
+        if (session.m_handOver) {
+          return false;
+        }
+        this.m_socket.setSoTimeout(POLL);
+        in.mark(1);
+        try {
+          if (in.read() < 0) {
+            throw new EOFException();
+          }
+        } catch (SocketTimeoutException e) {
+          continue;
+        }
+        in.reset();
+        this.m_socket.setSoTimeout(0);
+        return true;
+      }
+    }
+
+    /**
+     * Redirect the client to the owner of its game
+     *
+     * @param next
+     *          the owner
+     * @throws IOException
+     *           if the connection is broken
+     */
+    private final void redirect(final long next) throws IOException {
+      final SocketTransport transport;
+
+      RelayNode.this.m_redirected.incrementAndGet();
+      transport = new SocketTransport(this.m_socket);
+      transport.write(new GameMessage(GameMessage.TYPE_REDIRECT, ShardRing
+          .port(next), ShardRing.ipv4(next)));
+      transport.flush();
+    }
+
+    /**
+     * Find the game of a resumed session and open the session, waiting for
+     * a previous session to be closed or for the game to arrive from
+     * another node
+     *
+     * @param id
+     *          the game id
+     * @param session
+     *          the session
+     * @return the game, or null if the session cannot be resumed here
+     * @throws IOException
+     *           if the connection is broken
+     */
+    private final Game resume(final long id, final Session session)
+        throws IOException {
+      final RelayNode owner;
+      final Long key;
+      final long end;
+      Game g;
+      long next;
+
+      owner = RelayNode.this;
+      key = Long.valueOf(id);
+      end = (System.currentTimeMillis() + MIGRATION_WAIT);
+      for (;;) {
+        g = owner.await(id);
+        if (g == null) {
+          return null;
+        }
+        synchronized (g) {
+          if ((owner.m_games.get(key) == g) && (!(g.m_moving))
+              && (g.m_session == null)) {
+            g.m_session = session;
+            return g;
+          }
+        }
+        next = owner.m_ring.owner(id);
+        if (next != owner.m_self) {
+          this.redirect(next);
+          return null;
+        }
+        if (System.currentTimeMillis() >= end) {
+          return null;
+        }
+        try {
+          Thread.sleep(10L);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+    }
+
+    /**
+     * Play a session
+     *
+     * @param in
+     *          the buffered input of the connection
+     * @param dis
+     *          the input of the connection
+     * @param hello
+     *          the hello
+     * @return true if the session has been opened, and the communicator
+     *         closes the connection, false if the connection must be closed
+     * @throws IOException
+     *           if the connection is closed or broken
+     */
+    private final boolean play(final BufferedInputStream in,
+        final DataInputStream dis, final GameMessage hello)
+        throws IOException {
+      final RelayNode owner;
+      final Long key;
+      final Session session;
+      final Random random;
+      final Communicator com;
+      final SocketTransport transport;
+      final BattleshipModel model;
+      final boolean fresh;
+      final int received;
+      final long next;
+      final Game g;
+      Game old;
+
+      owner = RelayNode.this;
+      key = Long.valueOf(hello.m_x);
+      next = owner.m_ring.owner(hello.m_x);
+      if (next != owner.m_self) {
+        this.redirect(next);
+        return false;
+      }
+
+      session = new Session();
+      fresh = (hello.m_y == 0);
+      if (fresh) {
+        g = new Game(hello.m_x);
+        g.m_session = session;
+        synchronized (owner) {
+          old = owner.m_games.get(key);
+          if (old != null) {
+            // a new game replaces an old one, unless that is still in use
+            synchronized (old) {
+              if ((old.m_session != null) || old.m_moving) {
+                return false;
+              }
+              old.m_moving = true;
+              owner.m_games.remove(key);
+            }
+            owner.m_store.remove(hello.m_x);
+          }
+          model = owner.m_store.create(hello.m_x);
+          owner.m_games.put(key, g);
+        }
+      } else {
+        g = this.resume(hello.m_x, session);
+        if (g == null) {
+          return false;
+        }
+        model = owner.m_store.acquire(hello.m_x);
+        if (model == null) {
+          synchronized (g) {
+            g.m_session = null;
+          }
+          return false;
+        }
+      }
+
+      synchronized (g) {
+        received = g.m_received;
+      }
+      com = new Communicator(model);
+      com.setInteractive(false);
+      random = new Random();
+      transport = new SocketTransport(this.m_socket, true);
+      try {
+        transport.write(new GameMessage(GameMessage.TYPE_HELLO, hello.m_x,
+            received));
+        transport.flush();
+        com.attach(transport, owner.m_threads, received,
+            (fresh ? 0 : (hello.m_y - 1)));
+        if (fresh) {
+          owner.m_bot.placeShips(model, random);
+        } else {
+          SessionServer.botMove(owner.m_bot, model, random);
+        }
+
+        while (model.getGameState() != BattleshipModel.GAME_STATE_END) {
+          if (!(this.awaitMessage(in, session))) {
+            break;
+          }
+          com.receive(GameMessage.read(dis));
+          SessionServer.botMove(owner.m_bot, model, random);
+        }
+      } catch (EOFException e) {
+        // the client has left
+      } catch (IOException e) {
+        // the connection is broken
+      } catch (IllegalStateException e) {
+        // the client has brought the game into an inconsistent state
+      } finally {
+        this.close(g, model, com);
+      }
+      return true;
+    }
+
+    /**
+     * Close a session: drop the game if it has ended, hand it over if this
+     * node no longer owns it, or keep it for a later resume
+     *
+     * @param g
+     *          the game
+     * @param model
+     *          the model
+     * @param com
+     *          the communicator
+     */
+    private final void close(final Game g, final BattleshipModel model,
+        final Communicator com) {
+      final RelayNode owner;
+      final long next;
+      boolean drop;
+
+      owner = RelayNode.this;
+      drop = (model.getGameState() == BattleshipModel.GAME_STATE_END);
+      if (!drop) {
+        next = owner.m_ring.owner(g.m_id);
+        // the client resumes at the new owner once the connection is closed
+        drop = ((next != owner.m_self) && (next != 0L) && owner.migrate(
+            g.m_id, model, com.getReceived(), next));
+      }
+
+      com.stop();
+      // the model is unpinned before the session ends, as an open session
+      // keeps everybody else off the game in the store
+      try {
+        if (drop) {
+          owner.m_store.remove(g.m_id);
+        } else {
+          owner.m_store.release(g.m_id);
+        }
+      } catch (IOException e) {//
+      }
+      synchronized (g) {
+        g.m_received = com.getReceived();
+        g.m_session = null;
+        if (drop) {
+          owner.m_games.remove(Long.valueOf(g.m_id), g);
+        }
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void run() {
+      final RelayNode owner;
+      final BufferedInputStream in;
+      final DataInputStream dis;
+      final SocketTransport transport;
+      final GameMessage msg;
+      final long node;
+      boolean attached;
+
+      owner = RelayNode.this;
+      attached = false;
+      try {
+        in = new BufferedInputStream(this.m_socket.getInputStream());
+        dis = new DataInputStream(in);
+        msg = GameMessage.read(dis);
+        switch (msg.m_type) {
+          case GameMessage.TYPE_HELLO: {
+            attached = this.play(in, dis, msg);
+            return;
+          }
+          case GameMessage.TYPE_NODE_JOIN: {
+            node = ShardRing.node(msg.m_y, msg.m_x);
+            transport = new SocketTransport(this.m_socket);
+            if (owner.changeRing(node, true)) {
+              owner.rebalanceLater();
+            }
+            transport.write(new GameMessage(GameMessage.TYPE_NODE_MEMBERS, 0,
+                0, owner.m_ring.getNodes()));
+            transport.flush();
+            return;
+          }
+          case GameMessage.TYPE_NODE_LEAVE: {
+            node = ShardRing.node(msg.m_y, msg.m_x);
+            owner.changeRing(node, false);
+            transport = new SocketTransport(this.m_socket);
+            transport.write(new GameMessage(GameMessage.TYPE_ACK, 0, 0));
+            transport.flush();
+            return;
+          }
+          case GameMessage.TYPE_MIGRATE: {
+            if (!(owner.accept(msg))) {
+              // closing the connection tells the sender to keep the game
+              return;
+            }
+            transport = new SocketTransport(this.m_socket);
+            transport.write(new GameMessage(GameMessage.TYPE_ACK, msg.m_x, 0));
+            transport.flush();
+            return;
+          }
+          default: {
+            return;
+          }
+        }
+      } catch (IOException e) {
+        // the connection is broken
+      } catch (RuntimeException e) {
+        // a malformed message
+      } finally {
+        if (!attached) {
+          try {
+            this.m_socket.close();
+          } catch (IOException e) {//
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,698 @@
+package org.ustc.scst.dc.battleship;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Turns a recorded game into a clip: the moves are replayed through a
+ * {@link BattleshipModel}, giving the cell states after every move, and
+ * each of these frames is drawn by the {@link FieldPainter} of the
+ * {@link BattleshipView}, the player's side on the left and the enemy's
+ * side on the right. The frames are rendered in parallel on a
+ * {@link ForkJoinPool} and written as a sequence of PNG files or as an
+ * animated GIF. Neither the event dispatch thread nor a display is needed,
+ * so the exporter runs with {@code java.awt.headless=true}.
+ */
+public final class ReplayExporter {
+
+  /** the gap between the two sides of a frame in pixels */
+  private static final int GAP = 8;
+
+  /**
+   * the colors of the frames: the gap and the colors of the schemes of the
+   * {@link FieldPainter}, which draws without anti-aliasing, so that no
+   * other colors occur
+   */
+  private static final Color[] PALETTE = new Color[] { Color.BLACK,
+      FieldPainter.PLAYER_SCHEME[0], FieldPainter.PLAYER_SCHEME[1],
+      FieldPainter.PLAYER_SCHEME[2], FieldPainter.PLAYER_SCHEME[3] };
+
+  /** the color model of the indexed frames */
+  private static final IndexColorModel COLOR_MODEL = ReplayExporter
+      .makeColorModel();
+
+  /** the field width */
+  private final int m_width;
+
+  /** the field height */
+  private final int m_height;
+
+  /** the ships to place */
+  private final int[] m_ships;
+
+  /** the size of a cell in pixels */
+  private final int m_cellSize;
+
+  /**
+   * Create the exporter
+   *
+   * @param width
+   *          the field width
+   * @param height
+   *          the field height
+   * @param ships
+   *          the ships to place, where the element at index {@code i} is the
+   *          number of ships of length {@code i+1}
+   * @param cellSize
+   *          the size of a cell in pixels
+   */
+  public ReplayExporter(final int width, final int height,
+      final int[] ships, final int cellSize) {
+    super();
+    if (cellSize < 4) {
+      throw new IllegalArgumentException(//
+          "The cells must be at least four pixels large."); //$NON-NLS-1$
+    }
+    this.m_width = width;
+    this.m_height = height;
+    this.m_ships = ships.clone();
+    this.m_cellSize = cellSize;
+  }
+
+  /**
+   * Create the color model of the indexed frames
+   *
+   * @return the color model
+   */
+  private static final IndexColorModel makeColorModel() {
+    final byte[] r, g, b;
+    int i;
+
+    r = new byte[PALETTE.length];
+    g = new byte[PALETTE.length];
+    b = new byte[PALETTE.length];
+    for (i = PALETTE.length; (--i) >= 0;) {
+      r[i] = (byte) (PALETTE[i].getRed());
+      g[i] = (byte) (PALETTE[i].getGreen());
+      b[i] = (byte) (PALETTE[i].getBlue());
+    }
+    return new IndexColorModel(8, PALETTE.length, r, g, b);
+  }
+
+  /**
+   * Read the moves of a game from a move store
+   *
+   * @param store
+   *          the store
+   * @param pool
+   *          the pool to scan the store with
+   * @param game
+   *          the game id
+   * @return the x-coordinates, the y-coordinates and the flags of the moves
+   *         in the order in which they have been made, or {@code null} if
+   *         the store holds no game with that id
+   */
+  public static final int[][] readGame(final MoveStore store,
+      final ForkJoinPool pool, final long game) {
+    return store.scan(pool, new GameMoves(game)).m_moves;
+  }
+
+  /**
+   * Replay a game through a model
+   *
+   * @param start
+   *          the cell states before the first move, indexed by
+   *          {@code y*width+x}, e.g., from a
+   *          {@link BattleshipModelSnapshot#getCells() snapshot} taken when
+   *          the game started, or {@code null} if they are unknown, in which
+   *          case only the ships of the player hit by the enemy are shown
+   * @param x
+   *          the x-coordinates of the moves
+   * @param y
+   *          the y-coordinates of the moves
+   * @param flags
+   *          the flags of the moves, combinations of
+   *          {@link MoveStore#FLAG_ENEMY} and {@link MoveStore#FLAG_HIT}
+   * @param count
+   *          the number of moves
+   * @return the cell states before the first move and after each move,
+   *         i.e., {@code count+1} frames
+   * @throws IllegalStateException
+   *           if a move is illegal, i.e., the moves do not belong to one
+   *           game or do not fit to the start
+   */
+  public final int[][] replay(final int[] start, final int[] x,
+      final int[] y, final int[] flags, final int count) {
+    final BattleshipModel model;
+    final ByteBuffer buf;
+    final int[] cells;
+    final int[][] frames;
+    final int width, mask;
+    int i, c, own, enemy;
+
+    width = this.m_width;
+    model = new BattleshipModel(width, this.m_height, this.m_ships, false);
+    cells = new int[width * this.m_height];
+    own = enemy = model.getMaxShipCells();
+    if (start != null) {
+      mask = (BattleshipModel.CELL_STATE_PLAYER_SHIP
+          | BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN
+          | BattleshipModel.CELL_STATE_ENEMY_SHIP | BattleshipModel.CELL_STATE_ENEMY_HAS_SEEN);
+      for (i = cells.length; (--i) >= 0;) {
+        c = (cells[i] = (start[i] & mask));
+        if ((c & BattleshipModelFilter.SIDE_PLAYER) == BattleshipModelFilter.SIDE_PLAYER) {
+          own--;
+        }
+        if ((c & BattleshipModelFilter.SIDE_ENEMY) == BattleshipModelFilter.SIDE_ENEMY) {
+          enemy--;
+        }
+      }
+    } else {
+      for (i = count; (--i) >= 0;) {
+        if ((flags[i] & (MoveStore.FLAG_ENEMY | MoveStore.FLAG_HIT)) == //
+        (MoveStore.FLAG_ENEMY | MoveStore.FLAG_HIT)) {
+          cells[(y[i] * width) + x[i]] = BattleshipModel.CELL_STATE_PLAYER_SHIP;
+        }
+      }
+    }
+
+    // a running game in the compact form of BattleshipModel#writeCompact
+    buf = ByteBuffer.allocate(model.getCompactSize());
+    buf.put((byte) (BattleshipModel.GAME_STATE_PLAYING));
+    buf.put((byte) (BattleshipModel.WINNER_NOBODY));
+    buf.put((byte) (BattleshipModel.WINNER_NOBODY));
+    buf.put((byte) 1);
+    buf.putInt(own);
+    buf.putInt(enemy);
+    buf.putInt(this.m_ships.length);
+    for (i = 0; i < this.m_ships.length; i++) {
+      buf.putInt(0);
+    }
+    for (i = 0; i < cells.length; i++) {
+      buf.put((byte) (cells[i]));
+    }
+    buf.flip();
+    model.readCompact(buf);
+
+    frames = new int[count + 1][];
+    frames[0] = model.snapshot().getCells();
+    for (i = 0; i < count; i++) {
+      if ((flags[i] & MoveStore.FLAG_ENEMY) != 0) {
+        BattleshipModel.checkMove(model.tryEnemyHasSeen(x[i], y[i]));
+      } else {
+        BattleshipModel.checkMove(model.tryPlayerHasSeen(x[i], y[i]));
+        if ((flags[i] & MoveStore.FLAG_HIT) != 0) {
+          BattleshipModel.checkMove(model.tryEnemyHasShip(x[i], y[i]));
+        }
+      }
+      frames[i + 1] = model.snapshot().getCells();
+    }
+    return frames;
+  }
+
+  /**
+   * Render a frame
+   *
+   * @param cells
+   *          the cell states, indexed by {@code y*width+x}
+   * @return the image, with the player's side on the left and the enemy's
+   *         side on the right
+   */
+  public final BufferedImage render(final int[] cells) {
+    final int w, h;
+    final BufferedImage image;
+    final Graphics2D g;
+
+    w = (this.m_width * this.m_cellSize);
+    h = (this.m_height * this.m_cellSize);
+    image = new BufferedImage(((w << 1) + GAP), h,
+        BufferedImage.TYPE_INT_RGB);
+    g = image.createGraphics();
+    try {
+      g.setColor(PALETTE[0]);
+      g.fillRect(0, 0, image.getWidth(), h);
+      FieldPainter.paint(g, w, h, this.m_width, this.m_height, cells, true);
+      g.translate((w + GAP), 0);
+      FieldPainter.paint(g, w, h, this.m_width, this.m_height, cells, false);
+    } finally {
+      g.dispose();
+    }
+    return image;
+  }
+
+  /**
+   * Convert a rendered frame to an indexed image, which GIF requires and
+   * which makes PNG files smaller and faster to write
+   *
+   * @param rgb
+   *          the frame
+   * @return the indexed image
+   */
+  static final BufferedImage index(final BufferedImage rgb) {
+    final BufferedImage indexed;
+    final int[] src;
+    final byte[] dst;
+    int i, k, pixel, last, index;
+
+    indexed = new BufferedImage(rgb.getWidth(), rgb.getHeight(),
+        BufferedImage.TYPE_BYTE_INDEXED, COLOR_MODEL);
+    src = ((DataBufferInt) (rgb.getRaster().getDataBuffer())).getData();
+    dst = ((DataBufferByte) (indexed.getRaster().getDataBuffer())).getData();
+    last = (-1);
+    index = 0;
+    for (i = src.length; (--i) >= 0;) {
+      pixel = (src[i] & 0xffffff);
+      if (pixel != last) {
+        last = pixel;
+        index = 0;
+        for (k = PALETTE.length; (--k) > 0;) {
+          if ((PALETTE[k].getRGB() & 0xffffff) == pixel) {
+            index = k;
+            break;
+          }
+        }
+      }
+      dst[i] = (byte) index;
+    }
+    return indexed;
+  }
+
+  /**
+   * Render frames in parallel and write them as PNG files named
+   * {@code frame-00000.png}, {@code frame-00001.png}, and so on
+   *
+   * @param pool
+   *          the pool to render and write the frames with
+   * @param frames
+   *          the frames, e.g., from
+   *          {@link #replay(int[], int[], int[], int[], int)}
+   * @param dir
+   *          the directory, which is created if needed
+   * @throws IOException
+   *           if a file cannot be written
+   */
+  public final void writePngs(final ForkJoinPool pool, final int[][] frames,
+      final File dir) throws IOException {
+    final AtomicReference<IOException> error;
+
+    if ((!(dir.isDirectory())) && (!(dir.mkdirs()))) {
+      throw new IOException("Cannot create the directory " + dir); //$NON-NLS-1$
+    }
+    error = new AtomicReference<>();
+    pool.invoke(new RenderTask(this, frames, null, dir, error, 0,
+        frames.length));
+    if (error.get() != null) {
+      throw error.get();
+    }
+  }
+
+  /**
+   * Write frames as an animated GIF which loops forever. The frames are
+   * rendered in parallel in batches, each while the previous batch is
+   * being encoded, which GIF only allows in order.
+   *
+   * @param pool
+   *          the pool to render the frames with
+   * @param frames
+   *          the frames, e.g., from
+   *          {@link #replay(int[], int[], int[], int[], int)}
+   * @param file
+   *          the file
+   * @param delay
+   *          the time to show each frame in milliseconds
+   * @throws IOException
+   *           if the file cannot be written
+   */
+  public final void writeGif(final ForkJoinPool pool, final int[][] frames,
+      final File file, final int delay) throws IOException {
+    final Iterator<ImageWriter> writers;
+    final ImageWriter writer;
+    final ImageWriteParam param;
+    final BufferedImage[] images;
+    final int batch;
+    ForkJoinTask<Void> next;
+    IIOMetadata meta;
+    int from, to, i;
+
+    writers = ImageIO.getImageWritersBySuffix("gif"); //$NON-NLS-1$
+    if (!(writers.hasNext())) {
+      throw new IOException("No GIF writer available."); //$NON-NLS-1$
+    }
+    writer = writers.next();
+    param = writer.getDefaultWriteParam();
+    images = new BufferedImage[frames.length];
+    batch = Math.max(1, (4 * pool.getParallelism()));
+
+    file.delete();
+    try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+      writer.setOutput(out);
+      writer.prepareWriteSequence(null);
+      next = pool.submit(new RenderTask(this, frames, images, null, null, 0,
+          Math.min(frames.length, batch)));
+      for (from = 0; from < frames.length; from = to) {
+        to = Math.min(frames.length, (from + batch));
+        next.join();
+        next = ((to < frames.length) ? pool.submit(new RenderTask(this,
+            frames, images, null, null, to, Math.min(frames.length,
+                (to + batch)))) : null);
+        for (i = from; i < to; i++) {
+          meta = writer.getDefaultImageMetadata(
+              ImageTypeSpecifier.createFromRenderedImage(images[i]), param);
+          ReplayExporter.setGifMetadata(meta, delay, (i == 0));
+          writer.writeToSequence(new IIOImage(images[i], null, meta), param);
+          images[i] = null;
+        }
+      }
+      writer.endWriteSequence();
+    } finally {
+      writer.dispose();
+    }
+  }
+
+  /**
+   * Set the delay of a GIF frame and, for the first frame, let the
+   * animation loop forever
+   *
+   * @param meta
+   *          the metadata of the frame
+   * @param delay
+   *          the delay in milliseconds
+   * @param first
+   *          is this the first frame?
+   * @throws IOException
+   *           if the metadata cannot be set
+   */
+  private static final void setGifMetadata(final IIOMetadata meta,
+      final int delay, final boolean first) throws IOException {
+    final String format;
+    final IIOMetadataNode root, control, app;
+
+    format = meta.getNativeMetadataFormatName();
+    root = ((IIOMetadataNode) (meta.getAsTree(format)));
+    control = ReplayExporter.child(root, "GraphicControlExtension"); //$NON-NLS-1$
+    control.setAttribute("disposalMethod", "none"); //$NON-NLS-1$//$NON-NLS-2$
+    control.setAttribute("userInputFlag", "FALSE"); //$NON-NLS-1$//$NON-NLS-2$
+    control.setAttribute("transparentColorFlag", "FALSE"); //$NON-NLS-1$//$NON-NLS-2$
+    control.setAttribute("transparentColorIndex", "0"); //$NON-NLS-1$//$NON-NLS-2$
+    control.setAttribute("delayTime", //$NON-NLS-1$
+        Integer.toString(Math.max(1, (delay + 5) / 10)));
+    if (first) {
+      app = new IIOMetadataNode("ApplicationExtension"); //$NON-NLS-1$
+      app.setAttribute("applicationID", "NETSCAPE"); //$NON-NLS-1$//$NON-NLS-2$
+      app.setAttribute("authenticationCode", "2.0"); //$NON-NLS-1$//$NON-NLS-2$
+      app.setUserObject(new byte[] { 1, 0, 0 });
+      ReplayExporter.child(root, "ApplicationExtensions").appendChild(app); //$NON-NLS-1$
+    }
+    meta.setFromTree(format, root);
+  }
+
+  /**
+   * Get the child of a metadata node with a given name, creating it if
+   * needed
+   *
+   * @param node
+   *          the node
+   * @param name
+   *          the name
+   * @return the child
+   */
+  private static final IIOMetadataNode child(final IIOMetadataNode node,
+      final String name) {
+    final IIOMetadataNode child;
+    int i;
+
+    for (i = node.getLength(); (--i) >= 0;) {
+      if (node.item(i).getNodeName().equals(name)) {
+        return ((IIOMetadataNode) (node.item(i)));
+      }
+    }
+    child = new IIOMetadataNode(name);
+    node.appendChild(child);
+    return child;
+  }
+
+  /**
+   * Record a game between two strategies in a move store, read it back,
+   * replay it, and export it
+   *
+   * @param args
+   *          the output, a file ending with {@code .gif} or a directory for
+   *          PNG files (default: {@code replay.gif}), the cell size in
+   *          pixels (default: 24), and the random seed (default: 1)
+   * @throws Exception
+   *           if something goes wrong
+   */
+  public static final void main(final String[] args) throws Exception {
+    final File output, storeFile;
+    final int cellSize, n, delay;
+    final long seed;
+    final ForkJoinPool pool;
+    final HeadlessGame game;
+    final BattleshipModel m;
+    final int[][] start;
+    final IBattleshipModelListener startListener;
+    final ReplayExporter exporter;
+    final int[] last;
+    final int[][] moves, frames;
+    IBattleshipModelListener recording;
+    long time;
+
+    if (System.getProperty("java.awt.headless") == null) { //$NON-NLS-1$
+      System.setProperty("java.awt.headless", "true"); //$NON-NLS-1$//$NON-NLS-2$
+    }
+    output = new File((args.length > 0) ? args[0] : "replay.gif"); //$NON-NLS-1$
+    cellSize = ((args.length > 1) ? Integer.parseInt(args[1]) : 24);
+    seed = ((args.length > 2) ? Long.parseLong(args[2]) : 1L);
+    delay = 250;
+    n = BattleshipModel.DEFAULT_FIELD_WIDTH;
+    pool = new ForkJoinPool();
+    game = new HeadlessGame(n, n, BattleshipModel.DEFAULT_SHIPS_TO_PLACE);
+    m = game.getFirstModel();
+
+    // remember the ships of the player when the game starts
+    start = new int[1][];
+    startListener = new IBattleshipModelListener() {
+      @Override
+      public final void battleshipModelChanged(
+          final BattleshipModelEvent event) {
+        if (m.getGameState() == BattleshipModel.GAME_STATE_PLAYING) {
+          start[0] = m.snapshot().getCells();
+        }
+      }
+    };
+
+    storeFile = File.createTempFile("battleship-replay", ".moves"); //$NON-NLS-1$//$NON-NLS-2$
+    try {
+      try (MoveStore.Writer w = new MoveStore.Writer(storeFile, n, n)) {
+        recording = new MoveRecorder(w).watch(m, 0L);
+        m.addListener(startListener, BattleshipModelFilter.GAME_STATE);
+        game.play(new HuntTargetStrategy(), new ProbabilityDensityStrategy(),
+            new Random(seed));
+        m.removeListener(recording);
+        m.removeListener(startListener);
+      }
+      last = m.snapshot().getCells();
+
+      try (MoveStore store = MoveStore.open(storeFile)) {
+        moves = ReplayExporter.readGame(store, pool, 0L);
+      }
+      if (moves == null) {
+        System.out.println("The game has not ended, nothing recorded."); //$NON-NLS-1$
+        return;
+      }
+
+      exporter = new ReplayExporter(n, n,
+          BattleshipModel.DEFAULT_SHIPS_TO_PLACE, cellSize);
+      time = System.nanoTime();
+      frames = exporter.replay(start[0], moves[0], moves[1], moves[2],
+          moves[0].length);
+      time = (System.nanoTime() - time);
+      System.out.println("replayed:  " + moves[0].length + " moves in " //$NON-NLS-1$//$NON-NLS-2$
+          + (time / 1000L) + "us, final board " //$NON-NLS-1$
+          + (Arrays.equals(last, frames[frames.length - 1]) ? "matches" //$NON-NLS-1$
+              : "DIFFERS") + " the recorded game"); //$NON-NLS-1$ //$NON-NLS-2$
+
+      time = System.nanoTime();
+      if (output.getName().endsWith(".gif")) { //$NON-NLS-1$
+        exporter.writeGif(pool, frames, output, delay);
+      } else {
+        exporter.writePngs(pool, frames, output);
+      }
+      time = (System.nanoTime() - time);
+      System.out.println("exported:  " + frames.length + " frames to " //$NON-NLS-1$//$NON-NLS-2$
+          + output + " in " + (time / 1000000L) + "ms on " //$NON-NLS-1$//$NON-NLS-2$
+          + pool.getParallelism() + " workers"); //$NON-NLS-1$
+    } finally {
+      storeFile.delete();
+      pool.shutdown();
+    }
+  }
+
+  /** an aggregation looking for the moves of one game */
+  private static final class GameMoves extends MoveStore.Aggregation {
+
+    /** the game id */
+    private final long m_game;
+
+    /** the moves, or null if not found yet */
+    int[][] m_moves;
+
+    /**
+     * Create the aggregation
+     *
+     * @param game
+     *          the game id
+     */
+    GameMoves(final long game) {
+      super();
+      this.m_game = game;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final MoveStore.Aggregation fork() {
+      return new GameMoves(this.m_game);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final void add(final MoveBlock block) {
+      final int[] x, y, flags;
+      int run, from, i;
+
+      for (run = block.getRuns(); (--run) >= 0;) {
+        if (block.getRunGame(run) == this.m_game) {
+          from = block.getRunStart(run);
+          i = (block.getRunStart(run + 1) - from);
+          x = new int[i];
+          y = new int[i];
+          flags = new int[i];
+          for (; (--i) >= 0;) {
+            x[i] = block.getX(from + i);
+            y[i] = block.getY(from + i);
+            flags[i] = block.getFlags(from + i);
+          }
+          this.m_moves = new int[][] { x, y, flags };
+          return;
+        }
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final void join(final MoveStore.Aggregation other) {
+      if (this.m_moves == null) {
+        this.m_moves = ((GameMoves) other).m_moves;
+      }
+    }
+  }
+
+  /** a task rendering a range of frames */
+  private static final class RenderTask extends RecursiveAction {
+
+    /** the serial version uid */
+    private static final long serialVersionUID = 1L;
+
+    /** the exporter */
+    private final transient ReplayExporter m_exporter;
+
+    /** the frames */
+    private final int[][] m_frames;
+
+    /** the destination of the images, or null if they are written */
+    private final transient BufferedImage[] m_images;
+
+    /** the directory to write the images to, or null */
+    private final File m_dir;
+
+    /** the first error while writing */
+    private final AtomicReference<IOException> m_error;
+
+    /** the first frame */
+    private final int m_from;
+
+    /** the end of the frames */
+    private final int m_to;
+
+    /**
+     * Create the task
+     *
+     * @param exporter
+     *          the exporter
+     * @param frames
+     *          the frames
+     * @param images
+     *          the destination of the images, or null if they are written
+     * @param dir
+     *          the directory to write the images to, or null
+     * @param error
+     *          the first error while writing
+     * @param from
+     *          the first frame
+     * @param to
+     *          the end of the frames
+     */
+    RenderTask(final ReplayExporter exporter, final int[][] frames,
+        final BufferedImage[] images, final File dir,
+        final AtomicReference<IOException> error, final int from,
+        final int to) {
+      super();
+      this.m_exporter = exporter;
+      this.m_frames = frames;
+      this.m_images = images;
+      this.m_dir = dir;
+      this.m_error = error;
+      this.m_from = from;
+      this.m_to = to;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final void compute() {
+      final int mid;
+      final BufferedImage image;
+
+      if ((this.m_to - this.m_from) > 1) {
+        mid = ((this.m_from + this.m_to) >>> 1);
+        RecursiveAction.invokeAll(new RenderTask(this.m_exporter,
+            this.m_frames, this.m_images, this.m_dir, this.m_error,
+            this.m_from, mid), new RenderTask(this.m_exporter, this.m_frames,
+            this.m_images, this.m_dir, this.m_error, mid, this.m_to));
+        return;
+      }
+      if (this.m_from >= this.m_to) {
+        return;
+      }
+
+      image = ReplayExporter.index(this.m_exporter
+          .render(this.m_frames[this.m_from]));
+      if (this.m_images != null) {
+        this.m_images[this.m_from] = image;
+        return;
+      }
+      if (this.m_error.get() != null) {
+        return;
+      }
+      try {
+        ImageIO.write(image, "png", new File(this.m_dir, //$NON-NLS-1$
+            String.format("frame-%05d.png", //$NON-NLS-1$
+                Integer.valueOf(this.m_from))));
+      } catch (IOException e) {
+        this.m_error.compareAndSet(null, e);
+      }
+    }
+  }
+}
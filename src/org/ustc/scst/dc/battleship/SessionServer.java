@@ -0,0 +1,356 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server hosting many game sessions. Each accepted connection is a client
+ * playing against a strategy hosted by the server, and is handled in the
+ * same blocking style as the {@link Communicator}: one thread reads the
+ * messages of the connection, one thread writes them. If the Java runtime
+ * supports virtual threads, these threads can be virtual, so that the
+ * number of idle but connected sessions is not limited by the number of
+ * operating system threads.
+ * <p>
+ * A client opens a session by sending a {@link GameMessage#TYPE_HELLO hello}
+ * message with its game id, e.g., via
+ * {@link Communicator#startSession(String, int, int)}, which the server
+ * answers with a hello, and then plays with the ordinary game messages. The
+ * server does not keep the games of closed sessions, so sessions cannot be
+ * resumed.
+ * </p>
+ * <p>
+ * The games are watched by the shared {@link TurnClock}: a client which
+ * does not fire within the turn time loses and is disconnected, and so is a
+ * client which does not finish placing its ships within the idle time.
+ * </p>
+ * <p>
+ * If a {@link StatisticsService} is set, the finished games are recorded
+ * there. The protocol has no notion of a user, so a client is identified by
+ * its game id and the strategy by {@link #BOT_PLAYER}.
+ * </p>
+ */
+public final class SessionServer implements Runnable {
+
+  /** the default turn time in milliseconds */
+  public static final long DEFAULT_TURN_TIME = 60000L;
+
+  /** the default idle time in milliseconds */
+  public static final long DEFAULT_IDLE_TIME = 300000L;
+
+  /** the player id of the strategy in the statistics */
+  public static final long BOT_PLAYER = -1L;
+
+  /** the server socket */
+  private final ServerSocket m_server;
+
+  /** the factory for the session threads */
+  private final ThreadFactory m_threads;
+
+  /** the strategy playing against the clients */
+  private final IBattleshipStrategy m_bot;
+
+  /** the pool of models of the sessions */
+  private final BattleshipModelPool m_models;
+
+  /** the number of accepted connections */
+  private final AtomicLong m_accepted;
+
+  /** the number of open sessions */
+  private final AtomicInteger m_active;
+
+  /** the turn time in milliseconds */
+  private final long m_turnTime;
+
+  /** the idle time in milliseconds */
+  private final long m_idleTime;
+
+  /** the statistics, or null */
+  private volatile StatisticsService m_statistics;
+
+  /** are we running? */
+  private volatile boolean m_running;
+
+  /**
+   * Create the session server
+   * 
+   * @param port
+   *          the port to listen on, or 0 for any free port
+   * @param virtualThreads
+   *          should each session run on virtual threads, if they are
+   *          supported?
+   * @param bot
+   *          the strategy playing against the clients
+   * @throws IOException
+   *           if the port cannot be opened
+   */
+  public SessionServer(final int port, final boolean virtualThreads,
+      final IBattleshipStrategy bot) throws IOException {
+    this(port, virtualThreads, bot, DEFAULT_TURN_TIME, DEFAULT_IDLE_TIME);
+  }
+
+  /**
+   * Create the session server
+   * 
+   * @param port
+   *          the port to listen on, or 0 for any free port
+   * @param virtualThreads
+   *          should each session run on virtual threads, if they are
+   *          supported?
+   * @param bot
+   *          the strategy playing against the clients
+   * @param turnTime
+   *          the time in milliseconds a client has for a shot
+   * @param idleTime
+   *          the time in milliseconds a client has for placing its ships
+   * @throws IOException
+   *           if the port cannot be opened
+   */
+  public SessionServer(final int port, final boolean virtualThreads,
+      final IBattleshipStrategy bot, final long turnTime,
+      final long idleTime) throws IOException {
+    super();
+    this.m_server = new ServerSocket(port, 4096);
+    this.m_threads = ThreadFactories.session("Session", virtualThreads); //$NON-NLS-1$
+    this.m_bot = bot;
+    this.m_models = new BattleshipModelPool(
+        BattleshipModel.DEFAULT_FIELD_WIDTH,
+        BattleshipModel.DEFAULT_FIELD_HEIGHT,
+        BattleshipModel.DEFAULT_SHIPS_TO_PLACE, 1024);
+    this.m_accepted = new AtomicLong();
+    this.m_active = new AtomicInteger();
+    this.m_turnTime = turnTime;
+    this.m_idleTime = idleTime;
+  }
+
+  /**
+   * Get the port the server listens on
+   * 
+   * @return the port
+   */
+  public final int getPort() {
+    return this.m_server.getLocalPort();
+  }
+
+  /**
+   * Get the number of connections accepted so far
+   * 
+   * @return the number of accepted connections
+   */
+  public final long getAcceptedSessions() {
+    return this.m_accepted.get();
+  }
+
+  /**
+   * Get the number of open sessions
+   * 
+   * @return the number of open sessions
+   */
+  public final int getActiveSessions() {
+    return this.m_active.get();
+  }
+
+  /**
+   * Record the games of the sessions opened from now on
+   *
+   * @param statistics
+   *          the statistics, or null to record no games
+   */
+  public final void setStatistics(final StatisticsService statistics) {
+    this.m_statistics = statistics;
+  }
+
+  /** Start accepting connections in a new thread */
+  public synchronized final void start() {
+    final Thread t;
+
+    if (!(this.m_running)) {
+      this.m_running = true;
+      t = new Thread(this, "SessionServer-Acceptor"); //$NON-NLS-1$
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  /** Stop accepting connections */
+  public synchronized final void stop() {
+    this.m_running = false;
+    try {
+      this.m_server.close();
+    } catch (IOException e) {//
+    }
+  }
+
+  /** The accept loop */
+  @Override
+  public final void run() {
+    Socket s;
+
+    while (this.m_running) {
+      try {
+        s = this.m_server.accept();
+        s.setTcpNoDelay(true);
+        this.m_accepted.incrementAndGet();
+        this.m_threads.newThread(new Session(s)).start();
+      } catch (IOException e) {
+        if (this.m_running) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Let the strategy fire if it is its turn. The strategy only ever answers
+   * a shot of the client, so the client always fires first and the shots of
+   * both sides can never cross.
+   * 
+   * @param bot
+   *          the strategy
+   * @param model
+   *          the model of the session
+   * @param random
+   *          the random number generator of the session
+   */
+  static final void botMove(final IBattleshipStrategy bot,
+      final BattleshipModel model, final Random random) {
+    final int cell;
+
+    synchronized (model) {
+      if ((model.getGameState() != BattleshipModel.GAME_STATE_PLAYING)
+          || (model.getLastPlayer() != BattleshipModel.WINNER_ENEMY)) {
+        return;
+      }
+      cell = bot.nextShot(model, random);
+      model.tryPlayerHasSeen((cell % model.getFieldWidth()),
+          (cell / model.getFieldWidth()));
+    }
+  }
+
+  /**
+   * Run a session server hosting games against the probability density
+   * strategy
+   * 
+   * @param args
+   *          the port and, optionally, {@code platform} to use platform
+   *          threads instead of virtual threads
+   * @throws IOException
+   *           if the server cannot be started
+   */
+  public static final void main(final String[] args) throws IOException {
+    final SessionServer server;
+
+    server = new SessionServer(((args.length > 0) ? Integer
+        .parseInt(args[0]) : 45000), !((args.length > 1) && "platform" //$NON-NLS-1$
+        .equalsIgnoreCase(args[1])), new ProbabilityDensityStrategy());
+    System.out.println("Session server listening on port " //$NON-NLS-1$
+        + server.getPort() + ", virtual threads: " //$NON-NLS-1$
+        + ThreadFactories.isVirtualSupported());
+    server.run();
+  }
+
+  /** a session */
+  private final class Session implements Runnable {
+
+    /** the connection */
+    private final Socket m_socket;
+
+    /**
+     * Create the session
+     * 
+     * @param socket
+     *          the connection
+     */
+    Session(final Socket socket) {
+      super();
+      this.m_socket = socket;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void run() {
+      final SessionServer owner;
+      final BattleshipModel model;
+      final Communicator com;
+      final Random random;
+      final DataInputStream dis;
+      final SocketTransport transport;
+      final StatisticsService statistics;
+      TurnClock.Watch watch;
+      GameMessage msg;
+      boolean attached;
+
+      owner = SessionServer.this;
+      owner.m_active.incrementAndGet();
+      model = owner.m_models.acquire();
+      com = new Communicator(model);
+      com.setInteractive(false);
+      random = new Random();
+      attached = false;
+      watch = null;
+
+      try {
+        dis = new DataInputStream(new BufferedInputStream(
+            this.m_socket.getInputStream()));
+        msg = GameMessage.read(dis);
+        if ((msg.m_type != GameMessage.TYPE_HELLO) || (msg.m_y != 0)) {
+          return;
+        }
+
+        transport = new SocketTransport(this.m_socket);
+        transport.write(new GameMessage(GameMessage.TYPE_HELLO, msg.m_x, 0));
+        transport.flush();
+        com.attach(transport, owner.m_threads);
+        attached = true;
+        statistics = owner.m_statistics;
+        if (statistics != null) {
+          // the listener is removed when the model is released
+          statistics.watch(model, msg.m_x, BOT_PLAYER);
+        }
+        // stopping the communicator shuts the input down and thus ends the
+        // loop below
+        watch = TurnClock.getShared().watch(model, owner.m_turnTime,
+            owner.m_idleTime, TimeUnit.MILLISECONDS, new Runnable() {
+              @Override
+              public final void run() {
+                com.stop();
+              }
+            });
+        owner.m_bot.placeShips(model, random);
+
+        while (model.getGameState() != BattleshipModel.GAME_STATE_END) {
+          com.receive(GameMessage.read(dis));
+          SessionServer.botMove(owner.m_bot, model, random);
+        }
+      } catch (EOFException e) {
+        // the client has left
+      } catch (IOException e) {
+        // the connection is broken
+      } catch (IllegalStateException e) {
+        // the client has brought the game into an inconsistent state
+      } finally {
+        if (watch != null) {
+          watch.cancel();
+        }
+        com.stop();
+        if (!attached) {
+          try {
+            this.m_socket.close();
+          } catch (IOException e) {//
+          }
+        }
+        owner.m_models.release(model);
+        owner.m_active.decrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * A soak test for the {@link SessionServer}: open many loopback sessions
+ * which then stay connected but idle, and report the accept rate and the
+ * memory used per session.
+ */
+public final class SessionSoak {
+
+  /** no instances */
+  private SessionSoak() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Get the used heap memory after garbage collection
+   * 
+   * @return the used heap memory
+   */
+  private static final long usedMemory() {
+    final Runtime rt;
+    int i;
+
+    rt = Runtime.getRuntime();
+    for (i = 3; (--i) >= 0;) {
+      System.gc();
+      try {
+        Thread.sleep(100L);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return (rt.totalMemory() - rt.freeMemory());
+  }
+
+  /**
+   * Run the soak test
+   * 
+   * @param args
+   *          the number of sessions (default: 10000) and, optionally,
+   *          {@code platform} to use platform threads instead of virtual
+   *          threads
+   * @throws Exception
+   *           if something goes wrong
+   */
+  public static final void main(final String[] args) throws Exception {
+    final int n;
+    final boolean virtual;
+    final SessionServer server;
+    final Socket[] clients;
+    final InetAddress loopback;
+    final long memBefore, memAfter, threadsBefore, start, connected;
+    final long deadline;
+    long accepted;
+    DataOutputStream dos;
+    int i;
+
+    n = ((args.length > 0) ? Integer.parseInt(args[0]) : 10000);
+    virtual = !((args.length > 1) && "platform".equalsIgnoreCase(args[1])); //$NON-NLS-1$
+
+    server = new SessionServer(0, virtual, new RandomStrategy());
+    server.start();
+    loopback = InetAddress.getLoopbackAddress();
+    clients = new Socket[n];
+
+    memBefore = SessionSoak.usedMemory();
+    threadsBefore = Thread.activeCount();
+    start = System.nanoTime();
+    try {
+      for (i = 0; i < n; i++) {
+        clients[i] = new Socket(loopback, server.getPort());
+        dos = new DataOutputStream(new BufferedOutputStream(
+            clients[i].getOutputStream()));
+        new GameMessage(GameMessage.TYPE_HELLO, i, 0).write(dos);
+        dos.flush();
+      }
+      connected = System.nanoTime();
+
+      deadline = (System.currentTimeMillis() + 60000L);
+      while (((accepted = server.getActiveSessions()) < n)
+          && (System.currentTimeMillis() < deadline)) {
+        Thread.sleep(10L);
+      }
+      accepted = server.getAcceptedSessions();
+
+      memAfter = SessionSoak.usedMemory();
+      System.out.println("virtual threads:     " //$NON-NLS-1$
+          + (virtual && ThreadFactories.isVirtualSupported()));
+      System.out.println("sessions:            " + n); //$NON-NLS-1$
+      System.out.println("accepted:            " + accepted); //$NON-NLS-1$
+      System.out.println("open sessions:       " //$NON-NLS-1$
+          + server.getActiveSessions());
+      System.out.println("connect time:        " //$NON-NLS-1$
+          + ((connected - start) / 1000000L) + "ms"); //$NON-NLS-1$
+      System.out.println("accept rate:         " //$NON-NLS-1$
+          + ((long) ((accepted * 1e9d) / Math.max(1L, (connected - start))))
+          + " sessions/s"); //$NON-NLS-1$
+      System.out.println("live threads:        " //$NON-NLS-1$
+          + (Thread.activeCount() - threadsBefore));
+      System.out.println("heap per session:    " //$NON-NLS-1$
+          + ((memAfter - memBefore) / Math.max(1, n))
+          + " bytes (client and server side)"); //$NON-NLS-1$
+    } finally {
+      for (Socket s : clients) {
+        if (s != null) {
+          try {
+            s.close();
+          } catch (IOException e) {//
+          }
+        }
+      }
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,362 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * The transport of a client playing a game hosted by a
+ * {@link SessionServer} or by {@link RelayNode relay nodes}. Opening the
+ * transport sends a {@link GameMessage#TYPE_HELLO hello} with the game id
+ * and follows the {@link GameMessage#TYPE_REDIRECT redirects} to the node
+ * owning the game.
+ * <p>
+ * When the connection is lost, e.g., because the game has moved to another
+ * node, the transport reconnects and resumes the session: the hello tells
+ * the server which of its messages have been received, the server's answer
+ * tells which of ours have been processed, and the rest of ours are sent
+ * again. The server hands a game over only after all its messages have
+ * been delivered, so none of its messages need to be sent again.
+ * </p>
+ */
+public final class SessionTransport implements ICommunicatorTransport {
+
+  /** the maximum number of redirects followed when opening a session */
+  private static final int MAX_REDIRECTS = 8;
+
+  /** the time in milliseconds to wait for the answer to a hello */
+  private static final int HANDSHAKE_TIMEOUT = 5000;
+
+  /** the number of attempts to reconnect */
+  private static final int ATTEMPTS = 6;
+
+  /** the first delay in milliseconds before reconnecting */
+  private static final long MIN_BACKOFF = 50L;
+
+  /** the number of sent messages kept for replay, a power of two */
+  private static final int REPLAY_CAPACITY = 512;
+
+  /** the server the session was opened at */
+  private final InetSocketAddress m_entry;
+
+  /** the game id */
+  private final int m_gameId;
+
+  /** the last messages sent, indexed by sequence number */
+  private final GameMessage[] m_replay;
+
+  /** the node the session is connected to, guarded by this */
+  private InetSocketAddress m_node;
+
+  /** the current connection, or null */
+  private volatile SocketTransport m_current;
+
+  /** the sequence number of the last message sent, guarded by this */
+  private int m_lastSent;
+
+  /** the sequence number of the last message received */
+  private volatile int m_lastReceived;
+
+  /** the number of redirects followed */
+  private volatile int m_redirects;
+
+  /** the number of times the session has been resumed */
+  private volatile int m_resumes;
+
+  /** has the input been shut down? */
+  private volatile boolean m_inputShut;
+
+  /** has the transport been closed? */
+  private volatile boolean m_closed;
+
+  /**
+   * Create the transport
+   *
+   * @param entry
+   *          the server to open the session at
+   * @param gameId
+   *          the game id
+   */
+  private SessionTransport(final InetSocketAddress entry, final int gameId) {
+    super();
+    this.m_entry = entry;
+    this.m_node = entry;
+    this.m_gameId = gameId;
+    this.m_replay = new GameMessage[REPLAY_CAPACITY];
+  }
+
+  /**
+   * Open a session
+   *
+   * @param host
+   *          the host of the server or of any relay node
+   * @param port
+   *          the port
+   * @param gameId
+   *          the game id
+   * @return the transport, connected to the server owning the game
+   * @throws IOException
+   *           if the session cannot be opened
+   */
+  public static final SessionTransport open(final String host,
+      final int port, final int gameId) throws IOException {
+    final SessionTransport t;
+
+    t = new SessionTransport(new InetSocketAddress(host, port), gameId);
+    synchronized (t) {
+      t.handshake(t.m_entry, false);
+    }
+    return t;
+  }
+
+  /**
+   * Get the number of redirects followed
+   *
+   * @return the number of redirects
+   */
+  public final int getRedirects() {
+    return this.m_redirects;
+  }
+
+  /**
+   * Get the number of times the session has been resumed
+   *
+   * @return the number of resumes
+   */
+  public final int getResumes() {
+    return this.m_resumes;
+  }
+
+  /**
+   * Get the node the session is connected to
+   *
+   * @return the address of the node
+   */
+  public synchronized final InetSocketAddress getNode() {
+    return this.m_node;
+  }
+
+  /**
+   * Send a hello and follow the redirects. Must be called while holding the
+   * lock.
+   *
+   * @param first
+   *          the server to send the first hello to
+   * @param resume
+   *          resume the session?
+   * @throws IOException
+   *           if the session cannot be opened
+   */
+  private final void handshake(final InetSocketAddress first,
+      final boolean resume) throws IOException {
+    InetSocketAddress target;
+    SocketTransport t;
+    GameMessage reply;
+    Socket s;
+    int hops;
+
+    target = first;
+    for (hops = 0; hops <= MAX_REDIRECTS; hops++) {
+      s = new Socket();
+      t = new SocketTransport(s);
+      try {
+        s.connect(target, HANDSHAKE_TIMEOUT);
+        s.setTcpNoDelay(true);
+        s.setSoTimeout(HANDSHAKE_TIMEOUT);
+        t.write(new GameMessage(GameMessage.TYPE_HELLO, this.m_gameId,
+            (resume ? (this.m_lastReceived + 1) : 0)));
+        t.flush();
+        reply = t.read();
+
+        if (reply.m_type == GameMessage.TYPE_REDIRECT) {
+          t.close();
+          target = new InetSocketAddress(ShardRing.address(ShardRing.node(
+              reply.m_y, reply.m_x)), reply.m_x);
+          this.m_redirects++;
+          continue;
+        }
+        if (reply.m_type != GameMessage.TYPE_HELLO) {
+          throw new IOException("Unexpected answer: " + reply.m_type); //$NON-NLS-1$
+        }
+
+        this.replay(t, reply.m_y);
+        t.flush();
+        s.setSoTimeout(0);
+        this.m_node = target;
+        this.m_current = t;
+        return;
+      } catch (IOException e) {
+        t.close();
+        throw e;
+      }
+    }
+    throw new IOException("Too many redirects for game " + this.m_gameId); //$NON-NLS-1$
+  }
+
+  /**
+   * Send the messages the server has not processed again. Must be called
+   * while holding the lock.
+   *
+   * @param t
+   *          the connection
+   * @param processed
+   *          the sequence number of the last message processed by the
+   *          server
+   * @throws IOException
+   *           if the messages are no longer kept
+   */
+  private final void replay(final SocketTransport t, final int processed)
+      throws IOException {
+    GameMessage msg;
+    int seq;
+
+    for (seq = (processed + 1); seq <= this.m_lastSent; seq++) {
+      msg = this.m_replay[seq & (REPLAY_CAPACITY - 1)];
+      if ((msg == null) || (msg.m_seq != seq)) {
+        throw new IOException("Message " + seq + " is no longer kept."); //$NON-NLS-1$//$NON-NLS-2$
+      }
+      t.write(msg);
+    }
+  }
+
+  /**
+   * Reconnect and resume the session, first at the node we were connected
+   * to, which redirects us if the game has moved, then alternately at the
+   * server the session was opened at. Must be called while holding the
+   * lock.
+   *
+   * @throws IOException
+   *           if the session cannot be resumed
+   */
+  private final void reconnect() throws IOException {
+    final SocketTransport old;
+    long delay;
+    int attempt;
+
+    old = this.m_current;
+    this.m_current = null;
+    if (old != null) {
+      old.close();
+    }
+
+    delay = MIN_BACKOFF;
+    for (attempt = 0;; attempt++) {
+      try {
+        this.handshake((((attempt & 1) == 0) ? this.m_node : this.m_entry),
+            true);
+        this.m_resumes++;
+        return;
+      } catch (EOFException e) {
+        // the server does not know the game (anymore)
+        throw e;
+      } catch (IOException e) {
+        if (this.m_inputShut || (attempt >= ATTEMPTS)) {
+          throw e;
+        }
+      }
+      try {
+        this.wait(delay);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      delay <<= 1;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized final void write(final GameMessage msg)
+      throws IOException {
+    final SocketTransport t;
+
+    if (this.m_closed) {
+      throw new IOException("The session has been closed."); //$NON-NLS-1$
+    }
+    if (msg.m_seq > 0) {
+      this.m_replay[msg.m_seq & (REPLAY_CAPACITY - 1)] = msg;
+      this.m_lastSent = msg.m_seq;
+    }
+    t = this.m_current;
+    if (t != null) {
+      try {
+        t.write(msg);
+      } catch (IOException e) {
+        // the reader notices, reconnects and sends the message again
+        t.shutdownInput();
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized final void flush() throws IOException {
+    final SocketTransport t;
+
+    t = this.m_current;
+    if (t != null) {
+      try {
+        t.flush();
+      } catch (IOException e) {
+        t.shutdownInput();
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final GameMessage read() throws IOException {
+    SocketTransport t;
+    GameMessage msg;
+
+    for (;;) {
+      t = this.m_current;
+      if ((t == null) || this.m_inputShut) {
+        throw new EOFException();
+      }
+      try {
+        msg = t.read();
+        if (msg.m_seq > this.m_lastReceived) {
+          this.m_lastReceived = msg.m_seq;
+        }
+        return msg;
+      } catch (IOException e) {
+        if (this.m_inputShut) {
+          throw new EOFException();
+        }
+        synchronized (this) {
+          if (this.m_current == t) {
+            this.reconnect();
+          }
+        }
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void shutdownInput() {
+    final SocketTransport t;
+
+    this.m_inputShut = true;
+    t = this.m_current;
+    if (t != null) {
+      t.shutdownInput();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void close() {
+    final SocketTransport t;
+
+    this.m_inputShut = true;
+    this.m_closed = true;
+    t = this.m_current;
+    if (t != null) {
+      t.close();
+    }
+  }
+}
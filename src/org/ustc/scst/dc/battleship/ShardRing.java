@@ -0,0 +1,257 @@
+package org.ustc.scst.dc.battleship;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * The assignment of game ids to relay nodes by rendezvous hashing: each node
+ * gets a weight for each game, computed by hashing the node and the game
+ * together, and the node with the highest weight owns the game. When a node
+ * joins, it only takes over the games for which it has the highest weight,
+ * and when a node leaves, only its games move, each to the node with the
+ * next highest weight. The other games stay where they are.
+ * <p>
+ * A node is identified by its IPv4 address and port, packed into a long.
+ * Rings are immutable.
+ * </p>
+ */
+public final class ShardRing {
+
+  /** the nodes, sorted */
+  private final long[] m_nodes;
+
+  /**
+   * Create a ring
+   *
+   * @param nodes
+   *          the nodes
+   */
+  public ShardRing(final long... nodes) {
+    super();
+    long[] n;
+    int i, j;
+
+    n = nodes.clone();
+    Arrays.sort(n);
+    j = 0;
+    for (i = 0; i < n.length; i++) {
+      if ((j <= 0) || (n[j - 1] != n[i])) {
+        n[j++] = n[i];
+      }
+    }
+    this.m_nodes = ((j < n.length) ? Arrays.copyOf(n, j) : n);
+  }
+
+  /**
+   * Pack the address of a node into a long
+   *
+   * @param address
+   *          the IPv4 address
+   * @param port
+   *          the port
+   * @return the node
+   * @throws IllegalArgumentException
+   *           if the address is not an IPv4 address
+   */
+  public static final long node(final InetAddress address, final int port) {
+    final byte[] b;
+
+    if (!(address instanceof Inet4Address)) {
+      throw new IllegalArgumentException(//
+          "Relay nodes need an IPv4 address, not " + address); //$NON-NLS-1$
+    }
+    b = address.getAddress();
+    return ((((b[0] & 0xffL) << 40) | ((b[1] & 0xffL) << 32)
+        | ((b[2] & 0xffL) << 24) | ((b[3] & 0xffL) << 16)) | (port & 0xffffL));
+  }
+
+  /**
+   * Pack the address of a node given as IPv4 address and port, as used by
+   * the messages between relay nodes
+   *
+   * @param ipv4
+   *          the IPv4 address
+   * @param port
+   *          the port
+   * @return the node
+   */
+  static final long node(final int ipv4, final int port) {
+    return (((ipv4 & 0xffffffffL) << 16) | (port & 0xffffL));
+  }
+
+  /**
+   * Get the IPv4 address of a node as int
+   *
+   * @param node
+   *          the node
+   * @return the address
+   */
+  static final int ipv4(final long node) {
+    return ((int) (node >>> 16));
+  }
+
+  /**
+   * Get the address of a node
+   *
+   * @param node
+   *          the node
+   * @return the address
+   */
+  public static final InetAddress address(final long node) {
+    final int a;
+
+    a = ShardRing.ipv4(node);
+    try {
+      return InetAddress.getByAddress(new byte[] { (byte) (a >>> 24),
+          (byte) (a >>> 16), (byte) (a >>> 8), (byte) a });
+    } catch (UnknownHostException e) {
+      throw new IllegalStateException(e); // cannot happen for 4 bytes
+    }
+  }
+
+  /**
+   * Get the port of a node
+   *
+   * @param node
+   *          the node
+   * @return the port
+   */
+  public static final int port(final long node) {
+    return ((int) (node & 0xffffL));
+  }
+
+  /**
+   * Get a readable form of a node
+   *
+   * @param node
+   *          the node
+   * @return the address and port of the node
+   */
+  public static final String toString(final long node) {
+    return (ShardRing.address(node).getHostAddress() + ':' + ShardRing
+        .port(node));
+  }
+
+  /**
+   * Get the weight of a node for a game
+   *
+   * @param node
+   *          the node
+   * @param game
+   *          the game id
+   * @return the weight
+   */
+  private static final long weight(final long node, final long game) {
+    return Hashing.mix((Hashing.mix(node) ^ game) * Hashing.GOLDEN);
+  }
+
+  /**
+   * Get the node owning a game
+   *
+   * @param game
+   *          the game id
+   * @return the node, or 0 if the ring is empty
+   */
+  public final long owner(final long game) {
+    long best, w, max;
+    int i;
+
+    best = 0L;
+    max = Long.MIN_VALUE;
+    for (i = this.m_nodes.length; (--i) >= 0;) {
+      w = ShardRing.weight(this.m_nodes[i], game);
+      if ((w > max) || (best == 0L)) {
+        max = w;
+        best = this.m_nodes[i];
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Get a ring with an additional node
+   *
+   * @param node
+   *          the node
+   * @return the ring, or this ring if it contains the node
+   */
+  public final ShardRing with(final long node) {
+    final long[] n;
+
+    if (this.contains(node)) {
+      return this;
+    }
+    n = Arrays.copyOf(this.m_nodes, (this.m_nodes.length + 1));
+    n[this.m_nodes.length] = node;
+    return new ShardRing(n);
+  }
+
+  /**
+   * Get a ring without a node
+   *
+   * @param node
+   *          the node
+   * @return the ring, or this ring if it does not contain the node
+   */
+  public final ShardRing without(final long node) {
+    final long[] n;
+    final int i;
+
+    i = Arrays.binarySearch(this.m_nodes, node);
+    if (i < 0) {
+      return this;
+    }
+    n = new long[this.m_nodes.length - 1];
+    System.arraycopy(this.m_nodes, 0, n, 0, i);
+    System.arraycopy(this.m_nodes, (i + 1), n, i, (n.length - i));
+    return new ShardRing(n);
+  }
+
+  /**
+   * Does the ring contain a node?
+   *
+   * @param node
+   *          the node
+   * @return true if the ring contains the node
+   */
+  public final boolean contains(final long node) {
+    return (Arrays.binarySearch(this.m_nodes, node) >= 0);
+  }
+
+  /**
+   * Get the nodes
+   *
+   * @return the nodes, sorted
+   */
+  public final long[] getNodes() {
+    return this.m_nodes.clone();
+  }
+
+  /**
+   * Get the number of nodes
+   *
+   * @return the number of nodes
+   */
+  public final int size() {
+    return this.m_nodes.length;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final String toString() {
+    final StringBuilder sb;
+    int i;
+
+    sb = new StringBuilder();
+    sb.append('[');
+    for (i = 0; i < this.m_nodes.length; i++) {
+      if (i > 0) {
+        sb.append(", "); //$NON-NLS-1$
+      }
+      sb.append(ShardRing.toString(this.m_nodes[i]));
+    }
+    return sb.append(']').toString();
+  }
+}
@@ -0,0 +1,545 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A transport for two peers on the same host, which exchange their messages
+ * through a memory-mapped file instead of a socket. The file holds two ring
+ * buffers, one for each direction, each with a single producer and a single
+ * consumer, so that neither side ever takes a lock or makes a system call
+ * to pass a message.
+ * <p>
+ * A message is written in the binary format of the {@link GameMessage} at
+ * the head of the ring, and becomes visible to the consumer when the
+ * producer publishes the new head in {@link #flush()}. The consumer reads
+ * messages up to the published head and then publishes its new tail, which
+ * frees the space for the producer. A frame which does not fit before the
+ * end of the ring is preceded by a padding frame and written at the start.
+ * </p>
+ * <p>
+ * The head and the tail are published with a release store and read with
+ * an acquire load: the producer's frames become visible before the head
+ * that covers them, and the consumer has read its frames before the tail
+ * that frees them. Java 7 offers no ordered access to mapped memory, so
+ * these are {@code Unsafe.putOrderedLong} and {@code Unsafe.getLongVolatile}
+ * on the address of the mapping, which are found through reflection. If
+ * they are not accessible, the transport is refused. The mapping uses the native byte order, so that both kinds of access
+ * agree.
+ * </p>
+ * <p>
+ * A waiting side either spins, which gives the lowest latency but occupies a
+ * processor, or yields and then parks for increasing times between polls.
+ * </p>
+ */
+public final class SharedMemoryTransport implements ICommunicatorTransport {
+
+  /** wait by spinning */
+  public static final int WAIT_SPIN = 0;
+
+  /** wait by parking between polls */
+  public static final int WAIT_PARK = (WAIT_SPIN + 1);
+
+  /** the default capacity of each ring */
+  public static final int DEFAULT_CAPACITY = (1 << 16);
+
+  /** the marker of an initialized file */
+  private static final int MAGIC = 0x42535452;
+
+  /** the offset of the marker */
+  private static final int OFFSET_MAGIC = 0;
+
+  /** the offset of the capacity */
+  private static final int OFFSET_CAPACITY = 4;
+
+  /**
+   * the offset of the positions and flags: each one gets a cache line of its
+   * own, so that the producer and the consumer do not write to the same line
+   */
+  private static final int OFFSET_POSITIONS = 64;
+
+  /** the head of a ring, relative to its positions */
+  private static final int HEAD = 0;
+
+  /** the tail of a ring, relative to its positions */
+  private static final int TAIL = 64;
+
+  /** the closed flag of the producer of a ring, relative to its positions */
+  private static final int CLOSED = 128;
+
+  /** the size of the positions of one ring */
+  private static final int POSITIONS = 192;
+
+  /** the offset of the data of the first ring */
+  private static final int OFFSET_DATA = (OFFSET_POSITIONS + (2 * POSITIONS));
+
+  /** the length of a padding frame */
+  private static final int PADDING = (-1);
+
+  /** the number of polls before a parking side parks instead of yielding */
+  private static final int SPINS = 100;
+
+  /** the longest time a side parks in nanoseconds */
+  private static final long MAX_PARK = 1000000L;
+
+  /** the instance of {@code sun.misc.Unsafe}, or null if not accessible */
+  private static final Object UNSAFE = SharedMemoryTransport.makeUnsafe();
+
+  /**
+   * the release store {@code Unsafe.putOrderedLong(Object, long, long)}
+   * bound to {@link #UNSAFE}, or null if not accessible
+   */
+  private static final MethodHandle PUT_ORDERED = SharedMemoryTransport
+      .unsafeMethod("putOrderedLong", MethodType.methodType(void.class, //$NON-NLS-1$
+          Object.class, long.class, long.class));
+
+  /**
+   * the acquire load {@code Unsafe.getLongVolatile(Object, long)} bound to
+   * {@link #UNSAFE}, or null if not accessible
+   */
+  private static final MethodHandle GET_VOLATILE = SharedMemoryTransport
+      .unsafeMethod("getLongVolatile", MethodType.methodType(long.class, //$NON-NLS-1$
+          Object.class, long.class));
+
+  /** the mapped file */
+  private final MappedByteBuffer m_buffer;
+
+  /** the capacity of each ring, a power of two */
+  private final int m_capacity;
+
+  /** the offset of the positions of the ring we write */
+  private final int m_outPositions;
+
+  /** the offset of the data of the ring we write */
+  private final int m_outData;
+
+  /** the offset of the positions of the ring we read */
+  private final int m_inPositions;
+
+  /** the offset of the data of the ring we read */
+  private final int m_inData;
+
+  /** the wait strategy */
+  private final int m_wait;
+
+  /** the address of the mapping */
+  private final long m_address;
+
+  /** the head of the ring we write, only accessed by the writer */
+  private long m_head;
+
+  /** the tail of the ring we write as last read, only accessed by the writer */
+  private long m_outTail;
+
+  /** the tail of the ring we read, only accessed by the reader */
+  private long m_tail;
+
+  /** the head of the ring we read as last read, only accessed by the reader */
+  private long m_inHead;
+
+  /** has the input been shut down? */
+  private volatile boolean m_inputShutdown;
+
+  /** has the transport been closed? */
+  private volatile boolean m_closed;
+
+  /**
+   * Create the transport
+   *
+   * @param buffer
+   *          the mapped file
+   * @param capacity
+   *          the capacity of each ring
+   * @param creator
+   *          are we the side which has created the file?
+   * @param wait
+   *          the wait strategy
+   */
+  private SharedMemoryTransport(final MappedByteBuffer buffer,
+      final int capacity, final boolean creator, final int wait) {
+    super();
+    this.m_buffer = buffer;
+    this.m_capacity = capacity;
+    this.m_wait = wait;
+    if (creator) {
+      this.m_outPositions = OFFSET_POSITIONS;
+      this.m_outData = OFFSET_DATA;
+      this.m_inPositions = (OFFSET_POSITIONS + POSITIONS);
+      this.m_inData = (OFFSET_DATA + capacity);
+    } else {
+      this.m_outPositions = (OFFSET_POSITIONS + POSITIONS);
+      this.m_outData = (OFFSET_DATA + capacity);
+      this.m_inPositions = OFFSET_POSITIONS;
+      this.m_inData = OFFSET_DATA;
+    }
+    this.m_address = SharedMemoryTransport.address(buffer);
+    this.m_head = this.load(this.m_outPositions + HEAD);
+    this.m_tail = this.load(this.m_inPositions + TAIL);
+  }
+
+  /**
+   * Obtain the instance of {@code sun.misc.Unsafe}
+   *
+   * @return the instance, or null if it is not accessible
+   */
+  private static final Object makeUnsafe() {
+    final Field f;
+
+    try {
+      f = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe"); //$NON-NLS-1$//$NON-NLS-2$
+      f.setAccessible(true);
+      return f.get(null);
+    } catch (Throwable t) {
+      return null;
+    }
+  }
+
+  /**
+   * Obtain a method of {@code sun.misc.Unsafe} bound to {@link #UNSAFE}
+   *
+   * @param name
+   *          the name of the method
+   * @param type
+   *          the type of the method
+   * @return the method handle, or null if it is not accessible
+   */
+  private static final MethodHandle unsafeMethod(final String name,
+      final MethodType type) {
+    if (UNSAFE == null) {
+      return null;
+    }
+    try {
+      return MethodHandles.lookup()
+          .findVirtual(UNSAFE.getClass(), name, type).bindTo(UNSAFE);
+    } catch (Throwable t) {
+      return null;
+    }
+  }
+
+  /**
+   * Get the address of a mapping
+   *
+   * @param buffer
+   *          the mapped buffer
+   * @return the address, or 0 if the ordered accesses of
+   *         {@code sun.misc.Unsafe} are not accessible
+   */
+  private static final long address(final MappedByteBuffer buffer) {
+    final Method offset, get;
+
+    if ((PUT_ORDERED == null) || (GET_VOLATILE == null)) {
+      return 0L;
+    }
+    try {
+      offset = UNSAFE.getClass().getMethod("objectFieldOffset", Field.class); //$NON-NLS-1$
+      get = UNSAFE.getClass().getMethod("getLong", Object.class, long.class); //$NON-NLS-1$
+      return ((Long) (get.invoke(UNSAFE, buffer, offset.invoke(UNSAFE,
+          Buffer.class.getDeclaredField("address"))))).longValue(); //$NON-NLS-1$
+    } catch (Throwable t) {
+      return 0L;
+    }
+  }
+
+  /**
+   * Check that the order of the accesses to a mapping can be enforced
+   *
+   * @param buffer
+   *          the mapped buffer
+   * @throws IOException
+   *           if the ordered accesses are not available
+   */
+  private static final void checkOrdered(final MappedByteBuffer buffer)
+      throws IOException {
+    if (SharedMemoryTransport.address(buffer) == 0L) {
+      throw new IOException(//
+          "Shared memory transports need sun.misc.Unsafe."); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Publish a position with a release store: all accesses to the mapped
+   * memory before become visible before the position
+   *
+   * @param offset
+   *          the offset of the position
+   * @param value
+   *          the value
+   */
+  private final void store(final int offset, final long value) {
+    try {
+      PUT_ORDERED.invokeExact((Object) null, (this.m_address + offset), value);
+    } catch (Throwable t) {
+      throw new IllegalStateException(t);
+    }
+  }
+
+  /**
+   * Read a position with an acquire load: the accesses to the mapped memory
+   * after cannot see older data than the position
+   *
+   * @param offset
+   *          the offset of the position
+   * @return the value
+   */
+  private final long load(final int offset) {
+    try {
+      return ((long) (GET_VOLATILE.invokeExact((Object) null,
+          (this.m_address + offset))));
+    } catch (Throwable t) {
+      throw new IllegalStateException(t);
+    }
+  }
+
+  /**
+   * Create a file and map it as the first side of a transport. Any existing
+   * file is overwritten.
+   *
+   * @param file
+   *          the file, preferably on a memory file system such as
+   *          {@code /dev/shm}
+   * @param capacity
+   *          the capacity of each ring in bytes, rounded up to a power of
+   *          two
+   * @param wait
+   *          the wait strategy, {@link #WAIT_SPIN} or {@link #WAIT_PARK}
+   * @return the transport
+   * @throws IOException
+   *           if the file cannot be created
+   */
+  public static final SharedMemoryTransport create(final File file,
+      final int capacity, final int wait) throws IOException {
+    final MappedByteBuffer buffer;
+    final int cap;
+    int i;
+
+    if ((capacity <= 0) || (capacity > (1 << 29))) {
+      throw new IllegalArgumentException("Illegal capacity " + capacity); //$NON-NLS-1$
+    }
+    cap = Math.max(1024, Integer.highestOneBit((capacity << 1) - 1));
+    buffer = SharedMemoryTransport.map(file, (OFFSET_DATA + (2 * cap)), true);
+    SharedMemoryTransport.checkOrdered(buffer);
+    for (i = OFFSET_DATA; (--i) >= 0;) {
+      buffer.put(i, (byte) 0);
+    }
+    buffer.putInt(OFFSET_CAPACITY, cap);
+    buffer.force();
+    buffer.putInt(OFFSET_MAGIC, MAGIC);
+    return new SharedMemoryTransport(buffer, cap, true, wait);
+  }
+
+  /**
+   * Map a file created by the other side as the second side of a transport
+   *
+   * @param file
+   *          the file
+   * @param wait
+   *          the wait strategy, {@link #WAIT_SPIN} or {@link #WAIT_PARK}
+   * @return the transport
+   * @throws IOException
+   *           if the file cannot be mapped or has not been created by
+   *           {@link #create(File, int, int)}
+   */
+  public static final SharedMemoryTransport open(final File file,
+      final int wait) throws IOException {
+    final MappedByteBuffer buffer;
+    final int cap;
+
+    buffer = SharedMemoryTransport.map(file, -1, false);
+    SharedMemoryTransport.checkOrdered(buffer);
+    if (buffer.getInt(OFFSET_MAGIC) != MAGIC) {
+      throw new IOException("The file " + file //$NON-NLS-1$
+          + " is not a shared memory transport."); //$NON-NLS-1$
+    }
+    cap = buffer.getInt(OFFSET_CAPACITY);
+    if ((cap <= 0) || (Integer.bitCount(cap) != 1)
+        || (buffer.capacity() != (OFFSET_DATA + (2 * cap)))) {
+      throw new IOException("The file " + file + " is damaged."); //$NON-NLS-1$//$NON-NLS-2$
+    }
+    return new SharedMemoryTransport(buffer, cap, false, wait);
+  }
+
+  /**
+   * Map a file
+   *
+   * @param file
+   *          the file
+   * @param size
+   *          the size of the file, or -1 to keep it
+   * @param create
+   *          should the file be created?
+   * @return the mapped file
+   * @throws IOException
+   *           if the file cannot be mapped
+   */
+  private static final MappedByteBuffer map(final File file, final long size,
+      final boolean create) throws IOException {
+    final MappedByteBuffer buffer;
+
+    if ((!create) && (!(file.isFile()))) {
+      throw new IOException("The file " + file + " does not exist."); //$NON-NLS-1$//$NON-NLS-2$
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) { //$NON-NLS-1$
+      if (size >= 0L) {
+        raf.setLength(0L);
+        raf.setLength(size);
+      }
+      // the mapping stays valid when the channel is closed
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L,
+          raf.length());
+      buffer.order(ByteOrder.nativeOrder());
+      return buffer;
+    }
+  }
+
+  /**
+   * Wait before polling again
+   *
+   * @param polls
+   *          the number of polls so far
+   * @throws InterruptedIOException
+   *           if the thread has been interrupted
+   */
+  private final void idle(final int polls) throws InterruptedIOException {
+    if (this.m_wait == WAIT_PARK) {
+      if (polls < SPINS) {
+        // let the other side run if it shares our processor
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(Math.min(MAX_PARK, (1000L << Math.min(10,
+            ((polls - SPINS) >>> 4)))));
+      }
+    }
+    if (Thread.interrupted()) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  /**
+   * Wait until a frame fits into the ring we write
+   *
+   * @param size
+   *          the size of the frame
+   * @throws IOException
+   *           if the transport has been closed or we have been interrupted
+   */
+  private final void awaitSpace(final int size) throws IOException {
+    int polls;
+
+    polls = 0;
+    while (((this.m_head + size) - this.m_outTail) > this.m_capacity) {
+      if (this.m_closed) {
+        throw new IOException("The transport has been closed."); //$NON-NLS-1$
+      }
+      if (polls > 0) {
+        this.idle(polls);
+      }
+      polls++;
+      // the frames read by the consumer are no longer needed
+      this.flush();
+      this.m_outTail = this.load(this.m_outPositions + TAIL);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void write(final GameMessage msg) throws IOException {
+    final int size, mask;
+    int offset, rest;
+
+    size = msg.frameSize();
+    if (size > (this.m_capacity >>> 1)) {
+      throw new IOException("The message does not fit into the ring."); //$NON-NLS-1$
+    }
+    mask = (this.m_capacity - 1);
+    offset = (int) (this.m_head & mask);
+    rest = (this.m_capacity - offset);
+    if (rest < size) {
+      this.awaitSpace(rest + size);
+      this.m_buffer.putInt((this.m_outData + offset), PADDING);
+      this.m_head += rest;
+      offset = 0;
+    } else {
+      this.awaitSpace(size);
+    }
+    msg.write(this.m_buffer, (this.m_outData + offset));
+    this.m_head += size;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void flush() throws IOException {
+    if (this.m_closed) {
+      throw new IOException("The transport has been closed."); //$NON-NLS-1$
+    }
+    this.store((this.m_outPositions + HEAD), this.m_head);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final GameMessage read() throws IOException {
+    final int mask;
+    final GameMessage msg;
+    int offset, size, polls;
+
+    mask = (this.m_capacity - 1);
+    polls = 0;
+    for (;;) {
+      if (this.m_tail == this.m_inHead) {
+        this.m_inHead = this.load(this.m_inPositions + HEAD);
+      }
+      if (this.m_tail != this.m_inHead) {
+        offset = (int) (this.m_tail & mask);
+        size = this.m_buffer.getInt(this.m_inData + offset);
+        if (size == PADDING) {
+          this.m_tail += (this.m_capacity - offset);
+          continue;
+        }
+        msg = GameMessage.read(this.m_buffer, (this.m_inData + offset));
+        this.m_tail += size;
+        this.store((this.m_inPositions + TAIL), this.m_tail);
+        return msg;
+      }
+
+      if (this.m_inputShutdown || this.m_closed) {
+        throw new EOFException();
+      }
+      if (this.load(this.m_inPositions + CLOSED) != 0L) {
+        // the producer has closed, but may have published a last head
+        if (this.load(this.m_inPositions + HEAD) == this.m_tail) {
+          throw new EOFException();
+        }
+        continue;
+      }
+      this.idle(polls++);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void shutdownInput() {
+    this.m_inputShutdown = true;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void close() {
+    if (!(this.m_closed)) {
+      this.store((this.m_outPositions + CLOSED), 1L);
+      this.m_inputShutdown = true;
+      this.m_closed = true;
+    }
+  }
+}
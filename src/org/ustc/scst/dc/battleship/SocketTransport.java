@@ -0,0 +1,130 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A transport over a TCP connection. The streams are created when they are
+ * first used, so that a caller can read the connection by itself and only
+ * write through the transport.
+ * <p>
+ * A lingering transport does not simply close the connection: closing a
+ * connection with unread incoming data resets it, and the reset may destroy
+ * the messages the peer has not read yet. Instead, the output is shut down,
+ * the input is discarded until the peer closes its side, and only then is
+ * the connection closed.
+ * </p>
+ */
+final class SocketTransport implements ICommunicatorTransport {
+
+  /** the time in milliseconds a lingering transport waits for the peer */
+  private static final int LINGER = 2000;
+
+  /** the connection */
+  private final Socket m_socket;
+
+  /** wait for the peer to close when closing? */
+  private final boolean m_linger;
+
+  /** the output stream, only accessed by the writing thread */
+  private DataOutputStream m_dos;
+
+  /** the input stream, only accessed by the reading thread */
+  private DataInputStream m_dis;
+
+  /**
+   * Create the transport
+   * 
+   * @param socket
+   *          the connection
+   */
+  SocketTransport(final Socket socket) {
+    this(socket, false);
+  }
+
+  /**
+   * Create the transport
+   * 
+   * @param socket
+   *          the connection
+   * @param linger
+   *          wait for the peer to close when closing?
+   */
+  SocketTransport(final Socket socket, final boolean linger) {
+    super();
+    this.m_socket = socket;
+    this.m_linger = linger;
+  }
+
+  /**
+   * Get the connection
+   * 
+   * @return the connection
+   */
+  final Socket getSocket() {
+    return this.m_socket;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void write(final GameMessage msg) throws IOException {
+    if (this.m_dos == null) {
+      this.m_dos = new DataOutputStream(new BufferedOutputStream(
+          this.m_socket.getOutputStream()));
+    }
+    msg.write(this.m_dos);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void flush() throws IOException {
+    if (this.m_dos != null) {
+      this.m_dos.flush();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final GameMessage read() throws IOException {
+    if (this.m_dis == null) {
+      this.m_dis = new DataInputStream(new BufferedInputStream(
+          this.m_socket.getInputStream()));
+    }
+    return GameMessage.read(this.m_dis);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void shutdownInput() {
+    try {
+      this.m_socket.shutdownInput();
+    } catch (IOException e) {//
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void close() {
+    final byte[] discard;
+
+    if (this.m_linger && !(this.m_socket.isClosed())) {
+      discard = new byte[4096];
+      try {
+        this.m_socket.shutdownOutput();
+        this.m_socket.setSoTimeout(LINGER);
+        while (this.m_socket.getInputStream().read(discard) >= 0) {
+          // discard
+        }
+      } catch (IOException e) {//
+      }
+    }
+    try {
+      this.m_socket.close();
+    } catch (IOException e) {//
+    }
+  }
+}
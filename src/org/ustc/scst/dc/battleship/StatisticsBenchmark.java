@@ -0,0 +1,122 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Feed a {@link StatisticsService} with the results of many games between
+ * many players of hidden strengths and measure the cost of recording a
+ * game, of rank queries and of top-k queries, as well as the size and the
+ * time of a snapshot. The snapshot is loaded again and its top players are
+ * compared with those of the service it has been taken from.
+ */
+public final class StatisticsBenchmark {
+
+  /** no instances */
+  private StatisticsBenchmark() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Run the benchmark
+   *
+   * @param args
+   *          the number of players (default: 1000000) and the number of
+   *          games (default: 5000000)
+   * @throws Exception
+   *           if something goes wrong
+   */
+  public static final void main(final String[] args) throws Exception {
+    final int players, games, queries;
+    final StatisticsService stats;
+    final StatisticsService loaded;
+    final double[] strength;
+    final Random random;
+    final File file;
+    final List<StatisticsService.Standing> top, top2;
+    long start, time;
+    int i, a, b, w, l, shots, mismatches;
+
+    players = ((args.length > 0) ? Integer.parseInt(args[0]) : 1000000);
+    games = ((args.length > 1) ? Integer.parseInt(args[1]) : 5000000);
+    queries = 1000000;
+    random = new Random(1L);
+    strength = new double[players];
+    for (i = players; (--i) >= 0;) {
+      strength[i] = random.nextGaussian();
+    }
+    stats = new StatisticsService();
+
+    start = System.nanoTime();
+    for (i = games; (--i) >= 0;) {
+      a = random.nextInt(players);
+      b = random.nextInt(players);
+      if (a == b) {
+        continue;
+      }
+      // a wins with the probability of the Bradley-Terry model
+      if ((random.nextDouble() * (1d + Math.exp(strength[b] - strength[a]))) > 1d) {
+        w = b;
+        l = a;
+      } else {
+        w = a;
+        l = b;
+      }
+      shots = (17 + random.nextInt(60));
+      stats.record(w, l, shots, 17, (shots - 1), random.nextInt(17));
+    }
+    time = Math.max(1L, (System.nanoTime() - start));
+    System.out.println("players:        " + stats.getPlayers() //$NON-NLS-1$
+        + ", games: " + stats.getGames()); //$NON-NLS-1$
+    System.out.println("record:         " + (time / games) + "ns/game"); //$NON-NLS-1$//$NON-NLS-2$
+
+    start = System.nanoTime();
+    a = 0;
+    for (i = queries; (--i) >= 0;) {
+      a += stats.getRank(random.nextInt(players));
+    }
+    time = Math.max(1L, (System.nanoTime() - start));
+    System.out.println("rank:           " + (time / queries) + "ns/query"); //$NON-NLS-1$//$NON-NLS-2$
+
+    start = System.nanoTime();
+    for (i = 1000; (--i) >= 0;) {
+      a += stats.getTop(100).size();
+    }
+    time = Math.max(1L, (System.nanoTime() - start));
+    System.out.println("top 100:        " + (time / 1000) + "ns/query"); //$NON-NLS-1$//$NON-NLS-2$
+
+    file = File.createTempFile("battleship-statistics", ".snapshot"); //$NON-NLS-1$//$NON-NLS-2$
+    try {
+      start = System.nanoTime();
+      stats.snapshot(file);
+      time = (System.nanoTime() - start);
+      System.out.println("snapshot:       " + (file.length() >>> 10) //$NON-NLS-1$
+          + "KiB in " + (time / 1000000L) + "ms"); //$NON-NLS-1$//$NON-NLS-2$
+
+      start = System.nanoTime();
+      loaded = StatisticsService.load(file);
+      time = (System.nanoTime() - start);
+      System.out.println("load:           " + (time / 1000000L) + "ms"); //$NON-NLS-1$//$NON-NLS-2$
+    } finally {
+      file.delete();
+    }
+
+    top = stats.getTop(10);
+    top2 = loaded.getTop(10);
+    mismatches = 0;
+    for (i = top.size(); (--i) >= 0;) {
+      if ((top.get(i).getPlayer() != top2.get(i).getPlayer())
+          || (top.get(i).getRating() != top2.get(i).getRating())) {
+        mismatches++;
+      }
+    }
+    for (StatisticsService.Standing s : top) {
+      System.out.println("  " + s + ", strength " //$NON-NLS-1$//$NON-NLS-2$
+          + ((float) strength[(int) s.getPlayer()]) + ", accuracy " //$NON-NLS-1$
+          + ((float) s.getAccuracy()));
+    }
+    System.out.println("snapshot mismatches: " + mismatches //$NON-NLS-1$
+        + " (checksum " + a + ')'); //$NON-NLS-1$
+  }
+}
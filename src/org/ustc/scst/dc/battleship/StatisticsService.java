@@ -0,0 +1,979 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of finished games: an incrementally updated Elo leaderboard,
+ * the win rates and shot efficiencies of the players, and a histogram of
+ * the number of shots needed for a win. The service is fed by
+ * {@link #watch(BattleshipModel, long, long) watching} models, which
+ * records each game when it ends, or directly via
+ * {@link #record(long, long, int, int, int, int)}.
+ * <p>
+ * The players are kept in an order-statistic tree ordered by rating, a
+ * treap whose nodes know the sizes of their subtrees, so that both the
+ * rank of a player and the player at a rank are found in O(log n), and
+ * the top k players are listed in O(log n + k). A game only moves its two
+ * players in the tree.
+ * </p>
+ * <p>
+ * The statistics can be written to a compact snapshot file, periodically
+ * if desired, and be loaded from it again. A snapshot is first built in
+ * memory while holding the lock and then written to a temporary file,
+ * which replaces the snapshot file atomically.
+ * </p>
+ */
+public final class StatisticsService implements Closeable {
+
+  /** the number of buckets of the shot efficiency histograms */
+  public static final int EFFICIENCY_BUCKETS = 10;
+
+  /** the magic number of a snapshot file */
+  private static final int MAGIC = 0x42535331;
+
+  /** the players, by id, guarded by this */
+  private final HashMap<Long, Player> m_players;
+
+  /** the histogram of the number of shots of the winners, guarded by this */
+  private long[] m_shotsToWin;
+
+  /** the root of the tree, guarded by this */
+  private Player m_root;
+
+  /** the number of rated games, guarded by this */
+  private long m_games;
+
+  /** the number of games ended without a winner, guarded by this */
+  private long m_aborted;
+
+  /** the thread writing periodic snapshots, or null, guarded by this */
+  private Thread m_snapshots;
+
+  /** the file of the periodic snapshots, or null, guarded by this */
+  private File m_file;
+
+  /** Create an empty statistics service */
+  public StatisticsService() {
+    super();
+    this.m_players = new HashMap<>();
+    this.m_shotsToWin = new long[0];
+  }
+
+  /**
+   * Load the statistics from a snapshot
+   *
+   * @param file
+   *          the snapshot file
+   * @return the statistics service
+   * @throws IOException
+   *           if the file cannot be read or is not a snapshot
+   */
+  public static final StatisticsService load(final File file)
+      throws IOException {
+    final StatisticsService s;
+    long[] h;
+    Player p;
+    int i, j, n, c;
+
+    s = new StatisticsService();
+    try (DataInputStream dis = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file), 1 << 16))) {
+      if (dis.readInt() != MAGIC) {
+        throw new IOException(file + " is no statistics snapshot."); //$NON-NLS-1$
+      }
+      s.m_games = StatisticsService.readVarLong(dis);
+      s.m_aborted = StatisticsService.readVarLong(dis);
+      h = new long[(int) StatisticsService.readVarLong(dis)];
+      for (i = 0; i < h.length; i++) {
+        h[i] = StatisticsService.readVarLong(dis);
+      }
+      s.m_shotsToWin = h;
+
+      n = ((int) StatisticsService.readVarLong(dis));
+      for (i = n; (--i) >= 0;) {
+        p = new Player(dis.readLong());
+        p.m_rating = dis.readDouble();
+        p.m_wins = ((int) StatisticsService.readVarLong(dis));
+        p.m_losses = ((int) StatisticsService.readVarLong(dis));
+        p.m_shots = StatisticsService.readVarLong(dis);
+        p.m_hits = StatisticsService.readVarLong(dis);
+        for (j = 0; j < EFFICIENCY_BUCKETS; j++) {
+          c = ((int) StatisticsService.readVarLong(dis));
+          if (c != 0) {
+            if (p.m_efficiency == null) {
+              p.m_efficiency = new int[EFFICIENCY_BUCKETS];
+            }
+            p.m_efficiency[j] = c;
+          }
+        }
+        s.m_players.put(Long.valueOf(p.m_id), p);
+        s.m_root = StatisticsService.insert(s.m_root, p);
+      }
+    }
+    return s;
+  }
+
+  /**
+   * Write a non-negative number in a variable-length form
+   *
+   * @param dos
+   *          the stream
+   * @param value
+   *          the number
+   * @throws IOException
+   *           if the number cannot be written
+   */
+  private static final void writeVarLong(final DataOutputStream dos,
+      final long value) throws IOException {
+    long v;
+
+    v = value;
+    while ((v & (~0x7fL)) != 0L) {
+      dos.writeByte((int) ((v & 0x7fL) | 0x80L));
+      v >>>= 7;
+    }
+    dos.writeByte((int) v);
+  }
+
+  /**
+   * Read a number written by {@link #writeVarLong(DataOutputStream, long)}
+   *
+   * @param dis
+   *          the stream
+   * @return the number
+   * @throws IOException
+   *           if the number cannot be read
+   */
+  private static final long readVarLong(final DataInputStream dis)
+      throws IOException {
+    long v;
+    int shift, b;
+
+    v = 0L;
+    for (shift = 0; shift < 64; shift += 7) {
+      b = dis.readUnsignedByte();
+      v |= ((b & 0x7fL) << shift);
+      if ((b & 0x80) == 0) {
+        return v;
+      }
+    }
+    throw new IOException("Malformed number."); //$NON-NLS-1$
+  }
+
+  /**
+   * Watch a model and record the game when it ends with a winner. Games
+   * ending without a winner are only counted. The listener records only
+   * the first end of the game; it may be removed from the model
+   * afterwards.
+   *
+   * @param model
+   *          the model
+   * @param player
+   *          the id of the player of the model
+   * @param enemy
+   *          the id of the enemy
+   * @return the listener added to the model
+   */
+  public final IBattleshipModelListener watch(final BattleshipModel model,
+      final long player, final long enemy) {
+    final GameWatch w;
+
+    w = new GameWatch(this, model, player, enemy);
+    model.addListener(w, BattleshipModelFilter.GAME_STATE);
+    return w;
+  }
+
+  /**
+   * Record a game which has been won
+   *
+   * @param winner
+   *          the id of the winner
+   * @param loser
+   *          the id of the loser
+   * @param winnerShots
+   *          the number of shots of the winner
+   * @param winnerHits
+   *          the number of hits of the winner
+   * @param loserShots
+   *          the number of shots of the loser
+   * @param loserHits
+   *          the number of hits of the loser
+   */
+  public synchronized final void record(final long winner, final long loser,
+      final int winnerShots, final int winnerHits, final int loserShots,
+      final int loserHits) {
+    final Player w, l;
+    final double e;
+
+    w = this.player(winner);
+    l = this.player(loser);
+    this.m_root = StatisticsService.remove(this.m_root, w);
+    if (l != w) {
+      this.m_root = StatisticsService.remove(this.m_root, l);
+    }
+
+    e = EloRatings.expectedScore(w.m_rating, l.m_rating);
+    w.m_rating += (EloRatings.K_FACTOR * (1d - e));
+    l.m_rating -= (EloRatings.K_FACTOR * (1d - e));
+    w.m_wins++;
+    l.m_losses++;
+    w.shots(winnerShots, winnerHits);
+    l.shots(loserShots, loserHits);
+
+    this.m_root = StatisticsService.insert(this.m_root, w);
+    if (l != w) {
+      this.m_root = StatisticsService.insert(this.m_root, l);
+    }
+
+    if (winnerShots >= this.m_shotsToWin.length) {
+      this.m_shotsToWin = Arrays.copyOf(this.m_shotsToWin, Math.max(
+          (winnerShots + 1), (this.m_shotsToWin.length << 1)));
+    }
+    this.m_shotsToWin[Math.max(0, winnerShots)]++;
+    this.m_games++;
+  }
+
+  /** Count a game which has ended without a winner */
+  synchronized final void recordAborted() {
+    this.m_aborted++;
+  }
+
+  /**
+   * Get a player, creating it with the mean rating if it does not exist
+   * yet. Must be called while holding the lock.
+   *
+   * @param id
+   *          the id of the player
+   * @return the player
+   */
+  private final Player player(final long id) {
+    final Long key;
+    Player p;
+
+    key = Long.valueOf(id);
+    p = this.m_players.get(key);
+    if (p == null) {
+      p = new Player(id);
+      this.m_players.put(key, p);
+      this.m_root = StatisticsService.insert(this.m_root, p);
+    }
+    return p;
+  }
+
+  /**
+   * Get the number of players
+   *
+   * @return the number of players
+   */
+  public synchronized final int getPlayers() {
+    return this.m_players.size();
+  }
+
+  /**
+   * Get the number of games with a winner
+   *
+   * @return the number of rated games
+   */
+  public synchronized final long getGames() {
+    return this.m_games;
+  }
+
+  /**
+   * Get the number of games which have ended without a winner
+   *
+   * @return the number of aborted games
+   */
+  public synchronized final long getAbortedGames() {
+    return this.m_aborted;
+  }
+
+  /**
+   * Get the histogram of the number of shots the winners have needed
+   *
+   * @return the histogram: the element at index i is the number of games
+   *         won with i shots
+   */
+  public synchronized final long[] getShotsToWin() {
+    return this.m_shotsToWin.clone();
+  }
+
+  /**
+   * Get the rank of a player
+   *
+   * @param id
+   *          the id of the player
+   * @return the rank, starting at 1 for the best player, or -1 if the
+   *         player is unknown
+   */
+  public synchronized final int getRank(final long id) {
+    final Player p;
+
+    p = this.m_players.get(Long.valueOf(id));
+    return ((p != null) ? this.rank(p) : (-1));
+  }
+
+  /**
+   * Get the standing of a player
+   *
+   * @param id
+   *          the id of the player
+   * @return the standing, or null if the player is unknown
+   */
+  public synchronized final Standing getStanding(final long id) {
+    final Player p;
+
+    p = this.m_players.get(Long.valueOf(id));
+    return ((p != null) ? new Standing(p, this.rank(p)) : null);
+  }
+
+  /**
+   * Get the standing of the player at a rank
+   *
+   * @param rank
+   *          the rank, starting at 1
+   * @return the standing, or null if there is no player with that rank
+   */
+  public synchronized final Standing getStandingAt(final int rank) {
+    Player t;
+    int k, s;
+
+    k = rank;
+    t = this.m_root;
+    while (t != null) {
+      s = (StatisticsService.size(t.m_left) + 1);
+      if (k == s) {
+        return new Standing(t, rank);
+      }
+      if (k < s) {
+        t = t.m_left;
+      } else {
+        k -= s;
+        t = t.m_right;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get the best players
+   *
+   * @param k
+   *          the maximum number of players
+   * @return the standings of the best {@code k} players, best first
+   */
+  public synchronized final List<Standing> getTop(final int k) {
+    final ArrayList<Standing> top;
+    Player[] stack;
+    Player t;
+    int sp;
+
+    top = new ArrayList<>(Math.max(0, Math.min(k, this.m_players.size())));
+    stack = new Player[64];
+    sp = 0;
+    t = this.m_root;
+    while ((top.size() < k) && ((t != null) || (sp > 0))) {
+      if (t != null) {
+        if (sp >= stack.length) {
+          stack = Arrays.copyOf(stack, (sp << 1));
+        }
+        stack[sp++] = t;
+        t = t.m_left;
+      } else {
+        t = stack[--sp];
+        top.add(new Standing(t, (top.size() + 1)));
+        t = t.m_right;
+      }
+    }
+    return top;
+  }
+
+  /**
+   * Get the rank of a player in the tree. Must be called while holding the
+   * lock.
+   *
+   * @param p
+   *          the player
+   * @return the rank, starting at 1
+   */
+  private final int rank(final Player p) {
+    Player t;
+    int r;
+
+    r = 0;
+    t = this.m_root;
+    while (t != p) {
+      if (StatisticsService.before(p, t)) {
+        t = t.m_left;
+      } else {
+        r += (StatisticsService.size(t.m_left) + 1);
+        t = t.m_right;
+      }
+    }
+    return (r + StatisticsService.size(p.m_left) + 1);
+  }
+
+  /**
+   * Is a player ranked before another one? Players are ordered by
+   * descending rating and then by id.
+   *
+   * @param a
+   *          the one player
+   * @param b
+   *          the other player
+   * @return true if {@code a} comes before {@code b}
+   */
+  private static final boolean before(final Player a, final Player b) {
+    return ((a.m_rating > b.m_rating) || ((a.m_rating == b.m_rating) && (a.m_id < b.m_id)));
+  }
+
+  /**
+   * Get the size of a subtree
+   *
+   * @param t
+   *          the subtree, or null
+   * @return the number of players in it
+   */
+  private static final int size(final Player t) {
+    return ((t != null) ? t.m_size : 0);
+  }
+
+  /**
+   * Recompute the size of a subtree after its children have changed
+   *
+   * @param t
+   *          the subtree
+   */
+  private static final void update(final Player t) {
+    t.m_size = (StatisticsService.size(t.m_left)
+        + StatisticsService.size(t.m_right) + 1);
+  }
+
+  /**
+   * Insert a player into a subtree
+   *
+   * @param t
+   *          the subtree, or null
+   * @param p
+   *          the player, which is not in any tree
+   * @return the new root of the subtree
+   */
+  private static final Player insert(final Player t, final Player p) {
+    final Player c;
+
+    if (t == null) {
+      p.m_left = null;
+      p.m_right = null;
+      p.m_size = 1;
+      return p;
+    }
+    if (StatisticsService.before(p, t)) {
+      t.m_left = StatisticsService.insert(t.m_left, p);
+      if (t.m_left.m_priority > t.m_priority) {
+        // rotate right
+        c = t.m_left;
+        t.m_left = c.m_right;
+        StatisticsService.update(t);
+        c.m_right = t;
+        StatisticsService.update(c);
+        return c;
+      }
+    } else {
+      t.m_right = StatisticsService.insert(t.m_right, p);
+      if (t.m_right.m_priority > t.m_priority) {
+        // rotate left
+        c = t.m_right;
+        t.m_right = c.m_left;
+        StatisticsService.update(t);
+        c.m_left = t;
+        StatisticsService.update(c);
+        return c;
+      }
+    }
+    StatisticsService.update(t);
+    return t;
+  }
+
+  /**
+   * Remove a player from a subtree
+   *
+   * @param t
+   *          the subtree, which contains the player
+   * @param p
+   *          the player
+   * @return the new root of the subtree
+   */
+  private static final Player remove(final Player t, final Player p) {
+    if (t == p) {
+      return StatisticsService.merge(t.m_left, t.m_right);
+    }
+    if (StatisticsService.before(p, t)) {
+      t.m_left = StatisticsService.remove(t.m_left, p);
+    } else {
+      t.m_right = StatisticsService.remove(t.m_right, p);
+    }
+    StatisticsService.update(t);
+    return t;
+  }
+
+  /**
+   * Merge two subtrees, all players of the first of which come before all
+   * players of the second
+   *
+   * @param a
+   *          the first subtree, or null
+   * @param b
+   *          the second subtree, or null
+   * @return the root of the merged tree
+   */
+  private static final Player merge(final Player a, final Player b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    if (a.m_priority > b.m_priority) {
+      a.m_right = StatisticsService.merge(a.m_right, b);
+      StatisticsService.update(a);
+      return a;
+    }
+    b.m_left = StatisticsService.merge(a, b.m_left);
+    StatisticsService.update(b);
+    return b;
+  }
+
+  /**
+   * Write a snapshot of the statistics
+   *
+   * @param file
+   *          the snapshot file, which is replaced atomically
+   * @throws IOException
+   *           if the snapshot cannot be written
+   */
+  public final void snapshot(final File file) throws IOException {
+    final ByteArrayOutputStream bytes;
+    final File tmp;
+    int i;
+
+    bytes = new ByteArrayOutputStream(1 << 16);
+    try (DataOutputStream dos = new DataOutputStream(bytes)) {
+      synchronized (this) {
+        dos.writeInt(MAGIC);
+        StatisticsService.writeVarLong(dos, this.m_games);
+        StatisticsService.writeVarLong(dos, this.m_aborted);
+        StatisticsService.writeVarLong(dos, this.m_shotsToWin.length);
+        for (i = 0; i < this.m_shotsToWin.length; i++) {
+          StatisticsService.writeVarLong(dos, this.m_shotsToWin[i]);
+        }
+        StatisticsService.writeVarLong(dos, this.m_players.size());
+        for (Player p : this.m_players.values()) {
+          dos.writeLong(p.m_id);
+          dos.writeDouble(p.m_rating);
+          StatisticsService.writeVarLong(dos, p.m_wins);
+          StatisticsService.writeVarLong(dos, p.m_losses);
+          StatisticsService.writeVarLong(dos, p.m_shots);
+          StatisticsService.writeVarLong(dos, p.m_hits);
+          for (i = 0; i < EFFICIENCY_BUCKETS; i++) {
+            StatisticsService.writeVarLong(dos, ((p.m_efficiency != null) ? //
+            p.m_efficiency[i]
+                : 0));
+          }
+        }
+      }
+    }
+
+    // the file is written without holding the lock
+    tmp = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+    try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp),
+        1 << 16)) {
+      bytes.writeTo(os);
+    }
+    try {
+      Files.move(tmp.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Write snapshots periodically in a daemon thread, and a last one when
+   * the service is closed
+   *
+   * @param file
+   *          the snapshot file
+   * @param period
+   *          the time between two snapshots
+   * @param unit
+   *          the unit of {@code period}
+   */
+  public synchronized final void startSnapshots(final File file,
+      final long period, final TimeUnit unit) {
+    final Thread t;
+
+    if (this.m_snapshots != null) {
+      this.m_snapshots.interrupt();
+    }
+    this.m_file = file;
+    t = new Thread(new Runnable() {
+      @Override
+      public final void run() {
+        for (;;) {
+          try {
+            unit.sleep(period);
+          } catch (InterruptedException e) {
+            return;
+          }
+          try {
+            StatisticsService.this.snapshot(file);
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+    }, "StatisticsService-Snapshots"); //$NON-NLS-1$
+    t.setDaemon(true);
+    this.m_snapshots = t;
+    t.start();
+  }
+
+  /**
+   * Stop the periodic snapshots and write a last one
+   *
+   * @throws IOException
+   *           if the last snapshot cannot be written
+   */
+  @Override
+  public final void close() throws IOException {
+    final File file;
+
+    synchronized (this) {
+      if (this.m_snapshots == null) {
+        return;
+      }
+      this.m_snapshots.interrupt();
+      this.m_snapshots = null;
+      file = this.m_file;
+      this.m_file = null;
+    }
+    this.snapshot(file);
+  }
+
+  /** a player, which is also a node of the tree */
+  private static final class Player {
+
+    /** the id */
+    final long m_id;
+
+    /** the priority in the treap */
+    final long m_priority;
+
+    /** the rating */
+    double m_rating;
+
+    /** the number of games won */
+    int m_wins;
+
+    /** the number of games lost */
+    int m_losses;
+
+    /** the number of shots */
+    long m_shots;
+
+    /** the number of hits */
+    long m_hits;
+
+    /** the histogram of the shot efficiency per game, or null */
+    int[] m_efficiency;
+
+    /** the left subtree, with the players ranked before this one */
+    Player m_left;
+
+    /** the right subtree, with the players ranked after this one */
+    Player m_right;
+
+    /** the number of players in the subtree rooted here */
+    int m_size;
+
+    /**
+     * Create a player with the mean rating
+     *
+     * @param id
+     *          the id
+     */
+    Player(final long id) {
+      super();
+      this.m_id = id;
+      this.m_priority = Hashing.mix(id);
+      this.m_rating = EloRatings.MEAN_RATING;
+      this.m_size = 1;
+    }
+
+    /**
+     * Add the shots of a game
+     *
+     * @param shots
+     *          the number of shots
+     * @param hits
+     *          the number of hits
+     */
+    final void shots(final int shots, final int hits) {
+      if (shots <= 0) {
+        return;
+      }
+      this.m_shots += shots;
+      this.m_hits += hits;
+      if (this.m_efficiency == null) {
+        this.m_efficiency = new int[EFFICIENCY_BUCKETS];
+      }
+      this.m_efficiency[Math.min((EFFICIENCY_BUCKETS - 1),
+          ((hits * EFFICIENCY_BUCKETS) / shots))]++;
+    }
+  }
+
+  /** the standing of a player at the time it has been queried */
+  public static final class Standing {
+
+    /** the id of the player */
+    private final long m_player;
+
+    /** the rank */
+    private final int m_rank;
+
+    /** the rating */
+    private final double m_rating;
+
+    /** the number of games won */
+    private final int m_wins;
+
+    /** the number of games lost */
+    private final int m_losses;
+
+    /** the number of shots */
+    private final long m_shots;
+
+    /** the number of hits */
+    private final long m_hits;
+
+    /** the histogram of the shot efficiency */
+    private final int[] m_efficiency;
+
+    /**
+     * Create the standing
+     *
+     * @param p
+     *          the player
+     * @param rank
+     *          the rank
+     */
+    Standing(final Player p, final int rank) {
+      super();
+      this.m_player = p.m_id;
+      this.m_rank = rank;
+      this.m_rating = p.m_rating;
+      this.m_wins = p.m_wins;
+      this.m_losses = p.m_losses;
+      this.m_shots = p.m_shots;
+      this.m_hits = p.m_hits;
+      this.m_efficiency = ((p.m_efficiency != null) ? p.m_efficiency.clone()
+          : new int[EFFICIENCY_BUCKETS]);
+    }
+
+    /**
+     * Get the id of the player
+     *
+     * @return the id
+     */
+    public final long getPlayer() {
+      return this.m_player;
+    }
+
+    /**
+     * Get the rank
+     *
+     * @return the rank, starting at 1
+     */
+    public final int getRank() {
+      return this.m_rank;
+    }
+
+    /**
+     * Get the rating
+     *
+     * @return the rating
+     */
+    public final double getRating() {
+      return this.m_rating;
+    }
+
+    /**
+     * Get the number of games won
+     *
+     * @return the number of wins
+     */
+    public final int getWins() {
+      return this.m_wins;
+    }
+
+    /**
+     * Get the number of games lost
+     *
+     * @return the number of losses
+     */
+    public final int getLosses() {
+      return this.m_losses;
+    }
+
+    /**
+     * Get the fraction of the games won
+     *
+     * @return the win rate, or 0 if no game has been played
+     */
+    public final double getWinRate() {
+      final int games;
+
+      games = (this.m_wins + this.m_losses);
+      return ((games > 0) ? (this.m_wins / ((double) games)) : 0d);
+    }
+
+    /**
+     * Get the fraction of the shots which have hit a ship
+     *
+     * @return the accuracy, or 0 if no shot has been fired
+     */
+    public final double getAccuracy() {
+      return ((this.m_shots > 0L) ? (this.m_hits / ((double) this.m_shots))
+          : 0d);
+    }
+
+    /**
+     * Get the histogram of the shot efficiency per game
+     *
+     * @return the histogram: the element at index i is the number of games
+     *         in which a fraction between {@code i/}
+     *         {@link StatisticsService#EFFICIENCY_BUCKETS} and
+     *         {@code (i+1)/}{@link StatisticsService#EFFICIENCY_BUCKETS} of
+     *         the shots have hit a ship
+     */
+    public final int[] getEfficiencyHistogram() {
+      return this.m_efficiency.clone();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final String toString() {
+      return (this.m_rank + ". " + this.m_player + ' ' //$NON-NLS-1$
+          + Math.round(this.m_rating) + " (" + this.m_wins + '/' //$NON-NLS-1$
+          + this.m_losses + ')');
+    }
+  }
+
+  /** the listener recording a game when it ends */
+  private static final class GameWatch implements IBattleshipModelListener {
+
+    /** the service */
+    private final StatisticsService m_service;
+
+    /** the model */
+    private final BattleshipModel m_model;
+
+    /** the id of the player */
+    private final long m_player;
+
+    /** the id of the enemy */
+    private final long m_enemy;
+
+    /** has the game been recorded? */
+    private boolean m_recorded;
+
+    /**
+     * Create the watch
+     *
+     * @param service
+     *          the service
+     * @param model
+     *          the model
+     * @param player
+     *          the id of the player
+     * @param enemy
+     *          the id of the enemy
+     */
+    GameWatch(final StatisticsService service, final BattleshipModel model,
+        final long player, final long enemy) {
+      super();
+      this.m_service = service;
+      this.m_model = model;
+      this.m_player = player;
+      this.m_enemy = enemy;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void battleshipModelChanged(final BattleshipModelEvent event) {
+      final BattleshipModel model;
+      final int winner, w, h;
+      int x, y, c, ps, ph, es, eh;
+
+      model = this.m_model;
+      synchronized (model) {
+        if (this.m_recorded
+            || (model.getGameState() != BattleshipModel.GAME_STATE_END)) {
+          return;
+        }
+        this.m_recorded = true;
+        winner = model.whoWon();
+        if (winner == BattleshipModel.WINNER_NOBODY) {
+          this.m_service.recordAborted();
+          return;
+        }
+
+        ps = ph = es = eh = 0;
+        w = model.getFieldWidth();
+        h = model.getFieldHeight();
+        for (y = h; (--y) >= 0;) {
+          for (x = w; (--x) >= 0;) {
+            c = model.getCellState(x, y);
+            if ((c & BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN) != 0) {
+              ps++;
+              if ((c & BattleshipModel.CELL_STATE_ENEMY_SHIP) != 0) {
+                ph++;
+              }
+            }
+            if ((c & BattleshipModel.CELL_STATE_ENEMY_HAS_SEEN) != 0) {
+              es++;
+              if ((c & BattleshipModel.CELL_STATE_PLAYER_SHIP) != 0) {
+                eh++;
+              }
+            }
+          }
+        }
+      }
+
+      if (winner == BattleshipModel.WINNER_PLAYER) {
+        this.m_service.record(this.m_player, this.m_enemy, ps, ph, es, eh);
+      } else {
+        this.m_service.record(this.m_enemy, this.m_player, es, eh, ps, ph);
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package org.ustc.scst.dc.battleship;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factories for the threads running communicators and sessions. Virtual
+ * threads are used through reflection, so that the code still runs on Java
+ * versions that do not offer them.
+ */
+final class ThreadFactories {
+
+  /** the virtual thread factory, or null if not supported */
+  private static final ThreadFactory VIRTUAL = ThreadFactories
+      .makeVirtualThreadFactory();
+
+  /** no instances */
+  private ThreadFactories() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Are virtual threads supported by this Java runtime?
+   * 
+   * @return true if virtual threads are supported
+   */
+  static final boolean isVirtualSupported() {
+    return (VIRTUAL != null);
+  }
+
+  /**
+   * Create a factory for daemon platform threads
+   * 
+   * @param prefix
+   *          the prefix of the thread names
+   * @return the factory
+   */
+  static final ThreadFactory platform(final String prefix) {
+    final AtomicInteger count;
+
+    count = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public final Thread newThread(final Runnable r) {
+        final Thread t;
+        t = new Thread(r, prefix + '-' + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  /**
+   * Create a thread factory for sessions
+   * 
+   * @param prefix
+   *          the prefix of the thread names, used for platform threads
+   * @param virtual
+   *          should virtual threads be used if they are supported?
+   * @return the factory
+   */
+  static final ThreadFactory session(final String prefix,
+      final boolean virtual) {
+    if (virtual && (VIRTUAL != null)) {
+      return VIRTUAL;
+    }
+    return ThreadFactories.platform(prefix);
+  }
+
+  /**
+   * Obtain the factory of virtual threads via
+   * {@code Thread.ofVirtual().factory()}
+   * 
+   * @return the factory, or null if virtual threads are not supported
+   */
+  private static final ThreadFactory makeVirtualThreadFactory() {
+    final Method ofVirtual;
+    final Object builder;
+    final Method factory;
+
+    try {
+      ofVirtual = Thread.class.getMethod("ofVirtual"); //$NON-NLS-1$
+      builder = ofVirtual.invoke(null);
+      factory = ofVirtual.getReturnType().getMethod("factory"); //$NON-NLS-1$
+      return ((ThreadFactory) (factory.invoke(builder)));
+    } catch (Throwable t) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel: a ring of slots, each holding a doubly-linked list
+ * of the timeouts due in it. A timeout more than one revolution away counts
+ * the revolutions it still has to wait. Scheduling and cancelling take
+ * constant time, no matter how many timeouts are pending, and advancing the
+ * wheel only touches the slots of the elapsed ticks.
+ * <p>
+ * Timeouts can be scheduled and cancelled from any thread. The wheel does
+ * not have a thread of its own: the thread driving it calls
+ * {@link #advance(long)} regularly, e.g., after each select of a selector,
+ * and the expired tasks are run in that thread, outside of the lock of the
+ * wheel.
+ * </p>
+ */
+final class TimingWheel {
+
+  /** the duration of a tick in nanoseconds */
+  private final long m_tickNanos;
+
+  /** the slots: each slot is the head of a list */
+  private final Timeout[] m_slots;
+
+  /** the mask for computing a slot from a tick */
+  private final int m_mask;
+
+  /** the time of tick 0 */
+  private final long m_start;
+
+  /** the next tick to process */
+  private long m_tick;
+
+  /** the number of pending timeouts */
+  private int m_size;
+
+  /**
+   * Create a timing wheel
+   * 
+   * @param tick
+   *          the duration of a tick
+   * @param unit
+   *          the unit of {@code tick}
+   * @param slots
+   *          the number of slots, rounded up to a power of two
+   */
+  TimingWheel(final long tick, final TimeUnit unit, final int slots) {
+    super();
+    int n;
+
+    this.m_tickNanos = Math.max(1L, unit.toNanos(tick));
+    n = 1;
+    while ((n < slots) && (n < (1 << 30))) {
+      n <<= 1;
+    }
+    this.m_slots = new Timeout[n];
+    this.m_mask = (n - 1);
+    this.m_start = System.nanoTime();
+  }
+
+  /**
+   * Schedule a task
+   * 
+   * @param task
+   *          the task
+   * @param delay
+   *          the delay
+   * @param unit
+   *          the unit of {@code delay}
+   * @return the timeout, which can be used to cancel the task
+   */
+  final Timeout schedule(final Runnable task, final long delay,
+      final TimeUnit unit) {
+    final Timeout t;
+    final long due;
+    long target;
+
+    t = new Timeout(this, task);
+    due = ((System.nanoTime() - this.m_start) + Math.max(0L,
+        unit.toNanos(delay)));
+    target = (((due + this.m_tickNanos) - 1L) / this.m_tickNanos);
+    synchronized (this) {
+      if (target < this.m_tick) {
+        target = this.m_tick;
+      }
+      t.m_rounds = ((target - this.m_tick) / this.m_slots.length);
+      this.link(t, ((int) (target & this.m_mask)));
+      this.m_size++;
+    }
+    return t;
+  }
+
+  /**
+   * Add a timeout to a slot
+   * 
+   * @param t
+   *          the timeout
+   * @param slot
+   *          the slot
+   */
+  private final void link(final Timeout t, final int slot) {
+    final Timeout head;
+
+    head = this.m_slots[slot];
+    t.m_slot = slot;
+    t.m_prev = null;
+    t.m_next = head;
+    if (head != null) {
+      head.m_prev = t;
+    }
+    this.m_slots[slot] = t;
+  }
+
+  /**
+   * Remove a timeout from its slot
+   * 
+   * @param t
+   *          the timeout
+   */
+  private final void unlink(final Timeout t) {
+    if (t.m_prev != null) {
+      t.m_prev.m_next = t.m_next;
+    } else {
+      this.m_slots[t.m_slot] = t.m_next;
+    }
+    if (t.m_next != null) {
+      t.m_next.m_prev = t.m_prev;
+    }
+    t.m_prev = t.m_next = null;
+    t.m_slot = (-1);
+  }
+
+  /**
+   * Cancel a timeout
+   * 
+   * @param t
+   *          the timeout
+   * @return true if the timeout has been cancelled, false if it has expired
+   *         or been cancelled before
+   */
+  final synchronized boolean cancel(final Timeout t) {
+    if (t.m_slot < 0) {
+      return false;
+    }
+    this.unlink(t);
+    this.m_size--;
+    return true;
+  }
+
+  /**
+   * Process all ticks up to the given time and run the tasks that have
+   * expired
+   * 
+   * @param now
+   *          the current time, as given by {@link System#nanoTime()}
+   * @return the number of tasks run
+   */
+  final int advance(final long now) {
+    final long last;
+    Timeout expired, t, next;
+    int n;
+
+    last = ((now - this.m_start) / this.m_tickNanos);
+    expired = null;
+    synchronized (this) {
+      for (; this.m_tick <= last; this.m_tick++) {
+        t = this.m_slots[(int) (this.m_tick & this.m_mask)];
+        for (; t != null; t = next) {
+          next = t.m_next;
+          if (t.m_rounds > 0L) {
+            t.m_rounds--;
+          } else {
+            this.unlink(t);
+            this.m_size--;
+            t.m_next = expired;
+            expired = t;
+          }
+        }
+      }
+    }
+
+    n = 0;
+    for (t = expired; t != null; t = next) {
+      next = t.m_next;
+      t.m_next = null;
+      t.m_task.run();
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Get the time until the next tick is due
+   * 
+   * @param now
+   *          the current time, as given by {@link System#nanoTime()}
+   * @return the time in nanoseconds, at least 0
+   */
+  final synchronized long nanosUntilNextTick(final long now) {
+    return Math.max(0L,
+        (((this.m_tick * this.m_tickNanos) + this.m_start) - now));
+  }
+
+  /**
+   * Get the number of pending timeouts
+   * 
+   * @return the number of pending timeouts
+   */
+  final synchronized int size() {
+    return this.m_size;
+  }
+
+  /** a scheduled task */
+  static final class Timeout {
+
+    /** the wheel */
+    private final TimingWheel m_wheel;
+
+    /** the task */
+    final Runnable m_task;
+
+    /** the number of revolutions still to wait */
+    long m_rounds;
+
+    /** the slot, or -1 if not scheduled */
+    int m_slot;
+
+    /** the previous timeout in the slot */
+    Timeout m_prev;
+
+    /** the next timeout in the slot */
+    Timeout m_next;
+
+    /**
+     * Create the timeout
+     * 
+     * @param wheel
+     *          the wheel
+     * @param task
+     *          the task
+     */
+    Timeout(final TimingWheel wheel, final Runnable task) {
+      super();
+      this.m_wheel = wheel;
+      this.m_task = task;
+      this.m_slot = (-1);
+    }
+
+    /**
+     * Cancel this timeout
+     * 
+     * @return true if the timeout has been cancelled, false if it has
+     *         expired or been cancelled before
+     */
+    final boolean cancel() {
+      return this.m_wheel.cancel(this);
+    }
+  }
+}
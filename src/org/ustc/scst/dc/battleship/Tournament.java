@@ -0,0 +1,498 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A tournament between several strategies. Each pairing plays a given number
+ * of games on headless models, where the two strategies take turns at being
+ * the first player. All games of a round are split into small tasks that are
+ * executed by a work-stealing fork-join pool. Every game gets its own random
+ * number generator, seeded from the tournament seed, the pairing, and the
+ * game index, so the results do not depend on how the games are scheduled.
+ * This holds only for strategies whose moves depend on nothing but the
+ * model and the random number generator: a strategy stopping on a time
+ * budget, such as the {@link EndgameSolverStrategy}, makes the results
+ * depend on the load of the machine.
+ */
+public final class Tournament {
+
+  /** every strategy plays against every other strategy once */
+  public static final int SCHEDULE_ROUND_ROBIN = 0;
+
+  /**
+   * a fixed number of rounds, in each of which strategies with similar
+   * scores that have not met yet are paired
+   */
+  public static final int SCHEDULE_SWISS = (SCHEDULE_ROUND_ROBIN + 1);
+
+  /** the maximum number of games played by one task without splitting */
+  private static final int GAMES_PER_TASK = 4;
+
+  /** the strategies */
+  private final IBattleshipStrategy[] m_strategies;
+
+  /** the schedule */
+  private final int m_schedule;
+
+  /** the number of rounds of a swiss schedule */
+  private final int m_rounds;
+
+  /** the number of games per pairing */
+  private final int m_gamesPerPairing;
+
+  /** the seed */
+  private final long m_seed;
+
+  /** the field width */
+  private final int m_width;
+
+  /** the field height */
+  private final int m_height;
+
+  /** the ships to place */
+  private final int[] m_ships;
+
+  /** the points scored: {@code m_score[i][j]} is what i got against j */
+  private final double[][] m_score;
+
+  /** the number of games played between each two strategies */
+  private final int[][] m_games;
+
+  /** the ratings, or null if the tournament has not been run */
+  private EloRatings m_ratings;
+
+  /**
+   * Create a tournament on the default field
+   * 
+   * @param strategies
+   *          the strategies
+   * @param schedule
+   *          the schedule, either {@link #SCHEDULE_ROUND_ROBIN} or
+   *          {@link #SCHEDULE_SWISS}
+   * @param rounds
+   *          the number of rounds of a swiss schedule, ignored for round
+   *          robin
+   * @param gamesPerPairing
+   *          the number of games per pairing
+   * @param seed
+   *          the seed
+   */
+  public Tournament(final IBattleshipStrategy[] strategies,
+      final int schedule, final int rounds, final int gamesPerPairing,
+      final long seed) {
+    this(strategies, schedule, rounds, gamesPerPairing, seed,
+        new BattleshipModel());
+  }
+
+  /**
+   * Create a tournament
+   * 
+   * @param strategies
+   *          the strategies
+   * @param schedule
+   *          the schedule, either {@link #SCHEDULE_ROUND_ROBIN} or
+   *          {@link #SCHEDULE_SWISS}
+   * @param rounds
+   *          the number of rounds of a swiss schedule, ignored for round
+   *          robin
+   * @param gamesPerPairing
+   *          the number of games per pairing
+   * @param seed
+   *          the seed
+   * @param config
+   *          a model whose field size and ships are used for all games
+   */
+  public Tournament(final IBattleshipStrategy[] strategies,
+      final int schedule, final int rounds, final int gamesPerPairing,
+      final long seed, final BattleshipModel config) {
+    super();
+
+    final int n;
+
+    n = strategies.length;
+    if (n < 2) {
+      throw new IllegalArgumentException(//
+          "A tournament needs at least two strategies."); //$NON-NLS-1$
+    }
+    if ((schedule != SCHEDULE_ROUND_ROBIN) && (schedule != SCHEDULE_SWISS)) {
+      throw new IllegalArgumentException("Unknown schedule."); //$NON-NLS-1$
+    }
+    if (gamesPerPairing <= 0) {
+      throw new IllegalArgumentException(//
+          "At least one game per pairing must be played."); //$NON-NLS-1$
+    }
+
+    this.m_strategies = strategies.clone();
+    this.m_schedule = schedule;
+    this.m_rounds = ((schedule == SCHEDULE_SWISS) ? Math.max(1, rounds)
+        : 1);
+    this.m_gamesPerPairing = gamesPerPairing;
+    this.m_seed = seed;
+    this.m_width = config.getFieldWidth();
+    this.m_height = config.getFieldHeight();
+    this.m_ships = config.getShipsToPlace();
+    this.m_score = new double[n][n];
+    this.m_games = new int[n][n];
+  }
+
+  /**
+   * Run the tournament
+   * 
+   * @param pool
+   *          the pool to run the games in
+   */
+  public synchronized final void run(final ForkJoinPool pool) {
+    final int n;
+    int round, i, j, p;
+    int[] pairs;
+    byte[] results;
+
+    n = this.m_strategies.length;
+    for (round = 0; round < this.m_rounds; round++) {
+      if (this.m_schedule == SCHEDULE_ROUND_ROBIN) {
+        pairs = new int[n * (n - 1)];
+        p = 0;
+        for (i = 0; i < n; i++) {
+          for (j = (i + 1); j < n; j++) {
+            pairs[p++] = i;
+            pairs[p++] = j;
+          }
+        }
+      } else {
+        pairs = this.swissPairs();
+      }
+
+      results = new byte[(pairs.length >>> 1) * this.m_gamesPerPairing];
+      pool.invoke(new GamesTask(this, round, pairs, results, 0,
+          results.length));
+      this.record(pairs, results);
+    }
+
+    this.m_ratings = new EloRatings(this.m_score, this.m_games);
+  }
+
+  /**
+   * Pair the strategies for the next swiss round: strategies are sorted by
+   * their points, and each one is paired with the next best one it has not
+   * yet played against. If the number of strategies is odd, the last one
+   * gets a bye.
+   * 
+   * @return the pairs
+   */
+  private final int[] swissPairs() {
+    final int n;
+    final double[] points;
+    final Integer[] order;
+    final boolean[] paired;
+    final int[] pairs;
+    int i, j, k, p, a, b;
+    double s;
+
+    n = this.m_strategies.length;
+    points = new double[n];
+    order = new Integer[n];
+    for (i = n; (--i) >= 0;) {
+      s = 0d;
+      for (j = n; (--j) >= 0;) {
+        s += this.m_score[i][j];
+      }
+      points[i] = s;
+      order[i] = Integer.valueOf(i);
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public final int compare(final Integer x, final Integer y) {
+        final int c;
+        c = Double.compare(points[y.intValue()], points[x.intValue()]);
+        return ((c != 0) ? c : x.compareTo(y));
+      }
+    });
+
+    paired = new boolean[n];
+    pairs = new int[(n >>> 1) << 1];
+    p = 0;
+    for (i = 0; i < n; i++) {
+      if (paired[i]) {
+        continue;
+      }
+      a = order[i].intValue();
+      b = -1;
+      for (j = (i + 1); j < n; j++) {
+        if ((!(paired[j])) && (this.m_games[a][order[j].intValue()] <= 0)) {
+          b = j;
+          break;
+        }
+      }
+      if (b < 0) {
+        for (j = (i + 1); j < n; j++) {
+          if (!(paired[j])) {
+            b = j;
+            break;
+          }
+        }
+      }
+      if (b < 0) {
+        break;
+      }
+      paired[i] = paired[b] = true;
+      k = order[b].intValue();
+      pairs[p++] = Math.min(a, k);
+      pairs[p++] = Math.max(a, k);
+    }
+
+    return ((p == pairs.length) ? pairs : Arrays.copyOf(pairs, p));
+  }
+
+  /**
+   * Record the results of a round
+   * 
+   * @param pairs
+   *          the pairs
+   * @param results
+   *          the results
+   */
+  private final void record(final int[] pairs, final byte[] results) {
+    int g, i, j, first, second;
+
+    for (g = 0; g < results.length; g++) {
+      i = pairs[(g / this.m_gamesPerPairing) << 1];
+      j = pairs[((g / this.m_gamesPerPairing) << 1) + 1];
+      if (((g % this.m_gamesPerPairing) & 1) == 0) {
+        first = i;
+        second = j;
+      } else {
+        first = j;
+        second = i;
+      }
+
+      this.m_games[i][j]++;
+      this.m_games[j][i]++;
+      switch (results[g]) {
+        case BattleshipModel.WINNER_PLAYER: {
+          this.m_score[first][second] += 1d;
+          break;
+        }
+        case BattleshipModel.WINNER_ENEMY: {
+          this.m_score[second][first] += 1d;
+          break;
+        }
+        default: {
+          this.m_score[first][second] += 0.5d;
+          this.m_score[second][first] += 0.5d;
+        }
+      }
+    }
+  }
+
+  /**
+   * Play one game
+   * 
+   * @param game
+   *          the game
+   * @param round
+   *          the round
+   * @param pairs
+   *          the pairs of the round
+   * @param g
+   *          the index of the game within the round
+   * @return the result, from the perspective of the first player
+   */
+  final byte play(final HeadlessGame game, final int round,
+      final int[] pairs, final int g) {
+    final int pair, index, i, j, n;
+    final Random random;
+
+    pair = (g / this.m_gamesPerPairing);
+    index = (g % this.m_gamesPerPairing);
+    i = pairs[pair << 1];
+    j = pairs[(pair << 1) + 1];
+    n = this.m_strategies.length;
+
+    random = new Random(Hashing.mix(this.m_seed
+        + (((((round * (long) n) + i) * n) + j) * Hashing.GOLDEN)
+        + index));
+    if ((index & 1) == 0) {
+      return (byte) (game.play(this.m_strategies[i], this.m_strategies[j],
+          random));
+    }
+    return (byte) (game.play(this.m_strategies[j], this.m_strategies[i],
+        random));
+  }
+
+  /**
+   * Get the rating of a strategy
+   * 
+   * @param i
+   *          the index of the strategy
+   * @return its rating
+   */
+  public synchronized final double getRating(final int i) {
+    return this.m_ratings.m_ratings[i];
+  }
+
+  /**
+   * Get the half-width of the 95% confidence interval of the rating of a
+   * strategy
+   * 
+   * @param i
+   *          the index of the strategy
+   * @return the half-width of the confidence interval of its rating
+   */
+  public synchronized final double getConfidence(final int i) {
+    return this.m_ratings.m_confidence[i];
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized final String toString() {
+    final StringBuilder sb;
+    final Integer[] order;
+    int i, j, k, games;
+    double points;
+
+    if (this.m_ratings == null) {
+      return "Tournament not yet run."; //$NON-NLS-1$
+    }
+
+    order = new Integer[this.m_strategies.length];
+    for (i = order.length; (--i) >= 0;) {
+      order[i] = Integer.valueOf(i);
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public final int compare(final Integer x, final Integer y) {
+        return Double.compare(
+            Tournament.this.m_ratings.m_ratings[y.intValue()],
+            Tournament.this.m_ratings.m_ratings[x.intValue()]);
+      }
+    });
+
+    sb = new StringBuilder();
+    for (k = 0; k < order.length; k++) {
+      i = order[k].intValue();
+      games = 0;
+      points = 0d;
+      for (j = order.length; (--j) >= 0;) {
+        games += this.m_games[i][j];
+        points += this.m_score[i][j];
+      }
+      sb.append(String.format("%3d. %-30s %7.1f +/- %5.1f  %8.1f / %d%n", //$NON-NLS-1$
+          Integer.valueOf(k + 1), this.m_strategies[i].toString(),
+          Double.valueOf(this.m_ratings.m_ratings[i]),
+          Double.valueOf(this.m_ratings.m_confidence[i]),
+          Double.valueOf(points), Integer.valueOf(games)));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Run a tournament between the built-in strategies
+   * 
+   * @param args
+   *          the number of games per pairing, the seed, and the schedule
+   *          ({@code rr} or {@code swiss})
+   */
+  public static final void main(final String[] args) {
+    final Tournament t;
+    final ProbabilityDensityStrategy density;
+    final int games;
+    final long seed, start;
+    final boolean swiss;
+
+    games = ((args.length > 0) ? Integer.parseInt(args[0]) : 1000);
+    seed = ((args.length > 1) ? Long.parseLong(args[1]) : 1L);
+    swiss = ((args.length > 2) && "swiss".equalsIgnoreCase(args[2])); //$NON-NLS-1$
+
+    density = new ProbabilityDensityStrategy();
+    t = new Tournament(new IBattleshipStrategy[] { new RandomStrategy(),
+        new HuntTargetStrategy(), density },
+        (swiss ? SCHEDULE_SWISS : SCHEDULE_ROUND_ROBIN), 3, games, seed);
+    start = System.nanoTime();
+    t.run(new ForkJoinPool());
+    System.out.print(t);
+    System.out.println("Time: " + ((System.nanoTime() - start) / 1000000L) //$NON-NLS-1$
+        + "ms"); //$NON-NLS-1$
+    System.out.println("Cache of " + density + ": " + density.getCache()); //$NON-NLS-1$//$NON-NLS-2$
+  }
+
+  /** a task playing a range of the games of one round */
+  private static final class GamesTask extends RecursiveAction {
+
+    /** the serial version uid */
+    private static final long serialVersionUID = 1L;
+
+    /** the tournament */
+    private final transient Tournament m_tournament;
+
+    /** the round */
+    private final int m_round;
+
+    /** the pairs */
+    private final int[] m_pairs;
+
+    /** the results */
+    private final byte[] m_results;
+
+    /** the first game */
+    private final int m_start;
+
+    /** the end of the range of games (exclusive) */
+    private final int m_end;
+
+    /**
+     * Create the task
+     * 
+     * @param tournament
+     *          the tournament
+     * @param round
+     *          the round
+     * @param pairs
+     *          the pairs
+     * @param results
+     *          the results
+     * @param start
+     *          the first game
+     * @param end
+     *          the end of the range of games (exclusive)
+     */
+    GamesTask(final Tournament tournament, final int round,
+        final int[] pairs, final byte[] results, final int start,
+        final int end) {
+      super();
+      this.m_tournament = tournament;
+      this.m_round = round;
+      this.m_pairs = pairs;
+      this.m_results = results;
+      this.m_start = start;
+      this.m_end = end;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected final void compute() {
+      final Tournament t;
+      final HeadlessGame game;
+      final int mid;
+      int g;
+
+      if ((this.m_end - this.m_start) > GAMES_PER_TASK) {
+        mid = ((this.m_start + this.m_end) >>> 1);
+        RecursiveAction.invokeAll(new GamesTask(this.m_tournament,
+            this.m_round, this.m_pairs, this.m_results, this.m_start, mid),
+            new GamesTask(this.m_tournament, this.m_round, this.m_pairs,
+                this.m_results, mid, this.m_end));
+        return;
+      }
+
+      t = this.m_tournament;
+      game = new HeadlessGame(t.m_width, t.m_height, t.m_ships);
+      for (g = this.m_start; g < this.m_end; g++) {
+        this.m_results[g] = t.play(game, this.m_round, this.m_pairs, g);
+      }
+    }
+  }
+}
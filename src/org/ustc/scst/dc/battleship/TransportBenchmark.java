@@ -0,0 +1,264 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Measure the one-way latency of shot messages over the transports of the
+ * {@link Communicator}: a message is sent back and forth between two
+ * threads, and half of the round trip time is reported.
+ */
+public final class TransportBenchmark {
+
+  /** the loss rates emulated by the proxy */
+  private static final double[] LOSS = { 0d, 0.01d, 0.05d };
+
+  /** no instances */
+  private TransportBenchmark() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Start a thread sending each message read from a transport back
+   *
+   * @param t
+   *          the transport
+   * @return the thread
+   */
+  private static final Thread echo(final ICommunicatorTransport t) {
+    final Thread thread;
+
+    thread = new Thread(new Runnable() {
+      @Override
+      public final void run() {
+        try {
+          for (;;) {
+            t.write(t.read());
+            t.flush();
+          }
+        } catch (IOException e) {
+          // closed
+        }
+      }
+    }, "Echo"); //$NON-NLS-1$
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Start a proxy forwarding to a port of the loopback interface, if a
+   * latency or loss is to be emulated
+   *
+   * @param port
+   *          the target port
+   * @param latency
+   *          the one-way latency in milliseconds
+   * @param loss
+   *          the probability that a packet is lost
+   * @param tcp
+   *          forward TCP, else UDP
+   * @return the port to connect to
+   * @throws IOException
+   *           if the proxy cannot be started
+   */
+  private static final int proxy(final int port, final long latency,
+      final double loss, final boolean tcp) throws IOException {
+    final NetworkEmulatorProxy proxy;
+
+    if ((latency <= 0L) && (loss <= 0d)) {
+      return port;
+    }
+    proxy = new NetworkEmulatorProxy(0,
+        InetAddress.getLoopbackAddress().getHostAddress(), port, latency, 0L,
+        0L, loss, 0d, tcp, !tcp);
+    proxy.start();
+    return proxy.getPort();
+  }
+
+  /**
+   * Connect two TCP transports
+   *
+   * @param latency
+   *          the one-way latency in milliseconds to emulate
+   * @param loss
+   *          the probability that a packet is lost
+   * @return the connecting and the accepting side
+   * @throws IOException
+   *           if the connection fails
+   */
+  private static final ICommunicatorTransport[] tcp(final long latency,
+      final double loss) throws IOException {
+    final Socket client, accepted;
+
+    try (ServerSocket server = new ServerSocket(0)) {
+      client = new Socket(InetAddress.getLoopbackAddress(),
+          TransportBenchmark.proxy(server.getLocalPort(), latency, loss, true));
+      accepted = server.accept();
+    }
+    client.setTcpNoDelay(true);
+    accepted.setTcpNoDelay(true);
+    return new ICommunicatorTransport[] { new SocketTransport(client),
+        new SocketTransport(accepted) };
+  }
+
+  /**
+   * Connect two UDP transports
+   *
+   * @param latency
+   *          the one-way latency in milliseconds to emulate
+   * @param loss
+   *          the probability that a datagram is lost
+   * @return the sending and the listening side
+   * @throws IOException
+   *           if a port cannot be opened
+   */
+  private static final ICommunicatorTransport[] udp(final long latency,
+      final double loss) throws IOException {
+    final UdpTransport listener;
+
+    listener = UdpTransport.listen(0);
+    return new ICommunicatorTransport[] {
+        UdpTransport.connect(0, InetAddress.getLoopbackAddress()
+            .getHostAddress(), TransportBenchmark.proxy(
+            listener.getLocalPort(), latency, loss, false)), listener };
+  }
+
+  /**
+   * Measure the one-way latency over two connected transports
+   *
+   * @param name
+   *          the name of the transport
+   * @param a
+   *          the measuring side
+   * @param b
+   *          the echoing side
+   * @param warmup
+   *          the number of round trips before measuring
+   * @param rounds
+   *          the number of measured round trips
+   * @throws IOException
+   *           if the transports fail
+   * @throws InterruptedException
+   *           if we are interrupted
+   */
+  private static final void measure(final String name,
+      final ICommunicatorTransport a, final ICommunicatorTransport b,
+      final int warmup, final int rounds) throws IOException,
+      InterruptedException {
+    final Thread echo;
+    final LatencyHistogram histogram;
+    final GameMessage msg;
+    long start, total;
+    int i;
+
+    echo = TransportBenchmark.echo(b);
+    histogram = new LatencyHistogram();
+    msg = new GameMessage(GameMessage.TYPE_PLAYER_HAS_SEEN, 3, 4);
+
+    for (i = warmup; (--i) >= 0;) {
+      a.write(msg);
+      a.flush();
+      a.read();
+    }
+
+    total = System.nanoTime();
+    for (i = rounds; (--i) >= 0;) {
+      start = System.nanoTime();
+      a.write(msg);
+      a.flush();
+      a.read();
+      histogram.record((System.nanoTime() - start) >>> 1);
+    }
+    total = (System.nanoTime() - total);
+
+    System.out.println(name + ": one-way latency p50 " //$NON-NLS-1$
+        + histogram.getPercentile(50d) + "ns, p99 " //$NON-NLS-1$
+        + histogram.getPercentile(99d) + "ns, max " //$NON-NLS-1$
+        + histogram.getMax() + "ns, " //$NON-NLS-1$
+        + ((long) ((rounds * 1e9d) / Math.max(1L, total)))
+        + " round trips/s"); //$NON-NLS-1$
+    if (a instanceof UdpTransport) {
+      System.out.println(name + ": retransmitted " //$NON-NLS-1$
+          + ((UdpTransport) a).getRetransmitted() + " + " //$NON-NLS-1$
+          + ((UdpTransport) b).getRetransmitted() + " messages"); //$NON-NLS-1$
+    }
+    a.close();
+    b.close();
+    echo.join(1000L);
+  }
+
+  /**
+   * Run the benchmark
+   *
+   * @param args
+   *          the number of round trips (default: 100000), the directory
+   *          of the mapped files (default: {@code /dev/shm} if it exists,
+   *          else the temporary directory) and the number of round trips
+   *          through the {@link NetworkEmulatorProxy} (default: 1000)
+   * @throws Exception
+   *           if something goes wrong
+   */
+  public static final void main(final String[] args) throws Exception {
+    final int rounds, warmup, proxyRounds;
+    final File dir, file;
+    ICommunicatorTransport[] pair;
+    String name;
+    int i;
+
+    rounds = ((args.length > 0) ? Integer.parseInt(args[0]) : 100000);
+    warmup = Math.min(20000, rounds);
+    proxyRounds = ((args.length > 2) ? Integer.parseInt(args[2]) : 1000);
+    if (args.length > 1) {
+      dir = new File(args[1]);
+    } else {
+      dir = (new File("/dev/shm").isDirectory() ? new File("/dev/shm") //$NON-NLS-1$//$NON-NLS-2$
+          : new File(System.getProperty("java.io.tmpdir"))); //$NON-NLS-1$
+    }
+    System.out.println("processors: " //$NON-NLS-1$
+        + Runtime.getRuntime().availableProcessors());
+
+    file = new File(dir, "battleship-benchmark.shm"); //$NON-NLS-1$
+    try {
+      if (Runtime.getRuntime().availableProcessors() > 1) {
+        TransportBenchmark.measure("shared memory, spin", //$NON-NLS-1$
+            SharedMemoryTransport.create(file,
+                SharedMemoryTransport.DEFAULT_CAPACITY,
+                SharedMemoryTransport.WAIT_SPIN), SharedMemoryTransport.open(
+                file, SharedMemoryTransport.WAIT_SPIN), warmup, rounds);
+      } else {
+        // two spinning threads on one processor only take turns when the
+        // scheduler preempts them
+        System.out.println("shared memory, spin: skipped, needs two processors"); //$NON-NLS-1$
+      }
+      TransportBenchmark.measure("shared memory, park", //$NON-NLS-1$
+          SharedMemoryTransport.create(file,
+              SharedMemoryTransport.DEFAULT_CAPACITY,
+              SharedMemoryTransport.WAIT_PARK),
+          SharedMemoryTransport.open(file, SharedMemoryTransport.WAIT_PARK),
+          warmup, rounds);
+    } finally {
+      file.delete();
+    }
+
+    pair = TransportBenchmark.tcp(0, 0d);
+    TransportBenchmark.measure("tcp loopback", pair[0], pair[1], warmup, //$NON-NLS-1$
+        rounds);
+    pair = TransportBenchmark.udp(0, 0d);
+    TransportBenchmark.measure("udp loopback", pair[0], pair[1], warmup, //$NON-NLS-1$
+        rounds);
+
+    for (i = 0; i < LOSS.length; i++) {
+      name = (" via proxy, 1ms latency, " + (LOSS[i] * 100d) + "% loss"); //$NON-NLS-1$//$NON-NLS-2$
+      pair = TransportBenchmark.tcp(1L, LOSS[i]);
+      TransportBenchmark.measure("tcp" + name, pair[0], pair[1], //$NON-NLS-1$
+          (proxyRounds / 10), proxyRounds);
+      pair = TransportBenchmark.udp(1L, LOSS[i]);
+      TransportBenchmark.measure("udp" + name, pair[0], pair[1], //$NON-NLS-1$
+          (proxyRounds / 10), proxyRounds);
+    }
+  }
+}
@@ -0,0 +1,316 @@
+package org.ustc.scst.dc.battleship;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The clocks of many games, on a single {@link TimingWheel} driven by a
+ * single thread. Each watched game has at most one timeout on the wheel. A
+ * move does not touch the wheel: it only stamps the time of the last
+ * activity of the game. When the timeout expires, it checks whether the
+ * game has really been idle for long enough; if not, it schedules itself
+ * again for the rest of the time. Only a change of the game state, which
+ * may shorten the time limit, reschedules the timeout directly.
+ * <p>
+ * While the game is being played, the side to move has to fire within the
+ * turn time, or it loses. Before that, while the ships are being placed,
+ * the game ends after the idle time without any change; a side which is
+ * ready by then wins against one which is not.
+ * </p>
+ */
+public final class TurnClock implements Runnable {
+
+  /** the default duration of a tick in milliseconds */
+  private static final long DEFAULT_TICK = 100L;
+
+  /** the default number of slots */
+  private static final int DEFAULT_SLOTS = 4096;
+
+  /** the wheel */
+  private final TimingWheel m_wheel;
+
+  /** the number of games ended by a timeout */
+  private final AtomicLong m_expired;
+
+  /** is the clock running? */
+  private volatile boolean m_running;
+
+  /**
+   * Create a clock and start its thread
+   *
+   * @param tick
+   *          the duration of a tick, i.e., the precision of the clock
+   * @param unit
+   *          the unit of {@code tick}
+   * @param slots
+   *          the number of slots of the wheel
+   */
+  public TurnClock(final long tick, final TimeUnit unit, final int slots) {
+    super();
+    final Thread t;
+
+    this.m_wheel = new TimingWheel(tick, unit, slots);
+    this.m_expired = new AtomicLong();
+    this.m_running = true;
+    t = new Thread(this, "TurnClock"); //$NON-NLS-1$
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Get the clock shared by all games of this process
+   *
+   * @return the shared clock
+   */
+  public static final TurnClock getShared() {
+    return SharedHolder.SHARED;
+  }
+
+  /**
+   * Watch a game
+   *
+   * @param model
+   *          the model of the game
+   * @param turnTime
+   *          the time a side has for a move
+   * @param idleTime
+   *          the time the game may go without any change before it is being
+   *          played
+   * @param unit
+   *          the unit of {@code turnTime} and {@code idleTime}
+   * @param onExpiry
+   *          the task to run after the game has been ended by a timeout, or
+   *          null
+   * @return the watch, which must be cancelled when the game is no longer
+   *         used
+   */
+  public final Watch watch(final BattleshipModel model, final long turnTime,
+      final long idleTime, final TimeUnit unit, final Runnable onExpiry) {
+    final Watch w;
+
+    w = new Watch(this, model, unit.toNanos(turnTime), unit.toNanos(idleTime),
+        onExpiry);
+    model.addListener(w, BattleshipModelFilter.cells(
+        BattleshipModel.CELL_STATE_PLAYER_HAS_SEEN
+            | BattleshipModel.CELL_STATE_ENEMY_HAS_SEEN
+            | BattleshipModel.CELL_STATE_PLAYER_SHIP).withGameState());
+    synchronized (model) {
+      synchronized (w) {
+        w.schedule(System.nanoTime());
+      }
+    }
+    return w;
+  }
+
+  /**
+   * Get the number of watched games
+   *
+   * @return the number of watched games
+   */
+  public final int getWatchedGames() {
+    return this.m_wheel.size();
+  }
+
+  /**
+   * Get the number of games ended by a timeout
+   *
+   * @return the number of games ended by a timeout
+   */
+  public final long getExpiredGames() {
+    return this.m_expired.get();
+  }
+
+  /** Stop the thread of the clock: no game will expire anymore */
+  public final void shutdown() {
+    this.m_running = false;
+  }
+
+  /** The loop of the thread of the clock */
+  @Override
+  public final void run() {
+    while (this.m_running) {
+      this.m_wheel.advance(System.nanoTime());
+      LockSupport.parkNanos(Math.max(1L,
+          this.m_wheel.nanosUntilNextTick(System.nanoTime())));
+    }
+  }
+
+  /** the clock of a game */
+  public static final class Watch implements IBattleshipModelListener,
+      Runnable {
+
+    /** the clock */
+    private final TurnClock m_clock;
+
+    /** the model */
+    private final BattleshipModel m_model;
+
+    /** the turn time in nanoseconds */
+    private final long m_turnTime;
+
+    /** the idle time in nanoseconds */
+    private final long m_idleTime;
+
+    /** the task to run after expiry, or null */
+    private final Runnable m_onExpiry;
+
+    /** the time of the last change */
+    private volatile long m_lastChange;
+
+    /** the pending timeout, or null, guarded by this */
+    private TimingWheel.Timeout m_timeout;
+
+    /** has the watch been cancelled? guarded by this */
+    private boolean m_cancelled;
+
+    /**
+     * Create the watch
+     *
+     * @param clock
+     *          the clock
+     * @param model
+     *          the model
+     * @param turnTime
+     *          the turn time in nanoseconds
+     * @param idleTime
+     *          the idle time in nanoseconds
+     * @param onExpiry
+     *          the task to run after expiry, or null
+     */
+    Watch(final TurnClock clock, final BattleshipModel model,
+        final long turnTime, final long idleTime, final Runnable onExpiry) {
+      super();
+      this.m_clock = clock;
+      this.m_model = model;
+      this.m_turnTime = turnTime;
+      this.m_idleTime = idleTime;
+      this.m_onExpiry = onExpiry;
+    }
+
+    /**
+     * Get the time limit of the current state of the game. Must be called
+     * while holding the lock of the model.
+     *
+     * @return the time limit in nanoseconds
+     */
+    private final long limit() {
+      return ((this.m_model.getGameState() == BattleshipModel.GAME_STATE_PLAYING) ? //
+      this.m_turnTime
+          : this.m_idleTime);
+    }
+
+    /**
+     * (Re)schedule the timeout for the current state of the game. Must be
+     * called while holding the locks of the model and of this watch, in
+     * that order.
+     *
+     * @param now
+     *          the current time
+     */
+    final void schedule(final long now) {
+      final long delay;
+
+      if (this.m_timeout != null) {
+        this.m_timeout.cancel();
+        this.m_timeout = null;
+      }
+      if (this.m_cancelled) {
+        return;
+      }
+      this.m_lastChange = now;
+      if (this.m_model.getGameState() == BattleshipModel.GAME_STATE_END) {
+        return;
+      }
+      delay = this.limit();
+      this.m_timeout = this.m_clock.m_wheel.schedule(this, delay,
+          TimeUnit.NANOSECONDS);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void battleshipModelChanged(final BattleshipModelEvent event) {
+      if ((event.whatHasChanged() & BattleshipModelEvent.CHANGE_FLAG_GAME_STATE) != 0) {
+        synchronized (this.m_model) {
+          synchronized (this) {
+            this.schedule(System.nanoTime());
+          }
+        }
+      } else {
+        this.m_lastChange = System.nanoTime();
+      }
+    }
+
+    /** The timeout has expired: end the game if it has been idle too long */
+    @Override
+    public final void run() {
+      final BattleshipModel model;
+      final long now, rest;
+      final int winner;
+
+      model = this.m_model;
+      synchronized (model) {
+        synchronized (this) {
+          if (this.m_cancelled) {
+            return;
+          }
+          this.m_timeout = null;
+          now = System.nanoTime();
+          switch (model.getGameState()) {
+            case BattleshipModel.GAME_STATE_END: {
+              return;
+            }
+            case BattleshipModel.GAME_STATE_PLAYING: {
+              // the side which has fired last wins against the stalled side
+              winner = model.getLastPlayer();
+              break;
+            }
+            case BattleshipModel.GAME_STATE_PLAYER_READY: {
+              winner = (model.isEnemyReady() ? BattleshipModel.WINNER_NOBODY
+                  : BattleshipModel.WINNER_PLAYER);
+              break;
+            }
+            default: {
+              winner = (model.isEnemyReady() ? BattleshipModel.WINNER_ENEMY
+                  : BattleshipModel.WINNER_NOBODY);
+              break;
+            }
+          }
+
+          rest = ((this.m_lastChange + this.limit()) - now);
+          if (rest > 0L) {
+            this.m_timeout = this.m_clock.m_wheel.schedule(this, rest,
+                TimeUnit.NANOSECONDS);
+            return;
+          }
+          model.endGame(winner);
+        }
+      }
+
+      this.m_clock.m_expired.incrementAndGet();
+      if (this.m_onExpiry != null) {
+        this.m_onExpiry.run();
+      }
+    }
+
+    /** Stop watching the game */
+    public final void cancel() {
+      synchronized (this) {
+        this.m_cancelled = true;
+        if (this.m_timeout != null) {
+          this.m_timeout.cancel();
+          this.m_timeout = null;
+        }
+      }
+      this.m_model.removeListener(this);
+    }
+  }
+
+  /** the holder of the shared clock, created on first use */
+  private static final class SharedHolder {
+
+    /** the shared clock */
+    static final TurnClock SHARED = new TurnClock(DEFAULT_TICK,
+        TimeUnit.MILLISECONDS, DEFAULT_SLOTS);
+  }
+}
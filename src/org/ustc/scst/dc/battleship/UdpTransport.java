@@ -0,0 +1,760 @@
+package org.ustc.scst.dc.battleship;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A transport over UDP with a lightweight reliability layer. Each message
+ * gets a sequence number of its own, so that a lost datagram only delays
+ * the messages it carried and not all messages after it, as a lost TCP
+ * segment does.
+ * <p>
+ * The messages flushed together are packed into as few datagrams as
+ * possible. The receiver acknowledges each datagram with the sequence number
+ * up to which it has received all messages and a bit mask of the 64
+ * messages after that it has received out of order. Each message not
+ * acknowledged is sent again when its retransmission timeout expires; the
+ * timeout is estimated from the round trip times as for TCP and doubled
+ * with each retransmission. The receiver drops duplicates and passes the
+ * messages on in the order they were sent, so the {@link Communicator} sees
+ * the same ordered stream as with TCP.
+ * </p>
+ * <p>
+ * A thread of the transport receives the datagrams and drives the
+ * transport's own {@link TimingWheel} with the retransmission timeouts.
+ * </p>
+ */
+public final class UdpTransport implements ICommunicatorTransport, Runnable {
+
+  /** a datagram carrying messages */
+  private static final byte PACKET_DATA = 1;
+
+  /** a datagram carrying an acknowledgement */
+  private static final byte PACKET_ACK = 2;
+
+  /** a datagram telling that the sender has closed */
+  private static final byte PACKET_CLOSE = 3;
+
+  /** the largest datagram we send */
+  private static final int MAX_PACKET = 1400;
+
+  /** the header of a data datagram: type, acknowledgement, count */
+  private static final int DATA_HEADER = 9;
+
+  /**
+   * the number of messages which may be unacknowledged, and the number of
+   * messages the receiver buffers out of order, a power of two
+   */
+  private static final int WINDOW = 1024;
+
+  /** the initial retransmission timeout in nanoseconds */
+  private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(200L);
+
+  /** the smallest retransmission timeout in nanoseconds */
+  private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(10L);
+
+  /** the largest retransmission timeout in nanoseconds */
+  private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(2L);
+
+  /** the number of retransmissions after which the peer is given up */
+  private static final int MAX_RETRIES = 15;
+
+  /** the time in milliseconds to wait for acknowledgements when closing */
+  private static final long LINGER = 1000L;
+
+  /** the marker of the end of the incoming messages */
+  private static final GameMessage END = new GameMessage(-1, -1, -1);
+
+  /** the channel */
+  private final DatagramChannel m_channel;
+
+  /** the selector */
+  private final Selector m_selector;
+
+  /** the wheel of the retransmission timeouts */
+  private final TimingWheel m_wheel;
+
+  /** the incoming messages, in order */
+  private final LinkedBlockingQueue<GameMessage> m_inbound;
+
+  /** the messages written but not flushed, only accessed by the writer */
+  private final ArrayList<GameMessage> m_pending;
+
+  /** the buffer of the writer */
+  private final ByteBuffer m_sendBuffer;
+
+  /** the buffer of the thread of the transport */
+  private final ByteBuffer m_ioBuffer;
+
+  /** the unacknowledged messages, indexed by sequence number */
+  private final Outgoing[] m_unacked;
+
+  /** the messages received out of order, indexed by sequence number */
+  private final GameMessage[] m_reorder;
+
+  /** the peer, or null until the first datagram from it has arrived */
+  private volatile SocketAddress m_remote;
+
+  /** the next sequence number to send, guarded by this */
+  private int m_nextSeq;
+
+  /** the smallest unacknowledged sequence number, guarded by this */
+  private int m_base;
+
+  /** the smoothed round trip time, or 0 if unknown, guarded by this */
+  private long m_srtt;
+
+  /** the variation of the round trip time, guarded by this */
+  private long m_rttvar;
+
+  /** the retransmission timeout, guarded by this */
+  private long m_rto;
+
+  /** the next sequence number expected, only accessed by our thread */
+  private int m_expected;
+
+  /**
+   * the sequence number up to which all messages have been received, written
+   * by our thread whenever {@link #m_expected} advances and read by the
+   * writer to piggyback the acknowledgement on data datagrams
+   */
+  private volatile int m_delivered;
+
+  /**
+   * the last sequence number the peer has sent before closing, or -1;
+   * only accessed by our thread
+   */
+  private int m_peerLast;
+
+  /** the number of retransmitted messages */
+  private volatile long m_retransmitted;
+
+  /** the number of duplicates received */
+  private volatile long m_duplicates;
+
+  /** the error which has broken the transport, or null */
+  private volatile IOException m_failure;
+
+  /** has the transport been closed? */
+  private volatile boolean m_closed;
+
+  /**
+   * Create a transport bound to a local port
+   *
+   * @param localPort
+   *          the local port, or 0 for any free port
+   * @param remote
+   *          the peer, or null to take the sender of the first datagram
+   *          received as the peer
+   * @throws IOException
+   *           if the port cannot be opened
+   */
+  private UdpTransport(final int localPort, final SocketAddress remote)
+      throws IOException {
+    super();
+    final Thread t;
+
+    this.m_channel = DatagramChannel.open();
+    try {
+      this.m_channel.socket().bind(new InetSocketAddress(localPort));
+      this.m_channel.configureBlocking(false);
+      this.m_selector = Selector.open();
+      this.m_channel.register(this.m_selector, SelectionKey.OP_READ);
+    } catch (IOException e) {
+      this.m_channel.close();
+      throw e;
+    }
+    this.m_remote = remote;
+    this.m_wheel = new TimingWheel(1L, TimeUnit.MILLISECONDS, 256);
+    this.m_inbound = new LinkedBlockingQueue<>();
+    this.m_pending = new ArrayList<>();
+    this.m_sendBuffer = ByteBuffer.allocate(MAX_PACKET);
+    this.m_ioBuffer = ByteBuffer.allocate(65536);
+    this.m_unacked = new Outgoing[WINDOW];
+    this.m_reorder = new GameMessage[WINDOW];
+    this.m_nextSeq = 1;
+    this.m_base = 1;
+    this.m_rto = INITIAL_RTO;
+    this.m_expected = 1;
+    this.m_delivered = 0;
+    this.m_peerLast = (-1);
+
+    t = new Thread(this, "UdpTransport-" + this.getLocalPort()); //$NON-NLS-1$
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Open a transport to a peer
+   *
+   * @param localPort
+   *          the local port, or 0 for any free port
+   * @param host
+   *          the host of the peer
+   * @param port
+   *          the port of the peer
+   * @return the transport
+   * @throws IOException
+   *           if the port cannot be opened
+   */
+  public static final UdpTransport connect(final int localPort,
+      final String host, final int port) throws IOException {
+    return new UdpTransport(localPort, new InetSocketAddress(host, port));
+  }
+
+  /**
+   * Open a transport whose peer is the sender of the first datagram received
+   *
+   * @param localPort
+   *          the local port, or 0 for any free port
+   * @return the transport
+   * @throws IOException
+   *           if the port cannot be opened
+   */
+  public static final UdpTransport listen(final int localPort)
+      throws IOException {
+    return new UdpTransport(localPort, null);
+  }
+
+  /**
+   * Get the local port
+   *
+   * @return the local port
+   */
+  public final int getLocalPort() {
+    return this.m_channel.socket().getLocalPort();
+  }
+
+  /**
+   * Get the number of messages sent again
+   *
+   * @return the number of retransmitted messages
+   */
+  public final long getRetransmitted() {
+    return this.m_retransmitted;
+  }
+
+  /**
+   * Get the number of duplicate messages received and dropped
+   *
+   * @return the number of duplicates
+   */
+  public final long getDuplicates() {
+    return this.m_duplicates;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void write(final GameMessage msg) throws IOException {
+    if (msg.frameSize() > (MAX_PACKET - DATA_HEADER - 4)) {
+      throw new IOException("The message does not fit into a datagram."); //$NON-NLS-1$
+    }
+    this.m_pending.add(msg);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void flush() throws IOException {
+    final ArrayList<GameMessage> pending;
+    final ByteBuffer buf;
+    Outgoing o;
+    int i, count;
+
+    pending = this.m_pending;
+    if (pending.isEmpty()) {
+      this.checkFailure();
+      return;
+    }
+    buf = this.m_sendBuffer;
+    count = 0;
+    synchronized (this) {
+      for (i = 0; i < pending.size(); i++) {
+        while ((this.m_nextSeq - this.m_base) >= WINDOW) {
+          this.checkFailure();
+          try {
+            this.wait(100L);
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+        }
+        this.checkFailure();
+
+        o = new Outgoing(this.m_nextSeq++, pending.get(i));
+        this.m_unacked[o.m_seq & (WINDOW - 1)] = o;
+        if ((count > 0)
+            && ((buf.position() + 4 + o.m_msg.frameSize()) > MAX_PACKET)) {
+          this.send(buf, count);
+          count = 0;
+        }
+        if (count <= 0) {
+          this.startData(buf);
+        }
+        this.put(buf, o);
+        count++;
+        o.m_sent = System.nanoTime();
+        o.m_timeout = this.m_wheel.schedule(o, this.m_rto,
+            TimeUnit.NANOSECONDS);
+      }
+      if (count > 0) {
+        this.send(buf, count);
+      }
+    }
+    pending.clear();
+    // the thread of the transport may be waiting without a timeout, or
+    // longer than the timeouts just scheduled: let it compute its wait anew
+    this.m_selector.wakeup();
+  }
+
+  /**
+   * Throw the error which has broken the transport, if any
+   *
+   * @throws IOException
+   *           the error
+   */
+  private final void checkFailure() throws IOException {
+    if (this.m_failure != null) {
+      throw new IOException(this.m_failure.getMessage(), this.m_failure);
+    }
+    if (this.m_closed) {
+      throw new IOException("The transport has been closed."); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Start a data datagram
+   *
+   * @param buf
+   *          the buffer
+   */
+  private final void startData(final ByteBuffer buf) {
+    buf.clear();
+    buf.put(PACKET_DATA);
+    buf.putInt(this.m_delivered);
+    buf.putInt(0);
+  }
+
+  /**
+   * Append a message to a data datagram
+   *
+   * @param buf
+   *          the buffer
+   * @param o
+   *          the message
+   */
+  private final void put(final ByteBuffer buf, final Outgoing o) {
+    final int size;
+
+    size = o.m_msg.frameSize();
+    buf.putInt(o.m_seq);
+    o.m_msg.write(buf, buf.position());
+    buf.position(buf.position() + size);
+  }
+
+  /**
+   * Send a data datagram
+   *
+   * @param buf
+   *          the buffer
+   * @param count
+   *          the number of messages in it
+   */
+  private final void send(final ByteBuffer buf, final int count) {
+    buf.putInt(5, count);
+    buf.flip();
+    this.sendDatagram(buf);
+  }
+
+  /**
+   * Send a datagram to the peer, if it is known. A datagram which cannot be
+   * sent counts as lost.
+   *
+   * @param buf
+   *          the datagram
+   */
+  private final void sendDatagram(final ByteBuffer buf) {
+    final SocketAddress remote;
+
+    remote = this.m_remote;
+    if (remote != null) {
+      try {
+        this.m_channel.send(buf, remote);
+      } catch (IOException e) {
+        // lost: the message will be sent again
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final GameMessage read() throws IOException {
+    final GameMessage msg;
+
+    try {
+      msg = this.m_inbound.take();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    if (msg != END) {
+      return msg;
+    }
+    this.m_inbound.offer(END);
+    if (this.m_failure != null) {
+      throw new IOException(this.m_failure.getMessage(), this.m_failure);
+    }
+    throw new EOFException();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public final void shutdownInput() {
+    this.m_inbound.offer(END);
+  }
+
+  /**
+   * Close the transport. The messages sent before are given some time to be
+   * acknowledged, then the peer is told that we have closed.
+   */
+  @Override
+  public final void close() {
+    final long end;
+    final ByteBuffer buf;
+    int i;
+
+    synchronized (this) {
+      if (this.m_closed) {
+        return;
+      }
+      end = (System.currentTimeMillis() + LINGER);
+      while ((this.m_base < this.m_nextSeq) && (this.m_failure == null)
+          && (System.currentTimeMillis() < end)) {
+        try {
+          this.wait(10L);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      this.m_closed = true;
+      buf = ByteBuffer.allocate(5);
+      buf.put(PACKET_CLOSE);
+      buf.putInt(this.m_nextSeq - 1);
+      for (i = 3; (--i) >= 0;) {
+        buf.flip();
+        this.sendDatagram(buf);
+      }
+    }
+    this.m_inbound.offer(END);
+    this.m_selector.wakeup();
+  }
+
+  /**
+   * Break the transport
+   *
+   * @param e
+   *          the error
+   */
+  private final void fail(final IOException e) {
+    if (this.m_failure == null) {
+      this.m_failure = e;
+    }
+    this.m_inbound.offer(END);
+    synchronized (this) {
+      this.notifyAll();
+    }
+  }
+
+  /** The loop of the thread of the transport */
+  @Override
+  public final void run() {
+    final ByteBuffer buf;
+    SocketAddress from;
+    long wait;
+
+    buf = this.m_ioBuffer;
+    try {
+      while (!(this.m_closed)) {
+        if (this.m_wheel.size() <= 0) {
+          wait = 0L;
+        } else {
+          wait = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(this.m_wheel
+              .nanosUntilNextTick(System.nanoTime())));
+        }
+        this.m_selector.select(wait);
+        this.m_selector.selectedKeys().clear();
+
+        for (;;) {
+          buf.clear();
+          from = this.m_channel.receive(buf);
+          if (from == null) {
+            break;
+          }
+          if (this.m_remote == null) {
+            this.m_remote = from;
+          } else {
+            if (!(from.equals(this.m_remote))) {
+              continue;
+            }
+          }
+          buf.flip();
+          try {
+            this.process(buf);
+          } catch (RuntimeException re) {
+            // a damaged datagram
+          }
+        }
+        this.m_wheel.advance(System.nanoTime());
+      }
+    } catch (IOException e) {
+      if (!(this.m_closed)) {
+        this.fail(e);
+      }
+    } finally {
+      try {
+        this.m_selector.close();
+      } catch (IOException e) {//
+      }
+      try {
+        this.m_channel.close();
+      } catch (IOException e) {//
+      }
+    }
+  }
+
+  /**
+   * Process a datagram
+   *
+   * @param buf
+   *          the datagram
+   * @throws IOException
+   *           if a message is invalid
+   */
+  private final void process(final ByteBuffer buf) throws IOException {
+    final byte type;
+    int count, seq, offset;
+    GameMessage msg;
+
+    type = buf.get();
+    switch (type) {
+      case PACKET_ACK: {
+        this.acknowledged(buf.getInt(), buf.getLong());
+        return;
+      }
+      case PACKET_CLOSE: {
+        this.m_peerLast = buf.getInt();
+        this.deliver();
+        return;
+      }
+      case PACKET_DATA: {
+        this.acknowledged(buf.getInt(), 0L);
+        count = buf.getInt();
+        for (; (--count) >= 0;) {
+          seq = buf.getInt();
+          offset = buf.position();
+          msg = GameMessage.read(buf, offset);
+          buf.position(offset + buf.getInt(offset));
+          if (((seq - this.m_expected) < 0)
+              || ((seq - this.m_expected) >= WINDOW)
+              || (this.m_reorder[seq & (WINDOW - 1)] != null)) {
+            this.m_duplicates++;
+          } else {
+            this.m_reorder[seq & (WINDOW - 1)] = msg;
+          }
+        }
+        this.deliver();
+        this.sendAck();
+        return;
+      }
+      default: {
+        return;
+      }
+    }
+  }
+
+  /** Pass the messages received in order on to the reader */
+  private final void deliver() {
+    GameMessage msg;
+    int slot;
+
+    for (;;) {
+      slot = (this.m_expected & (WINDOW - 1));
+      msg = this.m_reorder[slot];
+      if (msg == null) {
+        break;
+      }
+      this.m_reorder[slot] = null;
+      this.m_expected++;
+      this.m_inbound.offer(msg);
+    }
+    this.m_delivered = (this.m_expected - 1);
+    if ((this.m_peerLast >= 0) && ((this.m_expected - 1) >= this.m_peerLast)) {
+      this.m_inbound.offer(END);
+    }
+  }
+
+  /** Acknowledge the messages received */
+  private final void sendAck() {
+    final ByteBuffer buf;
+    long sack;
+    int i;
+
+    sack = 0L;
+    for (i = 64; (--i) >= 0;) {
+      if (this.m_reorder[(this.m_expected + 1 + i) & (WINDOW - 1)] != null) {
+        sack |= (1L << i);
+      }
+    }
+    buf = this.m_ioBuffer;
+    buf.clear();
+    buf.put(PACKET_ACK);
+    buf.putInt(this.m_expected - 1);
+    buf.putLong(sack);
+    buf.flip();
+    this.sendDatagram(buf);
+  }
+
+  /**
+   * Process an acknowledgement
+   *
+   * @param cumulative
+   *          the sequence number up to which all messages have been received
+   * @param sack
+   *          the bit mask of the messages after
+   *          {@code cumulative + 1} received
+   */
+  private synchronized final void acknowledged(final int cumulative,
+      final long sack) {
+    final int base;
+    int seq, i;
+
+    base = this.m_base;
+    for (seq = base; ((seq - cumulative) <= 0)
+        && ((seq - this.m_nextSeq) < 0); seq++) {
+      this.acknowledged(seq);
+    }
+    for (i = 64; (--i) >= 0;) {
+      if ((sack & (1L << i)) != 0L) {
+        seq = (cumulative + 2 + i);
+        if (((seq - this.m_base) >= 0) && ((seq - this.m_nextSeq) < 0)) {
+          this.acknowledged(seq);
+        }
+      }
+    }
+    while (((this.m_base - this.m_nextSeq) < 0)
+        && (this.m_unacked[this.m_base & (WINDOW - 1)] == null)) {
+      this.m_base++;
+    }
+    if (this.m_base != base) {
+      this.notifyAll();
+    }
+  }
+
+  /**
+   * Process the acknowledgement of a message. Must be called while holding
+   * the lock.
+   *
+   * @param seq
+   *          the sequence number of the message
+   */
+  private final void acknowledged(final int seq) {
+    final Outgoing o;
+    final long rtt;
+
+    o = this.m_unacked[seq & (WINDOW - 1)];
+    if ((o == null) || (o.m_seq != seq)) {
+      return;
+    }
+    this.m_unacked[seq & (WINDOW - 1)] = null;
+    o.m_timeout.cancel();
+    if (o.m_retries <= 0) {
+      // only unambiguous samples count (Karn's algorithm)
+      rtt = (System.nanoTime() - o.m_sent);
+      if (this.m_srtt <= 0L) {
+        this.m_srtt = rtt;
+        this.m_rttvar = (rtt >>> 1);
+      } else {
+        this.m_rttvar = ((3L * this.m_rttvar) + Math.abs(this.m_srtt - rtt)) >>> 2;
+        this.m_srtt = ((7L * this.m_srtt) + rtt) >>> 3;
+      }
+      this.m_rto = Math.max(MIN_RTO, Math.min(MAX_RTO,
+          (this.m_srtt + (this.m_rttvar << 2))));
+    }
+  }
+
+  /**
+   * The retransmission timeout of a message has expired: send it again
+   *
+   * @param o
+   *          the message
+   */
+  final synchronized void expired(final Outgoing o) {
+    final ByteBuffer buf;
+
+    if ((this.m_unacked[o.m_seq & (WINDOW - 1)] != o) || this.m_closed) {
+      return;
+    }
+    if (o.m_retries >= MAX_RETRIES) {
+      this.fail(new IOException("The peer does not answer.")); //$NON-NLS-1$
+      return;
+    }
+    o.m_retries++;
+    this.m_retransmitted++;
+    buf = this.m_ioBuffer;
+    this.startData(buf);
+    this.put(buf, o);
+    this.send(buf, 1);
+    o.m_timeout = this.m_wheel.schedule(o,
+        Math.min(MAX_RTO, (this.m_rto << Math.min(20, o.m_retries))),
+        TimeUnit.NANOSECONDS);
+  }
+
+  /** an unacknowledged message */
+  private final class Outgoing implements Runnable {
+
+    /** the sequence number */
+    final int m_seq;
+
+    /** the message */
+    final GameMessage m_msg;
+
+    /** the time it has first been sent */
+    long m_sent;
+
+    /** the number of retransmissions */
+    int m_retries;
+
+    /** the retransmission timeout */
+    TimingWheel.Timeout m_timeout;
+
+    /**
+     * Create the outgoing message
+     *
+     * @param seq
+     *          the sequence number
+     * @param msg
+     *          the message
+     */
+    Outgoing(final int seq, final GameMessage msg) {
+      super();
+      this.m_seq = seq;
+      this.m_msg = msg;
+    }
+
+    /** The retransmission timeout has expired */
+    @Override
+    public final void run() {
+      UdpTransport.this.expired(this);
+    }
+  }
+}